@@ -19,8 +19,26 @@ import com.sun.net.httpserver.HttpExchange;
 
 import java.io.IOException;
 
-/** Filter that aborts the request when server is under high load. */
+/**
+ * Filter that rejects the request with a {@code 503 Service Unavailable} when
+ * server is under high load.
+ */
 class AbortImmediatelyFilter extends Filter {
+  private final Journal journal;
+  private final int retryAfterSeconds;
+
+  /**
+   * @param journal journal to record rejected requests to
+   * @param retryAfterSeconds value of the {@code Retry-After} header
+   */
+  public AbortImmediatelyFilter(Journal journal, int retryAfterSeconds) {
+    if (journal == null) {
+      throw new NullPointerException();
+    }
+    this.journal = journal;
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
   @Override
   public String description() {
     return "Filter that aborts the request when server is under high load";
@@ -29,10 +47,13 @@ class AbortImmediatelyFilter extends Filter {
   @Override
   public void doFilter(HttpExchange ex, Filter.Chain chain) throws IOException {
     // Checking abortImmediately is part of a hack to immediately reject clients
-    // when the work queue grows too long.
+    // when the work queue grows too long. This runs on the server's dispatcher
+    // thread, so only a short, canned response is sent. Responding instead of
+    // dropping the connection lets the GSA know to retry soon.
     if (HttpExchanges.abortImmediately.get() != null) {
-      throw new IOException(
-          "Aborting request because server is under high load");
+      journal.recordRequestShed();
+      LoadShedder.respondUnavailable(ex, retryAfterSeconds);
+      return;
     }
     chain.doFilter(ex);
   }
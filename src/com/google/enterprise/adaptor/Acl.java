@@ -24,7 +24,6 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -70,6 +69,15 @@ public class Acl {
   private final String inheritFromFragment;
   private final InheritanceType inheritType;
   private final boolean caseSensitive;
+  /**
+   * Normalized forms of the principals, used to check case-insensitive ACLs
+   * without lowercasing during each comparison. Computed the first time a
+   * case-insensitive ACL is checked, so ACLs that are only sent to the GSA do
+   * not pay for them.
+   */
+  private volatile PrincipalKeys keys;
+  /** Cached hash code, or {@code 0} if not yet computed. */
+  private int hashCode;
 
   private Acl(Set<GroupPrincipal> permitGroups, Set<GroupPrincipal> denyGroups,
       Set<UserPrincipal> permitUsers, Set<UserPrincipal> denyUsers,
@@ -97,6 +105,52 @@ public class Acl {
     return tmp;
   }
 
+  /**
+   * Returns a key for {@code p} that is equal to another principal's key
+   * exactly when {@link CaseInsensitiveCmp} considers them equal.
+   */
+  static String caseInsensitiveKey(Principal p) {
+    String ns = p.getNamespace().toLowerCase(CASE_LOCALE);
+    // Prefix the length of the namespace to keep keys unambiguous.
+    return ns.length() + ":" + ns + p.getName().toLowerCase(CASE_LOCALE);
+  }
+
+  private static Set<String> caseInsensitiveKeys(
+      Collection<? extends Principal> principals) {
+    if (principals.isEmpty()) {
+      return Collections.emptySet();
+    }
+    Set<String> keys = new HashSet<String>(principals.size() * 2);
+    for (Principal p : principals) {
+      keys.add(caseInsensitiveKey(p));
+    }
+    return keys;
+  }
+
+  private PrincipalKeys getKeys() {
+    PrincipalKeys k = keys;
+    if (k == null) {
+      k = new PrincipalKeys(this);
+      keys = k;
+    }
+    return k;
+  }
+
+  /** Normalized forms of the principals of a case-insensitive ACL. */
+  private static final class PrincipalKeys {
+    private final Set<String> permitGroups;
+    private final Set<String> denyGroups;
+    private final Set<String> permitUsers;
+    private final Set<String> denyUsers;
+
+    PrincipalKeys(Acl acl) {
+      this.permitGroups = caseInsensitiveKeys(acl.permitGroups);
+      this.denyGroups = caseInsensitiveKeys(acl.denyGroups);
+      this.permitUsers = caseInsensitiveKeys(acl.permitUsers);
+      this.denyUsers = caseInsensitiveKeys(acl.denyUsers);
+    }
+  }
+
   private static class CaseInsensitiveCmp<P extends Principal>
       implements Comparator<P> {
     /** Does not differentiate between UserPrincipal and GroupPrincipal */
@@ -230,32 +284,56 @@ public class Acl {
    * @return decision
    */
   public AuthzStatus isAuthorizedLocal(AuthnIdentity userIdentity) {
-    UserPrincipal userIdentifier = userIdentity.getUser();
-    Set<GroupPrincipal> commonGroups;
+    return isAuthorizedLocal(new CompiledIdentity(userIdentity));
+  }
+
+  /**
+   * Same as {@link #isAuthorizedLocal(AuthnIdentity)}, but using the
+   * precomputed form of the identity. Only allocates when first checking an
+   * ACL or identity.
+   */
+  AuthzStatus isAuthorizedLocal(CompiledIdentity identity) {
     if (caseSensitive) {
-      commonGroups = new HashSet<GroupPrincipal>(denyGroups);
+      if (denyUsers.contains(identity.user)
+          || intersects(identity.groups, denyGroups)) {
+        return AuthzStatus.DENY;
+      }
+      if (permitUsers.contains(identity.user)
+          || intersects(identity.groups, permitGroups)) {
+        return AuthzStatus.PERMIT;
+      }
     } else {
-      commonGroups = cmpWrap(denyGroups);
+      PrincipalKeys keys = getKeys();
+      String userKey = identity.getUserKey();
+      if (keys.denyUsers.contains(userKey)
+          || intersects(keys.denyGroups, identity.getGroupKeys())) {
+        return AuthzStatus.DENY;
+      }
+      if (keys.permitUsers.contains(userKey)
+          || intersects(keys.permitGroups, identity.getGroupKeys())) {
+        return AuthzStatus.PERMIT;
+      }
     }
+    return AuthzStatus.INDETERMINATE;
+  }
 
-    Set<GroupPrincipal> userGroups = userIdentity.getGroups();
-    if (!caseSensitive) {
-      userGroups = Collections.unmodifiableSet(cmpWrap(userGroups));
+  /** Returns whether the sets have an element in common. */
+  private static <T> boolean intersects(Set<T> a, Set<T> b) {
+    if (a.size() > b.size()) {
+      Set<T> tmp = a;
+      a = b;
+      b = tmp;
     }
-
-    commonGroups.retainAll(userGroups);
-    if (denyUsers.contains(userIdentifier) || !commonGroups.isEmpty()) {
-      return AuthzStatus.DENY;
+    if (a.isEmpty()) {
+      return false;
     }
-
-    commonGroups.clear();
-    commonGroups.addAll(permitGroups);
-    commonGroups.retainAll(userGroups);
-    if (permitUsers.contains(userIdentifier) || !commonGroups.isEmpty()) {
-      return AuthzStatus.PERMIT;
+    // Iterate over the smaller set.
+    for (T element : a) {
+      if (b.contains(element)) {
+        return true;
+      }
     }
-
-    return AuthzStatus.INDETERMINATE;
+    return false;
   }
 
   /**
@@ -309,6 +387,11 @@ public class Acl {
    */
   public static AuthzStatus isAuthorized(AuthnIdentity userIdentity,
                                          List<Acl> aclChain) {
+    return isAuthorized(new CompiledIdentity(userIdentity), aclChain);
+  }
+
+  private static AuthzStatus isAuthorized(CompiledIdentity userIdentity,
+      List<Acl> aclChain) {
     // Check for completely broken chains. Users of the API should be aware
     // enough to easily prevent these from happening. These also don't directly
     // relate to a case on the GSA because the GSA is working more on the
@@ -348,30 +431,30 @@ public class Acl {
         return AuthzStatus.INDETERMINATE;
       }
     }
-    AuthzStatus result = isAuthorizedRecurse(userIdentity, aclChain);
+    AuthzStatus result = isAuthorizedRecurse(userIdentity, aclChain, 0);
     return (result == AuthzStatus.INDETERMINATE) ? AuthzStatus.DENY : result;
   }
 
   private static AuthzStatus isAuthorizedRecurse(
-      final AuthnIdentity userIdentity, final List<Acl> aclChain) {
-    if (aclChain.size() == 1) {
-      return aclChain.get(0).isAuthorizedLocal(userIdentity);
+      final CompiledIdentity userIdentity, final List<Acl> aclChain,
+      final int start) {
+    if (start == aclChain.size() - 1) {
+      return aclChain.get(start).isAuthorizedLocal(userIdentity);
     }
     Decision parentDecision = new Decision() {
       @Override
       protected AuthzStatus computeDecision() {
-        return aclChain.get(0).isAuthorizedLocal(userIdentity);
+        return aclChain.get(start).isAuthorizedLocal(userIdentity);
       }
     };
     Decision childDecision = new Decision() {
       @Override
       protected AuthzStatus computeDecision() {
         // Recurse.
-        return isAuthorizedRecurse(userIdentity,
-            aclChain.subList(1, aclChain.size()));
+        return isAuthorizedRecurse(userIdentity, aclChain, start + 1);
       }
     };
-    return aclChain.get(0).getInheritanceType()
+    return aclChain.get(start).getInheritanceType()
         .isAuthorized(childDecision, parentDecision);
   }
 
@@ -395,7 +478,30 @@ public class Acl {
   public static Map<DocId, AuthzStatus> isAuthorizedBatch(
       AuthnIdentity userIdentity, Collection<DocId> ids,
       BatchRetriever retriever) throws IOException {
+    return isAuthorizedBatch(userIdentity, ids, retriever, null);
+  }
+
+  /**
+   * Same as {@link #isAuthorizedBatch(AuthnIdentity, Collection,
+   * BatchRetriever)}, except that ACLs in {@code cache} are used instead of
+   * retrieving them, and ACLs that are retrieved are added to {@code cache}.
+   *
+   * @param userIdentity identity containing the user's username and all the
+   *     groups the user belongs to
+   * @param ids collection of DocIds that need authz performed
+   * @param retriever object to use to obtain an ACL for a given DocId
+   * @param cache previously retrieved ACLs, or {@code null}
+   * @throws IOException if the retriever throws an IOException
+   * @return decisions for ids
+   */
+  public static Map<DocId, AuthzStatus> isAuthorizedBatch(
+      AuthnIdentity userIdentity, Collection<DocId> ids,
+      BatchRetriever retriever, AclCache cache) throws IOException {
+    if (cache != null) {
+      retriever = cache.wrap(retriever);
+    }
     Map<DocId, Acl> acls = retrieveNecessaryAcls(ids, retriever);
+    CompiledIdentity compiledIdentity = new CompiledIdentity(userIdentity);
     Map<DocId, AuthzStatus> results
         = new HashMap<DocId, AuthzStatus>(ids.size() * 2);
     for (DocId docId : ids) {
@@ -405,7 +511,7 @@ public class Acl {
         // There was a cycle or other problem generating the chain.
         result = AuthzStatus.INDETERMINATE;
       } else {
-        result = isAuthorized(userIdentity, chain);
+        result = isAuthorized(compiledIdentity, chain);
       }
       results.put(docId, result);
     }
@@ -475,7 +581,8 @@ public class Acl {
   }
 
   private static List<Acl> createChain(DocId docId, Map<DocId, Acl> acls) {
-    List<Acl> chain = new LinkedList<Acl>();
+    // Built from leaf to root, then reversed.
+    List<Acl> chain = new ArrayList<Acl>();
     Set<Acl> used = new HashSet<Acl>();
     DocId cur = docId;
     while (cur != null) {
@@ -499,9 +606,10 @@ public class Acl {
         return null;
       }
       used.add(acl);
-      chain.add(0, acl);
+      chain.add(acl);
       cur = acl.getInheritFrom();
     }
+    Collections.reverse(chain);
     return Collections.unmodifiableList(chain);
   }
 
@@ -536,10 +644,16 @@ public class Acl {
    */
   @Override
   public int hashCode() {
-    return Arrays.hashCode(new Object[] {
-      permitGroups, denyGroups, permitUsers, denyUsers,
-      inheritFrom, inheritFromFragment, inheritType, caseSensitive
-    });
+    // Cached, since ACLs are kept in hash sets while building chains.
+    int h = hashCode;
+    if (h == 0) {
+      h = Arrays.hashCode(new Object[] {
+        permitGroups, denyGroups, permitUsers, denyUsers,
+        inheritFrom, inheritFromFragment, inheritType, caseSensitive
+      });
+      hashCode = h;
+    }
+    return h;
   }
 
   /**
@@ -621,14 +735,16 @@ public class Acl {
       if (set.isEmpty()) {
         return Collections.emptySet();
       }
+      // Use TreeSets so that sets have predictable order when serializing.
+      Set<P> sanitized = new TreeSet<P>();
       // Check all the values to make sure they are valid.
       for (P item : set) {
         if (item == null) {
           throw new NullPointerException("Entries in set may not be null");
         }
+        sanitized.add(PrincipalInterner.intern(item));
       }
-      // Use TreeSets so that sets have predictable order when serializing.
-      return Collections.unmodifiableSet(new TreeSet<P>(set));
+      return Collections.unmodifiableSet(sanitized);
     }
 
     /**
@@ -902,6 +1018,43 @@ public class Acl {
     abstract AuthzStatus isAuthorized(Decision child, Decision parent);
   }
 
+  /**
+   * An {@link AuthnIdentity} prepared for checking against many ACLs. The
+   * normalized forms used by case-insensitive ACLs are computed once, the first
+   * time they are needed, instead of during every check.
+   */
+  static final class CompiledIdentity {
+    private final UserPrincipal user;
+    private final Set<GroupPrincipal> groups;
+    private volatile String userKey;
+    private volatile Set<String> groupKeys;
+
+    CompiledIdentity(AuthnIdentity identity) {
+      this.user = identity.getUser();
+      Set<GroupPrincipal> groups = identity.getGroups();
+      this.groups = (groups == null)
+          ? Collections.<GroupPrincipal>emptySet() : groups;
+    }
+
+    private String getUserKey() {
+      String key = userKey;
+      if (key == null) {
+        key = caseInsensitiveKey(user);
+        userKey = key;
+      }
+      return key;
+    }
+
+    private Set<String> getGroupKeys() {
+      Set<String> keys = groupKeys;
+      if (keys == null) {
+        keys = caseInsensitiveKeys(groups);
+        groupKeys = keys;
+      }
+      return keys;
+    }
+  }
+
   /**
    * Lazy-computing of AuthzStatus.
    */
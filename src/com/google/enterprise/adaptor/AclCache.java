@@ -0,0 +1,127 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of ACLs retrieved by an {@link Acl.BatchRetriever}, for use
+ * with {@link Acl#isAuthorizedBatch(AuthnIdentity, java.util.Collection,
+ * Acl.BatchRetriever, AclCache)}. Documents in a hierarchy commonly inherit
+ * from the same few ancestors, so caching their ACLs avoids retrieving them
+ * again for every authorization check. A cached ACL is used until it expires
+ * or is invalidated, so the time to live bounds how long a change to an ACL
+ * may go unnoticed. ACLs that the retriever did not return are not cached.
+ *
+ * <p>A single instance may be shared by many authorization checks and
+ * threads. This class is thread-safe.
+ */
+public class AclCache {
+  private final Cache<DocId, Acl> cache;
+
+  /**
+   * @param maxSize maximum number of ACLs kept
+   * @param timeToLive how long an ACL may be used after it is retrieved
+   * @param unit unit of {@code timeToLive}
+   */
+  public AclCache(long maxSize, long timeToLive, TimeUnit unit) {
+    this(maxSize, timeToLive, unit, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  AclCache(long maxSize, long timeToLive, TimeUnit unit, Ticker ticker) {
+    if (maxSize < 0 || timeToLive < 0) {
+      throw new IllegalArgumentException(
+          "maxSize and timeToLive must not be negative");
+    }
+    cache = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(timeToLive, unit)
+        .ticker(ticker)
+        .build();
+  }
+
+  /**
+   * Removes the cached ACL of a document, such as when its ACL changed.
+   *
+   * @param id the document
+   */
+  public void invalidate(DocId id) {
+    cache.invalidate(id);
+  }
+
+  /**
+   * Removes the cached ACLs of several documents.
+   *
+   * @param ids the documents
+   */
+  public void invalidateAll(Iterable<DocId> ids) {
+    cache.invalidateAll(ids);
+  }
+
+  /** Removes all cached ACLs. */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Statistics of the cache, such as its hit rate. Each requested ACL counts
+   * once, as either a hit or a miss.
+   *
+   * @return statistics since the cache was created
+   */
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+
+  /**
+   * Returns a retriever that uses cached ACLs when available, and retrieves
+   * and caches the rest with {@code retriever}.
+   */
+  Acl.BatchRetriever wrap(final Acl.BatchRetriever retriever) {
+    return new Acl.BatchRetriever() {
+      @Override
+      public Map<DocId, Acl> retrieveAcls(Set<DocId> ids) throws IOException {
+        Map<DocId, Acl> acls
+            = new HashMap<DocId, Acl>(cache.getAllPresent(ids));
+        if (acls.size() == ids.size()) {
+          return acls;
+        }
+        Set<DocId> missing = new HashSet<DocId>(ids);
+        missing.removeAll(acls.keySet());
+        Map<DocId, Acl> retrieved = retriever.retrieveAcls(missing);
+        for (Map.Entry<DocId, Acl> me : retrieved.entrySet()) {
+          if (me.getValue() != null) {
+            cache.put(me.getKey(), me.getValue());
+          }
+        }
+        // Prefer what was just retrieved.
+        acls.putAll(retrieved);
+        return acls;
+      }
+    };
+  }
+}
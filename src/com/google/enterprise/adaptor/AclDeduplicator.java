@@ -0,0 +1,154 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replaces large ACLs with references to named resources holding them, so
+ * that documents with identical ACLs share a single copy on the GSA instead of
+ * each carrying it in its headers. The named resource of an ACL has a DocId
+ * derived from the ACL's contents, so the same ACL always maps to the same
+ * named resource. It is pushed the first time it is seen, and again after it
+ * is forgotten, as the set of pushed named resources is bounded or its feed
+ * failed. Documents only inherit from it once it has been queued; until then
+ * they carry the ACL themselves. This class is thread-safe.
+ */
+class AclDeduplicator implements DocIdSender.SentItemsListener {
+  private static final Logger log
+      = Logger.getLogger(AclDeduplicator.class.getName());
+  /** Fragment of the named resources, so they never replace a document's. */
+  static final String FRAGMENT = "shared";
+
+  private final String docIdPrefix;
+  private final int minPrincipals;
+  private final DocumentHandler.AsyncPusher pusher;
+  private final Journal journal;
+  /**
+   * Named resources that have been queued to be pushed, or are about to be if
+   * {@code false}.
+   */
+  private final Cache<DocId, Boolean> pushed;
+
+  /**
+   * @param docIdPrefix prefix of the DocIds of the named resources, which must
+   *     not be used by any document
+   * @param minPrincipals minimum number of permits and denies for an ACL to be
+   *     shared
+   * @param maxRemembered number of pushed named resources to remember
+   * @param pusher queue to push named resources with
+   * @param journal journal to record shared ACLs to
+   */
+  public AclDeduplicator(String docIdPrefix, int minPrincipals,
+      int maxRemembered, DocumentHandler.AsyncPusher pusher, Journal journal) {
+    if (docIdPrefix == null || pusher == null || journal == null) {
+      throw new NullPointerException();
+    }
+    if (minPrincipals < 1) {
+      throw new IllegalArgumentException("minPrincipals must be positive");
+    }
+    this.docIdPrefix = docIdPrefix;
+    this.minPrincipals = minPrincipals;
+    this.pusher = pusher;
+    this.journal = journal;
+    this.pushed = CacheBuilder.newBuilder().maximumSize(maxRemembered).build();
+  }
+
+  /**
+   * Returns an ACL for a document that inherits from a shared named resource
+   * holding {@code acl}. Returns {@code acl} if it has too few principals or
+   * its named resource could not be queued.
+   */
+  public Acl deduplicate(Acl acl) {
+    if (acl == null || acl.getPermitUsers().size()
+        + acl.getPermitGroups().size() + acl.getDenyUsers().size()
+        + acl.getDenyGroups().size() < minPrincipals) {
+      return acl;
+    }
+    DocId sharedId = new DocId(docIdPrefix + fingerprint(acl));
+    Boolean queued = pushed.asMap().putIfAbsent(sharedId, Boolean.FALSE);
+    boolean first = queued == null;
+    if (first) {
+      if (!pusher.asyncPushItem(
+          DocumentHandler.namedResourceItem(acl, sharedId, FRAGMENT))) {
+        pushed.invalidate(sharedId);
+        log.log(Level.FINE, "Unable to queue shared ACL {0}", sharedId);
+        return acl;
+      }
+      if (!pushed.asMap().replace(sharedId, Boolean.FALSE, Boolean.TRUE)) {
+        // Its feed already failed.
+        return acl;
+      }
+    } else if (!queued) {
+      // Another document is still queueing it.
+      return acl;
+    }
+    journal.recordSharedAcl(first);
+    return DocumentHandler.inheritingAcl(acl, sharedId, FRAGMENT);
+  }
+
+  @Override
+  public void itemsSent(List<? extends DocIdSender.Item> items) {}
+
+  /** Forgets the named resources in {@code items}, so they are pushed again. */
+  @Override
+  public void itemsNotSent(List<? extends DocIdSender.Item> items) {
+    for (DocIdSender.Item item : items) {
+      if (item instanceof DocIdSender.AclItem) {
+        DocIdSender.AclItem aclItem = (DocIdSender.AclItem) item;
+        if (FRAGMENT.equals(aclItem.getDocIdFragment())) {
+          pushed.invalidate(aclItem.getDocId());
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns a value that differs for ACLs that could authorize differently
+   * as the parent of an otherwise empty ACL. The inheritance type is ignored,
+   * since it is replaced in the named resource.
+   */
+  @VisibleForTesting
+  static String fingerprint(Acl acl) {
+    Fingerprinter fingerprinter = new Fingerprinter();
+    // The sets are sorted, so equal sets are iterated in the same order.
+    add(fingerprinter, acl.getPermitUsers());
+    add(fingerprinter, acl.getPermitGroups());
+    add(fingerprinter, acl.getDenyUsers());
+    add(fingerprinter, acl.getDenyGroups());
+    DocId inheritFrom = acl.getInheritFrom();
+    fingerprinter.add(inheritFrom == null ? null : inheritFrom.getUniqueId());
+    fingerprinter.add(acl.getInheritFromFragment());
+    fingerprinter.add(acl.isEverythingCaseSensitive());
+    fingerprinter.add(acl.isEverythingCaseInsensitive());
+    return fingerprinter.finish();
+  }
+
+  private static void add(Fingerprinter fingerprinter,
+      Set<? extends Principal> principals) {
+    fingerprinter.add(String.valueOf(principals.size()));
+    for (Principal principal : principals) {
+      fingerprinter.add(principal.getName());
+      fingerprinter.add(principal.getNamespace());
+    }
+  }
+}
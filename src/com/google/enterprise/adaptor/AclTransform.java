@@ -15,29 +15,57 @@
 package com.google.enterprise.adaptor;
 
 import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.enterprise.adaptor.Principal.ParsedPrincipal;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Transforms Principals in ACLs based on provided rules.
+ *
+ * <p>The same principals appear in many ACLs, so the result of transforming
+ * each principal is remembered, up to {@code memoSize} principals. Rules are
+ * indexed by the literal values they match, so that only the rules that may
+ * match a principal are tried. A pattern is literal when it has no special
+ * characters other than ones escaped with a backslash; since an unescaped
+ * {@code .} matches any character, {@code example\.com} is indexed but
+ * {@code example.com} is tried for every principal.
  */
 final class AclTransform {
   private static final Logger log
       = Logger.getLogger(AclTransform.class.getName());
+  /** Default number of transformed principals remembered. */
+  static final int DEFAULT_MEMO_SIZE = 10000;
+
   private final List<Rule> rules;
+  private final RuleIndex index;
+  /** Transformed form of recently seen principals. */
+  private final Cache<Principal, Principal> memo;
 
   public AclTransform(List<Rule> rules) {
+    this(rules, DEFAULT_MEMO_SIZE);
+  }
+
+  public AclTransform(List<Rule> rules, int memoSize) {
+    if (memoSize < 0) {
+      throw new IllegalArgumentException("memoSize must not be negative");
+    }
     this.rules = Collections.unmodifiableList(new ArrayList<Rule>(rules));
+    this.index = new RuleIndex(this.rules);
+    this.memo = CacheBuilder.newBuilder().maximumSize(memoSize).build();
   }
 
   public Acl transform(Acl acl) {
@@ -47,9 +75,15 @@ final class AclTransform {
     if (rules.isEmpty()) {
       return acl;
     }
+    Collection<Principal> permits = transformIfChanged(acl.getPermits());
+    Collection<Principal> denies = transformIfChanged(acl.getDenies());
+    if (permits == null && denies == null) {
+      // Rebuilding would produce an equal Acl.
+      return acl;
+    }
     return new Acl.Builder(acl)
-        .setPermits(transformInternal(acl.getPermits()))
-        .setDenies(transformInternal(acl.getDenies()))
+        .setPermits(permits == null ? acl.getPermits() : permits)
+        .setDenies(denies == null ? acl.getDenies() : denies)
         .build();
   }
 
@@ -58,7 +92,9 @@ final class AclTransform {
     if (rules.isEmpty()) {
       return principals;
     }
-    return transformInternal(principals);
+    Collection<T> transformed = transformIfChanged(principals);
+    return transformed == null
+        ? Collections.unmodifiableCollection(principals) : transformed;
   }
 
   public <T extends Principal> T transform(T principal) {
@@ -68,26 +104,64 @@ final class AclTransform {
     return transformInternal(principal);
   }
 
-  private <T extends Principal> Collection<T> transformInternal(
+  /**
+   * Returns the transformed principals, or {@code null} if transforming did
+   * not change any of them.
+   */
+  private <T extends Principal> Collection<T> transformIfChanged(
       Collection<T> principals) {
-    Collection<T> newPrincipals = new ArrayList<T>(principals.size());
+    List<T> newPrincipals = null;
+    int count = 0;
     for (T principal : principals) {
-      newPrincipals.add(transformInternal(principal));
+      T principalNew = transformInternal(principal);
+      if (newPrincipals == null && !principalNew.equals(principal)) {
+        // Principals before this one were unchanged.
+        newPrincipals = new ArrayList<T>(principals.size());
+        Iterator<T> unchanged = principals.iterator();
+        for (int i = 0; i < count; i++) {
+          newPrincipals.add(unchanged.next());
+        }
+      }
+      if (newPrincipals != null) {
+        newPrincipals.add(principalNew);
+      }
+      count++;
     }
-    return Collections.unmodifiableCollection(newPrincipals);
+    return newPrincipals == null
+        ? null : Collections.unmodifiableCollection(newPrincipals);
   }
 
   private <T extends Principal> T transformInternal(T principal) {
-    ParsedPrincipal parsed = principal.parse();
-    for (Rule rule : rules) {
+    Principal principalNew = memo.getIfPresent(principal);
+    if (principalNew == null) {
+      principalNew = applyRules(principal);
+      memo.put(principal, principalNew);
+    }
+    // Rules can not change whether a principal is a group.
+    @SuppressWarnings("unchecked")
+    T result = (T) principalNew;
+    return result;
+  }
+
+  private Principal applyRules(Principal principal) {
+    ParsedPrincipal original = principal.parse();
+    ParsedPrincipal parsed = original;
+    BitSet candidates = index.candidates(parsed);
+    for (int i = candidates.nextSetBit(0); i >= 0;
+        i = candidates.nextSetBit(i + 1)) {
+      Rule rule = rules.get(i);
       MatchResult m = rule.match.matches(parsed);
       if (m.matches()) {
         parsed = rule.replace.replace(m.getCapturedGroups(), parsed);
+        // Later rules may match the new values instead.
+        candidates = index.candidates(parsed);
       }
     }
-    @SuppressWarnings("unchecked")
-    T principalNew = (T) parsed.toPrincipal();
-    return principalNew;
+    if (parsed.equals(original)) {
+      // Equal to what toPrincipal() would create.
+      return PrincipalInterner.intern(principal);
+    }
+    return PrincipalInterner.intern(parsed.toPrincipal());
   }
 
   @Override
@@ -195,6 +269,13 @@ final class AclTransform {
     private final Pattern namePattern;
     private final Pattern domainPattern;
     private final Pattern namespacePattern;
+    // the only text each pattern matches, so that it can be compared with
+    // equals() instead of running the regular expression, or null if the
+    // pattern is null or matches other text
+    private final String nameLiteral;
+    private final String domainLiteral;
+    private final String namespaceLiteral;
+    private final boolean capturing;
 
     /**
      * For matching, non-{@code null} fields must be equal on Principal. For
@@ -211,6 +292,40 @@ final class AclTransform {
       namePattern = name != null ? Pattern.compile(name) : null;
       domainPattern = domain != null ? Pattern.compile(domain) : null;
       namespacePattern = namespace != null ? Pattern.compile(namespace) : null;
+      nameLiteral = literal(name);
+      domainLiteral = literal(domain);
+      namespaceLiteral = literal(namespace);
+      capturing = (name != null && nameLiteral == null)
+          || (domain != null && domainLiteral == null)
+          || (namespace != null && namespaceLiteral == null);
+    }
+
+    /**
+     * Returns the only text {@code regex} matches, or {@code null} if {@code
+     * regex} is {@code null} or has special characters that are not escaped
+     * with a backslash.
+     */
+    private static String literal(String regex) {
+      if (regex == null) {
+        return null;
+      }
+      StringBuilder text = new StringBuilder(regex.length());
+      for (int i = 0; i < regex.length(); i++) {
+        char c = regex.charAt(i);
+        if (c == '\\') {
+          // A backslash before a character that is not a letter or digit
+          // always stands for that character.
+          if (++i == regex.length()
+              || Character.isLetterOrDigit(regex.charAt(i))) {
+            return null;
+          }
+          c = regex.charAt(i);
+        } else if ("^$.|?*+()[]{}".indexOf(c) != -1) {
+          return null;
+        }
+        text.append(c);
+      }
+      return text.toString();
     }
 
     /**
@@ -223,8 +338,11 @@ final class AclTransform {
      * @param groups map of captured values
      * @return if match has been found
      */
-    private boolean match(Pattern pattern, String string,
+    private boolean match(Pattern pattern, String literal, String string,
         String prefix, Map<String, String> groups) {
+      if (literal != null) {
+        return literal.equals(string);
+      }
       Matcher m = pattern.matcher(string);
       if (m.matches()) {
         for (int i = 1; i <= m.groupCount(); ++i) {
@@ -239,22 +357,26 @@ final class AclTransform {
       if (isGroup != null) {
         matches = matches && isGroup.equals(principal.isGroup);
       }
-      Map<String, String> groups = new HashMap<String, String>();
+      Map<String, String> groups = capturing
+          ? new HashMap<String, String>()
+          : Collections.<String, String>emptyMap();
       if (name != null) {
         matches = matches && match(
-            namePattern, principal.plainName, "name", groups);
+            namePattern, nameLiteral, principal.plainName, "name", groups);
       }
       if (domain != null) {
         matches = matches && match(
-            domainPattern, principal.domain, "domain", groups);
+            domainPattern, domainLiteral, principal.domain, "domain", groups);
       }
       if (namespace != null) {
-        matches = matches && match(
-            namespacePattern, principal.namespace, "namespace", groups);
+        matches = matches && match(namespacePattern, namespaceLiteral,
+            principal.namespace, "namespace", groups);
       }
       MatchResult result = new MatchResult(matches, groups);
-      log.finest("Matching " + principal + " against "
-          + this.toString() + "; result: " + result.toString());
+      if (log.isLoggable(Level.FINEST)) {
+        log.finest("Matching " + principal + " against "
+            + this.toString() + "; result: " + result.toString());
+      }
       return result;
     }
 
@@ -339,4 +461,60 @@ final class AclTransform {
           && Objects.equal(namespace, m.namespace);
     }
   }
+
+  /**
+   * Finds the rules that may match a principal. Each rule that matches a
+   * literal name, domain or namespace is indexed by one of those values, and
+   * the remaining rules are tried for every principal.
+   */
+  private static final class RuleIndex {
+    private final int ruleCount;
+    private final BitSet unindexed = new BitSet();
+    private final Map<String, BitSet> byName = new HashMap<String, BitSet>();
+    private final Map<String, BitSet> byDomain
+        = new HashMap<String, BitSet>();
+    private final Map<String, BitSet> byNamespace
+        = new HashMap<String, BitSet>();
+
+    RuleIndex(List<Rule> rules) {
+      ruleCount = rules.size();
+      for (int i = 0; i < ruleCount; i++) {
+        MatchData match = rules.get(i).match;
+        if (match.nameLiteral != null) {
+          add(byName, match.nameLiteral, i);
+        } else if (match.domainLiteral != null) {
+          add(byDomain, match.domainLiteral, i);
+        } else if (match.namespaceLiteral != null) {
+          add(byNamespace, match.namespaceLiteral, i);
+        } else {
+          unindexed.set(i);
+        }
+      }
+    }
+
+    private static void add(Map<String, BitSet> map, String key, int rule) {
+      BitSet rules = map.get(key);
+      if (rules == null) {
+        rules = new BitSet();
+        map.put(key, rules);
+      }
+      rules.set(rule);
+    }
+
+    /** Returns the rules that may match {@code principal}, in order. */
+    BitSet candidates(ParsedPrincipal principal) {
+      BitSet candidates = new BitSet(ruleCount);
+      candidates.or(unindexed);
+      or(candidates, byName.get(principal.plainName));
+      or(candidates, byDomain.get(principal.domain));
+      or(candidates, byNamespace.get(principal.namespace));
+      return candidates;
+    }
+
+    private static void or(BitSet candidates, BitSet rules) {
+      if (rules != null) {
+        candidates.or(rules);
+      }
+    }
+  }
 }
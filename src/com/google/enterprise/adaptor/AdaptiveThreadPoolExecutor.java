@@ -0,0 +1,158 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread pool that resizes itself based on how much time its tasks spend
+ * blocked and how many tasks are waiting in the queue.
+ *
+ * <p>While tasks are queued, the pool grows toward {@code processors * wall /
+ * cpu}, the number of threads needed to keep the processors busy given the
+ * observed ratio of wall-clock time to CPU time. Tasks that are mostly blocked
+ * on I/O therefore allow many threads, while CPU-bound tasks do not. When the
+ * queue is empty, the pool shrinks toward the number of active threads. The
+ * size always stays within {@code [minThreads, maxThreads]}.
+ *
+ * <p>Like the fixed pool it replaces, tasks are only rejected when the queue
+ * is full and {@code maxThreads} threads are busy.
+ */
+class AdaptiveThreadPoolExecutor extends ThreadPoolExecutor {
+  private static final Logger log
+      = Logger.getLogger(AdaptiveThreadPoolExecutor.class.getName());
+
+  private static final ThreadMXBean threadMXBean
+      = ManagementFactory.getThreadMXBean();
+
+  private final int minThreads;
+  private final int maxThreads;
+  private final int processors;
+  private final long adjustIntervalNanos;
+  private final boolean measureCpu;
+  private final AtomicLong nextAdjustNanos;
+  private final AtomicLong wallNanos = new AtomicLong();
+  private final AtomicLong cpuNanos = new AtomicLong();
+  private final ThreadLocal<long[]> taskStart = new ThreadLocal<long[]>() {
+    @Override
+    protected long[] initialValue() {
+      return new long[2];
+    }
+  };
+
+  /**
+   * @param minThreads lower bound of the pool size
+   * @param initialThreads initial pool size
+   * @param maxThreads upper bound of the pool size
+   * @param adjustIntervalMillis minimum time between pool size adjustments
+   * @param workQueue queue of waiting tasks
+   * @param handler handler for tasks that cannot be executed
+   */
+  public AdaptiveThreadPoolExecutor(int minThreads, int initialThreads,
+      int maxThreads, long adjustIntervalMillis,
+      BlockingQueue<Runnable> workQueue, RejectedExecutionHandler handler) {
+    super(initialThreads, maxThreads, 1, TimeUnit.MINUTES, workQueue,
+        handler);
+    if (minThreads < 1 || initialThreads < minThreads
+        || maxThreads < initialThreads) {
+      throw new IllegalArgumentException("Thread counts must satisfy "
+          + "1 <= minThreads <= initialThreads <= maxThreads");
+    }
+    if (adjustIntervalMillis < 0) {
+      throw new IllegalArgumentException(
+          "adjustIntervalMillis must be non-negative");
+    }
+    this.minThreads = minThreads;
+    this.maxThreads = maxThreads;
+    this.processors = Runtime.getRuntime().availableProcessors();
+    this.adjustIntervalNanos
+        = TimeUnit.MILLISECONDS.toNanos(adjustIntervalMillis);
+    this.nextAdjustNanos
+        = new AtomicLong(System.nanoTime() + adjustIntervalNanos);
+    this.measureCpu = threadMXBean.isCurrentThreadCpuTimeSupported()
+        && threadMXBean.isThreadCpuTimeEnabled();
+    allowCoreThreadTimeOut(true);
+  }
+
+  @Override
+  protected void beforeExecute(Thread t, Runnable r) {
+    super.beforeExecute(t, r);
+    long[] start = taskStart.get();
+    start[0] = System.nanoTime();
+    start[1] = measureCpu ? threadMXBean.getCurrentThreadCpuTime() : 0;
+  }
+
+  @Override
+  protected void afterExecute(Runnable r, Throwable t) {
+    long[] start = taskStart.get();
+    long now = System.nanoTime();
+    wallNanos.addAndGet(now - start[0]);
+    if (measureCpu) {
+      cpuNanos.addAndGet(threadMXBean.getCurrentThreadCpuTime() - start[1]);
+    }
+    long next = nextAdjustNanos.get();
+    if (now - next >= 0
+        && nextAdjustNanos.compareAndSet(next, now + adjustIntervalNanos)) {
+      adjust();
+    }
+    super.afterExecute(r, t);
+  }
+
+  /**
+   * Resizes the pool using the statistics gathered since the last
+   * adjustment.
+   */
+  void adjust() {
+    long wall = wallNanos.getAndSet(0);
+    long cpu = cpuNanos.getAndSet(0);
+    int current = getCorePoolSize();
+    int target = computeTargetSize(current, minThreads, maxThreads,
+        processors, wall, cpu, getQueue().size(), getActiveCount());
+    if (target != current) {
+      log.log(Level.FINE, "Resizing pool from {0} to {1} threads",
+          new Object[] {current, target});
+      setCorePoolSize(target);
+    }
+  }
+
+  /**
+   * Computes the new pool size. {@code cpu} is zero when CPU time is not
+   * measurable, in which case tasks are assumed to be blocked.
+   */
+  static int computeTargetSize(int current, int minThreads, int maxThreads,
+      int processors, long wall, long cpu, int queued, int active) {
+    int target;
+    if (queued > 0) {
+      long limit = maxThreads;
+      if (wall > 0 && cpu > 0) {
+        limit = (long) Math.ceil(processors * ((double) wall / cpu));
+      }
+      target = (int) Math.min(limit, (long) current + queued);
+    } else {
+      // Shrink gradually so that a short lull doesn't discard the threads a
+      // busy period needed.
+      target = Math.max(active, current - Math.max(1, (current - active) / 2));
+    }
+    return Math.max(minThreads, Math.min(maxThreads, target));
+  }
+}
@@ -143,4 +143,27 @@ public interface AdaptorContext {
    * @param authzAuthority makes access decisions
    */
   public void setAuthzAuthority(AuthzAuthority authzAuthority);
+
+  /**
+   * Register a metadata retriever, so it can provide documents' headers when
+   * their content is not needed. Registration may not occur after {@link
+   * Adaptor#init}.
+   * @param metadataRetriever provides headers without content
+   */
+  public void setMetadataRetriever(MetadataRetriever metadataRetriever);
+
+  /**
+   * Register a prefetcher, so it can be told which documents the GSA is likely
+   * to request soon. Registration may not occur after {@link Adaptor#init}.
+   * @param prefetcher loads documents in bulk
+   */
+  public void setDocIdPrefetcher(DocIdPrefetcher prefetcher);
+
+  /**
+   * Returns the index of the group definitions pushed with {@link
+   * DocIdPusher#pushGroupDefinitions}, for checking nested group membership
+   * locally. Only available when {@code adaptor.indexGroups} is {@code true}.
+   * @return the index, or {@code null} if groups are not indexed
+   */
+  public GroupGraph getGroupGraph();
 }
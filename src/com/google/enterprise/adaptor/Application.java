@@ -379,17 +379,7 @@ public final class Application {
       }
     }
 
-    int maxThreads = config.getServerMaxWorkerThreads();
-    int queueCapacity = config.getServerQueueCapacity();
-    BlockingQueue<Runnable> blockingQueue
-        = new ArrayBlockingQueue<Runnable>(queueCapacity);
-    // The Executor can't reject jobs directly, because HttpServer does not
-    // appear to handle that case.
-    RejectedExecutionHandler policy
-        = new SuggestHandlerAbortPolicy(HttpExchanges.abortImmediately);
-    Executor executor = new ThreadPoolExecutor(maxThreads, maxThreads,
-        1, TimeUnit.MINUTES, blockingQueue, policy);
-    server.setExecutor(executor);
+    server.setExecutor(createServerExecutor(config));
 
     try {
       server.bind(new InetSocketAddress(config.getServerPort()), 0);
@@ -403,6 +393,47 @@ public final class Application {
     return server;
   }
 
+  static ExecutorService createServerExecutor(Config config) {
+    String mode = config.getServerExecutorMode();
+    int maxThreads = config.getServerMaxWorkerThreads();
+    int queueCapacity = config.getServerQueueCapacity();
+    // The Executor can't reject jobs directly, because HttpServer does not
+    // appear to handle that case.
+    RejectedExecutionHandler policy
+        = new SuggestHandlerAbortPolicy(HttpExchanges.abortImmediately);
+    if ("fixed".equals(mode)) {
+      BlockingQueue<Runnable> blockingQueue
+          = new ArrayBlockingQueue<Runnable>(queueCapacity);
+      return new ThreadPoolExecutor(maxThreads, maxThreads,
+          1, TimeUnit.MINUTES, blockingQueue, policy);
+    }
+    if (!"adaptive".equals(mode) && !"virtual".equals(mode)) {
+      throw new InvalidConfigurationException(
+          "Unknown server.executor.mode: " + mode);
+    }
+    int minPoolThreads = config.getServerExecutorMinThreads();
+    int maxPoolThreads = config.getServerExecutorMaxThreads();
+    if ("virtual".equals(mode)) {
+      ExecutorService executor
+          = VirtualThreadExecutor.create(maxPoolThreads, policy);
+      if (executor != null) {
+        return executor;
+      }
+      log.warning("Virtual threads are not supported by this JVM. Using "
+          + "adaptive executor instead");
+    }
+    try {
+      int initialThreads
+          = Math.max(minPoolThreads, Math.min(maxPoolThreads, maxThreads));
+      return new AdaptiveThreadPoolExecutor(minPoolThreads, initialThreads,
+          maxPoolThreads, 1000, new ArrayBlockingQueue<Runnable>(queueCapacity),
+          policy);
+    } catch (IllegalArgumentException ex) {
+      throw new InvalidConfigurationException(
+          "Invalid server.executor configuration", ex);
+    }
+  }
+
   static HttpServer createDashboardHttpServer(Config config)
       throws IOException {
     boolean secure = config.isServerSecure();
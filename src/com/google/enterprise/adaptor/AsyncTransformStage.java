@@ -0,0 +1,278 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands bytes off to a content transform stage running on another thread, so
+ * that the writer, the stage, and the stages after it can run concurrently.
+ * Bytes are copied into chunks, and at most {@code maxQueuedChunks} chunks
+ * are queued before the writer blocks. This class is not thread-safe; it
+ * expects a single writer.
+ *
+ * <p>Failures of the stage are reported to the writer by its next call to
+ * {@code write()}, {@code flush()} or {@code close()}. {@code close()} waits
+ * for the stage to finish, so once it returns the stage and everything after
+ * it have been closed. If the writer is interrupted while waiting, such as by
+ * {@link Watchdog}, it throws {@link InterruptedIOException} and aborts the
+ * stage.
+ */
+class AsyncTransformStage extends OutputStream {
+  private static final Logger log
+      = Logger.getLogger(AsyncTransformStage.class.getName());
+
+  /** Marker to flush the stage. */
+  private static final Chunk FLUSH = new Chunk(0);
+  /** Marker to close the stage. */
+  private static final Chunk END = new Chunk(0);
+
+  private final OutputStream stage;
+  private final int chunkBytes;
+  private final BlockingQueue<Chunk> queue;
+  /** Chunks that have been written by the stage, for reuse. */
+  private final BlockingQueue<Chunk> free;
+  /** The next asynchronous stage in the pipeline, or {@code null}. */
+  private final AsyncTransformStage next;
+  private final Future<?> worker;
+  private final byte[] singleByte = new byte[1];
+  private Chunk current;
+  private boolean closed;
+  private volatile Throwable failure;
+
+  /**
+   * @param stage the transform to run on {@code executor}
+   * @param executor executor to run the transform
+   * @param chunkBytes size of each hand-off
+   * @param maxQueuedChunks number of hand-offs that may be waiting for the
+   *     stage before the writer blocks
+   * @param next the next asynchronous stage after {@code stage}, which is
+   *     aborted with this one, or {@code null}
+   */
+  public AsyncTransformStage(OutputStream stage, ExecutorService executor,
+      int chunkBytes, int maxQueuedChunks, AsyncTransformStage next) {
+    if (stage == null || executor == null) {
+      throw new NullPointerException();
+    }
+    if (chunkBytes <= 0 || maxQueuedChunks <= 0) {
+      throw new IllegalArgumentException(
+          "chunkBytes and maxQueuedChunks must be positive");
+    }
+    this.stage = stage;
+    this.chunkBytes = chunkBytes;
+    this.queue = new ArrayBlockingQueue<Chunk>(maxQueuedChunks);
+    this.free = new ArrayBlockingQueue<Chunk>(maxQueuedChunks + 1);
+    this.next = next;
+    this.worker = executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    });
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    singleByte[0] = (byte) b;
+    write(singleByte, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || off + len > b.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    checkUsable();
+    while (len > 0) {
+      if (current == null) {
+        current = free.poll();
+        if (current == null) {
+          current = new Chunk(chunkBytes);
+        }
+      }
+      int copied = Math.min(len, current.data.length - current.length);
+      System.arraycopy(b, off, current.data, current.length, copied);
+      current.length += copied;
+      off += copied;
+      len -= copied;
+      if (current.length == current.data.length) {
+        handOffCurrent();
+      }
+    }
+  }
+
+  /**
+   * Hands off any buffered bytes and asks the stage to flush. Does not wait
+   * for the stage to complete the flush.
+   */
+  @Override
+  public void flush() throws IOException {
+    checkUsable();
+    handOffCurrent();
+    put(FLUSH);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    checkFailure();
+    handOffCurrent();
+    put(END);
+    closed = true;
+    try {
+      worker.get();
+    } catch (InterruptedException ex) {
+      abort();
+      InterruptedIOException ioe = new InterruptedIOException(
+          "Interrupted waiting for content transform");
+      ioe.initCause(ex);
+      throw ioe;
+    } catch (Exception ex) {
+      // drain() does not throw, so the worker was cancelled by abort().
+      throw new IOException("Content transform aborted", ex);
+    }
+    checkFailure();
+  }
+
+  /**
+   * Stops the stage and every asynchronous stage after it without waiting for
+   * them, discarding any queued bytes. Used when the writer will not complete
+   * the content.
+   */
+  public void abort() {
+    if (failure == null) {
+      failure = new CancellationException("Content transform aborted");
+    }
+    worker.cancel(true);
+    queue.clear();
+    if (next != null) {
+      next.abort();
+    }
+  }
+
+  /** Runs on the executor, writing queued chunks to the stage. */
+  private void drain() {
+    try {
+      while (true) {
+        Chunk chunk = queue.take();
+        if (chunk == END) {
+          stage.close();
+          return;
+        } else if (chunk == FLUSH) {
+          stage.flush();
+        } else {
+          stage.write(chunk.data, 0, chunk.length);
+          chunk.length = 0;
+          free.offer(chunk);
+        }
+      }
+    } catch (Throwable t) {
+      if (!(t instanceof InterruptedException)) {
+        log.log(Level.FINE, "Content transform failed", t);
+      }
+      if (failure == null) {
+        failure = t;
+      }
+      // Unblock the writer, which will notice the failure.
+      queue.clear();
+      if (next != null) {
+        next.abort();
+      }
+    }
+  }
+
+  private void handOffCurrent() throws IOException {
+    if (current == null || current.length == 0) {
+      return;
+    }
+    Chunk chunk = current;
+    current = null;
+    put(chunk);
+  }
+
+  private void put(Chunk chunk) throws IOException {
+    checkFailure();
+    try {
+      queue.put(chunk);
+    } catch (InterruptedException ex) {
+      abort();
+      InterruptedIOException ioe = new InterruptedIOException(
+          "Interrupted writing to content transform");
+      ioe.initCause(ex);
+      throw ioe;
+    }
+  }
+
+  private void checkUsable() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    checkFailure();
+  }
+
+  private void checkFailure() throws IOException {
+    Throwable t = failure;
+    if (t != null) {
+      closed = true;
+      throw new IOException("Content transform failed", t);
+    }
+  }
+
+  private static class Chunk {
+    final byte[] data;
+    int length;
+
+    Chunk(int size) {
+      data = new byte[size];
+    }
+  }
+
+  /**
+   * The head of a content transform pipeline that contains asynchronous
+   * stages, so that those stages can be aborted if the content will not be
+   * completed.
+   */
+  static class Pipeline extends FastFilterOutputStream {
+    private final AsyncTransformStage first;
+
+    /**
+     * @param out the first stream of the pipeline
+     * @param first the first asynchronous stage of the pipeline
+     */
+    public Pipeline(OutputStream out, AsyncTransformStage first) {
+      super(out);
+      if (first == null) {
+        throw new NullPointerException();
+      }
+      this.first = first;
+    }
+
+    /** Aborts all asynchronous stages of the pipeline. */
+    public void abort() {
+      first.abort();
+    }
+  }
+}
@@ -0,0 +1,114 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time by which the current call to {@link
+ * AuthzAuthority#isUserAuthorized} should return. When {@code
+ * adaptor.authzTimeoutSecs} is configured, decisions not made by then are
+ * replaced with a fallback decision and the calling thread is interrupted, so
+ * an adaptor that queries a slow system may use the remaining time to bound
+ * its own requests.
+ *
+ * <p>Only valid in the thread calling {@code isUserAuthorized}:
+ *
+ * <pre>
+ * long timeout = AuthzDeadline.current().getRemainingMillis();
+ * </pre>
+ */
+public final class AuthzDeadline {
+  private static final ThreadLocal<AuthzDeadline> current
+      = new ThreadLocal<AuthzDeadline>();
+  /** Deadline of calls that may take as long as they need. */
+  private static final AuthzDeadline NONE = new AuthzDeadline(false, 0);
+
+  private final boolean limited;
+  /** Deadline in terms of {@link System#nanoTime}. */
+  private final long deadlineNanos;
+
+  private AuthzDeadline(boolean limited, long deadlineNanos) {
+    this.limited = limited;
+    this.deadlineNanos = deadlineNanos;
+  }
+
+  /**
+   * Returns the deadline of the authorization call being made by the current
+   * thread. If there is none, the returned deadline is never expired.
+   */
+  public static AuthzDeadline current() {
+    AuthzDeadline deadline = current.get();
+    return deadline == null ? NONE : deadline;
+  }
+
+  /** Returns whether the call has a deadline. */
+  public boolean isLimited() {
+    return limited;
+  }
+
+  /** Returns whether the deadline has passed. */
+  public boolean isExpired() {
+    return getRemainingNanos() <= 0;
+  }
+
+  /**
+   * Returns the number of milliseconds until the deadline, {@code 0} once it
+   * has passed, or {@link Long#MAX_VALUE} if the call has no deadline.
+   */
+  public long getRemainingMillis() {
+    if (!limited) {
+      return Long.MAX_VALUE;
+    }
+    return TimeUnit.NANOSECONDS.toMillis(Math.max(0, getRemainingNanos()));
+  }
+
+  long getRemainingNanos() {
+    return limited ? deadlineNanos - System.nanoTime() : Long.MAX_VALUE;
+  }
+
+  @Override
+  public String toString() {
+    return limited ? "AuthzDeadline(" + getRemainingMillis() + "ms)"
+        : "AuthzDeadline(none)";
+  }
+
+  /**
+   * Returns a deadline {@code timeoutMillis} from now, or one without limit if
+   * {@code timeoutMillis} is {@code 0}.
+   */
+  static AuthzDeadline afterMillis(long timeoutMillis) {
+    if (timeoutMillis < 0) {
+      throw new IllegalArgumentException("timeoutMillis must not be negative");
+    }
+    if (timeoutMillis == 0) {
+      return NONE;
+    }
+    return new AuthzDeadline(true,
+        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+  }
+
+  /**
+   * Makes {@code deadline} the current thread's deadline, or removes it when
+   * {@code null}.
+   */
+  static void setCurrent(AuthzDeadline deadline) {
+    if (deadline == null) {
+      current.remove();
+    } else {
+      current.set(deadline);
+    }
+  }
+}
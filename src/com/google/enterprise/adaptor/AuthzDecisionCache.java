@@ -0,0 +1,255 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the decisions of an {@link AuthzAuthority} for each user and {@code
+ * DocId}, so that a user paging through search results is not authorized for
+ * the same documents again and again. Users are told apart by a fingerprint
+ * of their name, groups and password, so the cache does not keep passwords.
+ * {@link AuthzStatus#PERMIT} decisions are kept for {@code permitMillis};
+ * other decisions, which are more likely to be reversed by the user logging in
+ * or being granted access, are kept for {@code denyMillis}.
+ *
+ * <p>Decisions for a document are invalidated when its record or ACL is sent
+ * to the GSA. Changes to the ACLs it inherits from or to group membership are
+ * only noticed once decisions expire. Since the entries are keyed by user,
+ * invalidation does not look for them. Instead each invalidation is given a
+ * generation, remembered for the document for as long as any decision could
+ * live, and decisions made before their document's latest invalidation are
+ * ignored on lookup. This class is thread-safe.
+ */
+class AuthzDecisionCache implements AuthzAuthority,
+    DocIdSender.SentItemsListener {
+  private final AuthzAuthority delegate;
+  private final Journal journal;
+  /** Keys are lists of fingerprint and DocId. */
+  private final Cache<List<Object>, Decision> permits;
+  private final Cache<List<Object>, Decision> denials;
+  /** Generation of the latest invalidation of each recently sent DocId. */
+  private final Cache<DocId, Long> invalidations;
+  /** Incremented by each invalidation. */
+  private final AtomicLong generation = new AtomicLong();
+  /**
+   * Decisions made before this generation are invalid for every DocId. Raised
+   * when an invalidation is evicted from {@link #invalidations} for space.
+   */
+  private volatile long minimumGeneration;
+
+  public AuthzDecisionCache(AuthzAuthority delegate, Journal journal,
+      long maxSize, long permitMillis, long denyMillis) {
+    this(delegate, journal, maxSize, permitMillis, denyMillis,
+        Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  AuthzDecisionCache(AuthzAuthority delegate, Journal journal, long maxSize,
+      long permitMillis, long denyMillis, Ticker ticker) {
+    if (delegate == null || journal == null) {
+      throw new NullPointerException();
+    }
+    if (maxSize < 0 || permitMillis < 0 || denyMillis < 0) {
+      throw new IllegalArgumentException(
+          "maxSize, permitMillis and denyMillis must not be negative");
+    }
+    this.delegate = delegate;
+    this.journal = journal;
+    this.permits = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(permitMillis, TimeUnit.MILLISECONDS)
+        .ticker(ticker)
+        .build();
+    this.denials = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(denyMillis, TimeUnit.MILLISECONDS)
+        .ticker(ticker)
+        .build();
+    // Older decisions have expired anyway.
+    this.invalidations = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(Math.max(permitMillis, denyMillis),
+            TimeUnit.MILLISECONDS)
+        .ticker(ticker)
+        .removalListener(new RemovalListener<DocId, Long>() {
+          @Override
+          public void onRemoval(RemovalNotification<DocId, Long> n) {
+            if (n.getCause() == RemovalCause.SIZE) {
+              raiseMinimumGeneration(n.getValue());
+            }
+          }
+        })
+        .build();
+  }
+
+  @Override
+  public Map<DocId, AuthzStatus> isUserAuthorized(AuthnIdentity userIdentity,
+      Collection<DocId> ids) throws IOException {
+    String fingerprint = fingerprint(userIdentity);
+    // Read before asking the delegate, so that decisions it makes while the
+    // document is being invalidated are treated as made before.
+    long currentGeneration = generation.get();
+    Map<DocId, AuthzStatus> result
+        = new HashMap<DocId, AuthzStatus>(ids.size() * 2);
+    List<DocId> misses = new ArrayList<DocId>();
+    for (DocId id : ids) {
+      List<Object> key = Arrays.<Object>asList(fingerprint, id);
+      Decision decision = getValid(permits, key, id);
+      if (decision == null) {
+        decision = getValid(denials, key, id);
+      }
+      if (decision == null) {
+        misses.add(id);
+      } else {
+        result.put(id, decision.status);
+      }
+    }
+    journal.recordAuthzCacheLookups(result.size(), misses.size());
+    if (misses.isEmpty()) {
+      return Collections.unmodifiableMap(result);
+    }
+    Map<DocId, AuthzStatus> decided
+        = delegate.isUserAuthorized(userIdentity, misses);
+    if (decided == null) {
+      return decided;
+    }
+    for (DocId id : misses) {
+      AuthzStatus status = decided.get(id);
+      if (status == null) {
+        continue;
+      }
+      List<Object> key = Arrays.<Object>asList(fingerprint, id);
+      Decision decision = new Decision(status, currentGeneration);
+      if (status == AuthzStatus.PERMIT) {
+        permits.put(key, decision);
+      } else {
+        denials.put(key, decision);
+      }
+      result.put(id, status);
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  /** Invalidates decisions for documents whose record or ACL was sent. */
+  @Override
+  public void itemsSent(List<? extends DocIdSender.Item> items) {
+    Set<DocId> changed = new HashSet<DocId>();
+    for (DocIdSender.Item item : items) {
+      if (item instanceof DocIdPusher.Record) {
+        changed.add(((DocIdPusher.Record) item).getDocId());
+      } else if (item instanceof DocIdSender.AclItem) {
+        changed.add(((DocIdSender.AclItem) item).getDocId());
+      }
+    }
+    if (!changed.isEmpty()) {
+      invalidate(changed);
+    }
+  }
+
+  @Override
+  public void itemsNotSent(List<? extends DocIdSender.Item> items) {}
+
+  /** Invalidates the decisions of all users for {@code ids}. */
+  public void invalidate(Set<DocId> ids) {
+    Long invalidation = generation.incrementAndGet();
+    for (DocId id : ids) {
+      invalidations.put(id, invalidation);
+    }
+  }
+
+  /**
+   * Returns the decision for {@code key} in {@code cache}, unless it was made
+   * before {@code id} was last invalidated, in which case it is removed.
+   */
+  private Decision getValid(Cache<List<Object>, Decision> cache,
+      List<Object> key, DocId id) {
+    Decision decision = cache.getIfPresent(key);
+    if (decision == null) {
+      return null;
+    }
+    Long invalidation = invalidations.getIfPresent(id);
+    if (decision.generation < minimumGeneration
+        || (invalidation != null && invalidation > decision.generation)) {
+      cache.invalidate(key);
+      return null;
+    }
+    return decision;
+  }
+
+  /**
+   * Returns a value that differs for identities that could be authorized
+   * differently. {@code null} identities are anonymous.
+   */
+  @VisibleForTesting
+  static String fingerprint(AuthnIdentity identity) {
+    if (identity == null) {
+      return "";
+    }
+    Fingerprinter fingerprinter = new Fingerprinter();
+    UserPrincipal user = identity.getUser();
+    fingerprinter.add(user == null ? null : user.getName());
+    fingerprinter.add(user == null ? null : user.getNamespace());
+    fingerprinter.add(identity.getPassword());
+    Set<GroupPrincipal> groups = identity.getGroups();
+    if (groups == null) {
+      fingerprinter.add((String) null);
+    } else {
+      // Sorted, so that the order of groups does not matter.
+      for (GroupPrincipal group : new TreeSet<GroupPrincipal>(groups)) {
+        fingerprinter.add(group.getName());
+        fingerprinter.add(group.getNamespace());
+      }
+    }
+    return fingerprinter.finish();
+  }
+
+  private synchronized void raiseMinimumGeneration(long evicted) {
+    if (evicted > minimumGeneration) {
+      minimumGeneration = evicted;
+    }
+  }
+
+  /** A cached decision and the generation at which it was requested. */
+  private static class Decision {
+    final AuthzStatus status;
+    final long generation;
+
+    Decision(AuthzStatus status, long generation) {
+      this.status = status;
+      this.generation = generation;
+    }
+  }
+}
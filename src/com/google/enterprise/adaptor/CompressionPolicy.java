@@ -0,0 +1,230 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Decides whether a document response should be gzip compressed, based on
+ * its content type and size, and configures the {@link HttpExchange}
+ * accordingly.
+ *
+ * <p>Content types are selected with a {@link ContentTypeFilter}.
+ *
+ * <p>When a minimum size is configured, sending the response headers is
+ * delayed until either that many bytes have been written or the response is
+ * closed, so that small responses can be sent uncompressed.
+ */
+class CompressionPolicy {
+  private static final Logger log
+      = Logger.getLogger(CompressionPolicy.class.getName());
+
+  private final ContentTypeFilter contentTypes;
+  private final int minSize;
+  private final int level;
+
+  /**
+   * @param includeContentTypes patterns of types to compress; empty for all
+   * @param excludeContentTypes patterns of types to never compress
+   * @param minSize smallest response, in bytes, worth compressing
+   * @param level deflate level from 1 to 9, or -1 for the default level
+   */
+  public CompressionPolicy(List<String> includeContentTypes,
+      List<String> excludeContentTypes, int minSize, int level) {
+    if (minSize < 0) {
+      throw new IllegalArgumentException("minSize must be non-negative");
+    }
+    if (level != Deflater.DEFAULT_COMPRESSION
+        && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+      throw new IllegalArgumentException("level must be -1 or 1-9: " + level);
+    }
+    this.contentTypes
+        = new ContentTypeFilter(includeContentTypes, excludeContentTypes);
+    this.minSize = minSize;
+    this.level = level;
+  }
+
+  /**
+   * Returns whether content of {@code contentType} should be compressed.
+   * Responses without a content type are only compressed when no include
+   * list is configured.
+   */
+  public boolean isCompressible(String contentType) {
+    return contentTypes.accepts(contentType);
+  }
+
+  /**
+   * Replacement for {@link HttpExchanges#startResponse} that compresses the
+   * response when the client supports it and the policy permits. When a
+   * minimum size is configured the headers may not have been sent when this
+   * method returns; they are guaranteed to be sent once the response body is
+   * closed.
+   */
+  void startResponse(HttpExchange ex, int code, String contentType,
+      boolean hasBody, Journal journal) throws IOException {
+    if (!HttpExchanges.acceptsGzip(ex) || !isCompressible(contentType)) {
+      HttpExchanges.startResponse(ex, code, contentType, hasBody);
+      return;
+    }
+    if (!hasBody) {
+      // Mirror what a GET would have done, when that is knowable.
+      if (minSize == 0) {
+        ex.getResponseHeaders().set("Content-Encoding", "gzip");
+      }
+      HttpExchanges.startResponse(ex, code, contentType, hasBody);
+      return;
+    }
+    if (contentType != null) {
+      ex.getResponseHeaders().set("Content-Type", contentType);
+    }
+    // See HttpExchanges.enableCompressionIfSupported for why calling
+    // getResponseBody() before sendResponseHeaders() is supported.
+    DeferredCompressionOutputStream os = new DeferredCompressionOutputStream(
+        ex, code, ex.getResponseBody(), journal);
+    ex.setStreams(null, os);
+    if (minSize == 0) {
+      os.startCompressing();
+    }
+  }
+
+  /**
+   * Buffers up to {@code minSize} bytes before deciding whether to compress.
+   * Headers are sent when the decision is made. This class is not
+   * thread-safe.
+   */
+  private class DeferredCompressionOutputStream
+      extends FastFilterOutputStream {
+    private final HttpExchange ex;
+    private final int code;
+    private final OutputStream rawOs;
+    private final Journal journal;
+    private byte[] buffer = new byte[0];
+    private int count;
+    private CountingOutputStream compressedCounter;
+    private long uncompressedBytes;
+    private boolean closed;
+
+    public DeferredCompressionOutputStream(HttpExchange ex, int code,
+        OutputStream rawOs, Journal journal) {
+      this.ex = ex;
+      this.code = code;
+      this.rawOs = rawOs;
+      this.journal = journal;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+      if (out == null) {
+        if (count + len < minSize) {
+          append(b, off, len);
+          return;
+        }
+        startCompressing();
+      }
+      if (compressedCounter != null) {
+        uncompressedBytes += len;
+      }
+      out.write(b, off, len);
+    }
+
+    /** Flushing is delayed until a decision has been made. */
+    @Override
+    public void flush() throws IOException {
+      if (out != null) {
+        out.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      if (out == null) {
+        log.finer("Response smaller than minimum size; not compressing");
+        ex.sendResponseHeaders(code, 0);
+        out = rawOs;
+        out.write(buffer, 0, count);
+        buffer = null;
+      }
+      closed = true;
+      out.close();
+      if (compressedCounter != null && journal != null) {
+        journal.recordCompression(
+            uncompressedBytes, compressedCounter.getBytesWritten());
+      }
+    }
+
+    private void append(byte[] b, int off, int len) {
+      if (count + len > buffer.length) {
+        byte[] newBuffer = new byte[Math.min(
+            minSize, Math.max(count + len, buffer.length * 2))];
+        System.arraycopy(buffer, 0, newBuffer, 0, count);
+        buffer = newBuffer;
+      }
+      System.arraycopy(b, off, buffer, count, len);
+      count += len;
+    }
+
+    void startCompressing() throws IOException {
+      log.finer("Enabling gzip compression for response");
+      ex.getResponseHeaders().set("Content-Encoding", "gzip");
+      ex.sendResponseHeaders(code, 0);
+      compressedCounter = new CountingOutputStream(rawOs);
+      // GZIPOutputStream writes the gzip header in its constructor, so it
+      // must be created after sendResponseHeaders.
+      out = new GZIPOutputStream(compressedCounter) {
+        {
+          def.setLevel(level);
+        }
+      };
+      if (count > 0) {
+        uncompressedBytes += count;
+        out.write(buffer, 0, count);
+      }
+      buffer = null;
+      count = 0;
+    }
+  }
+
+  /** Counts the bytes written to the underlying stream. */
+  private static class CountingOutputStream extends FastFilterOutputStream {
+    private long count;
+
+    public CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+
+    public long getBytesWritten() {
+      return count;
+    }
+  }
+}
@@ -57,6 +57,18 @@ import java.util.logging.Logger;
  * <tr><td> </td><td>adaptor.markAllDocsAsPublic </td><td> Tells GSA all
         documents are public.  Overrides all ACLs and even the setting of
         {@code Response.setSecure()}.  Defaults to false
+ * <tr><td> </td><td>adaptor.maxAclHeaderBytes </td><td> ACLs whose
+ *     encoded header would be longer than this many bytes are sent to the
+ *     GSA as named resources in feeds, and the document's header only
+ *     inherits from them. 0 always sends ACLs in headers. Defaults to 0
+ * <tr><td> </td><td>adaptor.sharedAclMinPrincipals </td><td> ACLs with at
+ *     least this many permits and denies are sent to the GSA once as a named
+ *     resource shared by every document with the same ACL, and each
+ *     document's header only inherits from it. 0 always sends ACLs with their
+ *     documents. Defaults to 0
+ * <tr><td> </td><td>adaptor.sharedAclDocIdPrefix </td><td> prefix of the
+ *     DocIds of shared ACLs' named resources. No document's DocId may start
+ *     with it. Defaults to __sharedAcl__/
  * <tr><td> </td><td>adaptor.fullListingSchedule </td><td> when to invoke 
  *     {@link Adaptor#getDocIds Adaptor.getDocIds}, in cron format (minute,
  *     hour,  day of month, month, day of week).  Defaults to 0 3 * * *
@@ -64,6 +76,59 @@ import java.util.logging.Logger;
  *     of seconds between invocations of {@link
  *     PollingIncrementalLister#getModifiedDocIds
  *     PollingIncrementalLister.getModifiedDocIds}.    Defaults to 900
+ * <tr><td> </td><td>adaptor.coalesceConcurrentRetrievals </td><td> when
+ *     true, concurrent requests for the same document from equally-trusted
+ *     clients share a single call to {@link Adaptor#getDocContent
+ *     Adaptor.getDocContent}. Defaults to false
+ * <tr><td> </td><td>adaptor.coalesceMemoryBufferBytes </td><td> number of
+ *     bytes of a shared document held in memory before the rest is buffered
+ *     on disk. Requests that arrive after the document's first retrieval has
+ *     produced more than this retrieve it themselves. Defaults to 1048576
+ * <tr><td> </td><td>adaptor.authzCacheSize </td><td> maximum number of
+ *     authorization decisions, for a user and document, to cache. 0 disables
+ *     caching. Defaults to 0
+ * <tr><td> </td><td>adaptor.authzCachePermitSecs </td><td> number of
+ *     seconds a cached PERMIT decision is used. Defaults to 30
+ * <tr><td> </td><td>adaptor.authzCacheDenySecs </td><td> number of
+ *     seconds any other cached decision is used. Defaults to 5
+ * <tr><td> </td><td>adaptor.authzBatchSize </td><td> maximum number of
+ *     documents in each call to {@link AuthzAuthority#isUserAuthorized
+ *     AuthzAuthority.isUserAuthorized}. Larger authorization requests from the
+ *     GSA are split and the parts are evaluated in parallel. 0 disables
+ *     splitting. Defaults to 0
+ * <tr><td> </td><td>adaptor.authzMaxThreads </td><td> maximum number of
+ *     threads evaluating parts of authorization requests, when splitting or
+ *     a timeout is enabled. Defaults to 8
+ * <tr><td> </td><td>adaptor.authzMaxQueued </td><td> maximum number of
+ *     authorization calls waiting for one of {@code adaptor.authzMaxThreads}.
+ *     Further calls are not made, and their documents get {@code
+ *     adaptor.authzTimeoutDecision}, until the adaptor catches up. Defaults
+ *     to 64
+ * <tr><td> </td><td>adaptor.authzTimeoutSecs </td><td> number of seconds
+ *     to wait for the adaptor's authorization decisions, both for SAML
+ *     requests from the GSA and for users retrieving documents directly.
+ *     Documents without a decision by then get {@code
+ *     adaptor.authzTimeoutDecision}, while completed decisions are still
+ *     returned. Adaptors can find the time remaining with {@link
+ *     AuthzDeadline}. 0 waits without limit. Defaults to 0
+ * <tr><td> </td><td>adaptor.authzTimeoutDecision </td><td> decision for
+ *     documents not authorized within {@code adaptor.authzTimeoutSecs};
+ *     either INDETERMINATE or DENY. Defaults to INDETERMINATE
+ * <tr><td> </td><td>adaptor.internPrincipals </td><td> when true, equal
+ *     principals in ACLs and in users' identities share one instance, which
+ *     saves heap when many ACLs repeat the same users and groups. Defaults to
+ *     false
+ * <tr><td> </td><td>adaptor.indexGroups </td><td> when true, group
+ *     definitions sent to the GSA are indexed so that the adaptor can expand
+ *     users' nested groups with {@link AdaptorContext#getGroupGraph}. Defaults
+ *     to false
+ * <tr><td> </td><td>adaptor.groupIndexFile </td><td> file the group index is
+ *     saved to when the adaptor stops and loaded from when it starts, so that
+ *     it does not start empty. Empty to not save it. Defaults to empty
+ * <tr><td> </td><td>adaptor.groupIndexRecompileSecs </td><td> minimum number
+ *     of seconds between compilations of the group index after group
+ *     definitions are pushed. Until then, nested groups are expanded using the
+ *     previous definitions. Defaults to 10
  * <tr><td> </td><td>adaptor.docContentTimeoutSecs </td><td> number of seconds
  *     adaptor has to complete sending content before it is interrupted. Timing
  *     starts when sending content starts. Defaults to 180
@@ -155,15 +220,44 @@ import java.util.logging.Logger;
  *     Defaults to adaptor
  * <tr><td> </td><td>server.maxWorkerThreads </td><td> number of maximum
  *     simultenous retrievals  allowed.  Defaults to 16
+ * <tr><td> </td><td>server.executor.mode </td><td> how retrievals are
+ *     scheduled onto threads. {@code fixed} uses server.maxWorkerThreads
+ *     threads. {@code adaptive} starts with server.maxWorkerThreads threads
+ *     and grows or shrinks the pool within server.executor.minThreads and
+ *     server.executor.maxThreads depending on how long retrievals block and
+ *     how many are queued. {@code virtual} runs each retrieval in a new
+ *     virtual thread, allowing up to server.executor.maxThreads at once, and
+ *     falls back to {@code adaptive} when the JVM does not support virtual
+ *     threads. Defaults to fixed
+ * <tr><td> </td><td>server.executor.minThreads </td><td> smallest size of the
+ *     adaptive pool. Defaults to 4
+ * <tr><td> </td><td>server.executor.maxThreads </td><td> largest size of the
+ *     adaptive pool and maximum number of virtual threads. Defaults to 256
  * <tr><td> </td><td>server.port </td><td> retriever port.  Defaults to 5678
  * <tr><td> </td><td>server.queueCapacity </td><td> max retriever queue size.
  *     Defaults to  160
+ * <tr><td> </td><td>server.loadShedding.reservedQueueCapacity </td><td>
+ *     portion of the retriever queue only usable by the GSA. Other clients
+ *     receive 503 responses once the rest of the queue is in use. With the
+ *     {@code virtual} executor mode, which has no queue, this many of the
+ *     server.executor.maxThreads requests run at once are reserved instead.
+ *     Defaults to 40
+ * <tr><td> </td><td>server.loadShedding.maxLatencyMillis </td><td>
+ *     requests from clients other than the GSA receive 503 responses while the
+ *     99th percentile retrieval latency exceeds this value. 0 disables.
+ *     Defaults to 0
+ * <tr><td> </td><td>server.loadShedding.retryAfterSeconds </td><td>
+ *     Retry-After value sent with 503 responses when overloaded. Defaults to
+ *     10
  * <tr><td> </td><td>server.reverseProxyPort </td><td> port used in
  *     retriever URLs (in case requests
  *     are routed through a reverse proxy).  Defaults to server.port
  * <tr><td> </td><td>server.reverseProxyProtocol </td><td> either http or https,
  *     depending on  proxy traffic.  Defaults to https in secure
  *     mode and http otherwise
+ * <tr><td> </td><td>server.streamingSamlAuthz </td><td> when true, SAML
+ *     authorization requests are parsed and answered with a streaming codec
+ *     instead of building OpenSAML objects. Defaults to false
  * <tr><td> </td><td>server.samlEntityId </td><td> The SAML Entity ID that the
  *     Adaptor will use to identity itself. Defaults to
  *     http://google.com/enterprise/gsa/adaptor
@@ -180,12 +274,37 @@ import java.util.logging.Logger;
  *     Defaults to empty string "".
  * <tr><td> </td><td>server.useCompression </td><td> compress retrieval
  *     responses. Defaults to false
+ * <tr><td> </td><td>server.compression.includeContentTypes </td><td>
+ *     comma-separated content types to compress when compression is enabled.
+ *     A trailing {@code *} matches any suffix, as in {@code text/*}.
+ *     Defaults to empty, meaning all content types
+ * <tr><td> </td><td>server.compression.excludeContentTypes </td><td>
+ *     comma-separated content types never to compress, in the same format
+ *     as includeContentTypes. Defaults to common already-compressed formats,
+ *     such as JPEG, PNG, audio, video, zip, gzip and Office Open XML
+ * <tr><td> </td><td>server.compression.minSize </td><td> responses
+ *     smaller than this many bytes are sent uncompressed. Defaults to 0
+ * <tr><td> </td><td>server.compression.level </td><td> gzip compression
+ *     level, from 1 (fastest) to 9 (smallest), or -1 for the zlib default.
+ *     Defaults to -1
  * <tr><td> </td><td>transform.acl.X </td><td> where X is an integer, match
- *     and modify principals as described. Defaults no modifications
+ *     and modify principals as described. Rules matching a name, domain or
+ *     namespace without unescaped special characters are only tried for
+ *     principals with that value, so write example\.com rather than
+ *     example.com. Defaults no modifications
  * <tr><td> </td><td>metadata.transform.pipeline </td><td> sequence of
  *     metadata transformation steps.  Defaults to no-pipeline
  * <tr><td> </td><td>content.transform.pipeline </td><td>
- *     content transform pipeline. Defaults to no-pipeline</td></tr>
+ *     content transform pipeline. Each transform may set contentTypes and
+ *     excludeContentTypes to comma-separated content type patterns (such as
+ *     text/html or text/*) so that documents of other types bypass it.
+ *     Setting async to true runs a transform on its own thread, buffering up
+ *     to asyncBufferBytes (default 65536) of its input.
+ *     Defaults to no-pipeline</td></tr>
+ * <tr><td> </td><td>content.transform.asyncMaxThreads </td><td> maximum
+ *     number of threads running asynchronous content transforms. When all are
+ *     busy, further asynchronous transforms run in the thread writing the
+ *     document instead. Defaults to 16
  * <tr><td> </td><td>saml.idpExpirationMillis </td><td> Expiration time
  *     sent in SAML Authentication response. Defaults to 30,000 milliseconds.
  * </table>
@@ -253,7 +372,21 @@ public class Config {
     // A queue that takes one second to drain, assuming 16 threads and 100 ms
     // for each request.
     addKey("server.queueCapacity", "160");
+    addKey("server.executor.mode", "fixed");
+    addKey("server.executor.minThreads", "4");
+    addKey("server.executor.maxThreads", "256");
+    addKey("server.loadShedding.reservedQueueCapacity", "40");
+    addKey("server.loadShedding.maxLatencyMillis", "0");
+    addKey("server.loadShedding.retryAfterSeconds", "10");
     addKey("server.useCompression", "false");
+    addKey("server.compression.includeContentTypes", "");
+    addKey("server.compression.excludeContentTypes", "image/gif,image/jpeg,"
+        + "image/png,audio/*,video/*,application/zip,application/gzip,"
+        + "application/x-gzip,application/x-bzip2,application/x-7z-compressed,"
+        + "application/x-rar-compressed,"
+        + "application/vnd.openxmlformats-officedocument.*");
+    addKey("server.compression.minSize", "0");
+    addKey("server.compression.level", "-1");
     addKey("server.asyncDocIdSenderQueueSize", "GENERATE",
         new ValueComputer() {
           public String compute(String rawValue) {
@@ -264,6 +397,7 @@ public class Config {
             return rawValue;
           }
         });
+    addKey("server.streamingSamlAuthz", "false");
     addKey("server.samlEntityId", "http://google.com/enterprise/gsa/adaptor");
     addKey("gsa.hostname", null);
     addKey("gsa.admin.hostname", "");
@@ -296,10 +430,25 @@ public class Config {
     addKey("adaptor.fullListingSchedule", "0 3 * * *");
     // 15 minutes.
     addKey("adaptor.incrementalPollPeriodSecs", "900");
+    addKey("adaptor.coalesceConcurrentRetrievals", "false");
+    addKey("adaptor.coalesceMemoryBufferBytes", "1048576");
+    addKey("adaptor.authzCacheSize", "0");
+    addKey("adaptor.authzCachePermitSecs", "30");
+    addKey("adaptor.authzCacheDenySecs", "5");
+    addKey("adaptor.authzBatchSize", "0");
+    addKey("adaptor.authzMaxThreads", "8");
+    addKey("adaptor.authzMaxQueued", "64");
+    addKey("adaptor.authzTimeoutSecs", "0");
+    addKey("adaptor.authzTimeoutDecision", "INDETERMINATE");
+    addKey("adaptor.internPrincipals", "false");
+    addKey("adaptor.indexGroups", "false");
+    addKey("adaptor.groupIndexFile", "");
+    addKey("adaptor.groupIndexRecompileSecs", "10");
     addKey("adaptor.docContentTimeoutSecs", "180");
     addKey("adaptor.docHeaderTimeoutSecs", "30");
     addKey("metadata.transform.pipeline", "");
     addKey("content.transform.pipeline", "");
+    addKey("content.transform.asyncMaxThreads", "16");
     addKey("journal.reducedMem", "true");
     addKey("gsa.acceptsDocControlsHeader", "GENERATE", new ValueComputer() {
           public String compute(String rawValue) {
@@ -320,6 +469,9 @@ public class Config {
           }
         });
     addKey("adaptor.markAllDocsAsPublic", "false");
+    addKey("adaptor.maxAclHeaderBytes", "0");
+    addKey("adaptor.sharedAclMinPrincipals", "0");
+    addKey("adaptor.sharedAclDocIdPrefix", "__sharedAcl__/");
     addKey("saml.idpExpirationMillis", "30000");
   }
 
@@ -499,6 +651,32 @@ public class Config {
     return Integer.parseInt(getValue("server.queueCapacity"));
   }
 
+  /** One of {@code fixed}, {@code adaptive}, or {@code virtual}. */
+  String getServerExecutorMode() {
+    return getValue("server.executor.mode").trim().toLowerCase(Locale.ENGLISH);
+  }
+
+  int getServerExecutorMinThreads() {
+    return Integer.parseInt(getValue("server.executor.minThreads"));
+  }
+
+  int getServerExecutorMaxThreads() {
+    return Integer.parseInt(getValue("server.executor.maxThreads"));
+  }
+
+  int getServerLoadSheddingReservedQueueCapacity() {
+    return Integer.parseInt(
+        getValue("server.loadShedding.reservedQueueCapacity"));
+  }
+
+  long getServerLoadSheddingMaxLatencyMillis() {
+    return Long.parseLong(getValue("server.loadShedding.maxLatencyMillis"));
+  }
+
+  int getServerLoadSheddingRetryAfterSeconds() {
+    return Integer.parseInt(getValue("server.loadShedding.retryAfterSeconds"));
+  }
+
   String getServerSamlEntityId() {
     return getValue("server.samlEntityId");
   }
@@ -507,6 +685,22 @@ public class Config {
     return Boolean.parseBoolean(getValue("server.useCompression"));
   }
 
+  String getServerCompressionIncludeContentTypes() {
+    return getValue("server.compression.includeContentTypes");
+  }
+
+  String getServerCompressionExcludeContentTypes() {
+    return getValue("server.compression.excludeContentTypes");
+  }
+
+  int getServerCompressionMinSize() {
+    return Integer.parseInt(getValue("server.compression.minSize"));
+  }
+
+  int getServerCompressionLevel() {
+    return Integer.parseInt(getValue("server.compression.level"));
+  }
+
   boolean doesGsaAcceptDocControlsHeader() {
     return Boolean.parseBoolean(getValue("gsa.acceptsDocControlsHeader"));
   }
@@ -582,6 +776,26 @@ public class Config {
     return Boolean.parseBoolean(getValue("adaptor.markAllDocsAsPublic"));
   }
 
+  /**
+   * Length above which an ACL is sent as a named resource instead of in the
+   * document's headers. Zero always sends ACLs in headers.
+   */
+  int getAdaptorMaxAclHeaderBytes() {
+    return Integer.parseInt(getValue("adaptor.maxAclHeaderBytes"));
+  }
+
+  /**
+   * Number of permits and denies at which an ACL is shared between documents
+   * as a named resource. Zero never shares ACLs.
+   */
+  int getAdaptorSharedAclMinPrincipals() {
+    return Integer.parseInt(getValue("adaptor.sharedAclMinPrincipals"));
+  }
+
+  String getAdaptorSharedAclDocIdPrefix() {
+    return getValue("adaptor.sharedAclDocIdPrefix");
+  }
+
   /**
    * Format for usernames and domains inside of either GSA IdP authn messages
    * or GSA authorization requests.
@@ -613,6 +827,74 @@ public class Config {
     return Long.parseLong(getValue("adaptor.docContentTimeoutSecs")) * 1000;
   }
 
+  boolean isAdaptorToCoalesceConcurrentRetrievals() {
+    return Boolean.parseBoolean(
+        getValue("adaptor.coalesceConcurrentRetrievals"));
+  }
+
+  int getAdaptorCoalesceMemoryBufferBytes() {
+    return Integer.parseInt(getValue("adaptor.coalesceMemoryBufferBytes"));
+  }
+
+  long getAdaptorAuthzCacheSize() {
+    return Long.parseLong(getValue("adaptor.authzCacheSize"));
+  }
+
+  long getAdaptorAuthzCachePermitMillis() {
+    return Long.parseLong(getValue("adaptor.authzCachePermitSecs")) * 1000;
+  }
+
+  long getAdaptorAuthzCacheDenyMillis() {
+    return Long.parseLong(getValue("adaptor.authzCacheDenySecs")) * 1000;
+  }
+
+  int getAdaptorAuthzBatchSize() {
+    return Integer.parseInt(getValue("adaptor.authzBatchSize"));
+  }
+
+  int getAdaptorAuthzMaxThreads() {
+    return Integer.parseInt(getValue("adaptor.authzMaxThreads"));
+  }
+
+  int getAdaptorAuthzMaxQueued() {
+    return Integer.parseInt(getValue("adaptor.authzMaxQueued"));
+  }
+
+  long getAdaptorAuthzTimeoutMillis() {
+    return Long.parseLong(getValue("adaptor.authzTimeoutSecs")) * 1000;
+  }
+
+  AuthzStatus getAdaptorAuthzTimeoutDecision() {
+    String value = getValue("adaptor.authzTimeoutDecision");
+    if (!AuthzStatus.INDETERMINATE.name().equals(value)
+        && !AuthzStatus.DENY.name().equals(value)) {
+      throw new InvalidConfigurationException(
+          "adaptor.authzTimeoutDecision must be INDETERMINATE or DENY: "
+          + value);
+    }
+    return AuthzStatus.valueOf(value);
+  }
+
+  boolean isServerToUseStreamingSamlAuthz() {
+    return Boolean.parseBoolean(getValue("server.streamingSamlAuthz"));
+  }
+
+  boolean isAdaptorToInternPrincipals() {
+    return Boolean.parseBoolean(getValue("adaptor.internPrincipals"));
+  }
+
+  boolean isAdaptorToIndexGroups() {
+    return Boolean.parseBoolean(getValue("adaptor.indexGroups"));
+  }
+
+  String getAdaptorGroupIndexFile() {
+    return getValue("adaptor.groupIndexFile");
+  }
+
+  long getAdaptorGroupIndexRecompileMillis() {
+    return Long.parseLong(getValue("adaptor.groupIndexRecompileSecs")) * 1000;
+  }
+
   /**
    * Returns a list of maps correspending to each transform in the pipeline.
    * Each map is the configuration entries for that transform. The 'name'
@@ -637,6 +919,10 @@ public class Config {
     return getListOfConfigs("content.transform.pipeline");
   }
 
+  int getContentTransformAsyncMaxThreads() {
+    return Integer.parseInt(getValue("content.transform.asyncMaxThreads"));
+  }
+
   /**
    * Returns a list of maps corresponding to each item of the comma-separated
    * value of {@code key}. Each map is the configuration entries for that item
@@ -1,5 +1,7 @@
 package com.google.enterprise.adaptor;
 
+import com.google.common.collect.ImmutableSortedMap;
+
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Collections;
@@ -37,8 +39,14 @@ public class ContentTransform extends OutputStream {
     if (null == originalStream) {
       throw new NullPointerException("the original stream must not be null");
     }
-    this.config = Collections.unmodifiableMap(
-        new TreeMap<String, String>(config));
+    if (config instanceof ImmutableSortedMap) {
+      // Provided by ContentTransformFactory, which shares it between
+      // documents.
+      this.config = config;
+    } else {
+      this.config = Collections.unmodifiableMap(
+          new TreeMap<String, String>(config));
+    }
     this.metadata = metadata;
     this.contentType = contentType;
     this.originalStream = originalStream;
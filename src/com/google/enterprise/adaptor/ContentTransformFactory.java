@@ -4,6 +4,7 @@ import static java.util.AbstractMap.SimpleEntry;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSortedMap;
 
 import java.io.OutputStream;
 import java.lang.reflect.Constructor;
@@ -11,7 +12,10 @@ import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,6 +24,26 @@ import java.util.logging.Logger;
  * The content transform factory holds all document content transforms
  * and puts them in series connection.
  *
+ * <p>Transform classes are resolved once, when the factory is constructed.
+ * Since {@code getContentTypeOutputForContentTypeInput} is static, its result
+ * depends only on its input, so the content types produced along the chain are
+ * calculated once per initial content type and then reused.
+ *
+ * <p>A transform may be limited to some content types with the {@code
+ * contentTypes} and {@code excludeContentTypes} keys of its configuration,
+ * which are comma-separated {@link ContentTypeFilter} patterns. They are
+ * matched against the content type input to that transform. Documents of
+ * other types bypass the transform entirely, and their content type is not
+ * changed by it.
+ *
+ * <p>A transform with {@code async} set to {@code true} in its configuration
+ * runs on a separate thread, connected to the stage before it by a bounded
+ * buffer of {@code asyncBufferBytes} (default 65536), so that it overlaps
+ * with reading the content and with the stages after it. This helps
+ * CPU-heavy transforms or ones that call external processes. If the executor
+ * rejects the stage, such as when all of its threads are busy, the transform
+ * runs in the writing thread instead, as if it were not asynchronous.
+ *
  * @author Dominik Weidenfeld (dominik.weidenfeld@twt.de)
  */
 class ContentTransformFactory {
@@ -29,13 +53,59 @@ class ContentTransformFactory {
   private static final String METHOD_NAME =
       "getContentTypeOutputForContentTypeInput";
 
+  /**
+   * Bound on the number of distinct initial content types whose chains are
+   * remembered, in case an adaptor produces arbitrary content types.
+   */
+  private static final int MAX_CACHED_CONTENT_TYPES = 1000;
+  /**
+   * Key used in place of a {@code null} content type. It is not a valid
+   * content type, so does not collide with real ones.
+   */
+  private static final String NULL_CONTENT_TYPE = "\0";
+  /** Size of each hand-off to an asynchronous transform. */
+  private static final int ASYNC_CHUNK_BYTES = 8192;
+  private static final int DEFAULT_ASYNC_BUFFER_BYTES = 65536;
+
   private static class SingleTransform {
     Constructor<ContentTransform> ctor;
     Map<String, String> config;
     Method method;
+    ContentTypeFilter contentTypes;
+    /** Number of chunks buffered for an asynchronous transform, or 0. */
+    int asyncChunks;
+  }
+
+  /** The path of a document with a particular content type. */
+  private static class Chain {
+    /**
+     * The content types input to each transform, with the resulting content
+     * type last.
+     */
+    final String[] contentTypes;
+    /** Whether each transform applies. */
+    final boolean[] applies;
+    final int numApplied;
+
+    Chain(String[] contentTypes, boolean[] applies) {
+      this.contentTypes = contentTypes;
+      this.applies = applies;
+      int count = 0;
+      for (boolean a : applies) {
+        if (a) {
+          count++;
+        }
+      }
+      this.numApplied = count;
+    }
   }
 
   private List<SingleTransform> transforms;
+  private final Journal journal;
+  private final ExecutorService asyncExecutor;
+  /** Initial content type to the path of documents with that type. */
+  private final ConcurrentMap<String, Chain> chains
+      = new ConcurrentHashMap<String, Chain>();
 
   /**
    * Constructs a new ContentTransformFactory. Also checks the basic
@@ -50,6 +120,34 @@ class ContentTransformFactory {
    */
   public ContentTransformFactory(
       final List<Map<String, String>> configs) {
+    this(configs, null);
+  }
+
+  /**
+   * Constructs a new ContentTransformFactory that records how often
+   * transforms are applied and bypassed.
+   *
+   * @param configs Configuration for each {@link ContentTransform}
+   * @param journal journal to record to, or {@code null}
+   */
+  public ContentTransformFactory(final List<Map<String, String>> configs,
+      final Journal journal) {
+    this(configs, journal, null);
+  }
+
+  /**
+   * Constructs a new ContentTransformFactory that can run asynchronous
+   * transforms.
+   *
+   * @param configs Configuration for each {@link ContentTransform}
+   * @param journal journal to record to, or {@code null}
+   * @param asyncExecutor executor to run asynchronous transforms, or {@code
+   *     null} if none are permitted
+   */
+  public ContentTransformFactory(final List<Map<String, String>> configs,
+      final Journal journal, final ExecutorService asyncExecutor) {
+    this.journal = journal;
+    this.asyncExecutor = asyncExecutor;
     transforms = new ArrayList<SingleTransform>();
     for (int i = 0; i < configs.size(); i++) {
       final Map<String, String> config = configs.get(i);
@@ -70,11 +168,22 @@ class ContentTransformFactory {
           throw new AssertionError("Unable to find method " + METHOD_NAME
               + " in class " + className);
         }
+        // Avoid repeating access checks for every document.
+        constructor.setAccessible(true);
+        m.setAccessible(true);
         SingleTransform s = new SingleTransform();
         s.ctor = constructor;
-        s.config = new TreeMap<String, String>(config);
+        // Immutable, so that ContentTransform need not copy it.
+        s.config = ImmutableSortedMap.copyOf(config);
         s.method = m;
+        s.contentTypes = new ContentTypeFilter(
+            ContentTypeFilter.splitPatterns(config.get("contentTypes")),
+            ContentTypeFilter.splitPatterns(
+                config.get("excludeContentTypes")));
+        s.asyncChunks = parseAsyncChunks(config);
         transforms.add(s);
+      } catch (InvalidConfigurationException e) {
+        throw e;
       } catch (Exception e) {
         throw new InvalidConfigurationException(
             "Cannot get document content transform of type: " + className, e);
@@ -96,28 +205,110 @@ class ContentTransformFactory {
     if (transforms.size() == 0) {
       return original;
     }
+    Chain chain = getChain(firstContentType);
+    if (journal != null) {
+      journal.recordContentTransformStages(chain.numApplied,
+          transforms.size() - chain.numApplied);
+    }
     OutputStream currentOutputStream = original;
+    AsyncTransformStage firstAsync = null;
     int steps = transforms.size();
-    for (int count = steps - 1; count >= 0; count--) {
-      SingleTransform s = transforms.get(count);
-      try {
-        currentOutputStream = s.ctor.newInstance(s.config, metadata,
-            calculateContentType(firstContentType, count), currentOutputStream);
-      } catch (Exception e) {
-        throw new RuntimeException(
-            "Cannot instantiate document content transform: "
-                + s.ctor.getName(), e);
+    try {
+      for (int count = steps - 1; count >= 0; count--) {
+        if (!chain.applies[count]) {
+          continue;
+        }
+        SingleTransform s = transforms.get(count);
+        try {
+          currentOutputStream = s.ctor.newInstance(s.config, metadata,
+              chain.contentTypes[count], currentOutputStream);
+        } catch (Exception e) {
+          throw new RuntimeException(
+              "Cannot instantiate document content transform: "
+                  + s.ctor.getName(), e);
+        }
+        if (s.asyncChunks > 0) {
+          try {
+            firstAsync = new AsyncTransformStage(currentOutputStream,
+                asyncExecutor, ASYNC_CHUNK_BYTES, s.asyncChunks, firstAsync);
+            currentOutputStream = firstAsync;
+          } catch (RejectedExecutionException e) {
+            log.log(Level.FINE, "No thread available for content transform "
+                + "{0}. Running it synchronously", s.ctor.getName());
+          }
+        }
+      }
+    } catch (RuntimeException e) {
+      if (firstAsync != null) {
+        firstAsync.abort();
       }
+      throw e;
+    }
+    if (firstAsync != null) {
+      currentOutputStream
+          = new AsyncTransformStage.Pipeline(currentOutputStream, firstAsync);
     }
     return currentOutputStream;
   }
 
+  /**
+   * Returns the number of chunks to buffer for the transform, or 0 if it is
+   * not asynchronous.
+   */
+  private int parseAsyncChunks(Map<String, String> config) {
+    if (!Boolean.parseBoolean(config.get("async"))) {
+      return 0;
+    }
+    if (asyncExecutor == null) {
+      throw new InvalidConfigurationException(
+          "Asynchronous content transforms are not supported here: " + config);
+    }
+    int bufferBytes = DEFAULT_ASYNC_BUFFER_BYTES;
+    String value = config.get("asyncBufferBytes");
+    if (!Strings.isNullOrEmpty(value)) {
+      try {
+        bufferBytes = Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        throw new InvalidConfigurationException(
+            "asyncBufferBytes must be an integer: " + config, e);
+      }
+      if (bufferBytes <= 0) {
+        throw new InvalidConfigurationException(
+            "asyncBufferBytes must be positive: " + config);
+      }
+    }
+    return Math.max(1, bufferBytes / ASYNC_CHUNK_BYTES);
+  }
+
   /**
    * Iterates over the chain of potential ContentType changes, returning the
    * calculated ContentType at the end of the chain.
    */
   public String calculateResultingContentType(String initialContentType) {
-    return calculateContentType(initialContentType, transforms.size());
+    return getChain(initialContentType).contentTypes[transforms.size()];
+  }
+
+  /** Returns the path of documents starting with {@code initialContentType}. */
+  private Chain getChain(String initialContentType) {
+    String key = initialContentType == null
+        ? NULL_CONTENT_TYPE : initialContentType;
+    Chain chain = chains.get(key);
+    if (chain != null) {
+      return chain;
+    }
+    String[] contentTypes = new String[transforms.size() + 1];
+    boolean[] applies = new boolean[transforms.size()];
+    contentTypes[0] = initialContentType;
+    for (int i = 0; i < transforms.size(); i++) {
+      applies[i] = transforms.get(i).contentTypes.accepts(contentTypes[i]);
+      contentTypes[i + 1] = applies[i]
+          ? invokeContentTypeMethod(i, contentTypes[i]) : contentTypes[i];
+    }
+    chain = new Chain(contentTypes, applies);
+    if (chains.size() < MAX_CACHED_CONTENT_TYPES) {
+      chains.putIfAbsent(key, chain);
+    }
+    return chain;
   }
 
   /**
@@ -139,19 +330,32 @@ class ContentTransformFactory {
       throw new AssertionError("only " + transforms.size()
           + " transform(s) present");
     }
+    String key = initialContentType == null
+        ? NULL_CONTENT_TYPE : initialContentType;
+    Chain chain = chains.get(key);
+    if (chain != null) {
+      return chain.contentTypes[n];
+    }
+    // Don't calculate (and cache) the whole chain, since later transforms may
+    // not accept the intermediate content types.
     String currentContentType = initialContentType;
     for (int i = 0; i < n; i++) {
-      Method m = transforms.get(i).method;
-      try {
-        currentContentType = (String) m.invoke(null, currentContentType);
-        if (null == currentContentType) {
-          currentContentType = "";
-        }
-      } catch (Exception ex) {
-        throw new RuntimeException("Call to " + METHOD_NAME + " #" + i
-            + " failed:", ex);
+      if (transforms.get(i).contentTypes.accepts(currentContentType)) {
+        currentContentType = invokeContentTypeMethod(i, currentContentType);
       }
     }
     return currentContentType;
   }
+
+  private String invokeContentTypeMethod(int i, String contentType) {
+    Method m = transforms.get(i).method;
+    String result;
+    try {
+      result = (String) m.invoke(null, contentType);
+    } catch (Exception ex) {
+      throw new RuntimeException("Call to " + METHOD_NAME + " #" + i
+          + " failed:", ex);
+    }
+    return null == result ? "" : result;
+  }
 }
@@ -0,0 +1,121 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Selects content types using lists of patterns. A pattern is either an exact
+ * type, like {@code application/pdf}, or a prefix ending in {@code *}, like
+ * {@code text/*}. Parameters (such as {@code charset}) and case are ignored.
+ * An empty include list includes all types. Excludes win over includes.
+ */
+class ContentTypeFilter {
+  private final List<String> includeContentTypes;
+  private final List<String> excludeContentTypes;
+
+  /**
+   * @param includeContentTypes patterns of types to accept; empty for all
+   * @param excludeContentTypes patterns of types to never accept
+   */
+  public ContentTypeFilter(List<String> includeContentTypes,
+      List<String> excludeContentTypes) {
+    if (includeContentTypes == null || excludeContentTypes == null) {
+      throw new NullPointerException();
+    }
+    this.includeContentTypes = normalizePatterns(includeContentTypes);
+    this.excludeContentTypes = normalizePatterns(excludeContentTypes);
+  }
+
+  /**
+   * Returns whether {@code contentType} is accepted. Missing content types
+   * are only accepted when no include list is configured.
+   */
+  public boolean accepts(String contentType) {
+    String type = normalizeContentType(contentType);
+    if (type == null) {
+      return includeContentTypes.isEmpty();
+    }
+    if (matches(excludeContentTypes, type)) {
+      return false;
+    }
+    return includeContentTypes.isEmpty()
+        || matches(includeContentTypes, type);
+  }
+
+  @Override
+  public String toString() {
+    return "ContentTypeFilter(include=" + includeContentTypes
+        + ",exclude=" + excludeContentTypes + ")";
+  }
+
+  private static boolean matches(List<String> patterns, String type) {
+    for (String pattern : patterns) {
+      if (pattern.endsWith("*")) {
+        if (type.startsWith(pattern.substring(0, pattern.length() - 1))) {
+          return true;
+        }
+      } else if (type.equals(pattern)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static List<String> normalizePatterns(List<String> patterns) {
+    List<String> normalized = new ArrayList<String>(patterns.size());
+    for (String pattern : patterns) {
+      pattern = pattern.trim().toLowerCase(Locale.ENGLISH);
+      if (!pattern.isEmpty()) {
+        normalized.add(pattern);
+      }
+    }
+    return Collections.unmodifiableList(normalized);
+  }
+
+  /** Strips parameters and lowercases. Returns {@code null} if empty. */
+  private static String normalizeContentType(String contentType) {
+    if (contentType == null) {
+      return null;
+    }
+    int semicolon = contentType.indexOf(';');
+    if (semicolon != -1) {
+      contentType = contentType.substring(0, semicolon);
+    }
+    contentType = contentType.trim().toLowerCase(Locale.ENGLISH);
+    return contentType.isEmpty() ? null : contentType;
+  }
+
+  /**
+   * Parses a comma-separated list of content type patterns, as used in
+   * configuration. {@code null} is treated as empty.
+   */
+  static List<String> splitPatterns(String patterns) {
+    List<String> split = new ArrayList<String>();
+    if (patterns == null) {
+      return split;
+    }
+    for (String pattern : patterns.split(",", -1)) {
+      pattern = pattern.trim();
+      if (!pattern.isEmpty()) {
+        split.add(pattern);
+      }
+    }
+    return split;
+  }
+}
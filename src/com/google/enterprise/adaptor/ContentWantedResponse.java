@@ -0,0 +1,54 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.io.IOException;
+
+/**
+ * A {@link Response} that can tell whether the document contents will be used.
+ * An Adaptor whose content is expensive to read may provide the metadata and
+ * then check {@link #isContentWanted} before opening the content. When the
+ * content is going to be discarded, for instance because a metadata transform
+ * decided the GSA should not index it, the Adaptor can skip reading it.
+ *
+ * <p>Not every {@code Response} implements this interface, so Adaptors should
+ * check before using it:
+ *
+ * <pre>
+ * if (response instanceof ContentWantedResponse
+ *     &amp;&amp; !((ContentWantedResponse) response).isContentWanted()) {
+ *   return;
+ * }
+ * </pre>
+ */
+public interface ContentWantedResponse extends Response {
+  /**
+   * Determine whether the document contents will be used. This runs any
+   * metadata transforms using the content type and metadata provided so far,
+   * so those must be set before calling this method. If {@code false}, the
+   * contents would be discarded and the Adaptor should avoid reading them; it
+   * may return without calling {@link #getOutputStream}, or write nothing to
+   * it.
+   *
+   * <p>If called, the only call that may follow is {@link #getOutputStream}.
+   * As with that method, exceptions may no longer be communicated to clients
+   * cleanly.
+   *
+   * @return {@code true} if the document contents should be written to {@link
+   *     #getOutputStream}
+   * @throws IOException if communicating with client fails
+   */
+  public boolean isContentWanted() throws IOException;
+}
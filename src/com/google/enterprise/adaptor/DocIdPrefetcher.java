@@ -0,0 +1,49 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Interface for adaptors that can load many documents from their repository
+ * more cheaply than one at a time. After a batch of {@code DocId}s is sent to
+ * the GSA, the GSA typically requests those documents shortly afterwards, in
+ * roughly the same order. The library passes each sent batch to the
+ * prefetcher, which may bulk-load the documents' metadata, ACLs or content,
+ * commonly into a {@link PrefetchCache}, so that {@link Adaptor#getDocContent}
+ * can use them instead of querying the repository again.
+ *
+ * <p>Prefetching is only an optimization: the batch is a hint, and {@code
+ * getDocContent} must still work for documents that were not prefetched or
+ * whose prefetched values have expired.
+ *
+ * <p>Instances of this interface are typically registered with {@link
+ * AdaptorContext#setDocIdPrefetcher}.
+ */
+public interface DocIdPrefetcher {
+  /**
+   * Loads documents that will probably be requested soon. This is called on a
+   * background thread, one batch at a time, and batches are dropped if the
+   * prefetcher falls too far behind. Exceptions are logged and otherwise
+   * ignored.
+   *
+   * @param ids documents recently sent to the GSA, in the order they were sent
+   * @throws IOException on failure
+   * @throws InterruptedException if interrupted
+   */
+  public void prefetch(List<DocId> ids)
+      throws IOException, InterruptedException;
+}
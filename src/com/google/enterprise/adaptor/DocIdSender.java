@@ -19,8 +19,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,6 +42,10 @@ class DocIdSender extends AbstractDocIdPusher
   private final Adaptor adaptor;
   private final ExceptionHandler defaultErrorHandler
       = ExceptionHandlers.defaultHandler();
+  private final List<SentItemsListener> sentItemsListeners
+      = new CopyOnWriteArrayList<SentItemsListener>();
+  private final List<SentGroupsListener> sentGroupsListeners
+      = new CopyOnWriteArrayList<SentGroupsListener>();
 
   public DocIdSender(GsaFeedFileMaker fileMaker, GsaFeedFileSender fileSender,
       FeedArchiver fileArchiver, Journal journal, Config config,
@@ -52,6 +58,33 @@ class DocIdSender extends AbstractDocIdPusher
     this.adaptor = adaptor;
   }
 
+  /**
+   * Registers {@code listener} to be told about the items of each batch that
+   * is successfully sent.
+   */
+  public void addSentItemsListener(SentItemsListener listener) {
+    if (listener == null) {
+      throw new NullPointerException();
+    }
+    sentItemsListeners.add(listener);
+  }
+
+  /** Unregisters all listeners added with {@link #addSentItemsListener}. */
+  public void removeSentItemsListeners() {
+    sentItemsListeners.clear();
+  }
+
+  /**
+   * Registers {@code listener} to be told about the group definitions of each
+   * batch that is successfully sent.
+   */
+  public void addSentGroupsListener(SentGroupsListener listener) {
+    if (listener == null) {
+      throw new NullPointerException();
+    }
+    sentGroupsListeners.add(listener);
+  }
+
   /**
    * Calls {@link Adaptor#getDocIds}. This method blocks until all DocIds are
    * sent or retrying failed.
@@ -180,6 +213,7 @@ class DocIdSender extends AbstractDocIdPusher
       try {
         failedId = pushSizedBatchOfItems(batch, handler);
       } catch (InterruptedException ex) {
+        notifyNotSent(batch);
         if (firstBatch) {
           throw ex;
         } else {
@@ -194,15 +228,25 @@ class DocIdSender extends AbstractDocIdPusher
       if (failedId != null) {
         log.log(Level.INFO, "Failed to push all items. Failed on: {0}",
             failedId);
+        notifyNotSent(batch);
         return failedId;
       }
       firstBatch = false;
       journal.recordDocIdPush(batch);
+      for (SentItemsListener listener : sentItemsListeners) {
+        listener.itemsSent(batch);
+      }
     }
     log.info("Pushed items");
     return null;
   }
 
+  private void notifyNotSent(List<? extends Item> batch) {
+    for (SentItemsListener listener : sentItemsListeners) {
+      listener.itemsNotSent(batch);
+    }
+  }
+
   public GroupPrincipal pushGroupDefinitions(
       Map<GroupPrincipal, ? extends Collection<Principal>> defs,
       boolean caseSensitive, ExceptionHandler handler) 
@@ -304,6 +348,15 @@ class DocIdSender extends AbstractDocIdPusher
         return failedId;
       }
       firstBatch = false;
+      if (!sentGroupsListeners.isEmpty()) {
+        Map<GroupPrincipal, T> sent = new LinkedHashMap<GroupPrincipal, T>();
+        for (Map.Entry<GroupPrincipal, T> def : batch) {
+          sent.put(def.getKey(), def.getValue());
+        }
+        for (SentGroupsListener listener : sentGroupsListeners) {
+          listener.groupsSent(sent, caseSensitive);
+        }
+      }
     }
     log.info("Pushed groups");
     return null;
@@ -383,6 +436,29 @@ class DocIdSender extends AbstractDocIdPusher
     return success ? null : items.get(0);
   }
 
+  /**
+   * Told about items after they were sent to the GSA. It is called on the
+   * sending thread, so it should return quickly.
+   */
+  interface SentItemsListener {
+    void itemsSent(List<? extends Item> items);
+
+    /**
+     * Told about a batch of items that failed to be sent. Later items of the
+     * same push are not attempted, and are not reported.
+     */
+    void itemsNotSent(List<? extends Item> items);
+  }
+
+  /**
+   * Told about group definitions after they were sent to the GSA. It is called
+   * on the sending thread, so it should return quickly.
+   */
+  interface SentGroupsListener {
+    void groupsSent(Map<GroupPrincipal, ? extends Collection<Principal>> defs,
+        boolean caseSensitive);
+  }
+
   /** Marker interface for an item that can exist in a feed. */
   interface Item {}
 
@@ -32,6 +32,7 @@ import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpsExchange;
 
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -71,6 +72,7 @@ class DocumentHandler implements HttpHandler {
   private final Journal journal;
   private final Adaptor adaptor;
   private final AuthzAuthority authzAuthority;
+  private final MetadataRetriever metadataRetriever;
   private final Watchdog watchdog;
   private final AsyncPusher pusher;
   /**
@@ -87,7 +89,10 @@ class DocumentHandler implements HttpHandler {
   private final MetadataTransformPipeline metadataTransform;
   private final AclTransform aclTransform;
   private final ContentTransformFactory contentTransformFactory;
-  private final boolean useCompression;
+  private final CompressionPolicy compressionPolicy;
+  private final LoadShedder loadShedder;
+  private final SingleFlightRetriever singleFlight;
+  private final AclDeduplicator aclDeduplicator;
   private final boolean sendDocControls;
   private final boolean markDocsPublic;
   private final long headerTimeoutMillis;
@@ -96,22 +101,41 @@ class DocumentHandler implements HttpHandler {
   private final boolean alwaysGiveAcl;
   private final GsaVersion gsaVersion;
   private final boolean gsaSupports204;
+  /**
+   * ACLs whose encoded header would be longer are sent as named resources in
+   * feeds instead. Zero disables.
+   */
+  private final int maxAclHeaderBytes;
+  /** Fragment of the named resource holding ACLs too large for headers. */
+  private static final String ACL_OVERFLOW_FRAGMENT = "overflow";
 
   /**
-   * {@code samlServiceProvider}, {@code metadataTransform} and
-   * {@code contentTransformFactory} may be {@code null}.
+   * {@code metadataRetriever}, {@code samlServiceProvider},
+   * {@code metadataTransform},
+   * {@code contentTransformFactory}, {@code compressionPolicy},
+   * {@code loadShedder}, {@code singleFlight} and {@code aclDeduplicator} may
+   * be {@code null}. A {@code null compressionPolicy} disables compression, a
+   * {@code null loadShedder} disables load shedding, a {@code null
+   * singleFlight} disables coalescing of concurrent retrievals and a {@code
+   * null aclDeduplicator} sends every ACL with its document. A {@code
+   * maxAclHeaderBytes} of zero always sends ACLs in headers.
    */
   public DocumentHandler(DocIdDecoder docIdDecoder, DocIdEncoder docIdEncoder,
                          Journal journal, Adaptor adaptor,
                          AuthzAuthority authzAuthority,
+                         MetadataRetriever metadataRetriever,
                          String gsaHostname, String[] fullAccessHosts,
                          SamlServiceProvider samlServiceProvider,
                          MetadataTransformPipeline metadataTransform,
                          AclTransform aclTransform,
                          ContentTransformFactory contentTransformFactory,
-                         boolean useCompression,
+                         CompressionPolicy compressionPolicy,
                          Watchdog watchdog, AsyncPusher pusher,
+                         LoadShedder loadShedder,
+                         SingleFlightRetriever singleFlight,
+                         AclDeduplicator aclDeduplicator,
                          boolean sendDocControls, boolean markDocsPublic,
+                         int maxAclHeaderBytes,
                          long headerTimeoutMillis,
                          long contentTimeoutMillis, String scoringType,
                          boolean provideAclsAndMetadata,
@@ -121,20 +145,29 @@ class DocumentHandler implements HttpHandler {
         || pusher == null || scoringType == null || gsaVersion == null) {
       throw new NullPointerException();
     }
+    if (maxAclHeaderBytes < 0) {
+      throw new IllegalArgumentException(
+          "maxAclHeaderBytes must not be negative");
+    }
     this.docIdDecoder = docIdDecoder;
     this.docIdEncoder = docIdEncoder;
     this.journal = journal;
     this.adaptor = adaptor;
     this.authzAuthority = authzAuthority;
+    this.metadataRetriever = metadataRetriever;
     this.samlServiceProvider = samlServiceProvider;
     this.metadataTransform = metadataTransform;
     this.aclTransform = aclTransform;
     this.contentTransformFactory = contentTransformFactory;
-    this.useCompression = useCompression;
+    this.compressionPolicy = compressionPolicy;
     this.watchdog = watchdog;
     this.pusher = pusher;
+    this.loadShedder = loadShedder;
+    this.singleFlight = singleFlight;
+    this.aclDeduplicator = aclDeduplicator;
     this.sendDocControls = sendDocControls;
     this.markDocsPublic = markDocsPublic;
+    this.maxAclHeaderBytes = maxAclHeaderBytes;
     this.headerTimeoutMillis = headerTimeoutMillis;
     this.contentTimeoutMillis = contentTimeoutMillis;
     this.scoring = scoringType;
@@ -249,42 +282,90 @@ class DocumentHandler implements HttpHandler {
   public void handle(HttpExchange ex) throws IOException {
     String requestMethod = ex.getRequestMethod();
     if ("GET".equals(requestMethod) || "HEAD".equals(requestMethod)) {
-      /* Call into adaptor developer code to get document bytes. */
-      DocId docId = docIdDecoder.decodeDocId(HttpExchanges.getRequestUri(ex));
-      log.log(Level.FINE, "DocId: {0}", docId.getUniqueId());
-
-      if (!authzed(ex, docId)) {
+      if (loadShedder != null
+          && loadShedder.shouldShed(requestIsFromFullyTrustedClient(ex))) {
+        loadShedder.shed(ex);
         return;
       }
-
-      DocumentRequest request = new DocumentRequest(ex, docId);
-      DocumentResponse response
-          = new DocumentResponse(ex, docId, Thread.currentThread());
-      journal.recordRequestProcessingStart();
-      watchdog.processingStarting(headerTimeoutMillis);
+      long startMillis = System.currentTimeMillis();
+      if (loadShedder != null) {
+        loadShedder.requestStarted();
+      }
       try {
-        adaptor.getDocContent(request, response);
-      } catch (InterruptedException e) {
-        journal.recordRequestProcessingFailure();
-        throw new RuntimeException("Retriever interrupted: " + docId, e);
-      } catch (RuntimeException e) {
-        journal.recordRequestProcessingFailure();
-        throw new RuntimeException("Exception in retriever: " + docId, e);
-      } catch (IOException e) {
-        journal.recordRequestProcessingFailure();
-        throw new IOException("Exception in retriever: " + docId, e);
+        handleGetOrHead(ex);
       } finally {
-        watchdog.processingCompleted();
+        if (loadShedder != null) {
+          loadShedder.requestFinished(
+              System.currentTimeMillis() - startMillis);
+        }
       }
-      journal.recordRequestProcessingEnd(response.getWrittenContentSize());
-
-      response.complete();
     } else {
       HttpExchanges.cannedRespond(ex, HttpURLConnection.HTTP_BAD_METHOD,
           Translation.HTTP_BAD_METHOD);
     }
   }
 
+  private void handleGetOrHead(HttpExchange ex) throws IOException {
+    /* Call into adaptor developer code to get document bytes. */
+    DocId docId = docIdDecoder.decodeDocId(HttpExchanges.getRequestUri(ex));
+    log.log(Level.FINE, "DocId: {0}", docId.getUniqueId());
+
+    if (!authzed(ex, docId)) {
+      return;
+    }
+
+    DocumentRequest request = new DocumentRequest(ex, docId);
+    DocumentResponse response
+        = new DocumentResponse(ex, docId, Thread.currentThread());
+    journal.recordRequestProcessingStart();
+    watchdog.processingStarting(headerTimeoutMillis);
+    boolean retrieved = false;
+    try {
+      if (metadataRetriever != null
+          && "HEAD".equals(ex.getRequestMethod())) {
+        // Not coalesced, since no content is read.
+        metadataRetriever.getDocMetadata(request, response);
+        response.metadataRetrieved();
+      } else if (singleFlight == null) {
+        adaptor.getDocContent(request, response);
+      } else {
+        singleFlight.getDocContent(
+            singleFlightKey(ex, docId), adaptor, request, response);
+      }
+      retrieved = true;
+    } catch (InterruptedException e) {
+      journal.recordRequestProcessingFailure();
+      throw new RuntimeException("Retriever interrupted: " + docId, e);
+    } catch (RuntimeException e) {
+      journal.recordRequestProcessingFailure();
+      throw new RuntimeException("Exception in retriever: " + docId, e);
+    } catch (IOException e) {
+      journal.recordRequestProcessingFailure();
+      throw new IOException("Exception in retriever: " + docId, e);
+    } finally {
+      watchdog.processingCompleted();
+      if (!retrieved) {
+        response.abortContentTransforms();
+      }
+    }
+    journal.recordRequestProcessingEnd(response.getWrittenContentSize());
+
+    response.complete();
+  }
+
+  /**
+   * Requests with equal keys can be given identical responses: they are for
+   * the same document and method, have the same level of trust (which affects
+   * transforms and what metadata is sent), and have the same
+   * If-Modified-Since (which affects {@link
+   * Request#hasChangedSinceLastAccess}).
+   */
+  private Object singleFlightKey(HttpExchange ex, DocId docId) {
+    return Arrays.<Object>asList(docId, ex.getRequestMethod(),
+        requestIsFromFullyTrustedClient(ex),
+        ex.getRequestHeaders().getFirst("If-Modified-Since"));
+  }
+
   /**
    * Check authz of user to access document. If the user is not authzed, the
    * method handles responding to the HttpExchange.
@@ -359,28 +440,53 @@ class DocumentHandler implements HttpHandler {
 
   @VisibleForTesting
   static String formUnqualifiedAclHeader(Acl acl, DocIdEncoder docIdEncoder) {
+    return formUnqualifiedAclHeader(acl, docIdEncoder, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Same as {@link #formUnqualifiedAclHeader(Acl, DocIdEncoder)}, but stops
+   * and returns {@code null} once the header is longer than {@code
+   * maxLength}.
+   */
+  @VisibleForTesting
+  static String formUnqualifiedAclHeader(Acl acl, DocIdEncoder docIdEncoder,
+      int maxLength) {
     if (acl == null) {
       return "";
     }
     if (Acl.EMPTY.equals(acl)) {
       acl = Acl.FAKE_EMPTY;
     }
+    // The trailing comma is removed at the end.
+    long maxBuilt = maxLength + 1L;
     StringBuilder sb = new StringBuilder();
     for (UserPrincipal permitUser : acl.getPermitUsers()) {
       String name = permitUser.getName();
       percentEncodeMapEntryPair(sb, "google:aclusers", name);
+      if (sb.length() > maxBuilt) {
+        return null;
+      }
     }
     for (GroupPrincipal permitGroup : acl.getPermitGroups()) {
       String name = permitGroup.getName();
       percentEncodeMapEntryPair(sb, "google:aclgroups", name);
+      if (sb.length() > maxBuilt) {
+        return null;
+      }
     }
     for (UserPrincipal denyUser : acl.getDenyUsers()) {
       String name = denyUser.getName();
       percentEncodeMapEntryPair(sb, "google:acldenyusers", name);
+      if (sb.length() > maxBuilt) {
+        return null;
+      }
     }
     for (GroupPrincipal denyGroup : acl.getDenyGroups()) {
       String name = denyGroup.getName();
       percentEncodeMapEntryPair(sb, "google:acldenygroups", name);
+      if (sb.length() > maxBuilt) {
+        return null;
+      }
     }
     if (acl.getInheritFrom() != null) {
       URI uri = docIdEncoder.encodeDocId(acl.getInheritFrom());
@@ -398,21 +504,67 @@ class DocumentHandler implements HttpHandler {
       percentEncodeMapEntryPair(sb, "google:aclinheritancetype",
           acl.getInheritanceType().getCommonForm());
     }
+    if (sb.length() > maxBuilt) {
+      return null;
+    }
     return sb.substring(0, sb.length() - 1);
   }
 
   @VisibleForTesting
   static String formNamespacedAclHeader(Acl acl, DocIdEncoder enc) {
+    return formNamespacedAclHeader(acl, enc, false, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Same as {@code percentEncode(formNamespacedAclHeader(acl, enc))}, but
+   * encoded as it is built, so that it can stop and return {@code null} once
+   * the header is longer than {@code maxLength}.
+   */
+  static String formEncodedNamespacedAclHeader(Acl acl, DocIdEncoder enc,
+      int maxLength) {
+    return formNamespacedAclHeader(acl, enc, true, maxLength);
+  }
+
+  /**
+   * Builds the JSON object of {@code acl} a piece at a time, percent-encoding
+   * each piece if {@code encode} is {@code true}. Returns {@code null} once it
+   * is longer than {@code maxLength}.
+   */
+  private static String formNamespacedAclHeader(Acl acl, DocIdEncoder enc,
+      boolean encode, int maxLength) {
     if (null == acl) {
       return "";
     }
     if (Acl.EMPTY.equals(acl)) {
       acl = Acl.FAKE_EMPTY;
     }
-    Map<String, Object> gsaAcl = new TreeMap<String, Object>();
-    List<Map<String, String>> gsaAclEntries = makeGsaAclEntries(acl);    
-    if (!gsaAclEntries.isEmpty()) {
-      gsaAcl.put("entries", gsaAclEntries);
+    // Percent-encoding is done byte by byte, so encoding the pieces of the
+    // JSON object separately gives the same result as encoding it whole. The
+    // keys are in the order JSONObject would produce for a sorted map.
+    StringBuilder sb = new StringBuilder();
+    String separator = "{";
+    List<Set<? extends Principal>> principals
+        = new ArrayList<Set<? extends Principal>>(4);
+    principals.add(acl.getPermitGroups());
+    principals.add(acl.getDenyGroups());
+    principals.add(acl.getPermitUsers());
+    principals.add(acl.getDenyUsers());
+    String entrySeparator = separator + "\"entries\":[";
+    for (int i = 0; i < principals.size(); i++) {
+      String access = (i % 2 == 0) ? "permit" : "deny";
+      for (Principal p : principals.get(i)) {
+        appendJson(sb, entrySeparator, encode);
+        entrySeparator = ",";
+        appendJson(sb, JSONObject.toJSONString(
+            makeGsaAclEntry(access, acl, p)), encode);
+        if (sb.length() > maxLength) {
+          return null;
+        }
+      }
+    }
+    if (sb.length() != 0) {
+      appendJson(sb, "]", encode);
+      separator = ",";
     }
     if (null != acl.getInheritFrom()) {
       URI from = enc.encodeDocId(acl.getInheritFrom());
@@ -424,30 +576,22 @@ class DocumentHandler implements HttpHandler {
       } catch (URISyntaxException ex) {
         throw new AssertionError(ex);
       }
-      gsaAcl.put("inherit_from", "" + from);
+      appendJson(sb, separator + "\"inherit_from\":"
+          + JSONValue.toJSONString("" + from), encode);
+      separator = ",";
     }
     if (acl.getInheritanceType() != Acl.InheritanceType.LEAF_NODE) {
-      String type = "" + acl.getInheritanceType();
-      gsaAcl.put("inheritance_type", "" + type);
+      appendJson(sb, separator + "\"inheritance_type\":"
+          + JSONValue.toJSONString("" + acl.getInheritanceType()), encode);
+      separator = ",";
     }
-    return JSONObject.toJSONString(gsaAcl);
+    appendJson(sb, "{".equals(separator) ? "{}" : "}", encode);
+    return sb.length() > maxLength ? null : sb.toString();
   }
 
-  private static List<Map<String, String>> makeGsaAclEntries(Acl acl) {
-    List<Map<String, String>> princ = new ArrayList<Map<String, String>>();
-    for (Principal p : acl.getPermitGroups()) {
-      princ.add(makeGsaAclEntry("permit", acl, p));
-    }
-    for (Principal p : acl.getDenyGroups()) {
-      princ.add(makeGsaAclEntry("deny", acl, p));
-    }
-    for (Principal p : acl.getPermitUsers()) {
-      princ.add(makeGsaAclEntry("permit", acl, p));
-    }
-    for (Principal p : acl.getDenyUsers()) {
-      princ.add(makeGsaAclEntry("deny", acl, p));
-    }
-    return princ;
+  private static void appendJson(StringBuilder sb, String json,
+      boolean encode) {
+    sb.append(encode ? percentEncode(json) : json);
   }
 
   private static Map<String, String> makeGsaAclEntry(String access,
@@ -632,7 +776,7 @@ class DocumentHandler implements HttpHandler {
    * <p>{@link #getOutputStream} and {@link #complete} are the main methods that
    * need to be very aware of all the different possibilities.
    */
-  private class DocumentResponse implements Response {
+  private class DocumentResponse implements ContentWantedResponse {
     private Thread workingThread;
     private State state = State.SETUP;
     private HttpExchange ex;
@@ -708,18 +852,17 @@ class DocumentHandler implements HttpHandler {
     }
 
     @Override
-    public OutputStream getOutputStream() throws IOException {
+    public boolean isContentWanted() throws IOException {
       switch (state) {
         case SETUP:
-          // We will need to make an OutputStream.
+          decideTransmission();
           break;
         case HEAD:
         case HEAD_TRANSFORMED_TO_NOT_FOUND:
         case SEND_BODY:
         case SEND_BODY_TRANSFORMED_TO_NOT_FOUND:
         case SEND_BODY_TRANSFORMED_TO_HEAD:
-          // Already called before. Provide saved OutputStream.
-          return os;
+          break;
         case NOT_MODIFIED:
           throw new IllegalStateException("respondNotModified already called");
         case NOT_FOUND:
@@ -730,14 +873,65 @@ class DocumentHandler implements HttpHandler {
         default:
           throw new IllegalStateException("Already responded");
       }
+      return state == State.SEND_BODY;
+    }
+
+    /**
+     * Called after a {@link MetadataRetriever} returns. Unless it already
+     * responded, decides how to respond from the headers it provided.
+     */
+    private void metadataRetrieved() {
+      if (state == State.SETUP) {
+        decideTransmission();
+      }
+    }
+
+    /**
+     * Moves from SETUP to HEAD or SEND_BODY, and lets the metadata transforms
+     * change that decision, without sending anything to the client.
+     */
+    private void decideTransmission() {
       if ("HEAD".equals(ex.getRequestMethod())) {
+        state = State.HEAD;
+      } else {
+        state = State.SEND_BODY;
+      }
+      if (metadataTransform != null) {
+        transformMetadata();
+      }
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+      switch (state) {
+        case SETUP:
+          decideTransmission();
+          break;
+        case HEAD:
+        case HEAD_TRANSFORMED_TO_NOT_FOUND:
+        case SEND_BODY:
+        case SEND_BODY_TRANSFORMED_TO_NOT_FOUND:
+        case SEND_BODY_TRANSFORMED_TO_HEAD:
+          if (os != null) {
+            // Already called before. Provide saved OutputStream.
+            return os;
+          }
+          // Only isContentWanted() was called before.
+          break;
+        case NOT_MODIFIED:
+          throw new IllegalStateException("respondNotModified already called");
+        case NOT_FOUND:
+          throw new IllegalStateException("respondNotFound already called");
+        case NO_CONTENT:
+        case NO_CONTENT_TRANSFORMED_TO_NOT_FOUND:
+          throw new IllegalStateException("respondNoContent already called");
+        default:
+          throw new IllegalStateException("Already responded");
+      }
+      if (state == State.HEAD || state == State.HEAD_TRANSFORMED_TO_NOT_FOUND) {
         // Unfortunately, we won't be able to report any errors after this
         // point. We don't delay sending the headers, however, because of the
         // watchdog.
-        state = State.HEAD;
-        if (metadataTransform != null) {
-          transformMetadata();
-        }
         if (state == State.HEAD) {
           startSending(false);
           os = new SinkOutputStream();
@@ -755,10 +949,6 @@ class DocumentHandler implements HttpHandler {
           throw new IllegalStateException("unexpected state: " + state);
         }
       } else {
-        state = State.SEND_BODY;
-        if (metadataTransform != null) {
-          transformMetadata();
-        }
         if (state == State.SEND_BODY) {
           startSending(true);
           countingOs = new CountingOutputStream(new CloseNotifyOutputStream(
@@ -922,6 +1112,16 @@ class DocumentHandler implements HttpHandler {
       return countingOs == null ? 0 : countingOs.getBytesWritten();
     }
 
+    /**
+     * Stops any content transforms running on other threads, since the
+     * content will not be completed.
+     */
+    private void abortContentTransforms() {
+      if (os instanceof AsyncTransformStage.Pipeline) {
+        ((AsyncTransformStage.Pipeline) os).abort();
+      }
+    }
+
     private void complete() throws IOException {
       switch (state) {
         case SETUP:
@@ -956,6 +1156,11 @@ class DocumentHandler implements HttpHandler {
           // adaptor logic succeeds we do drop the content and potentially
           // headers and close the chunked-content HTTP response here.
         case SEND_BODY:
+          if (os == null) {
+            // The Adaptor learned from isContentWanted() that the content
+            // would be discarded, and didn't request the stream.
+            getOutputStream();
+          }
           if (!responseBodyClosed) {
             // The Adaptor didn't close the stream, so close it for them, making
             // sure to flush any existing contents. We choose to use the same
@@ -979,6 +1184,11 @@ class DocumentHandler implements HttpHandler {
         case HEAD_TRANSFORMED_TO_NOT_FOUND:
           // Follow precedent of HEAD which already short-circuted completion.
         case HEAD:
+          if (os == null) {
+            // Only isContentWanted() was called, or a MetadataRetriever was
+            // used. Send the headers.
+            getOutputStream();
+          }
           break;
 
         default:
@@ -988,6 +1198,15 @@ class DocumentHandler implements HttpHandler {
     }
 
     private void startSending(boolean hasContent) throws IOException {
+      if (aclDeduplicator != null && !markDocsPublic && sendDocControls
+          && requestIsFromFullyTrustedClient(ex)) {
+        // Before transforming, since the named resource is transformed when
+        // it is sent in a feed.
+        acl = aclDeduplicator.deduplicate(acl);
+      }
+      // Overflowing ACLs are sent as named resources before being
+      // transformed, since feeds transform them.
+      Acl untransformedAcl = acl;
       if (markDocsPublic) {
         acl = null;
         secure = false;
@@ -1000,10 +1219,18 @@ class DocumentHandler implements HttpHandler {
         // Always specify metadata and ACLs, even when empty, to replace
         // previous values.
         ex.getResponseHeaders().add("X-Gsa-External-Metadata",
-             formMetadataHeader(metadata));
+            formMetadataHeader(metadata));
         if (sendDocControls) {
+          String aclHeader = formEncodedNamespacedAclHeader(acl, docIdEncoder,
+              maxAclHeaderLength());
+          if (aclHeader == null) {
+            Acl overflow = overflowAcl(untransformedAcl);
+            aclHeader = formEncodedNamespacedAclHeader(
+                overflow == null ? acl : overflow, docIdEncoder,
+                Integer.MAX_VALUE);
+          }
           ex.getResponseHeaders().add("X-Gsa-Doc-Controls", "acl="
-              + percentEncode(formNamespacedAclHeader(acl, docIdEncoder)));
+              + aclHeader);
           if (null != displayUrl) {
             String link = "display_url=" + percentEncode("" + displayUrl);
             ex.getResponseHeaders().add("X-Gsa-Doc-Controls", link);
@@ -1015,8 +1242,16 @@ class DocumentHandler implements HttpHandler {
               "scoring=" + scoring);
         } else {
           acl = checkAndWorkaroundGsa70Acl(acl);
-          ex.getResponseHeaders().add("X-Gsa-External-Metadata",
-              formUnqualifiedAclHeader(acl, docIdEncoder));
+          String aclHeader = formUnqualifiedAclHeader(acl, docIdEncoder,
+              maxAclHeaderLength());
+          if (aclHeader == null) {
+            Acl overflow = overflowAcl(untransformedAcl);
+            if (overflow != null) {
+              acl = overflow;
+            }
+            aclHeader = formUnqualifiedAclHeader(acl, docIdEncoder);
+          }
+          ex.getResponseHeaders().add("X-Gsa-External-Metadata", aclHeader);
           if (displayUrl != null || crawlOnce || lock) {
             // Emulate these crawl-time values by sending them in feeds
             // since they aren't supported at crawl-time on GSA 7.0.
@@ -1051,10 +1286,6 @@ class DocumentHandler implements HttpHandler {
           ex.getResponseHeaders().add("X-Gsa-Skip-Updating-Content", "true");
         }
       }
-      if (useCompression) {
-        // TODO(ejona): decide when to use compression based on mime-type
-        HttpExchanges.enableCompressionIfSupported(ex);
-      }
       if (lastModified != null) {
         HttpExchanges.setLastModified(ex, lastModified);
       }
@@ -1077,14 +1308,41 @@ class DocumentHandler implements HttpHandler {
       } else {
         throw new IllegalStateException("Unexpected state " + state);
       }
-      HttpExchanges.startResponse(ex, responseCode, finalContentType,
-          hasContent);
+      if (compressionPolicy == null) {
+        HttpExchanges.startResponse(ex, responseCode, finalContentType,
+            hasContent);
+      } else {
+        compressionPolicy.startResponse(ex, responseCode, finalContentType,
+            hasContent, journal);
+      }
       for (Map.Entry<String, Acl> fragment : fragments.entrySet()) {
         pusher.asyncPushItem(new DocIdSender.AclItem(docId,
             fragment.getKey(), fragment.getValue()));
       }
     }
 
+    private int maxAclHeaderLength() {
+      return maxAclHeaderBytes == 0 ? Integer.MAX_VALUE : maxAclHeaderBytes;
+    }
+
+    /**
+     * Sends {@code acl} as a named resource in a feed, because it is too large
+     * for a header, and returns an ACL for the document that inherits from it.
+     * Returns {@code null} if the named resource could not be queued. {@code
+     * acl} must not be transformed yet, since it is transformed when the feed
+     * is sent.
+     */
+    private Acl overflowAcl(Acl acl) {
+      if (!pusher.asyncPushItem(
+          namedResourceItem(acl, docId, ACL_OVERFLOW_FRAGMENT))) {
+        log.log(Level.WARNING, "Unable to queue large ACL as named resource; "
+            + "sending it in the header instead: {0}", docId);
+        return null;
+      }
+      journal.recordAclHeaderOverflow();
+      return inheritingAcl(acl, docId, ACL_OVERFLOW_FRAGMENT);
+    }
+
     private Acl checkAndWorkaroundGsa70Acl(Acl acl) {
       if (acl == null) {
         return acl;
@@ -1282,6 +1540,30 @@ class DocumentHandler implements HttpHandler {
     }
   }
 
+  /**
+   * Returns the named resource {@code id}#{@code fragment} holding {@code acl}
+   * for documents whose ACL is {@link #inheritingAcl}.
+   */
+  static DocIdSender.AclItem namedResourceItem(Acl acl, DocId id,
+      String fragment) {
+    // The document's own ACL is empty, so the named resource decides as long
+    // as it doesn't require both to permit.
+    Acl namedResourceAcl = new Acl.Builder(acl)
+        .setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES).build();
+    return new DocIdSender.AclItem(id, fragment, namedResourceAcl);
+  }
+
+  /**
+   * Returns an empty ACL that authorizes like {@code acl} by inheriting from
+   * the named resource {@code id}#{@code fragment} made by {@link
+   * #namedResourceItem}.
+   */
+  static Acl inheritingAcl(Acl acl, DocId id, String fragment) {
+    return new Acl.Builder()
+        .setInheritanceType(acl.getInheritanceType())
+        .setInheritFrom(id, fragment).build();
+  }
+
   interface AsyncPusher {
     public boolean asyncPushItem(DocIdSender.Item item);
   }
@@ -0,0 +1,66 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Builds a SHA-256 fingerprint of a sequence of values, encoding them so that
+ * different sequences can't produce the same input to the digest.
+ */
+final class Fingerprinter {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final MessageDigest digest;
+
+  public Fingerprinter() {
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new AssertionError(ex);
+    }
+  }
+
+  /** Adds {@code value} so that it can't run into the next value. */
+  public Fingerprinter add(String value) {
+    if (value == null) {
+      digest.update((byte) 0);
+      return this;
+    }
+    byte[] bytes = value.getBytes(UTF8);
+    digest.update((byte) 1);
+    digest.update(new byte[] {(byte) (bytes.length >>> 24),
+        (byte) (bytes.length >>> 16), (byte) (bytes.length >>> 8),
+        (byte) bytes.length});
+    digest.update(bytes);
+    return this;
+  }
+
+  public Fingerprinter add(boolean value) {
+    digest.update((byte) (value ? 1 : 0));
+    return this;
+  }
+
+  /** Returns the fingerprint of the values added, in hex. */
+  public String finish() {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : digest.digest()) {
+      sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,480 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Index of the group definitions pushed with {@link
+ * DocIdPusher#pushGroupDefinitions}, for expanding a user's groups to include
+ * the groups they belong to through nested groups. Groups provided by the GSA
+ * in an {@link AuthnIdentity} are generally only those the user is directly a
+ * member of, so {@link #expand} allows ACLs to be checked locally against
+ * nested group definitions without asking the directory.
+ *
+ * <p>Pushing a group's definition again replaces its previous members. The
+ * index is compiled into arrays of integer IDs the first time it is queried
+ * after a change, and each group's ancestors are remembered until the next
+ * compilation. Since pushes arrive in many small batches, the index is
+ * compiled at most once per {@code adaptor.groupIndexRecompileSecs}; queries
+ * in between use the previous compilation, and only one query compiles while
+ * the others keep using it. Principals from case-insensitive definitions
+ * match regardless of case. This class is thread-safe.
+ *
+ * <p>Available from {@link AdaptorContext#getGroupGraph} when {@code
+ * adaptor.indexGroups} is {@code true}.
+ */
+public class GroupGraph {
+  /** Version of the format used by {@link #save}. */
+  private static final int FORMAT_VERSION = 1;
+
+  /** Definitions as pushed, in the order first pushed. Guarded by this. */
+  private final Map<GroupPrincipal, Definition> definitions
+      = new LinkedHashMap<GroupPrincipal, Definition>();
+  /** Compiled form of {@link #definitions}, or {@code null} if never built. */
+  private volatile Compiled compiled;
+  /** Whether {@link #definitions} changed since {@link #compiled} was built. */
+  private volatile boolean stale;
+  /** When {@link #compiled} was built. */
+  private volatile long compiledMillis;
+  /** Whether a query is compiling a replacement for {@link #compiled}. */
+  private final AtomicBoolean recompiling = new AtomicBoolean();
+  private final long recompileMillis;
+  private final TimeProvider timeProvider;
+
+  /** Creates an index that is compiled on the first query after a change. */
+  public GroupGraph() {
+    this(0, new SystemTimeProvider());
+  }
+
+  /**
+   * Creates an index that, after a change, is compiled again no sooner than
+   * {@code recompileMillis} after it was last compiled.
+   */
+  GroupGraph(long recompileMillis, TimeProvider timeProvider) {
+    if (recompileMillis < 0) {
+      throw new IllegalArgumentException(
+          "recompileMillis must not be negative");
+    }
+    if (timeProvider == null) {
+      throw new NullPointerException();
+    }
+    this.recompileMillis = recompileMillis;
+    this.timeProvider = timeProvider;
+  }
+
+  /**
+   * Adds or replaces the definitions of groups.
+   *
+   * @param defs members of each group
+   * @param caseSensitive whether the group names and members are
+   *     case-sensitive
+   */
+  public void addGroupDefinitions(
+      Map<GroupPrincipal, ? extends Collection<Principal>> defs,
+      boolean caseSensitive) {
+    synchronized (this) {
+      for (Map.Entry<GroupPrincipal, ? extends Collection<Principal>> e
+          : defs.entrySet()) {
+        if (e.getKey() == null || e.getValue() == null) {
+          throw new NullPointerException();
+        }
+        definitions.put(e.getKey(), new Definition(caseSensitive,
+            e.getValue().toArray(new Principal[e.getValue().size()])));
+      }
+      stale = true;
+    }
+  }
+
+  /** Returns the number of groups defined. */
+  public synchronized int size() {
+    return definitions.size();
+  }
+
+  /**
+   * Returns the groups that {@code principal} is a member of, either directly
+   * or through other groups. The principal itself is not included, even if it
+   * is a group that is a member of itself through a cycle.
+   *
+   * @param principal user or group
+   * @return the groups containing {@code principal}
+   */
+  public Set<GroupPrincipal> getTransitiveGroups(Principal principal) {
+    if (principal == null) {
+      throw new NullPointerException();
+    }
+    Compiled c = getCompiled();
+    BitSet ancestors = new BitSet();
+    c.addAncestors(principal, ancestors);
+    Set<GroupPrincipal> groups = new HashSet<GroupPrincipal>(
+        ancestors.cardinality() * 2);
+    for (int g = ancestors.nextSetBit(0); g >= 0;
+        g = ancestors.nextSetBit(g + 1)) {
+      groups.add(c.groups[g]);
+    }
+    groups.remove(principal);
+    return Collections.unmodifiableSet(groups);
+  }
+
+  /**
+   * Returns an identity like {@code identity}, but whose groups also include
+   * every group that its user or groups are members of through the indexed
+   * definitions. Pass the result to {@link Acl#isAuthorized} to check nested
+   * group membership.
+   *
+   * @param identity the user, as authenticated by the GSA
+   * @return the identity with its groups expanded
+   */
+  public AuthnIdentity expand(AuthnIdentity identity) {
+    Compiled c = getCompiled();
+    Set<GroupPrincipal> direct = identity.getGroups();
+    BitSet ancestors = new BitSet();
+    c.addAncestors(identity.getUser(), ancestors);
+    if (direct != null) {
+      for (GroupPrincipal group : direct) {
+        c.addAncestors(group, ancestors);
+      }
+    }
+    Set<GroupPrincipal> groups = new HashSet<GroupPrincipal>(
+        (ancestors.cardinality() + (direct == null ? 0 : direct.size())) * 2);
+    if (direct != null) {
+      groups.addAll(direct);
+    }
+    for (int g = ancestors.nextSetBit(0); g >= 0;
+        g = ancestors.nextSetBit(g + 1)) {
+      groups.add(c.groups[g]);
+    }
+    return new AuthnIdentityImpl.Builder(identity.getUser())
+        .setPassword(identity.getPassword())
+        .setGroups(Collections.unmodifiableSet(groups))
+        .build();
+  }
+
+  /**
+   * Writes the definitions to {@code file}. The file is replaced only once all
+   * of the definitions are written.
+   */
+  void save(File file) throws IOException {
+    Map<GroupPrincipal, Definition> copy;
+    synchronized (this) {
+      copy = new LinkedHashMap<GroupPrincipal, Definition>(definitions);
+    }
+    File temp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(copy.size());
+      for (Map.Entry<GroupPrincipal, Definition> e : copy.entrySet()) {
+        writePrincipal(out, e.getKey());
+        out.writeBoolean(e.getValue().caseSensitive);
+        out.writeInt(e.getValue().members.length);
+        for (Principal member : e.getValue().members) {
+          writePrincipal(out, member);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    // renameTo() does not replace existing files on all platforms.
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Could not replace " + file);
+    }
+    if (!temp.renameTo(file)) {
+      throw new IOException("Could not rename " + temp + " to " + file);
+    }
+  }
+
+  /**
+   * Adds the definitions previously written by {@link #save} to {@code file}.
+   */
+  void load(File file) throws IOException {
+    Map<GroupPrincipal, Definition> loaded
+        = new LinkedHashMap<GroupPrincipal, Definition>();
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)));
+    try {
+      int version = in.readInt();
+      if (version != FORMAT_VERSION) {
+        throw new IOException("Unsupported group index version: " + version);
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        Principal group = readPrincipal(in);
+        if (!group.isGroup()) {
+          throw new IOException("Expected group but found " + group);
+        }
+        boolean caseSensitive = in.readBoolean();
+        Principal[] members = new Principal[in.readInt()];
+        for (int j = 0; j < members.length; j++) {
+          members[j] = readPrincipal(in);
+        }
+        loaded.put((GroupPrincipal) group,
+            new Definition(caseSensitive, members));
+      }
+    } finally {
+      in.close();
+    }
+    synchronized (this) {
+      definitions.putAll(loaded);
+      stale = true;
+    }
+  }
+
+  private static void writePrincipal(DataOutputStream out, Principal p)
+      throws IOException {
+    out.writeBoolean(p.isGroup());
+    out.writeUTF(p.getName());
+    out.writeUTF(p.getNamespace());
+  }
+
+  private static Principal readPrincipal(DataInputStream in)
+      throws IOException {
+    boolean isGroup = in.readBoolean();
+    String name = in.readUTF();
+    String namespace = in.readUTF();
+    try {
+      return PrincipalInterner.intern(isGroup
+          ? new GroupPrincipal(name, namespace)
+          : new UserPrincipal(name, namespace));
+    } catch (IllegalArgumentException ex) {
+      throw new IOException("Invalid principal: " + name, ex);
+    }
+  }
+
+  private Compiled getCompiled() {
+    Compiled c = compiled;
+    if (c == null) {
+      synchronized (this) {
+        if (compiled == null) {
+          compile();
+        }
+        return compiled;
+      }
+    }
+    if (!stale
+        || timeProvider.currentTimeMillis() - compiledMillis < recompileMillis
+        || !recompiling.compareAndSet(false, true)) {
+      return c;
+    }
+    try {
+      synchronized (this) {
+        if (stale) {
+          compile();
+        }
+        return compiled;
+      }
+    } finally {
+      recompiling.set(false);
+    }
+  }
+
+  /** Compiles {@link #definitions}. Must be called while holding this. */
+  private void compile() {
+    stale = false;
+    compiled = new Compiled(definitions);
+    compiledMillis = timeProvider.currentTimeMillis();
+  }
+
+  /**
+   * Returns the key identifying {@code p} in a definition of the given case
+   * sensitivity. Users and groups with the same name are different.
+   */
+  static String key(Principal p, boolean caseSensitive) {
+    String type = p.isGroup() ? "g" : "u";
+    if (caseSensitive) {
+      String ns = p.getNamespace();
+      return type + "s" + ns.length() + ":" + ns + p.getName();
+    } else {
+      return type + "i" + Acl.caseInsensitiveKey(p);
+    }
+  }
+
+  private static final class Definition {
+    final boolean caseSensitive;
+    final Principal[] members;
+
+    Definition(boolean caseSensitive, Principal[] members) {
+      this.caseSensitive = caseSensitive;
+      this.members = members;
+    }
+  }
+
+  /**
+   * Immutable graph from each member to the groups directly containing it, in
+   * compressed sparse row form, plus the memoized ancestors of each group.
+   */
+  private static final class Compiled {
+    /** Group for each group ID. */
+    final GroupPrincipal[] groups;
+    /** Member ID for each member key. */
+    private final Map<String, Integer> memberIds;
+    /**
+     * Groups directly containing member {@code m} are {@code
+     * parents[offsets[m]]} to {@code parents[offsets[m + 1] - 1]}.
+     */
+    private final int[] offsets;
+    private final int[] parents;
+    /**
+     * Member IDs of each group when it is itself a member, as case-sensitive
+     * then case-insensitive, or -1 if it is not.
+     */
+    private final int[] sensitiveMemberIds;
+    private final int[] insensitiveMemberIds;
+    /** Sorted IDs of each group and its ancestors, once computed. */
+    private final AtomicReferenceArray<int[]> closures;
+
+    Compiled(Map<GroupPrincipal, Definition> definitions) {
+      int groupCount = definitions.size();
+      groups = definitions.keySet().toArray(new GroupPrincipal[groupCount]);
+      int edgeCount = 0;
+      for (Definition def : definitions.values()) {
+        edgeCount += def.members.length;
+      }
+      // Assign member IDs and record each edge as (member, group).
+      memberIds = new HashMap<String, Integer>();
+      int[] edgeMembers = new int[edgeCount];
+      int[] edgeGroups = new int[edgeCount];
+      int edge = 0;
+      int group = 0;
+      for (Definition def : definitions.values()) {
+        for (Principal member : def.members) {
+          String key = key(member, def.caseSensitive);
+          Integer id = memberIds.get(key);
+          if (id == null) {
+            id = memberIds.size();
+            memberIds.put(key, id);
+          }
+          edgeMembers[edge] = id;
+          edgeGroups[edge] = group;
+          edge++;
+        }
+        group++;
+      }
+      int memberCount = memberIds.size();
+      offsets = new int[memberCount + 1];
+      for (int m : edgeMembers) {
+        offsets[m + 1]++;
+      }
+      for (int m = 0; m < memberCount; m++) {
+        offsets[m + 1] += offsets[m];
+      }
+      parents = new int[edgeCount];
+      int[] next = new int[memberCount];
+      System.arraycopy(offsets, 0, next, 0, memberCount);
+      for (int i = 0; i < edgeCount; i++) {
+        parents[next[edgeMembers[i]]++] = edgeGroups[i];
+      }
+
+      sensitiveMemberIds = new int[groupCount];
+      insensitiveMemberIds = new int[groupCount];
+      for (int g = 0; g < groupCount; g++) {
+        sensitiveMemberIds[g] = memberId(key(groups[g], true));
+        insensitiveMemberIds[g] = memberId(key(groups[g], false));
+      }
+      closures = new AtomicReferenceArray<int[]>(groupCount);
+    }
+
+    private int memberId(String key) {
+      Integer id = memberIds.get(key);
+      return id == null ? -1 : id;
+    }
+
+    /** Adds the IDs of the groups containing {@code p} to {@code result}. */
+    void addAncestors(Principal p, BitSet result) {
+      addAncestorsOfMember(memberId(key(p, true)), result);
+      addAncestorsOfMember(memberId(key(p, false)), result);
+    }
+
+    private void addAncestorsOfMember(int member, BitSet result) {
+      if (member < 0) {
+        return;
+      }
+      for (int i = offsets[member]; i < offsets[member + 1]; i++) {
+        if (!result.get(parents[i])) {
+          for (int g : closure(parents[i])) {
+            result.set(g);
+          }
+        }
+      }
+    }
+
+    /** Returns the IDs of group {@code g} and its ancestors. */
+    private int[] closure(int g) {
+      int[] closure = closures.get(g);
+      if (closure != null) {
+        return closure;
+      }
+      BitSet found = new BitSet();
+      Deque<Integer> pending = new ArrayDeque<Integer>();
+      pending.push(g);
+      while (!pending.isEmpty()) {
+        int current = pending.pop();
+        if (found.get(current)) {
+          continue;
+        }
+        int[] known = closures.get(current);
+        if (known != null) {
+          // Also contains everything reachable from current.
+          for (int ancestor : known) {
+            found.set(ancestor);
+          }
+          continue;
+        }
+        found.set(current);
+        pushParents(sensitiveMemberIds[current], found, pending);
+        pushParents(insensitiveMemberIds[current], found, pending);
+      }
+      closure = new int[found.cardinality()];
+      int i = 0;
+      for (int ancestor = found.nextSetBit(0); ancestor >= 0;
+          ancestor = found.nextSetBit(ancestor + 1)) {
+        closure[i++] = ancestor;
+      }
+      closures.set(g, closure);
+      return closure;
+    }
+
+    private void pushParents(int member, BitSet found, Deque<Integer> pending) {
+      if (member < 0) {
+        return;
+      }
+      for (int i = offsets[member]; i < offsets[member + 1]; i++) {
+        if (!found.get(parents[i])) {
+          pending.push(parents[i]);
+        }
+      }
+    }
+  }
+}
@@ -28,6 +28,7 @@ import com.sun.net.httpserver.HttpsServer;
 import org.opensaml.DefaultBootstrap;
 import org.opensaml.xml.ConfigurationException;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -48,16 +49,21 @@ import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -68,6 +74,10 @@ import javax.net.ssl.SSLException;
 public final class GsaCommunicationHandler {
   private static final Logger log
       = Logger.getLogger(GsaCommunicationHandler.class.getName());
+  /** Sent batches that may wait for the adaptor's prefetcher. */
+  private static final int MAX_PENDING_PREFETCH_BATCHES = 4;
+  /** Shared ACLs remembered as pushed, to not push them again. */
+  private static final int MAX_SHARED_ACLS_REMEMBERED = 10000;
 
   private final Adaptor adaptor;
   private final Config config;
@@ -114,6 +124,13 @@ public final class GsaCommunicationHandler {
    * purpose and is commonly used in conjunction with {@link #scheduleExecutor}.
    */
   private ExecutorService backgroundExecutor;
+  /**
+   * Bounded executor for evaluating parts of authorization requests, or {@code
+   * null} if requests are evaluated by the handling thread.
+   */
+  private ExecutorService authzExecutor;
+  /** Bounded executor for asynchronous content transforms. */
+  private ExecutorService contentTransformExecutor;
   private DocIdCodec docIdCodec;
   private DocIdSender docIdSender;
   private AsyncDocIdSender asyncDocIdSender;
@@ -122,19 +139,23 @@ public final class GsaCommunicationHandler {
   private SensitiveValueCodec secureValueCodec;
   private KeyPair keyPair;
   private AclTransform aclTransform;
+  /** Index of pushed group definitions, or {@code null} if not enabled. */
+  private GroupGraph groupGraph;
 
   private ShutdownWaiter waiter;
-  private final List<Filter> commonFilters = Arrays.asList(new Filter[] {
-    new AbortImmediatelyFilter(),
-    new LoggingFilter(),
-    new InternalErrorFilter(),
-  });
+  private final List<Filter> commonFilters;
 
   public GsaCommunicationHandler(Adaptor adaptor, Config config) {
     this.adaptor = adaptor;
     this.config = config;
 
     journal = new Journal(config.isJournalReducedMem());
+    commonFilters = Arrays.asList(new Filter[] {
+      new AbortImmediatelyFilter(journal,
+          config.getServerLoadSheddingRetryAfterSeconds()),
+      new LoggingFilter(),
+      new InternalErrorFilter(),
+    });
   }
 
   /**
@@ -185,6 +206,10 @@ public final class GsaCommunicationHandler {
       }
     }
     secureValueCodec = new SensitiveValueCodec(keyPair);
+    // Before the adaptor is initialized, since it may create ACLs then.
+    if (config.isAdaptorToInternPrincipals()) {
+      PrincipalInterner.enable();
+    }
 
     int port = server.getAddress().getPort();
     if (port != config.getServerPort()) {
@@ -229,6 +254,9 @@ public final class GsaCommunicationHandler {
         new GsaFeedFileArchiver(config.getFeedArchiveDirectory());
     docIdSender = new DocIdSender(fileMaker, fileSender, fileArchiver, journal,
         config, adaptor);
+    if (config.isAdaptorToIndexGroups()) {
+      groupGraph = createGroupGraph();
+    }
     asyncDocIdSender = new AsyncDocIdSender(docIdSender,
         config.getFeedMaxUrls() /* batch size */,
         5 /* max latency */, TimeUnit.MINUTES,
@@ -263,6 +291,17 @@ public final class GsaCommunicationHandler {
           (ConfigModificationListener) adaptor);
     }*/
 
+    AuthzAuthority authzAuthority = createAuthzAuthority();
+    long authzTimeoutMillis = config.getAdaptorAuthzTimeoutMillis();
+    AuthzStatus authzTimeoutDecision = config.getAdaptorAuthzTimeoutDecision();
+    // Authorization of documents retrieved directly by users, which unlike
+    // SAML requests is never split, so it only needs bounding in time.
+    AuthzAuthority retrievalAuthzAuthority = authzAuthority;
+    if (authzAuthority != null && authzTimeoutMillis > 0) {
+      authzExecutor = createAuthzExecutor();
+      retrievalAuthzAuthority = new TimedAuthzAuthority(authzAuthority,
+          authzExecutor, authzTimeoutMillis, authzTimeoutDecision, journal);
+    }
     SamlServiceProvider samlServiceProvider = null;
     if (config.isServerSecure()) {
       bootstrapOpenSaml();
@@ -285,10 +324,16 @@ public final class GsaCommunicationHandler {
           = new SamlServiceProvider(sessionManager, metadata, keyPair, dmfmt);
       addFilters(scope.createContext("/samlassertionconsumer",
           samlServiceProvider.getAssertionConsumer()));
-      if (adaptorContext.authzAuthority != null) {
+      if (authzAuthority != null) {
         log.config("Adaptor-based authorization supported");
+        int authzBatchSize = config.getAdaptorAuthzBatchSize();
+        if (authzBatchSize > 0 && authzExecutor == null) {
+          authzExecutor = createAuthzExecutor();
+        }
         addFilters(scope.createContext("/saml-authz", new SamlBatchAuthzHandler(
-            adaptorContext.authzAuthority, docIdCodec, metadata, dmfmt)));
+            authzAuthority, docIdCodec, metadata, dmfmt, authzExecutor,
+            authzBatchSize, authzTimeoutMillis, authzTimeoutDecision, journal,
+            config.isServerToUseStreamingSamlAuthz())));
       } else {
         log.config("Adaptor-based authorization not supported");
       }
@@ -296,7 +341,7 @@ public final class GsaCommunicationHandler {
     scheduleExecutor = Executors.newSingleThreadScheduledExecutor(
         new ThreadFactoryBuilder().setDaemon(true).setNameFormat("schedule")
         .build());
-    Watchdog watchdog = new Watchdog(scheduleExecutor);
+    Watchdog watchdog = new Watchdog(scheduleExecutor, journal);
 
     // The cachedThreadPool implementation created here is considerably better
     // than using ThreadPoolExecutor. ThreadPoolExecutor does not create threads
@@ -305,16 +350,25 @@ public final class GsaCommunicationHandler {
         new ThreadFactoryBuilder().setDaemon(true).setNameFormat("background")
         .build());
     backgroundExecutor.execute(waiter.runnable(asyncDocIdSender.worker()));
+    if (adaptorContext.docIdPrefetcher != null) {
+      log.config("Adaptor-based prefetching supported");
+      docIdSender.addSentItemsListener(new PrefetchHinter(
+          adaptorContext.docIdPrefetcher, backgroundExecutor,
+          MAX_PENDING_PREFETCH_BATCHES));
+    }
     DocumentHandler docHandler = new DocumentHandler(
-        docIdCodec, docIdCodec, journal, adaptor, adaptorContext.authzAuthority,
+        docIdCodec, docIdCodec, journal, adaptor, retrievalAuthzAuthority,
+        adaptorContext.metadataRetriever,
         config.getGsaHostname(),
         config.getServerFullAccessHosts(),
         samlServiceProvider, createMetadataTransformPipeline(),
         aclTransform, createContentTransformFactory(),
-        config.isServerToUseCompression(), watchdog,
-        asyncDocIdSender, 
+        createCompressionPolicy(), watchdog,
+        asyncDocIdSender, createLoadShedder(scope.getHttpServer()),
+        createSingleFlightRetriever(), createAclDeduplicator(),
         config.doesGsaAcceptDocControlsHeader(),
         config.markAllDocsAsPublic(),
+        config.getAdaptorMaxAclHeaderBytes(),
         config.getAdaptorDocHeaderTimeoutMillis(),
         config.getAdaptorDocContentTimeoutMillis(),
         config.getScoringType(),
@@ -407,7 +461,131 @@ public final class GsaCommunicationHandler {
   }
 
   private ContentTransformFactory createContentTransformFactory() {
-    return new ContentTransformFactory(config.getContentTransformFactorySpec());
+    int threads = config.getContentTransformAsyncMaxThreads();
+    if (threads <= 0) {
+      throw new InvalidConfigurationException(
+          "content.transform.asyncMaxThreads must be positive: " + threads);
+    }
+    // Without a queue, stages that find every thread busy are rejected, and
+    // the factory runs them in the writing thread instead.
+    contentTransformExecutor = new ThreadPoolExecutor(0, threads, 60,
+        TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat("contentTransform").build());
+    return new ContentTransformFactory(config.getContentTransformFactorySpec(),
+        journal, contentTransformExecutor);
+  }
+
+  private LoadShedder createLoadShedder(HttpServer server) {
+    // The queue is only known when using the executor from Application.
+    Queue<Runnable> workQueue = null;
+    int capacity;
+    if (server.getExecutor() instanceof ThreadPoolExecutor) {
+      workQueue = ((ThreadPoolExecutor) server.getExecutor()).getQueue();
+      capacity = config.getServerQueueCapacity();
+    } else if (server.getExecutor() instanceof VirtualThreadExecutor) {
+      // Without a queue, reserve part of the concurrency instead.
+      capacity = config.getServerExecutorMaxThreads();
+    } else {
+      log.config("Server capacity unknown. Only shedding load by latency");
+      capacity = Integer.MAX_VALUE;
+    }
+    try {
+      return new LoadShedder(workQueue, capacity,
+          config.getServerLoadSheddingReservedQueueCapacity(),
+          config.getServerLoadSheddingMaxLatencyMillis(),
+          config.getServerLoadSheddingRetryAfterSeconds(), journal);
+    } catch (IllegalArgumentException ex) {
+      throw new InvalidConfigurationException(
+          "Invalid server.loadShedding configuration", ex);
+    }
+  }
+
+  /**
+   * Returns the adaptor's {@link AuthzAuthority}, wrapped with a decision cache
+   * when one is configured, or {@code null} if the adaptor has none.
+   */
+  private AuthzAuthority createAuthzAuthority() {
+    AuthzAuthority authzAuthority = adaptorContext.authzAuthority;
+    long cacheSize = config.getAdaptorAuthzCacheSize();
+    if (authzAuthority == null || cacheSize == 0) {
+      return authzAuthority;
+    }
+    AuthzDecisionCache cache;
+    try {
+      cache = new AuthzDecisionCache(authzAuthority, journal, cacheSize,
+          config.getAdaptorAuthzCachePermitMillis(),
+          config.getAdaptorAuthzCacheDenyMillis());
+    } catch (IllegalArgumentException ex) {
+      throw new InvalidConfigurationException(
+          "Invalid adaptor.authzCache configuration", ex);
+    }
+    docIdSender.addSentItemsListener(cache);
+    return cache;
+  }
+
+  /**
+   * Returns an executor for calls to the adaptor's {@link AuthzAuthority} that
+   * are split or have a deadline. Its threads, not the HTTP server's, are the
+   * ones blocked by a slow adaptor.
+   */
+  private ExecutorService createAuthzExecutor() {
+    int threads = config.getAdaptorAuthzMaxThreads();
+    int maxQueued = config.getAdaptorAuthzMaxQueued();
+    if (maxQueued <= 0) {
+      throw new InvalidConfigurationException(
+          "adaptor.authzMaxQueued must be positive: " + maxQueued);
+    }
+    // Bounded, since calls to a hung adaptor are cancelled but stay queued
+    // until a thread is free. Rejected calls get the timeout decision.
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60,
+        TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(maxQueued),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("authz")
+        .build());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /** Returns {@code null} when coalescing is disabled. */
+  private SingleFlightRetriever createSingleFlightRetriever() {
+    if (!config.isAdaptorToCoalesceConcurrentRetrievals()) {
+      return null;
+    }
+    return new SingleFlightRetriever(
+        config.getAdaptorCoalesceMemoryBufferBytes(), journal);
+  }
+
+  /** Returns {@code null} when ACLs are not shared. */
+  private AclDeduplicator createAclDeduplicator() {
+    int minPrincipals = config.getAdaptorSharedAclMinPrincipals();
+    if (minPrincipals == 0) {
+      return null;
+    }
+    AclDeduplicator deduplicator = new AclDeduplicator(
+        config.getAdaptorSharedAclDocIdPrefix(), minPrincipals,
+        MAX_SHARED_ACLS_REMEMBERED, asyncDocIdSender, journal);
+    docIdSender.addSentItemsListener(deduplicator);
+    return deduplicator;
+  }
+
+  /** Returns {@code null} when compression is disabled. */
+  private CompressionPolicy createCompressionPolicy() {
+    if (!config.isServerToUseCompression()) {
+      return null;
+    }
+    try {
+      return new CompressionPolicy(
+          ContentTypeFilter.splitPatterns(
+              config.getServerCompressionIncludeContentTypes()),
+          ContentTypeFilter.splitPatterns(
+              config.getServerCompressionExcludeContentTypes()),
+          config.getServerCompressionMinSize(),
+          config.getServerCompressionLevel());
+    } catch (IllegalArgumentException ex) {
+      throw new InvalidConfigurationException(
+          "Invalid server.compression configuration", ex);
+    }
   }
 
   @SuppressWarnings("deprecation")
@@ -672,10 +850,19 @@ public final class GsaCommunicationHandler {
       scheduleExecutor.shutdownNow();
       scheduleExecutor = null;
 
+      docIdSender.removeSentItemsListeners();
       if (backgroundExecutor != null) {
         backgroundExecutor.shutdownNow();
         backgroundExecutor = null;
       }
+      if (authzExecutor != null) {
+        authzExecutor.shutdownNow();
+        authzExecutor = null;
+      }
+      if (contentTransformExecutor != null) {
+        contentTransformExecutor.shutdownNow();
+        contentTransformExecutor = null;
+      }
 
       scheduler = null;
       sendDocIdsFuture = null;
@@ -707,6 +894,10 @@ public final class GsaCommunicationHandler {
    * invalidates the {@link AdaptorContext} returned from {@link #setup}.
    */
   public synchronized void teardown() {
+    if (groupGraph != null) {
+      saveGroupGraph();
+      groupGraph = null;
+    }
     scope = null;
     dashboardScope = null;
     keyPair = null;
@@ -723,6 +914,48 @@ public final class GsaCommunicationHandler {
     adaptorContext = null;
   }
 
+  /**
+   * Creates the index of group definitions, loading the definitions saved by
+   * the previous run, and registers it to be told of future pushes.
+   */
+  private GroupGraph createGroupGraph() {
+    final GroupGraph graph = new GroupGraph(
+        config.getAdaptorGroupIndexRecompileMillis(),
+        new SystemTimeProvider());
+    String path = config.getAdaptorGroupIndexFile();
+    if (!"".equals(path) && new File(path).exists()) {
+      try {
+        graph.load(new File(path));
+        log.log(Level.CONFIG, "Loaded {0} group definitions", graph.size());
+      } catch (IOException ex) {
+        log.log(Level.WARNING, "Could not load group index from " + path
+            + ". Nested groups will be incomplete until groups are pushed",
+            ex);
+      }
+    }
+    docIdSender.addSentGroupsListener(new DocIdSender.SentGroupsListener() {
+      @Override
+      public void groupsSent(
+          Map<GroupPrincipal, ? extends Collection<Principal>> defs,
+          boolean caseSensitive) {
+        graph.addGroupDefinitions(defs, caseSensitive);
+      }
+    });
+    return graph;
+  }
+
+  private void saveGroupGraph() {
+    String path = config.getAdaptorGroupIndexFile();
+    if ("".equals(path)) {
+      return;
+    }
+    try {
+      groupGraph.save(new File(path));
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Could not save group index to " + path, ex);
+    }
+  }
+
   /**
    * Ensure there is a push running right now. This schedules a new push if one
    * is not already running. Returns {@code true} if it starts a new push, and
@@ -923,6 +1156,8 @@ public final class GsaCommunicationHandler {
     private PollingIncrementalLister pollingIncrementalLister;
     private AuthnAuthority authnAuthority;
     private AuthzAuthority authzAuthority;
+    private MetadataRetriever metadataRetriever;
+    private DocIdPrefetcher docIdPrefetcher;
 
     private synchronized void freeze() {
       mutable = false;
@@ -1046,5 +1281,27 @@ public final class GsaCommunicationHandler {
       }
       this.authzAuthority = authzAuthority;
     }
+
+    @Override
+    public synchronized void setMetadataRetriever(
+        MetadataRetriever metadataRetriever) {
+      if (!mutable) {
+        throw new IllegalStateException("After init()");
+      }
+      this.metadataRetriever = metadataRetriever;
+    }
+
+    @Override
+    public synchronized void setDocIdPrefetcher(DocIdPrefetcher prefetcher) {
+      if (!mutable) {
+        throw new IllegalStateException("After init()");
+      }
+      this.docIdPrefetcher = prefetcher;
+    }
+
+    @Override
+    public GroupGraph getGroupGraph() {
+      return groupGraph;
+    }
   }
 }
@@ -285,12 +285,7 @@ public final class HttpExchanges {
    */
   public static void enableCompressionIfSupported(HttpExchange ex)
       throws IOException {
-    Collection<String> encodings
-        = splitHeaderValues(ex.getRequestHeaders().get("Accept-Encoding"));
-    if (encodings == null) {
-      return;
-    }
-    if (encodings.contains("gzip")) {
+    if (acceptsGzip(ex)) {
       log.finer("Enabling gzip compression for response");
       ex.getResponseHeaders().set("Content-Encoding", "gzip");
       // Although the documentation states that getResponseBody() can only be
@@ -310,6 +305,16 @@ public final class HttpExchanges {
     }
   }
 
+  /**
+   * Returns whether the client listed {@code gzip} in its Accept-Encoding
+   * request header.
+   */
+  static boolean acceptsGzip(HttpExchange ex) {
+    Collection<String> encodings
+        = splitHeaderValues(ex.getRequestHeaders().get("Accept-Encoding"));
+    return encodings != null && encodings.contains("gzip");
+  }
+
   /**
    * Retrieves and parses the If-Modified-Since from the request, returning null
    * if there was no such header or there was an error.
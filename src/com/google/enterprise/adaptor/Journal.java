@@ -14,6 +14,7 @@
 
 package com.google.enterprise.adaptor;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -64,6 +65,54 @@ class Journal {
   private long lastSuccessfulIncrementalPushEnd;
   private CompletionStatus lastIncrementalPushStatus = CompletionStatus.SUCCESS;
 
+  /** Number of responses sent gzip compressed. */
+  private long numCompressedResponses;
+  /** Bytes provided for compressed responses, before compression. */
+  private long compressionInputBytes;
+  /** Bytes sent for compressed responses, after compression. */
+  private long compressionOutputBytes;
+  /** Number of times the watchdog interrupted a thread. */
+  private long numWatchdogTimeouts;
+  /** Number of requests rejected because the server was overloaded. */
+  private long numShedRequests;
+  /** Number of requests that shared another request's retrieval. */
+  private long numCoalescedRetrievals;
+  /** Number of content transform stages applied to documents. */
+  private long numContentTransformStagesApplied;
+  /** Number of content transform stages bypassed due to content type. */
+  private long numContentTransformStagesSkipped;
+  /** Number of ACLs sent as named resources because of their size. */
+  private long numAclHeaderOverflows;
+  /** Number of documents whose ACL was replaced by a shared named resource. */
+  private long numSharedAcls;
+  /** Number of shared named resources pushed. */
+  private long numSharedAclsPushed;
+  /** Number of authorization decisions found in the decision cache. */
+  private long numAuthzCacheHits;
+  /** Number of authorization decisions not found in the decision cache. */
+  private long numAuthzCacheMisses;
+  /** Number of authorization requests answered without the adaptor. */
+  private long numAuthzCallsSaved;
+  /** Number of calls to the adaptor's AuthzAuthority completed. */
+  private long numAuthzBatches;
+  /** Total time spent in completed calls to the adaptor's AuthzAuthority. */
+  private long authzBatchMillis;
+  /** Longest time spent in a completed call to the adaptor's AuthzAuthority. */
+  private long maxAuthzBatchMillis;
+  /** Number of calls to the adaptor's AuthzAuthority not completed in time. */
+  private long numAuthzBatchTimeouts;
+  /**
+   * Number of completed calls to the adaptor's AuthzAuthority by duration. The
+   * call counts in bucket {@code i} if it took at most {@code
+   * AUTHZ_LATENCY_BUCKET_MILLIS[i]}; the last bucket counts longer calls.
+   */
+  private final long[] authzLatencyCounts
+      = new long[AUTHZ_LATENCY_BUCKET_MILLIS.length + 1];
+
+  /** Upper bounds of the buckets of {@link #authzLatencyCounts}. */
+  static final long[] AUTHZ_LATENCY_BUCKET_MILLIS = {1, 2, 5, 10, 20, 50, 100,
+      200, 500, 1000, 2000, 5000, 10000, 30000, 60000};
+
   enum CompletionStatus {
     SUCCESS,
     INTERRUPTION,
@@ -329,6 +378,122 @@ class Journal {
     return lastIncrementalPushStatus;
   }
 
+  /**
+   * Record that a response was sent compressed, along with its size before
+   * and after compression.
+   */
+  synchronized void recordCompression(long uncompressedBytes,
+      long compressedBytes) {
+    numCompressedResponses++;
+    compressionInputBytes += uncompressedBytes;
+    compressionOutputBytes += compressedBytes;
+  }
+
+  /**
+   * Record that the watchdog interrupted a thread for taking too long.
+   */
+  synchronized void recordWatchdogTimeout() {
+    numWatchdogTimeouts++;
+  }
+
+  /**
+   * Record that a request was rejected because the server was overloaded.
+   */
+  synchronized void recordRequestShed() {
+    numShedRequests++;
+  }
+
+  /**
+   * Record that a request shared the retrieval of a concurrent request
+   * instead of calling the adaptor itself.
+   */
+  synchronized void recordCoalescedRetrieval() {
+    numCoalescedRetrievals++;
+  }
+
+  /**
+   * Record how many content transform stages a document's content passed
+   * through, and how many were bypassed because of its content type.
+   */
+  synchronized void recordContentTransformStages(int applied, int skipped) {
+    numContentTransformStagesApplied += applied;
+    numContentTransformStagesSkipped += skipped;
+  }
+
+  /**
+   * Record that a document's ACL was too large for its headers and was sent
+   * as a named resource instead.
+   */
+  synchronized void recordAclHeaderOverflow() {
+    numAclHeaderOverflows++;
+  }
+
+  /**
+   * Record that a document's ACL was replaced by a reference to a shared named
+   * resource, and whether the named resource had to be pushed.
+   */
+  synchronized void recordSharedAcl(boolean pushed) {
+    numSharedAcls++;
+    if (pushed) {
+      numSharedAclsPushed++;
+    }
+  }
+
+  /**
+   * Record how many of the DocIds of an authorization request had cached
+   * decisions. If all did, the adaptor was not called.
+   */
+  synchronized void recordAuthzCacheLookups(int hits, int misses) {
+    numAuthzCacheHits += hits;
+    numAuthzCacheMisses += misses;
+    if (misses == 0 && hits > 0) {
+      numAuthzCallsSaved++;
+    }
+  }
+
+  /**
+   * Record that a call to the adaptor's AuthzAuthority, for a request or a
+   * sub-batch of one, completed in {@code millis}.
+   */
+  synchronized void recordAuthzBatch(long millis) {
+    numAuthzBatches++;
+    authzBatchMillis += millis;
+    maxAuthzBatchMillis = Math.max(maxAuthzBatchMillis, millis);
+    int bucket = Arrays.binarySearch(AUTHZ_LATENCY_BUCKET_MILLIS, millis);
+    authzLatencyCounts[bucket >= 0 ? bucket : -bucket - 1]++;
+  }
+
+  /**
+   * Record that a call to the adaptor's AuthzAuthority, for a request or a
+   * sub-batch of one, did not complete before the request's deadline, or was
+   * not made because too many calls were waiting.
+   */
+  synchronized void recordAuthzBatchTimeout() {
+    numAuthzBatchTimeouts++;
+  }
+
+  /**
+   * Returns the upper bound of the bucket containing the {@code percentile}th
+   * percentile duration of calls to the adaptor's AuthzAuthority, but no more
+   * than the longest call, or {@code 0} if there were no calls. Must be called
+   * while holding the lock.
+   */
+  private long getAuthzLatencyPercentile(int percentile) {
+    if (numAuthzBatches == 0) {
+      return 0;
+    }
+    // Number of calls at or below the percentile, rounded up.
+    long rank = (numAuthzBatches * percentile + 99) / 100;
+    long count = 0;
+    for (int i = 0; i < AUTHZ_LATENCY_BUCKET_MILLIS.length; i++) {
+      count += authzLatencyCounts[i];
+      if (count >= rank) {
+        return Math.min(AUTHZ_LATENCY_BUCKET_MILLIS[i], maxAuthzBatchMillis);
+      }
+    }
+    return maxAuthzBatchMillis;
+  }
+
   double getRetrieverErrorRate(long maxCount) {
     long currentTime = timeProvider.currentTimeMillis();
     long count = 0;
@@ -403,6 +568,30 @@ class Journal {
     final long lastSuccessfulIncrementalPushStart;
     final long lastSuccessfulIncrementalPushEnd;
     final long currentIncrementalPushStart;
+    final long numCompressedResponses;
+    final long compressionInputBytes;
+    final long compressionOutputBytes;
+    final long numWatchdogTimeouts;
+    final long numShedRequests;
+    final long numCoalescedRetrievals;
+    final long numContentTransformStagesApplied;
+    final long numContentTransformStagesSkipped;
+    final long numAclHeaderOverflows;
+    final long numSharedAcls;
+    final long numSharedAclsPushed;
+    final long numAuthzCacheHits;
+    final long numAuthzCacheMisses;
+    final long numAuthzCallsSaved;
+    final long numAuthzBatches;
+    final long authzBatchMillis;
+    final long maxAuthzBatchMillis;
+    final long numAuthzBatchTimeouts;
+    /** Median duration of calls to the adaptor's AuthzAuthority. */
+    final long authzLatencyP50Millis;
+    /** 90th percentile duration of calls to the adaptor's AuthzAuthority. */
+    final long authzLatencyP90Millis;
+    /** 99th percentile duration of calls to the adaptor's AuthzAuthority. */
+    final long authzLatencyP99Millis;
     final Stats[] timeStats;
 
     JournalSnapshot(Journal journal, long currentTime, Stats[] timeStatsClone) {
@@ -421,6 +610,29 @@ class Journal {
       this.lastSuccessfulIncrementalPushEnd
           = journal.lastSuccessfulIncrementalPushEnd;
       this.currentIncrementalPushStart = journal.currentIncrementalPushStart;
+      this.numCompressedResponses = journal.numCompressedResponses;
+      this.compressionInputBytes = journal.compressionInputBytes;
+      this.compressionOutputBytes = journal.compressionOutputBytes;
+      this.numWatchdogTimeouts = journal.numWatchdogTimeouts;
+      this.numShedRequests = journal.numShedRequests;
+      this.numCoalescedRetrievals = journal.numCoalescedRetrievals;
+      this.numContentTransformStagesApplied
+          = journal.numContentTransformStagesApplied;
+      this.numContentTransformStagesSkipped
+          = journal.numContentTransformStagesSkipped;
+      this.numAclHeaderOverflows = journal.numAclHeaderOverflows;
+      this.numSharedAcls = journal.numSharedAcls;
+      this.numSharedAclsPushed = journal.numSharedAclsPushed;
+      this.numAuthzCacheHits = journal.numAuthzCacheHits;
+      this.numAuthzCacheMisses = journal.numAuthzCacheMisses;
+      this.numAuthzCallsSaved = journal.numAuthzCallsSaved;
+      this.numAuthzBatches = journal.numAuthzBatches;
+      this.authzBatchMillis = journal.authzBatchMillis;
+      this.maxAuthzBatchMillis = journal.maxAuthzBatchMillis;
+      this.numAuthzBatchTimeouts = journal.numAuthzBatchTimeouts;
+      this.authzLatencyP50Millis = journal.getAuthzLatencyPercentile(50);
+      this.authzLatencyP90Millis = journal.getAuthzLatencyPercentile(90);
+      this.authzLatencyP99Millis = journal.getAuthzLatencyPercentile(99);
       this.whenStarted = journal.startedAt;
       this.currentTime = currentTime;
       this.timeStats = timeStatsClone;
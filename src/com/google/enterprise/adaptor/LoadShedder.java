@@ -0,0 +1,210 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Admission control for document requests. Requests are rejected with a
+ * {@code 503 Service Unavailable} and a {@code Retry-After} header, instead of
+ * being processed, when the server appears saturated.
+ *
+ * <p>Requests from fully-trusted clients (the GSA) are only rejected when the
+ * work queue is completely full. Other requests are also rejected when the
+ * work queue is past its untrusted limit, leaving the rest of the queue
+ * reserved for the GSA, or when the 99th percentile latency of recent
+ * requests exceeds the configured maximum.
+ *
+ * <p>When the server has no work queue, such as when each request runs in its
+ * own virtual thread, the number of document requests in flight is limited
+ * in the same way instead, leaving part of the server's concurrency reserved
+ * for the GSA.
+ */
+class LoadShedder {
+  private static final Logger log
+      = Logger.getLogger(LoadShedder.class.getName());
+
+  /** Number of latency samples retained. */
+  private static final int MAX_SAMPLES = 1024;
+  /** Samples older than this are ignored when computing percentiles. */
+  private static final long SAMPLE_WINDOW_MILLIS = 60 * 1000;
+  /** How long a computed percentile is reused. */
+  private static final long PERCENTILE_REFRESH_MILLIS = 1000;
+
+  private final Collection<?> workQueue;
+  /** Limit on the queue depth, or requests in flight, for untrusted clients. */
+  private final int untrustedQueueLimit;
+  /** Number of requests between {@link #requestStarted} and finished. */
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final long maxP99LatencyMillis;
+  private final int retryAfterSeconds;
+  private final Journal journal;
+  private final TimeProvider timeProvider;
+
+  /** Circular buffers of request durations and their completion times. */
+  private final long[] latencies = new long[MAX_SAMPLES];
+  private final long[] completionTimes = new long[MAX_SAMPLES];
+  private int nextSample;
+  private int numSamples;
+  private long cachedP99;
+  private long nextP99Refresh;
+
+  /**
+   * @param workQueue queue of requests waiting for a worker thread, or {@code
+   *     null} to count requests in flight instead
+   * @param queueCapacity capacity of {@code workQueue}, or the number of
+   *     requests the server runs at once if {@code workQueue} is {@code null}
+   * @param reservedCapacity portion of {@code queueCapacity} reserved for
+   *     trusted clients
+   * @param maxP99LatencyMillis latency above which untrusted requests are
+   *     rejected, or {@code 0} to not consider latency
+   * @param retryAfterSeconds value of the {@code Retry-After} header
+   * @param journal journal to record rejected requests to
+   */
+  public LoadShedder(Collection<?> workQueue, int queueCapacity,
+      int reservedCapacity, long maxP99LatencyMillis, int retryAfterSeconds,
+      Journal journal) {
+    this(workQueue, queueCapacity, reservedCapacity, maxP99LatencyMillis,
+        retryAfterSeconds, journal, new SystemTimeProvider());
+  }
+
+  LoadShedder(Collection<?> workQueue, int queueCapacity,
+      int reservedCapacity, long maxP99LatencyMillis, int retryAfterSeconds,
+      Journal journal, TimeProvider timeProvider) {
+    if (journal == null || timeProvider == null) {
+      throw new NullPointerException();
+    }
+    if (reservedCapacity < 0 || reservedCapacity > queueCapacity
+        || maxP99LatencyMillis < 0 || retryAfterSeconds < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.workQueue = workQueue;
+    this.untrustedQueueLimit = queueCapacity - reservedCapacity;
+    this.maxP99LatencyMillis = maxP99LatencyMillis;
+    this.retryAfterSeconds = retryAfterSeconds;
+    this.journal = journal;
+    this.timeProvider = timeProvider;
+  }
+
+  /**
+   * Returns whether a request should be rejected. Full queues are already
+   * handled by {@link AbortImmediatelyFilter}, so trusted requests are never
+   * rejected here.
+   */
+  public boolean shouldShed(boolean trusted) {
+    if (trusted) {
+      return false;
+    }
+    if (workQueue != null) {
+      if (workQueue.size() >= untrustedQueueLimit) {
+        log.log(Level.FINE, "Shedding untrusted request: queue depth {0}",
+            workQueue.size());
+        return true;
+      }
+    } else if (inFlight.get() >= untrustedQueueLimit) {
+      log.log(Level.FINE, "Shedding untrusted request: {0} requests in flight",
+          inFlight.get());
+      return true;
+    }
+    if (maxP99LatencyMillis > 0) {
+      long p99 = getP99LatencyMillis();
+      if (p99 > maxP99LatencyMillis) {
+        log.log(Level.FINE, "Shedding untrusted request: p99 latency {0} ms",
+            p99);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Responds with {@code 503} and records the rejection in the journal.
+   */
+  public void shed(HttpExchange ex) throws IOException {
+    journal.recordRequestShed();
+    respondUnavailable(ex, retryAfterSeconds);
+  }
+
+  /** Records that an admitted request is being processed. */
+  public void requestStarted() {
+    inFlight.incrementAndGet();
+  }
+
+  /**
+   * Records that a request passed to {@link #requestStarted} completed after
+   * {@code durationMillis}.
+   */
+  public void requestFinished(long durationMillis) {
+    inFlight.decrementAndGet();
+    recordLatency(durationMillis);
+  }
+
+  /** Records the duration of a completed request. */
+  public synchronized void recordLatency(long durationMillis) {
+    latencies[nextSample] = durationMillis;
+    completionTimes[nextSample] = timeProvider.currentTimeMillis();
+    nextSample = (nextSample + 1) % MAX_SAMPLES;
+    if (numSamples < MAX_SAMPLES) {
+      numSamples++;
+    }
+  }
+
+  /**
+   * Returns the 99th percentile latency of recent requests, or {@code 0} if
+   * there have not been any recent requests.
+   */
+  synchronized long getP99LatencyMillis() {
+    long now = timeProvider.currentTimeMillis();
+    if (now < nextP99Refresh) {
+      return cachedP99;
+    }
+    long[] recent = new long[numSamples];
+    int count = 0;
+    for (int i = 0; i < numSamples; i++) {
+      if (now - completionTimes[i] <= SAMPLE_WINDOW_MILLIS) {
+        recent[count++] = latencies[i];
+      }
+    }
+    long p99 = 0;
+    if (count > 0) {
+      Arrays.sort(recent, 0, count);
+      // Nearest-rank method.
+      int rank = (int) Math.ceil(0.99 * count);
+      p99 = recent[rank - 1];
+    }
+    cachedP99 = p99;
+    nextP99Refresh = now + PERCENTILE_REFRESH_MILLIS;
+    return p99;
+  }
+
+  /**
+   * Responds with {@code 503 Service Unavailable}, suggesting the client retry
+   * after {@code retryAfterSeconds}.
+   */
+  static void respondUnavailable(HttpExchange ex, int retryAfterSeconds)
+      throws IOException {
+    ex.getResponseHeaders().set("Retry-After", "" + retryAfterSeconds);
+    HttpExchanges.cannedRespond(ex, HttpURLConnection.HTTP_UNAVAILABLE,
+        Translation.HTTP_SERVICE_UNAVAILABLE);
+  }
+}
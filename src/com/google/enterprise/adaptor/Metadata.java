@@ -17,13 +17,14 @@ package com.google.enterprise.adaptor;
 import static java.util.AbstractMap.SimpleImmutableEntry;
 import static java.util.Map.Entry;
 
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Allows storing multiple metadata values to a single key.
@@ -34,26 +35,64 @@ import java.util.TreeSet;
  * This class is mutable and not thread-safe.
  */
 public class Metadata implements Iterable<Entry<String, String>> {
-  private Map<String, Set<String>> mappings 
-      = new TreeMap<String, Set<String>>();
+  private static final String[] EMPTY = new String[0];
+  /** Number of pairs to make room for when first adding. */
+  private static final int INITIAL_CAPACITY = 8;
+  /** Bound on the number of distinct keys shared by all instances. */
+  private static final int MAX_INTERNED_KEYS = 10000;
+  /**
+   * Keys seen by any instance, so that instances share key strings instead of
+   * each holding their own copy of commonly used keys.
+   */
+  private static final ConcurrentMap<String, String> internedKeys
+      = new ConcurrentHashMap<String, String>();
+
+  /**
+   * The key-value pairs. Kept separate from the instance so that it can be
+   * shared with unmodifiable views.
+   */
+  private Entries entries = new Entries();
+  /** Whether changes since {@link #beginJournal} are being recorded. */
+  private boolean journaling;
+  /** Pairs as they were when the journal began. */
+  private String[] journalPairs;
+  private int journalSize;
+
+  /**
+   * Pairs stored in a single array, sorted first by key and then by value,
+   * which is considerably smaller than a map of sets for the typical few
+   * dozen pairs.
+   */
+  private static class Entries {
+    /** Each key followed by its value. Only the first 2 * size are used. */
+    String[] pairs = EMPTY;
+    /** Number of pairs. */
+    int size;
+    /** Whether pairs is referenced by a journal and must be copied first. */
+    boolean shared;
+  }
 
   /** Create empty instance. */
   public Metadata() {
   }
 
   /**
-   * Duplicate. 
-   * @param m all key value pairs that this instance should represent 
+   * Duplicate.
+   * @param m all key value pairs that this instance should represent
    */
   public Metadata(Iterable<Entry<String, String>> m) {
+    if (m instanceof Metadata) {
+      copyFrom((Metadata) m);
+      return;
+    }
     for (Entry<String, String> e : m) {
       add(e.getKey(), e.getValue());
-    }    
+    }
   }
 
   /**
    * Make value be only value associated with key.
-   * @param k key 
+   * @param k key
    * @param v value
    */
   public void set(String k, String v) {
@@ -63,9 +102,7 @@ public class Metadata implements Iterable<Entry<String, String>> {
     if (null == v) {
       throw new NullPointerException();
     }
-    TreeSet<String> single = new TreeSet<String>();
-    single.add(v);
-    mappings.put(k, single);
+    replaceValues(k, new String[] {v}, 1);
   }
 
   /** Throws NullPointerException if a null is found. */
@@ -79,8 +116,8 @@ public class Metadata implements Iterable<Entry<String, String>> {
     }
   }
 
-  /** 
-   * Make copy of v be the values associated with key. 
+  /**
+   * Make copy of v be the values associated with key.
    * @param k key
    * @param v set of values of which none are null
    */
@@ -92,16 +129,20 @@ public class Metadata implements Iterable<Entry<String, String>> {
       throw new NullPointerException();
     }
     assureNoNulls(v);
-    if (v.isEmpty()) {
-      mappings.remove(k);
-    } else {
-      v = new TreeSet<String>(v);
-      mappings.put(k, v);
+    String[] values = v.toArray(new String[v.size()]);
+    // The set may not use natural ordering, or may even contain duplicates.
+    Arrays.sort(values);
+    int count = 0;
+    for (int i = 0; i < values.length; i++) {
+      if (count == 0 || !values[i].equals(values[count - 1])) {
+        values[count++] = values[i];
+      }
     }
+    replaceValues(k, values, count);
   }
 
   /**
-   * Increases values mapped to k with v. 
+   * Increases values mapped to k with v.
    * @param k key
    * @param v value that is also to be mapped from k
    */
@@ -112,61 +153,76 @@ public class Metadata implements Iterable<Entry<String, String>> {
     if (null == v) {
       throw new NullPointerException();
     }
-    Set<String> found = mappings.get(k);
-    if (null == found) {
-      set(k, v);
-    } else {
-      found.add(v);
+    int i = findPair(k, v);
+    if (i >= 0) {
+      return;
     }
+    i = -(i + 1);
+    k = sharedKey(k, i);
+    prepareWrite(1);
+    String[] pairs = entries.pairs;
+    System.arraycopy(pairs, 2 * i, pairs, 2 * i + 2,
+        2 * (entries.size - i));
+    pairs[2 * i] = k;
+    pairs[2 * i + 1] = v;
+    entries.size++;
   }
 
   /**
-   * Replaces entries inside of this metadata with provided ones. 
-   * @param it all key value pairs that this instance should represent 
+   * Replaces entries inside of this metadata with provided ones.
+   * @param it all key value pairs that this instance should represent
    */
   public void set(Iterable<Entry<String, String>> it) {
-    mappings.clear();
+    if (it instanceof Metadata && it != this) {
+      copyFrom((Metadata) it);
+      return;
+    }
+    removeRange(0, entries.size);
     for (Entry<String, String> e : it) {
       add(e.getKey(), e.getValue());
-    }    
+    }
   }
 
   /**
-   * Gives unmodifiable reference to inserted values for key, empty if none. 
+   * Gives unmodifiable reference to inserted values for key, empty if none.
    * @param key to be looked up
    * @return all values under provided key
    */
   public Set<String> getAllValues(String key) {
-    Set<String> found = mappings.get(key);
-    if (null == found) {
-      found = Collections.emptySet(); 
+    int from = lowerBound(key);
+    int to = upperBound(key, from);
+    if (from == to) {
+      return Collections.emptySet();
     }
-    return Collections.unmodifiableSet(found);
+    if (to - from == 1) {
+      return Collections.singleton(entries.pairs[2 * from + 1]);
+    }
+    String[] values = new String[to - from];
+    for (int i = from; i < to; i++) {
+      values[i - from] = entries.pairs[2 * i + 1];
+    }
+    return new ValueSet(values);
   }
 
-  /** 
-   * One of the inserted values, or null if none. 
+  /**
+   * One of the inserted values, or null if none.
    * @param key to be looked up
    * @return String one of the values under provided key
    */
   public String getOneValue(String key) {
-    Set<String> found = mappings.get(key);
-    String first = null;
-    if (null != found) {
-      if (found.isEmpty()) {
-        throw new AssertionError();
-      }
-      first = found.iterator().next(); 
+    int i = lowerBound(key);
+    if (i < entries.size && entries.pairs[2 * i].equals(key)) {
+      return entries.pairs[2 * i + 1];
     }
-    return first;
+    return null;
   }
 
   /**
-   * Get modifiable set of all keys with at least one value. 
+   * Get modifiable set of all keys with at least one value.
    * @return all keys in this instance
    */
   public Set<String> getKeys() {
-    return mappings.keySet();
+    return new KeySet();
   }
 
   /**
@@ -182,26 +238,53 @@ public class Metadata implements Iterable<Entry<String, String>> {
     return new EntriesIterator();
   }
 
+  /**
+   * Starts recording changes, so that they can be undone by {@link
+   * #rollbackJournal}. The pairs are only copied if they are changed.
+   *
+   * @throws IllegalStateException if already journaling
+   */
+  void beginJournal() {
+    if (journaling) {
+      throw new IllegalStateException("Already journaling");
+    }
+    journaling = true;
+    journalPairs = entries.pairs;
+    journalSize = entries.size;
+    entries.shared = true;
+  }
+
+  /** Keeps the changes made since {@link #beginJournal}. */
+  void commitJournal() {
+    if (!journaling) {
+      throw new IllegalStateException("Not journaling");
+    }
+    endJournal();
+  }
+
+  /** Undoes the changes made since {@link #beginJournal}. */
+  void rollbackJournal() {
+    if (!journaling) {
+      throw new IllegalStateException("Not journaling");
+    }
+    entries.pairs = journalPairs;
+    entries.size = journalSize;
+    endJournal();
+  }
+
+  private void endJournal() {
+    journaling = false;
+    journalPairs = null;
+    entries.shared = false;
+  }
+
   /** Loops through keys and for each key all values. */
   private class EntriesIterator implements Iterator<Entry<String, String>> {
-    private Iterator<Entry<String, Set<String>>> byKey
-        = mappings.entrySet().iterator();
-    private String currentKey;
-    private Iterator<String> currentValues
-        = Collections.<String>emptyList().iterator();
+    private int next;
 
     @Override
     public boolean hasNext() {
-      if (currentValues.hasNext()) {
-        return true;
-      }
-      if (!byKey.hasNext()) {
-        return false;
-      }
-      Entry<String, Set<String>> currentEntry = byKey.next();
-      currentKey = currentEntry.getKey();
-      currentValues = currentEntry.getValue().iterator();
-      return hasNext();
+      return next < entries.size;
     }
 
     @Override
@@ -209,7 +292,8 @@ public class Metadata implements Iterable<Entry<String, String>> {
       if (!hasNext()) {
         throw new NoSuchElementException();
       }
-      String k = currentKey, v = currentValues.next();
+      String k = entries.pairs[2 * next], v = entries.pairs[2 * next + 1];
+      next++;
       return new SimpleImmutableEntry<String, String>(k, v);
     }
 
@@ -220,6 +304,109 @@ public class Metadata implements Iterable<Entry<String, String>> {
     }
   }
 
+  /** Keys of the pairs, removing pairs when their key is removed. */
+  private class KeySet extends AbstractSet<String> {
+    @Override
+    public Iterator<String> iterator() {
+      return new Iterator<String>() {
+        /** Index of the first pair of the next key. */
+        private int next;
+        /** Index of the first pair of the last returned key, or -1. */
+        private int current = -1;
+
+        @Override
+        public boolean hasNext() {
+          return next < entries.size;
+        }
+
+        @Override
+        public String next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          current = next;
+          String key = entries.pairs[2 * current];
+          next = upperBound(key, current);
+          return key;
+        }
+
+        @Override
+        public void remove() {
+          if (current == -1) {
+            throw new IllegalStateException();
+          }
+          removeRange(current, next);
+          next = current;
+          current = -1;
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      int count = 0;
+      int i = 0;
+      while (i < entries.size) {
+        i = upperBound(entries.pairs[2 * i], i);
+        count++;
+      }
+      return count;
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return entries.size == 0;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      String key = (String) o;
+      int i = lowerBound(key);
+      return i < entries.size && entries.pairs[2 * i].equals(key);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      String key = (String) o;
+      int from = lowerBound(key);
+      int to = upperBound(key, from);
+      if (from == to) {
+        return false;
+      }
+      removeRange(from, to);
+      return true;
+    }
+
+    @Override
+    public void clear() {
+      removeRange(0, entries.size);
+    }
+  }
+
+  /** Unmodifiable set of sorted, distinct values. */
+  private static class ValueSet extends AbstractSet<String> {
+    private final String[] values;
+
+    ValueSet(String[] values) {
+      this.values = values;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      return Collections.unmodifiableList(Arrays.asList(values)).iterator();
+    }
+
+    @Override
+    public int size() {
+      return values.length;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return Arrays.binarySearch(values, (String) o) >= 0;
+    }
+  }
+
   /** True if exactly the same key-values are represented. */
   @Override
   public boolean equals(Object o) {
@@ -229,20 +416,41 @@ public class Metadata implements Iterable<Entry<String, String>> {
     if (this == o) {
       return true;
     }
-    Metadata other = (Metadata) o;
-    return mappings.equals(other.mappings);
+    Entries other = ((Metadata) o).entries;
+    if (entries.size != other.size) {
+      return false;
+    }
+    for (int i = 0; i < 2 * entries.size; i++) {
+      if (!entries.pairs[i].equals(other.pairs[i])) {
+        return false;
+      }
+    }
+    return true;
   }
 
+  /**
+   * Same as the hash code of a map from each key to the set of its values.
+   */
   @Override
   public int hashCode() {
-    return mappings.hashCode();
+    int hash = 0;
+    int i = 0;
+    while (i < entries.size) {
+      String key = entries.pairs[2 * i];
+      int valuesHash = 0;
+      for (; i < entries.size && entries.pairs[2 * i].equals(key); i++) {
+        valuesHash += entries.pairs[2 * i + 1].hashCode();
+      }
+      hash += key.hashCode() ^ valuesHash;
+    }
+    return hash;
   }
 
   /**
    * @return boolean {@code true} when instance has 0 entries
    */
   public boolean isEmpty() {
-    return mappings.isEmpty();
+    return entries.size == 0;
   }
 
   /** Contains every key and value pair; useful for debugging. */
@@ -281,7 +489,7 @@ public class Metadata implements Iterable<Entry<String, String>> {
     public void set(Iterable<Entry<String, String>> it) {
       throw new UnsupportedOperationException();
     }
-    
+
     @Override
     public Set<String> getKeys() {
       return Collections.unmodifiableSet(super.getKeys());
@@ -289,14 +497,164 @@ public class Metadata implements Iterable<Entry<String, String>> {
   };
 
   /**
-   * Get a reference to an unmodifiable view of this object. 
+   * Get a reference to an unmodifiable view of this object.
    * @return Metadata copy that cannot be changed
    */
   public Metadata unmodifiableView() {
     Metadata unmodifiable = new ReadableMetadata();
-    // Extra precaution against mappings use, but not against moding
-    // sets that are values inside it.
-    unmodifiable.mappings = Collections.unmodifiableMap(this.mappings); 
+    // Shares the pairs, so that later changes to this instance are visible.
+    unmodifiable.entries = this.entries;
     return unmodifiable;
   }
+
+  /** Replaces the contents of this instance with those of {@code other}. */
+  private void copyFrom(Metadata other) {
+    int size = other.entries.size;
+    String[] pairs = new String[Math.max(2 * size, 2 * INITIAL_CAPACITY)];
+    System.arraycopy(other.entries.pairs, 0, pairs, 0, 2 * size);
+    // The previous pairs may be referenced by the journal, so are not reused.
+    entries.pairs = pairs;
+    entries.size = size;
+    entries.shared = false;
+  }
+
+  /** Replaces the values of {@code k} with the first {@code n} values. */
+  private void replaceValues(String k, String[] values, int n) {
+    int from = lowerBound(k);
+    int to = upperBound(k, from);
+    if (from == to && n == 0) {
+      return;
+    }
+    // Reuse the stored key instance, if any.
+    k = from != to ? entries.pairs[2 * from] : sharedKey(k, from);
+    int delta = n - (to - from);
+    prepareWrite(Math.max(delta, 0));
+    String[] pairs = entries.pairs;
+    System.arraycopy(pairs, 2 * to, pairs, 2 * (to + delta),
+        2 * (entries.size - to));
+    for (int i = 0; i < n; i++) {
+      pairs[2 * (from + i)] = k;
+      pairs[2 * (from + i) + 1] = values[i];
+    }
+    entries.size += delta;
+    if (delta < 0) {
+      Arrays.fill(pairs, 2 * entries.size, 2 * (entries.size - delta), null);
+    }
+  }
+
+  /** Removes pairs {@code from} (inclusive) to {@code to} (exclusive). */
+  private void removeRange(int from, int to) {
+    if (from == to) {
+      return;
+    }
+    prepareWrite(0);
+    String[] pairs = entries.pairs;
+    System.arraycopy(pairs, 2 * to, pairs, 2 * from,
+        2 * (entries.size - to));
+    int newSize = entries.size - (to - from);
+    Arrays.fill(pairs, 2 * newSize, 2 * entries.size, null);
+    entries.size = newSize;
+  }
+
+  /**
+   * Makes room for {@code extra} more pairs, copying the pairs if they are
+   * referenced by the journal.
+   */
+  private void prepareWrite(int extra) {
+    int needed = 2 * (entries.size + extra);
+    if (!entries.shared && needed <= entries.pairs.length) {
+      return;
+    }
+    int capacity = Math.max(entries.pairs.length, 2 * INITIAL_CAPACITY);
+    while (capacity < needed) {
+      capacity += capacity / 2;
+    }
+    String[] pairs = new String[capacity];
+    System.arraycopy(entries.pairs, 0, pairs, 0, 2 * entries.size);
+    entries.pairs = pairs;
+    entries.shared = false;
+  }
+
+  /**
+   * Returns the key instance to store for a pair inserted at index {@code i}:
+   * that of a neighbouring pair with the same key, or otherwise an interned
+   * instance.
+   */
+  private String sharedKey(String k, int i) {
+    String[] pairs = entries.pairs;
+    if (i > 0 && pairs[2 * (i - 1)].equals(k)) {
+      return pairs[2 * (i - 1)];
+    }
+    if (i < entries.size && pairs[2 * i].equals(k)) {
+      return pairs[2 * i];
+    }
+    String interned = internedKeys.get(k);
+    if (interned != null) {
+      return interned;
+    }
+    if (internedKeys.size() < MAX_INTERNED_KEYS) {
+      interned = internedKeys.putIfAbsent(k, k);
+      if (interned != null) {
+        return interned;
+      }
+    }
+    return k;
+  }
+
+  /** Returns the index of the first pair whose key is not less than k. */
+  private int lowerBound(String k) {
+    int low = 0;
+    int high = entries.size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (entries.pairs[2 * mid].compareTo(k) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Returns the index of the first pair at or after {@code from} whose key is
+   * greater than {@code k}.
+   */
+  private int upperBound(String k, int from) {
+    int low = from;
+    int high = entries.size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (entries.pairs[2 * mid].compareTo(k) <= 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Returns the index of the pair, or {@code -(insertion point) - 1} if it is
+   * not present.
+   */
+  private int findPair(String k, String v) {
+    int low = 0;
+    int high = entries.size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = entries.pairs[2 * mid].compareTo(k);
+      if (cmp == 0) {
+        cmp = entries.pairs[2 * mid + 1].compareTo(v);
+      }
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
 }
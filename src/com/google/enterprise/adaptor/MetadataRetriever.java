@@ -0,0 +1,46 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.io.IOException;
+
+/**
+ * Interface for adaptors that can provide a document's metadata, ACLs and
+ * other headers without reading its content. When a client only wants the
+ * headers of a document, such as for an HTTP {@code HEAD} request, this is
+ * called instead of {@link Adaptor#getDocContent}.
+ *
+ * <p>Instances of this interface are typically registered with {@link
+ * AdaptorContext#setMetadataRetriever}.
+ */
+public interface MetadataRetriever {
+  /**
+   * Provides the metadata, ACLs and other headers of the document specified by
+   * {@code request}, in the same way as {@link Adaptor#getDocContent}. The
+   * same {@link Response} methods may be used to describe the document,
+   * including {@link Response#respondNotFound}, {@link
+   * Response#respondNotModified} and {@link Response#respondNoContent}. After
+   * setting the headers, the implementation should return without calling
+   * {@link Response#getOutputStream}; if it is called anyway, anything written
+   * to it is discarded.
+   *
+   * @param request info about document being requested
+   * @param response the headers to provide
+   * @throws IOException on failure
+   * @throws InterruptedException if interrupted
+   */
+  public void getDocMetadata(Request request, Response response)
+      throws IOException, InterruptedException;
+}
@@ -53,28 +53,42 @@ class MetadataTransformPipeline {
   }
 
   /**
-   * Transform {@code metadata}.
+   * Transform {@code metadata}. If a transform throws an exception, {@code
+   * metadata} and {@code params} are left unchanged.
+   *
+   * <p>{@code metadata} is transformed in place while journaling its changes,
+   * so that only the values of keys that transforms change are copied,
+   * instead of all of them.
    */
   public void transform(Metadata metadata, Map<String, String> params) {
     if (transformList.isEmpty()) {
       return;
     }
 
-    Metadata metadataInTransit = new Metadata(metadata);
     Map<String, String> paramsInTransit = Collections.checkedMap(
         new HashMap<String, String>(params), String.class, String.class);
 
-    for (int i = 0; i < transformList.size(); i++) {
-      MetadataTransform transform = transformList.get(i);
-      try {
-        transform.transform(metadataInTransit, paramsInTransit);
-      } catch (RuntimeException e) {
-        throw new RuntimeException(
-            "Exception during transform " + names.get(i), e);
+    metadata.beginJournal();
+    boolean completed = false;
+    try {
+      for (int i = 0; i < transformList.size(); i++) {
+        MetadataTransform transform = transformList.get(i);
+        try {
+          transform.transform(metadata, paramsInTransit);
+        } catch (RuntimeException e) {
+          throw new RuntimeException(
+              "Exception during transform " + names.get(i), e);
+        }
+      }
+      completed = true;
+    } finally {
+      if (completed) {
+        metadata.commitJournal();
+      } else {
+        metadata.rollbackJournal();
       }
     }
 
-    metadata.set(metadataInTransit);
     params.clear();
     params.putAll(paramsInTransit);
   }
@@ -0,0 +1,120 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache for values loaded by a {@link DocIdPrefetcher} and used by
+ * {@link Adaptor#getDocContent}. Values expire a fixed time after they are
+ * added, so that a document is not served from a stale copy if the GSA is slow
+ * to request it, and the least recently used values are evicted once the
+ * cache is full.
+ * Each value is normally used by a single retrieval, so {@link #take} removes
+ * it.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @param <V> type of the prefetched values, such as a repository row
+ */
+public class PrefetchCache<V> {
+  private final Cache<DocId, V> cache;
+
+  /**
+   * @param maxSize maximum number of values kept
+   * @param timeToLive how long a value may be used after it is added
+   * @param unit unit of {@code timeToLive}
+   */
+  public PrefetchCache(long maxSize, long timeToLive, TimeUnit unit) {
+    this(maxSize, timeToLive, unit, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  PrefetchCache(long maxSize, long timeToLive, TimeUnit unit, Ticker ticker) {
+    if (maxSize < 0 || timeToLive < 0) {
+      throw new IllegalArgumentException(
+          "maxSize and timeToLive must not be negative");
+    }
+    cache = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(timeToLive, unit)
+        .ticker(ticker)
+        .build();
+  }
+
+  /**
+   * Adds the prefetched value of a document, replacing any previous value.
+   *
+   * @param id the document
+   * @param value its prefetched value
+   */
+  public void put(DocId id, V value) {
+    cache.put(id, value);
+  }
+
+  /**
+   * Adds the prefetched values of several documents, as loaded by a single
+   * repository call.
+   *
+   * @param values prefetched value for each document
+   */
+  public void putAll(Map<DocId, ? extends V> values) {
+    for (Map.Entry<DocId, ? extends V> me : values.entrySet()) {
+      cache.put(me.getKey(), me.getValue());
+    }
+  }
+
+  /**
+   * Removes and returns the prefetched value of a document.
+   *
+   * @param id the document
+   * @return the prefetched value, or {@code null} if there is none or it
+   *     expired
+   */
+  public V take(DocId id) {
+    V value = cache.getIfPresent(id);
+    // Only one of concurrent retrievals of the document gets the value.
+    if (value == null || !cache.asMap().remove(id, value)) {
+      return null;
+    }
+    return value;
+  }
+
+  /**
+   * Removes the prefetched value of a document, such as when the document is
+   * known to have changed.
+   *
+   * @param id the document
+   */
+  public void invalidate(DocId id) {
+    cache.invalidate(id);
+  }
+
+  /**
+   * Returns the number of values in the cache, which may include values that
+   * have expired but not yet been removed.
+   *
+   * @return approximate number of values
+   */
+  public long size() {
+    return cache.size();
+  }
+}
@@ -0,0 +1,123 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Passes batches of {@code DocId}s that were sent to the GSA to a {@link
+ * DocIdPrefetcher}, one batch at a time, on an executor. If the prefetcher
+ * falls behind, at most {@code maxPendingBatches} batches wait and newer
+ * batches are dropped, since prefetching is only an optimization. This class
+ * is thread-safe.
+ */
+class PrefetchHinter implements DocIdSender.SentItemsListener {
+  private static final Logger log
+      = Logger.getLogger(PrefetchHinter.class.getName());
+
+  private final DocIdPrefetcher prefetcher;
+  private final Executor executor;
+  private final BlockingQueue<List<DocId>> pending;
+  /** Whether a task is running, or about to run, {@link #drain}. */
+  private final AtomicBoolean draining = new AtomicBoolean();
+  private final Runnable drainTask = new Runnable() {
+    @Override
+    public void run() {
+      drain();
+    }
+  };
+
+  public PrefetchHinter(DocIdPrefetcher prefetcher, Executor executor,
+      int maxPendingBatches) {
+    if (prefetcher == null || executor == null) {
+      throw new NullPointerException();
+    }
+    this.prefetcher = prefetcher;
+    this.executor = executor;
+    this.pending = new ArrayBlockingQueue<List<DocId>>(maxPendingBatches);
+  }
+
+  @Override
+  public void itemsNotSent(List<? extends DocIdSender.Item> items) {}
+
+  /**
+   * Queues the documents of {@code items} that were sent to the GSA for
+   * prefetching. Deletions and items other than {@link DocIdPusher.Record}
+   * are ignored.
+   */
+  @Override
+  public void itemsSent(List<? extends DocIdSender.Item> items) {
+    List<DocId> ids = new ArrayList<DocId>(items.size());
+    for (DocIdSender.Item item : items) {
+      if (!(item instanceof DocIdPusher.Record)) {
+        continue;
+      }
+      DocIdPusher.Record record = (DocIdPusher.Record) item;
+      if (!record.isToBeDeleted()) {
+        ids.add(record.getDocId());
+      }
+    }
+    if (ids.isEmpty()) {
+      return;
+    }
+    if (!pending.offer(ids)) {
+      log.log(Level.FINE, "Prefetcher is behind; dropped {0} DocIds",
+          ids.size());
+      return;
+    }
+    scheduleDrain();
+  }
+
+  private void scheduleDrain() {
+    if (draining.compareAndSet(false, true)) {
+      try {
+        executor.execute(drainTask);
+      } catch (RuntimeException ex) {
+        draining.set(false);
+        log.log(Level.FINE, "Could not schedule prefetch", ex);
+      }
+    }
+  }
+
+  private void drain() {
+    try {
+      List<DocId> ids;
+      while ((ids = pending.poll()) != null) {
+        try {
+          prefetcher.prefetch(ids);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          return;
+        } catch (Exception ex) {
+          log.log(Level.WARNING, "Exception during prefetch", ex);
+        }
+      }
+    } finally {
+      draining.set(false);
+    }
+    // A batch may have been queued after the last poll(), but before draining
+    // was cleared.
+    if (!pending.isEmpty()) {
+      scheduleDrain();
+    }
+  }
+}
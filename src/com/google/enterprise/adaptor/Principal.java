@@ -24,6 +24,10 @@ public abstract class Principal implements Comparable<Principal> {
 
   private final String name;
   private final String namespace;
+  /** Cached hash code, or {@code 0} if not yet computed. */
+  private int hashCode;
+  /** Cached result of {@link #parse}. */
+  private volatile ParsedPrincipal parsed;
 
   /** The name is trimmed because GSA trims principal names.
    *  An empty name results in IllegalArgumentException.  */
@@ -72,7 +76,12 @@ public abstract class Principal implements Comparable<Principal> {
 
   @Override
   public int hashCode() {
-    return Arrays.hashCode(new Object[]{ isUser(), name, namespace });
+    int h = hashCode;
+    if (h == 0) {
+      h = Arrays.hashCode(new Object[]{ isUser(), name, namespace });
+      hashCode = h;
+    }
+    return h;
   }
 
   @Override
@@ -101,6 +110,16 @@ public abstract class Principal implements Comparable<Principal> {
   }
 
   ParsedPrincipal parse() {
+    // ParsedPrincipal is immutable, so it can be shared.
+    ParsedPrincipal p = parsed;
+    if (p == null) {
+      p = parseName();
+      parsed = p;
+    }
+    return p;
+  }
+
+  private ParsedPrincipal parseName() {
     for (int i = 0; i < name.length(); i++) {
       char c = name.charAt(i);
       switch (c) {
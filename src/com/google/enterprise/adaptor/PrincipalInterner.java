@@ -0,0 +1,73 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Pool of {@link Principal}s that lets equal principals share one instance.
+ * Adaptors often create many ACLs that repeat the same few principals, so
+ * sharing instances, along with their cached hash codes and parsed forms,
+ * saves heap. Principals are held weakly, so the pool does not keep unused
+ * principals alive.
+ *
+ * <p>Interning is disabled by default; see {@code adaptor.internPrincipals}
+ * in {@link Config}. The pool is shared by the whole JVM, so once any adaptor
+ * enables interning it stays enabled. That is safe for adaptors that did not
+ * ask for it, since interned principals are equal to the ones they replace.
+ */
+final class PrincipalInterner {
+  private static final Interner<Principal> interner
+      = Interners.newWeakInterner();
+  private static volatile boolean enabled;
+
+  // Prevent instantiation.
+  private PrincipalInterner() {}
+
+  /**
+   * Returns the pooled instance equal to {@code principal}, adding {@code
+   * principal} to the pool if there is none. Returns {@code principal} itself
+   * when interning is disabled.
+   */
+  static <P extends Principal> P intern(P principal) {
+    if (!enabled || principal == null) {
+      return principal;
+    }
+    // Equal principals are always of the same class.
+    @SuppressWarnings("unchecked")
+    P interned = (P) interner.intern(principal);
+    return interned;
+  }
+
+  static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Enables interning. It is never disabled again, so that one adaptor in a
+   * JVM stopping, or setting up without interning, does not turn it off for
+   * another.
+   */
+  static void enable() {
+    enabled = true;
+  }
+
+  @VisibleForTesting
+  static void resetForTesting() {
+    enabled = false;
+  }
+}
@@ -0,0 +1,356 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import com.google.enterprise.adaptor.secmgr.saml.OpenSamlUtil;
+
+import org.joda.time.DateTime;
+import org.opensaml.Configuration;
+import org.opensaml.common.xml.SAMLConstants;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming codec for the SOAP-wrapped SAML authorization queries the GSA
+ * sends and the responses to them. It handles only those specific shapes,
+ * but avoids building and marshalling OpenSAML objects and DOM trees. The
+ * responses it writes are identical to those produced with OpenSAML, other
+ * than the randomly-generated IDs.
+ */
+final class SamlAuthzCodec {
+  private static final String GOOGLE_NS = OpenSamlUtil.GOOGLE_NS_URI;
+  private static final String ASSERTION_NS = SAMLConstants.SAML20_NS;
+  private static final String PROTOCOL_NS = SAMLConstants.SAML20P_NS;
+  private static final String SOAP_NS = SAMLConstants.SOAP11ENV_NS;
+
+  private static final XMLInputFactory inputFactory;
+  static {
+    inputFactory = XMLInputFactory.newInstance();
+    inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    // Refuse DTDs, which are never valid in SOAP messages.
+    inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    inputFactory.setProperty(
+        XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+
+  // Prevent instantiation.
+  private SamlAuthzCodec() {}
+
+  /**
+   * Parses the authorization queries in a SOAP message.
+   *
+   * @throws XMLStreamException if the message is malformed or is not a SOAP
+   *     message containing only authorization queries
+   */
+  static List<Query> decode(InputStream in) throws XMLStreamException {
+    XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+    try {
+      reader.nextTag();
+      requireElement(reader, SOAP_NS, "Envelope");
+      List<Query> queries = null;
+      while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+        if (isElement(reader, SOAP_NS, "Header")) {
+          checkHeaders(reader);
+        } else if (isElement(reader, SOAP_NS, "Body")) {
+          queries = decodeBody(reader);
+        } else {
+          skipElement(reader);
+        }
+      }
+      if (queries == null) {
+        throw new XMLStreamException("No SOAP body");
+      }
+      return queries;
+    } finally {
+      reader.close();
+    }
+  }
+
+  /** Fails if any header must be understood, since none are. */
+  private static void checkHeaders(XMLStreamReader reader)
+      throws XMLStreamException {
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if ("1".equals(reader.getAttributeValue(SOAP_NS, "mustUnderstand"))) {
+        throw new XMLStreamException("SOAP header requires understanding: "
+            + reader.getName());
+      }
+      skipElement(reader);
+    }
+  }
+
+  private static List<Query> decodeBody(XMLStreamReader reader)
+      throws XMLStreamException {
+    List<Query> queries = new ArrayList<Query>();
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      requireElement(reader, PROTOCOL_NS, "AuthzDecisionQuery");
+      queries.add(decodeQuery(reader));
+    }
+    if (queries.isEmpty()) {
+      throw new XMLStreamException("SOAP body contains no queries");
+    }
+    return Collections.unmodifiableList(queries);
+  }
+
+  private static Query decodeQuery(XMLStreamReader reader)
+      throws XMLStreamException {
+    String id = reader.getAttributeValue(null, "ID");
+    String resource = reader.getAttributeValue(null, "Resource");
+    String subject = null;
+    Credential credential = null;
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (isElement(reader, ASSERTION_NS, "Subject")) {
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+          if (isElement(reader, ASSERTION_NS, "NameID")) {
+            subject = reader.getElementText();
+          } else {
+            skipElement(reader);
+          }
+        }
+      } else if (isElement(reader, PROTOCOL_NS, "Extensions")) {
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+          if (credential == null
+              && isElement(reader, GOOGLE_NS, "SecmgrCredential")) {
+            credential = decodeCredential(reader);
+          } else {
+            skipElement(reader);
+          }
+        }
+      } else {
+        skipElement(reader);
+      }
+    }
+    return new Query(id, resource, subject, credential);
+  }
+
+  private static Credential decodeCredential(XMLStreamReader reader)
+      throws XMLStreamException {
+    String name = requireAttribute(reader, "name");
+    String namespace = requireAttribute(reader, "namespace");
+    String domain = reader.getAttributeValue(null, "domain");
+    String password = reader.getAttributeValue(null, "password");
+    List<Credential> groups = new ArrayList<Credential>();
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (isElement(reader, GOOGLE_NS, "Group")) {
+        groups.add(new Credential(requireAttribute(reader, "name"),
+            requireAttribute(reader, "namespace"),
+            reader.getAttributeValue(null, "domain"), null,
+            Collections.<Credential>emptyList()));
+      }
+      skipElement(reader);
+    }
+    return new Credential(name, namespace, domain, password,
+        Collections.unmodifiableList(groups));
+  }
+
+  private static boolean isElement(XMLStreamReader reader, String ns,
+      String localName) {
+    return ns.equals(reader.getNamespaceURI())
+        && localName.equals(reader.getLocalName());
+  }
+
+  private static void requireElement(XMLStreamReader reader, String ns,
+      String localName) throws XMLStreamException {
+    if (!isElement(reader, ns, localName)) {
+      throw new XMLStreamException("Unexpected element " + reader.getName()
+          + ", expected {" + ns + "}" + localName, reader.getLocation());
+    }
+  }
+
+  private static String requireAttribute(XMLStreamReader reader,
+      String localName) throws XMLStreamException {
+    String value = reader.getAttributeValue(null, localName);
+    if (value == null) {
+      throw new XMLStreamException("Missing attribute " + localName + " of "
+          + reader.getName(), reader.getLocation());
+    }
+    return value;
+  }
+
+  /** Skips to the end of the current element. */
+  private static void skipElement(XMLStreamReader reader)
+      throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+
+  /**
+   * Writes a SOAP message containing a response to each query, in order.
+   *
+   * @param issuer entity ID of the adaptor
+   * @param time issue instant of the responses
+   * @param queries the queries being answered
+   * @param decisions the decision for each query
+   */
+  static void encode(Writer out, String issuer, DateTime time,
+      List<Query> queries, List<AuthzStatus> decisions) throws IOException {
+    if (queries.size() != decisions.size()) {
+      throw new IllegalArgumentException(
+          "queries and decisions must be the same size");
+    }
+    String instant = time.toString(Configuration.getSAMLDateFormatter());
+    out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<soap11:Envelope xmlns:soap11=\"" + SOAP_NS + "\">"
+        + "<soap11:Body>");
+    for (int i = 0; i < queries.size(); i++) {
+      Query query = queries.get(i);
+      out.write("<saml2p:Response ID=\"");
+      out.write(OpenSamlUtil.generateIdentifier());
+      out.write('"');
+      if (query.id != null) {
+        out.write(" InResponseTo=\"");
+        writeEscaped(out, query.id, true);
+        out.write('"');
+      }
+      out.write(" IssueInstant=\"");
+      out.write(instant);
+      out.write("\" Version=\"2.0\" xmlns:saml2p=\"" + PROTOCOL_NS + "\">"
+          + "<saml2:Issuer xmlns:saml2=\"" + ASSERTION_NS + "\">");
+      writeEscaped(out, issuer, false);
+      out.write("</saml2:Issuer>"
+          + "<saml2p:Status><saml2p:StatusCode "
+          + "Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/>"
+          + "</saml2p:Status>"
+          + "<saml2:Assertion ID=\"");
+      out.write(OpenSamlUtil.generateIdentifier());
+      out.write("\" IssueInstant=\"");
+      out.write(instant);
+      out.write("\" Version=\"2.0\" xmlns:saml2=\"" + ASSERTION_NS + "\">"
+          + "<saml2:Issuer>");
+      writeEscaped(out, issuer, false);
+      out.write("</saml2:Issuer><saml2:Subject><saml2:NameID>");
+      writeEscaped(out, query.subject, false);
+      out.write("</saml2:NameID></saml2:Subject>"
+          + "<saml2:AuthzDecisionStatement Decision=\"");
+      out.write(decisionName(decisions.get(i)));
+      out.write("\" Resource=\"");
+      writeEscaped(out, query.resource, true);
+      out.write("\"><saml2:Action "
+          + "Namespace=\"urn:oasis:names:tc:SAML:1.0:action:ghpp\">GET"
+          + "</saml2:Action></saml2:AuthzDecisionStatement>"
+          + "</saml2:Assertion></saml2p:Response>");
+    }
+    out.write("</soap11:Body></soap11:Envelope>");
+  }
+
+  private static String decisionName(AuthzStatus status) {
+    switch (status) {
+      case PERMIT:
+        return "Permit";
+      case DENY:
+        return "Deny";
+      case INDETERMINATE:
+      default:
+        return "Indeterminate";
+    }
+  }
+
+  /** Escapes as the DOM serializer used by OpenSAML does. */
+  private static void writeEscaped(Writer out, String s, boolean attribute)
+      throws IOException {
+    int start = 0;
+    for (int i = 0; i < s.length(); i++) {
+      String replacement;
+      switch (s.charAt(i)) {
+        case '&':
+          replacement = "&amp;";
+          break;
+        case '<':
+          replacement = "&lt;";
+          break;
+        case '>':
+          replacement = attribute ? null : "&gt;";
+          break;
+        case '"':
+          replacement = attribute ? "&quot;" : null;
+          break;
+        case '\r':
+          replacement = "&#13;";
+          break;
+        case '\n':
+          replacement = attribute ? "&#10;" : null;
+          break;
+        case '\t':
+          replacement = attribute ? "&#9;" : null;
+          break;
+        default:
+          replacement = null;
+      }
+      if (replacement != null) {
+        out.write(s, start, i - start);
+        out.write(replacement);
+        start = i + 1;
+      }
+    }
+    out.write(s, start, s.length() - start);
+  }
+
+  /** The parts of an AuthzDecisionQuery needed to answer it. */
+  static final class Query {
+    /** ID of the query, or {@code null}. */
+    final String id;
+    /** Resource whose access is in question, or {@code null}. */
+    final String resource;
+    /** Name of the user, or {@code null}. */
+    final String subject;
+    /** First SecmgrCredential of the query, or {@code null}. */
+    final Credential credential;
+
+    Query(String id, String resource, String subject, Credential credential) {
+      this.id = id;
+      this.resource = resource;
+      this.subject = subject;
+      this.credential = credential;
+    }
+  }
+
+  /** A user or group from a SecmgrCredential. */
+  static final class Credential {
+    final String name;
+    final String namespace;
+    /** Domain of the principal, or {@code null}. */
+    final String domain;
+    /** Password of the user, or {@code null}. */
+    final String password;
+    /** Groups of the user; empty for groups. */
+    final List<Credential> groups;
+
+    Credential(String name, String namespace, String domain, String password,
+        List<Credential> groups) {
+      this.name = name;
+      this.namespace = namespace;
+      this.domain = domain;
+      this.password = password;
+      this.groups = groups;
+    }
+  }
+}
@@ -37,22 +37,38 @@ import org.opensaml.saml2.core.StatusCode;
 import org.opensaml.saml2.core.Subject;
 import org.opensaml.ws.message.decoder.MessageDecodingException;
 import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.ws.transport.http.HTTPTransportUtils;
 import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.security.SecurityException;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.xml.stream.XMLStreamException;
+
 /**
  * Handler for responding to late-binding, SAML batch authorization requests
  * from the GSA.
@@ -65,14 +81,68 @@ class SamlBatchAuthzHandler implements HttpHandler {
   private final SamlMetadata metadata;
   private DocIdDecoder docIdDecoder;
   private final Principal.DomainFormat domainFormat;
+  /**
+   * Executor for evaluating parts of a request, or {@code null} to evaluate
+   * requests in the handling thread.
+   */
+  private final ExecutorService executor;
+  private final int batchSize;
+  private final long timeoutMillis;
+  /** Decision for DocIds not evaluated within {@link #timeoutMillis}. */
+  private final AuthzStatus timeoutDecision;
+  private final Journal journal;
+  /** Whether to use {@link SamlAuthzCodec} instead of OpenSAML objects. */
+  private final boolean streamingCodec;
 
   public SamlBatchAuthzHandler(AuthzAuthority authzAuthority,
       DocIdDecoder docIdDecoder, SamlMetadata samlMetadata,
       Principal.DomainFormat dmfmt) {
+    this(authzAuthority, docIdDecoder, samlMetadata, dmfmt, null, 0, 0,
+        AuthzStatus.INDETERMINATE, null, false);
+  }
+
+  /**
+   * Creates a handler that splits requests into parts of at most {@code
+   * batchSize} DocIds, which are evaluated in parallel using {@code executor}.
+   * DocIds whose part is not evaluated within {@code timeoutMillis} get
+   * {@code timeoutDecision}. The adaptor can find the time remaining with
+   * {@link AuthzDeadline#current}.
+   *
+   * @param batchSize maximum DocIds in each call to {@code authzAuthority},
+   *     or {@code 0} to not split requests
+   * @param timeoutMillis time to wait for decisions, or {@code 0} to wait
+   *     without limit
+   * @param timeoutDecision decision for DocIds not evaluated in time; either
+   *     {@code INDETERMINATE}, to let the GSA decide, or {@code DENY}
+   * @param streamingCodec whether to decode requests and encode responses
+   *     with {@link SamlAuthzCodec} instead of OpenSAML
+   */
+  public SamlBatchAuthzHandler(AuthzAuthority authzAuthority,
+      DocIdDecoder docIdDecoder, SamlMetadata samlMetadata,
+      Principal.DomainFormat dmfmt, ExecutorService executor, int batchSize,
+      long timeoutMillis, AuthzStatus timeoutDecision, Journal journal,
+      boolean streamingCodec) {
+    if (timeoutDecision == null || (executor != null && journal == null)) {
+      throw new NullPointerException();
+    }
+    if (timeoutDecision == AuthzStatus.PERMIT) {
+      throw new IllegalArgumentException(
+          "timeoutDecision must not be PERMIT");
+    }
+    if (batchSize < 0 || timeoutMillis < 0) {
+      throw new IllegalArgumentException(
+          "batchSize and timeoutMillis must not be negative");
+    }
     this.authzAuthority = authzAuthority;
     this.docIdDecoder = docIdDecoder;
     this.metadata = samlMetadata;
     this.domainFormat = dmfmt;
+    this.executor = executor;
+    this.batchSize = batchSize;
+    this.timeoutMillis = timeoutMillis;
+    this.timeoutDecision = timeoutDecision;
+    this.journal = journal;
+    this.streamingCodec = streamingCodec;
   }
 
   @Override
@@ -91,36 +161,50 @@ class SamlBatchAuthzHandler implements HttpHandler {
     SAMLMessageContext<AuthzDecisionQuery, Response, NameID> context
         = OpenSamlUtil.makeSamlMessageContext();
     context.setInboundMessageTransport(new HttpExchangeInTransportAdapter(ex));
-    context.setOutboundMessageTransport(
-        new HttpExchangeOutTransportAdapter(ex));
+    HttpExchangeOutTransportAdapter outTransport
+        = new HttpExchangeOutTransportAdapter(ex);
+    context.setOutboundMessageTransport(outTransport);
 
     // Decode request.
-    HTTPSOAP11MultiContextDecoder decoder = new HTTPSOAP11MultiContextDecoder();
-    List<AuthzDecisionQuery> queries = new ArrayList<AuthzDecisionQuery>();
-    while (true) {
+    List<SamlAuthzCodec.Query> queries;
+    if (streamingCodec) {
       try {
-        decoder.decode(context);
-      } catch (MessageDecodingException e) {
+        queries = SamlAuthzCodec.decode(ex.getRequestBody());
+      } catch (XMLStreamException e) {
         log.log(Level.INFO, "Error decoding message", e);
         HttpExchanges.cannedRespond(ex, HttpURLConnection.HTTP_BAD_REQUEST,
             Translation.HTTP_BAD_REQUEST_ERROR_DECODING);
         return;
-      } catch (SecurityException e) {
-        log.log(Level.WARNING, "Security error while decoding message", e);
-        HttpExchanges.cannedRespond(ex, HttpURLConnection.HTTP_BAD_REQUEST,
-            Translation.HTTP_BAD_REQUEST_SECURITY_ERROR);
-        return;
-      } catch (IndexOutOfBoundsException e) {
-        // Normal indication that there are no more messages to decode.
-        break;
       }
-      queries.add(context.getInboundSAMLMessage());
+    } else {
+      HTTPSOAP11MultiContextDecoder decoder
+          = new HTTPSOAP11MultiContextDecoder();
+      queries = new ArrayList<SamlAuthzCodec.Query>();
+      while (true) {
+        try {
+          decoder.decode(context);
+        } catch (MessageDecodingException e) {
+          log.log(Level.INFO, "Error decoding message", e);
+          HttpExchanges.cannedRespond(ex, HttpURLConnection.HTTP_BAD_REQUEST,
+              Translation.HTTP_BAD_REQUEST_ERROR_DECODING);
+          return;
+        } catch (SecurityException e) {
+          log.log(Level.WARNING, "Security error while decoding message", e);
+          HttpExchanges.cannedRespond(ex, HttpURLConnection.HTTP_BAD_REQUEST,
+              Translation.HTTP_BAD_REQUEST_SECURITY_ERROR);
+          return;
+        } catch (IndexOutOfBoundsException e) {
+          // Normal indication that there are no more messages to decode.
+          break;
+        }
+        queries.add(toQuery(context.getInboundSAMLMessage()));
+      }
     }
 
     // Figure out if the user is authorized.
-    List<Response> responses;
+    List<AuthzStatus> decisions;
     try {
-      responses = processQueries(queries, HttpExchanges.getRequestUri(ex));
+      decisions = processQueries(queries, HttpExchanges.getRequestUri(ex));
     } catch (TranslationIllegalArgumentException e) {
       log.log(Level.INFO, "Error processing queries", e);
       HttpExchanges.cannedRespond(ex, HttpURLConnection.HTTP_BAD_REQUEST,
@@ -129,46 +213,61 @@ class SamlBatchAuthzHandler implements HttpHandler {
     }
 
     // Encode response.
-    HTTPSOAP11MultiContextEncoder encoder = new HTTPSOAP11MultiContextEncoder();
-    for (Response resp : responses) {
-      context.setOutboundSAMLMessage(resp);
+    DateTime now = new DateTime();
+    if (streamingCodec) {
+      // Same headers as HTTPSOAP11MultiContextEncoder.
+      HTTPTransportUtils.addNoCacheHeaders(outTransport);
+      HTTPTransportUtils.setUTF8Encoding(outTransport);
+      HTTPTransportUtils.setContentType(outTransport, "text/xml");
+      outTransport.setHeader("SOAPAction",
+          "http://www.oasis-open.org/committees/security");
+      Writer out = new BufferedWriter(new OutputStreamWriter(
+          outTransport.getOutgoingStream(), "UTF-8"));
+      SamlAuthzCodec.encode(out, metadata.getLocalEntity().getEntityID(), now,
+          queries, decisions);
+      out.flush();
+    } else {
+      HTTPSOAP11MultiContextEncoder encoder
+          = new HTTPSOAP11MultiContextEncoder();
+      for (int i = 0; i < queries.size(); i++) {
+        context.setOutboundSAMLMessage(
+            createResponse(queries.get(i), decisions.get(i), now));
+        try {
+          encoder.encode(context);
+        } catch (MessageEncodingException e) {
+          throw new IOException(e);
+        }
+      }
       try {
-        encoder.encode(context);
+        encoder.finish();
       } catch (MessageEncodingException e) {
         throw new IOException(e);
       }
     }
-    try {
-      encoder.finish();
-    } catch (MessageEncodingException e) {
-      throw new IOException(e);
-    }
     ex.getResponseBody().flush();
     ex.getResponseBody().close();
     ex.close();
   }
 
-  private List<Response> processQueries(List<AuthzDecisionQuery> queries,
-                                        URI requestUri) {
-    DateTime now = new DateTime();
+  /**
+   * Returns the decision for each query, in the same order as {@code
+   * queries}.
+   */
+  private List<AuthzStatus> processQueries(List<SamlAuthzCodec.Query> queries,
+                                           URI requestUri) {
     // Convert URIs into DocIds, but maintain a mapping of the relationship to
     // later determine the relationship of query to response.
-    Map<AuthzDecisionQuery, DocId> docIds
-        = new HashMap<AuthzDecisionQuery, DocId>(queries.size() * 2);
+    Map<SamlAuthzCodec.Query, DocId> docIds
+        = new HashMap<SamlAuthzCodec.Query, DocId>(queries.size() * 2);
     String userIdentifier = null;
     AuthnIdentity identityFromSecmgrCred = null; // First one found is captured
-    for (AuthzDecisionQuery query : queries) {
-      String resource = query.getResource();
+    for (SamlAuthzCodec.Query query : queries) {
+      String resource = query.resource;
       if (resource == null) {
         throw new TranslationIllegalArgumentException(
             Translation.AUTHZ_BAD_QUERY_NO_RESOURCE);
       }
-      if (query.getSubject() == null
-          || query.getSubject().getNameID() == null) {
-        throw new TranslationIllegalArgumentException(
-            Translation.AUTHZ_BAD_QUERY_NO_SUBJECT);
-      }
-      String subject = query.getSubject().getNameID().getValue();
+      String subject = query.subject;
       if (subject == null) {
         throw new TranslationIllegalArgumentException(
             Translation.AUTHZ_BAD_QUERY_NO_SUBJECT);
@@ -191,8 +290,8 @@ class SamlBatchAuthzHandler implements HttpHandler {
       } else {
         docIds.put(query, docIdDecoder.decodeDocId(uri));
       }
-      if (identityFromSecmgrCred == null) {
-        identityFromSecmgrCred = extractCredInfo(query);
+      if (identityFromSecmgrCred == null && query.credential != null) {
+        identityFromSecmgrCred = toIdentity(query.credential);
       }
     }
 
@@ -212,20 +311,18 @@ class SamlBatchAuthzHandler implements HttpHandler {
     }
     log.info(identity.toString());
     docIds = Collections.unmodifiableMap(docIds);
+    Set<DocId> timedOut = new HashSet<DocId>();
     Map<DocId, AuthzStatus> statuses;
-    try {
-      statuses = authzAuthority.isUserAuthorized(identity, docIds.values());
-    } catch (Exception e) {
-      log.log(Level.WARNING, "Exception while satisfying Authn query", e);
-      statuses = null;
-    }
-    if (statuses == null) {
-      statuses = Collections.emptyMap();
+    if (executor == null) {
+      statuses = isUserAuthorized(identity, docIds.values());
+    } else {
+      statuses = isUserAuthorizedInParallel(identity, docIds.values(),
+          timedOut);
     }
 
-    // For each query, build a SAML response based on Adaptor's response.
-    List<Response> result = new ArrayList<Response>(queries.size());
-    for (AuthzDecisionQuery query : queries) {
+    // For each query, decide based on Adaptor's response.
+    List<AuthzStatus> result = new ArrayList<AuthzStatus>(queries.size());
+    for (SamlAuthzCodec.Query query : queries) {
       AuthzStatus status;
       DocId docId = docIds.get(query);
       if (docId == null) {
@@ -233,6 +330,12 @@ class SamlBatchAuthzHandler implements HttpHandler {
         status = AuthzStatus.INDETERMINATE;
       } else {
         status = statuses.get(docId);
+        if (status == null && timedOut.contains(docId)) {
+          // The adaptor did not decide in time, which says nothing about the
+          // document, so by default let the GSA decide how to treat it.
+          result.add(timeoutDecision);
+          continue;
+        }
         // INDETERMINATE means that the document doesn't exist, so the GSA must
         // have an old copy of some file. It isn't safe to do anything but DENY.
 
@@ -242,58 +345,178 @@ class SamlBatchAuthzHandler implements HttpHandler {
           status = AuthzStatus.DENY;
         }
       }
-      result.add(createResponse(query, status, now));
+      result.add(status);
     }
-    return result;
+    return Collections.unmodifiableList(result);
   }
   
-  private AuthnIdentity extractCredInfo(AuthzDecisionQuery query) {
-    AuthnIdentity identity = null;
+  /**
+   * Asks the adaptor about {@code ids} in the current thread. Returns an empty
+   * map if the adaptor fails.
+   */
+  private Map<DocId, AuthzStatus> isUserAuthorized(AuthnIdentity identity,
+      Collection<DocId> ids) {
+    Map<DocId, AuthzStatus> statuses;
+    try {
+      statuses = TimedAuthzAuthority.callDelegate(authzAuthority, identity,
+          ids, AuthzDeadline.afterMillis(0), journal);
+    } catch (Exception e) {
+      log.log(Level.WARNING, "Exception while satisfying Authn query", e);
+      statuses = null;
+    }
+    if (statuses == null) {
+      statuses = Collections.emptyMap();
+    }
+    return statuses;
+  }
+
+  /**
+   * Asks the adaptor about {@code ids} in parts of at most {@code batchSize},
+   * evaluated in parallel by {@link #executor}. The DocIds of parts not
+   * evaluated before the deadline are added to {@code timedOut}; decisions of
+   * the other parts are still returned.
+   */
+  private Map<DocId, AuthzStatus> isUserAuthorizedInParallel(
+      final AuthnIdentity identity, Collection<DocId> ids,
+      Set<DocId> timedOut) {
+    List<DocId> unique = new ArrayList<DocId>(new LinkedHashSet<DocId>(ids));
+    int size = batchSize == 0 ? Math.max(unique.size(), 1) : batchSize;
+    final AuthzDeadline deadline = AuthzDeadline.afterMillis(timeoutMillis);
+    List<List<DocId>> batches = new ArrayList<List<DocId>>();
+    List<Future<Map<DocId, AuthzStatus>>> futures
+        = new ArrayList<Future<Map<DocId, AuthzStatus>>>();
+    for (int i = 0; i < unique.size(); i += size) {
+      final List<DocId> batch = Collections.unmodifiableList(
+          unique.subList(i, Math.min(i + size, unique.size())));
+      batches.add(batch);
+      Future<Map<DocId, AuthzStatus>> future;
+      try {
+        future = executor.submit(new Callable<Map<DocId, AuthzStatus>>() {
+          @Override
+          public Map<DocId, AuthzStatus> call() throws Exception {
+            return TimedAuthzAuthority.callDelegate(authzAuthority, identity,
+                batch, deadline, journal);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // Too many calls are waiting for the adaptor; treat as timed out.
+        future = null;
+      }
+      futures.add(future);
+    }
+
+    Map<DocId, AuthzStatus> statuses = new HashMap<DocId, AuthzStatus>();
+    boolean interrupted = false;
+    for (int i = 0; i < futures.size(); i++) {
+      Future<Map<DocId, AuthzStatus>> future = futures.get(i);
+      if (future == null) {
+        journal.recordAuthzBatchTimeout();
+        timedOut.addAll(batches.get(i));
+        continue;
+      }
+      Map<DocId, AuthzStatus> batchStatuses = null;
+      try {
+        if (interrupted) {
+          throw new InterruptedException();
+        } else if (timeoutMillis == 0) {
+          batchStatuses = future.get();
+        } else {
+          batchStatuses = future.get(deadline.getRemainingNanos(),
+              TimeUnit.NANOSECONDS);
+        }
+      } catch (ExecutionException e) {
+        log.log(Level.WARNING, "Exception while satisfying Authn query",
+            e.getCause());
+      } catch (TimeoutException e) {
+        future.cancel(true);
+        journal.recordAuthzBatchTimeout();
+        timedOut.addAll(batches.get(i));
+      } catch (InterruptedException e) {
+        // Stop waiting, but still respond with what is known.
+        interrupted = true;
+        future.cancel(true);
+        timedOut.addAll(batches.get(i));
+      }
+      if (batchStatuses != null) {
+        statuses.putAll(batchStatuses);
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (!timedOut.isEmpty()) {
+      log.log(Level.WARNING, "Authorization of {0} of {1} documents did not "
+          + "complete in time", new Object[] {timedOut.size(), unique.size()});
+    }
+    return statuses;
+  }
+
+  /** Extracts the parts of an OpenSAML query needed to answer it. */
+  private static SamlAuthzCodec.Query toQuery(AuthzDecisionQuery query) {
+    String subject = null;
+    if (query.getSubject() != null
+        && query.getSubject().getNameID() != null) {
+      subject = query.getSubject().getNameID().getValue();
+    }
+    SamlAuthzCodec.Credential credential = null;
     Extensions extensions = query.getExtensions();
     if (extensions != null) {
       List<XMLObject> objs = extensions.getOrderedChildren();
       for (XMLObject obj : objs) {
         if (obj instanceof SecmgrCredential) {
           SecmgrCredential cred = (SecmgrCredential) obj;
-          String name = cred.getName();
-          String domain = cred.getDomain();
-          String userIdentity = name;
-          if (domain != null && !"".equals(domain.trim())) {
-            userIdentity = domainFormat.format(name, domain);
-          }
-          Set<GroupPrincipal> groups = new TreeSet<GroupPrincipal>();
+          List<SamlAuthzCodec.Credential> groups
+              = new ArrayList<SamlAuthzCodec.Credential>();
           for (Group g : cred.getGroups()) {
-            String groupIdentity = g.getName();
-            if (g.getDomain() != null && !"".equals(g.getDomain().trim())) {
-              groupIdentity = domainFormat.format(g.getName(), g.getDomain());
-            }
-            groups.add(new GroupPrincipal(groupIdentity, g.getNamespace()));
+            groups.add(new SamlAuthzCodec.Credential(g.getName(),
+                g.getNamespace(), g.getDomain(), null,
+                Collections.<SamlAuthzCodec.Credential>emptyList()));
           }
-          identity =
-              new AuthnIdentityImpl.Builder(new UserPrincipal(userIdentity,
-                  cred.getNamespace())).setPassword(cred.getPassword())
-                  .setGroups(groups).build();
+          credential = new SamlAuthzCodec.Credential(cred.getName(),
+              cred.getNamespace(), cred.getDomain(), cred.getPassword(),
+              groups);
           break; // use the first SecmgrCredential
         }
       }
     }
-    return identity;
+    return new SamlAuthzCodec.Query(query.getID(), query.getResource(),
+        subject, credential);
+  }
+
+  private AuthnIdentity toIdentity(SamlAuthzCodec.Credential cred) {
+    String userIdentity = cred.name;
+    if (cred.domain != null && !"".equals(cred.domain.trim())) {
+      userIdentity = domainFormat.format(cred.name, cred.domain);
+    }
+    Set<GroupPrincipal> groups = new TreeSet<GroupPrincipal>();
+    for (SamlAuthzCodec.Credential g : cred.groups) {
+      String groupIdentity = g.name;
+      if (g.domain != null && !"".equals(g.domain.trim())) {
+        groupIdentity = domainFormat.format(g.name, g.domain);
+      }
+      groups.add(PrincipalInterner.intern(
+          new GroupPrincipal(groupIdentity, g.namespace)));
+    }
+    return new AuthnIdentityImpl.Builder(PrincipalInterner.intern(
+            new UserPrincipal(userIdentity, cred.namespace)))
+        .setPassword(cred.password)
+        .setGroups(groups).build();
   }
 
-  private Response createResponse(AuthzDecisionQuery query,
+  private Response createResponse(SamlAuthzCodec.Query query,
                                   AuthzStatus authzStatus, DateTime time) {
     String issuer = metadata.getLocalEntity().getEntityID();
     // Assume the query was for GET.
     Action action
         = OpenSamlUtil.makeAction(Action.HTTP_GET_ACTION, Action.GHPP_NS_URI);
     AuthzDecisionStatement statement = OpenSamlUtil.makeAuthzDecisionStatement(
-        query.getResource(), authzStatusMap(authzStatus), action);
-    Subject subject = OpenSamlUtil.makeSubject(
-        query.getSubject().getNameID().getValue());
+        query.resource, authzStatusMap(authzStatus), action);
+    Subject subject = OpenSamlUtil.makeSubject(query.subject);
     Assertion assertion = OpenSamlUtil.makeAssertion(
         issuer, time, subject, null, statement);
     Status status = OpenSamlUtil.makeStatus(StatusCode.SUCCESS_URI);
-    return OpenSamlUtil.makeResponse(issuer, time, status, query, assertion);
+    return OpenSamlUtil.makeResponse(issuer, time, status, query.id,
+        assertion);
   }
 
   private static DecisionTypeEnumeration authzStatusMap(AuthzStatus status) {
@@ -300,7 +300,8 @@ class SamlServiceProvider {
         bestUsername = domainFormat.format(username, domain);
       }
       AuthnIdentity identity = new AuthnIdentityImpl
-          .Builder(new UserPrincipal(bestUsername, userNamespace))
+          .Builder(PrincipalInterner.intern(
+              new UserPrincipal(bestUsername, userNamespace)))
           .setGroups(groups)
           .setPassword(password).build();
       authnState.authenticated(identity, expirationTime);
@@ -323,7 +324,7 @@ class SamlServiceProvider {
            new Object[] { namespace });
         namespace = Principal.DEFAULT_NAMESPACE;
       }
-      groups.add(new GroupPrincipal(name, namespace));
+      groups.add(PrincipalInterner.intern(new GroupPrincipal(name, namespace)));
     }
     return Collections.unmodifiableSet(groups);
   }
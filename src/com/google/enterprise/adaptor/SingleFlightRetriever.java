@@ -0,0 +1,469 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces concurrent retrievals of the same document into a single call to
+ * {@link Adaptor#getDocContent}. The first request for a key (the leader)
+ * calls the adaptor as usual while its calls to {@link Response} are recorded.
+ * Requests for the same key that arrive while the leader is running
+ * (followers) wait for the leader to respond and then replay the recorded
+ * response, streaming the body from a {@link SpillingBuffer} as it is
+ * produced.
+ *
+ * <p>The buffer is only created when the first follower joins. Until then the
+ * leader keeps at most {@code memoryBufferBytes} of its body in memory, so that
+ * a follower joining early still receives the whole body. Once the leader has
+ * written more than that without a follower, it stops keeping the body and
+ * later followers retrieve the document themselves. Retrievals that are never
+ * followed therefore do not spill to disk.
+ *
+ * <p>If the leader fails before responding, followers call the adaptor
+ * themselves. If it fails while sending the body, followers fail as well.
+ *
+ * <p>Callers are responsible for choosing keys such that requests with the same
+ * key may receive identical responses.
+ */
+class SingleFlightRetriever {
+  private static final Logger log
+      = Logger.getLogger(SingleFlightRetriever.class.getName());
+
+  private final ConcurrentMap<Object, Flight> flights
+      = new ConcurrentHashMap<Object, Flight>();
+  private final int memoryBufferBytes;
+  private final Journal journal;
+
+  /**
+   * @param memoryBufferBytes bytes of each shared body to hold in memory
+   *     before spilling to disk
+   * @param journal journal to record coalesced retrievals to
+   */
+  public SingleFlightRetriever(int memoryBufferBytes, Journal journal) {
+    if (journal == null) {
+      throw new NullPointerException();
+    }
+    if (memoryBufferBytes < 0) {
+      throw new IllegalArgumentException(
+          "memoryBufferBytes must be non-negative");
+    }
+    this.memoryBufferBytes = memoryBufferBytes;
+    this.journal = journal;
+  }
+
+  /**
+   * Calls {@code adaptor.getDocContent(request, response)}, unless a
+   * retrieval with the same {@code key} is already in progress, in which case
+   * that retrieval's response is shared.
+   */
+  public void getDocContent(Object key, Adaptor adaptor, Request request,
+      Response response) throws IOException, InterruptedException {
+    while (true) {
+      Flight existing = flights.get(key);
+      if (existing == null) {
+        Flight flight = new Flight(memoryBufferBytes);
+        existing = flights.putIfAbsent(key, flight);
+        if (existing == null) {
+          lead(key, flight, adaptor, request, response);
+          return;
+        }
+      }
+      InputStream body = existing.join();
+      if (body == null) {
+        if (existing.isFinished()) {
+          // The leader finished between get() and join().
+          continue;
+        }
+        // Too late to receive the whole body.
+        adaptor.getDocContent(request, response);
+        return;
+      }
+      journal.recordCoalescedRetrieval();
+      if (!existing.follow(response, body)) {
+        log.log(Level.FINE, "Shared retrieval of {0} failed before responding. "
+            + "Retrieving independently", request.getDocId());
+        adaptor.getDocContent(request, response);
+      }
+      return;
+    }
+  }
+
+  /** Number of retrievals currently in progress. */
+  int getFlightCount() {
+    return flights.size();
+  }
+
+  private void lead(Object key, Flight flight, Adaptor adaptor,
+      Request request, Response response)
+      throws IOException, InterruptedException {
+    boolean success = false;
+    try {
+      adaptor.getDocContent(request, new RecordingResponse(response, flight));
+      success = true;
+    } finally {
+      flights.remove(key, flight);
+      flight.finish(success);
+    }
+  }
+
+  private enum Outcome {
+    NOT_MODIFIED,
+    NOT_FOUND,
+    NO_CONTENT,
+    CONTENT,
+    /** Leader did not respond. */
+    FAILED,
+  }
+
+  /** A retrieval in progress. */
+  private static class Flight {
+    private final int memoryBufferBytes;
+    // The following fields are written by the leader before the outcome is
+    // set, and only read by followers after.
+    private String contentType;
+    private Date lastModified;
+    private final List<String[]> metadata = new ArrayList<String[]>();
+    private boolean aclSet;
+    private Acl acl;
+    private final Map<String, Acl> namedResources
+        = new LinkedHashMap<String, Acl>();
+    private boolean secure;
+    private final List<URI> anchorUris = new ArrayList<URI>();
+    private final List<String> anchorTexts = new ArrayList<String>();
+    private boolean noIndex;
+    private boolean noFollow;
+    private boolean noArchive;
+    private URI displayUrl;
+    private boolean crawlOnce;
+    private boolean lock;
+    // Guarded by this.
+    private Outcome outcome;
+    private boolean finished;
+    /** Shared body, or {@code null} until the first follower joins. */
+    private SpillingBuffer body;
+    /** Body written before any follower joined, or {@code null} if none. */
+    private ByteArrayOutputStream prefix;
+    /** Whether the body was too long to keep for followers that join later. */
+    private boolean prefixDropped;
+
+    public Flight(int memoryBufferBytes) {
+      this.memoryBufferBytes = memoryBufferBytes;
+    }
+
+    /**
+     * Registers a follower. Returns {@code null} if the flight is finished or
+     * has already produced more of its body than it kept.
+     */
+    public synchronized InputStream join() throws IOException {
+      if (finished || prefixDropped) {
+        return null;
+      }
+      if (body == null) {
+        body = new SpillingBuffer(memoryBufferBytes);
+        if (prefix != null) {
+          byte[] kept = prefix.toByteArray();
+          body.write(kept, 0, kept.length);
+          prefix = null;
+        }
+      }
+      return body.newReader();
+    }
+
+    public synchronized boolean isFinished() {
+      return finished;
+    }
+
+    /** Keeps part of the leader's body for followers. */
+    public synchronized void write(byte[] b, int off, int len)
+        throws IOException {
+      if (body != null) {
+        body.write(b, off, len);
+      } else if (!prefixDropped) {
+        int kept = prefix == null ? 0 : prefix.size();
+        if (kept + len > memoryBufferBytes) {
+          prefixDropped = true;
+          prefix = null;
+        } else {
+          if (prefix == null) {
+            prefix = new ByteArrayOutputStream();
+          }
+          prefix.write(b, off, len);
+        }
+      }
+    }
+
+    public synchronized void setOutcome(Outcome outcome) {
+      if (this.outcome == null) {
+        this.outcome = outcome;
+        notifyAll();
+      }
+    }
+
+    public void finish(boolean success) {
+      SpillingBuffer body;
+      synchronized (this) {
+        finished = true;
+        if (outcome == null) {
+          outcome = Outcome.FAILED;
+        }
+        notifyAll();
+        body = this.body;
+        prefix = null;
+      }
+      if (body == null) {
+        return;
+      }
+      if (success) {
+        body.complete();
+      } else {
+        body.fail(new IOException("Shared retrieval failed"));
+      }
+      body.release();
+    }
+
+    /**
+     * Replays the leader's response onto {@code response}. Returns {@code
+     * false} if the leader failed without responding.
+     */
+    public boolean follow(Response response, InputStream in)
+        throws IOException, InterruptedException {
+      try {
+        Outcome outcome;
+        synchronized (this) {
+          while (this.outcome == null) {
+            wait();
+          }
+          outcome = this.outcome;
+        }
+        switch (outcome) {
+          case FAILED:
+            return false;
+          case NOT_MODIFIED:
+            response.respondNotModified();
+            return true;
+          case NOT_FOUND:
+            response.respondNotFound();
+            return true;
+          case NO_CONTENT:
+            replayMetadata(response);
+            response.respondNoContent();
+            return true;
+          case CONTENT:
+            replayMetadata(response);
+            IOHelper.copyStream(in, response.getOutputStream());
+            return true;
+          default:
+            throw new AssertionError("Unknown outcome: " + outcome);
+        }
+      } finally {
+        in.close();
+      }
+    }
+
+    private void replayMetadata(Response response) {
+      if (contentType != null) {
+        response.setContentType(contentType);
+      }
+      if (lastModified != null) {
+        response.setLastModified(lastModified);
+      }
+      for (String[] entry : metadata) {
+        response.addMetadata(entry[0], entry[1]);
+      }
+      if (aclSet) {
+        response.setAcl(acl);
+      }
+      for (Map.Entry<String, Acl> me : namedResources.entrySet()) {
+        response.putNamedResource(me.getKey(), me.getValue());
+      }
+      response.setSecure(secure);
+      for (int i = 0; i < anchorUris.size(); i++) {
+        response.addAnchor(anchorUris.get(i), anchorTexts.get(i));
+      }
+      response.setNoIndex(noIndex);
+      response.setNoFollow(noFollow);
+      response.setNoArchive(noArchive);
+      if (displayUrl != null) {
+        response.setDisplayUrl(displayUrl);
+      }
+      response.setCrawlOnce(crawlOnce);
+      response.setLock(lock);
+    }
+  }
+
+  /**
+   * Passes calls through to the leader's response, while recording them in
+   * the {@link Flight}.
+   */
+  private static class RecordingResponse implements ContentWantedResponse {
+    private final Response response;
+    private final Flight flight;
+    private OutputStream os;
+
+    public RecordingResponse(Response response, Flight flight) {
+      this.response = response;
+      this.flight = flight;
+    }
+
+    @Override
+    public void respondNotModified() throws IOException {
+      response.respondNotModified();
+      flight.setOutcome(Outcome.NOT_MODIFIED);
+    }
+
+    @Override
+    public void respondNotFound() throws IOException {
+      response.respondNotFound();
+      flight.setOutcome(Outcome.NOT_FOUND);
+    }
+
+    @Override
+    public void respondNoContent() throws IOException {
+      response.respondNoContent();
+      flight.setOutcome(Outcome.NO_CONTENT);
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+      if (os == null) {
+        os = new TeeOutputStream(response.getOutputStream(), flight);
+        flight.setOutcome(Outcome.CONTENT);
+      }
+      return os;
+    }
+
+    @Override
+    public boolean isContentWanted() throws IOException {
+      boolean wanted = !(response instanceof ContentWantedResponse)
+          || ((ContentWantedResponse) response).isContentWanted();
+      if (!wanted) {
+        // The adaptor may not request the stream. Share the empty body so
+        // that followers do not retrieve the document themselves.
+        getOutputStream();
+      }
+      return wanted;
+    }
+
+    @Override
+    public void setContentType(String contentType) {
+      response.setContentType(contentType);
+      flight.contentType = contentType;
+    }
+
+    @Override
+    public void setLastModified(Date lastModified) {
+      response.setLastModified(lastModified);
+      flight.lastModified = lastModified;
+    }
+
+    @Override
+    public void addMetadata(String key, String value) {
+      response.addMetadata(key, value);
+      flight.metadata.add(new String[] {key, value});
+    }
+
+    @Override
+    public void setAcl(Acl acl) {
+      response.setAcl(acl);
+      flight.aclSet = true;
+      flight.acl = acl;
+    }
+
+    @Override
+    public void putNamedResource(String fragment, Acl acl) {
+      response.putNamedResource(fragment, acl);
+      flight.namedResources.put(fragment, acl);
+    }
+
+    @Override
+    public void setSecure(boolean secure) {
+      response.setSecure(secure);
+      flight.secure = secure;
+    }
+
+    @Override
+    public void addAnchor(URI uri, String text) {
+      response.addAnchor(uri, text);
+      flight.anchorUris.add(uri);
+      flight.anchorTexts.add(text);
+    }
+
+    @Override
+    public void setNoIndex(boolean noIndex) {
+      response.setNoIndex(noIndex);
+      flight.noIndex = noIndex;
+    }
+
+    @Override
+    public void setNoFollow(boolean noFollow) {
+      response.setNoFollow(noFollow);
+      flight.noFollow = noFollow;
+    }
+
+    @Override
+    public void setNoArchive(boolean noArchive) {
+      response.setNoArchive(noArchive);
+      flight.noArchive = noArchive;
+    }
+
+    @Override
+    public void setDisplayUrl(URI displayUrl) {
+      response.setDisplayUrl(displayUrl);
+      flight.displayUrl = displayUrl;
+    }
+
+    @Override
+    public void setCrawlOnce(boolean crawlOnce) {
+      response.setCrawlOnce(crawlOnce);
+      flight.crawlOnce = crawlOnce;
+    }
+
+    @Override
+    public void setLock(boolean lock) {
+      response.setLock(lock);
+      flight.lock = lock;
+    }
+  }
+
+  /** Writes to the leader's stream and the flight's shared body. */
+  private static class TeeOutputStream extends FastFilterOutputStream {
+    private final Flight flight;
+
+    public TeeOutputStream(OutputStream out, Flight flight) {
+      super(out);
+      this.flight = flight;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      flight.write(b, off, len);
+      out.write(b, off, len);
+    }
+  }
+}
@@ -0,0 +1,227 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only byte buffer with a single writer and any number of concurrent
+ * readers. Readers block until more bytes are available, so they can stream
+ * the contents while they are being written. The first {@code memoryLimit}
+ * bytes are kept in memory; the remainder is spilled to a temporary file.
+ *
+ * <p>The buffer is reference counted. The writer holds the initial reference
+ * and each reader holds another. Once all have been released, the temporary
+ * file is deleted.
+ */
+class SpillingBuffer {
+  private static final Logger log
+      = Logger.getLogger(SpillingBuffer.class.getName());
+
+  private final int memoryLimit;
+  private byte[] memory = new byte[0];
+  /** Total number of bytes written. */
+  private long length;
+  private File file;
+  private RandomAccessFile fileOut;
+  private boolean complete;
+  private IOException failure;
+  private int references = 1;
+
+  /**
+   * @param memoryLimit number of bytes to keep in memory before spilling to
+   *     disk
+   */
+  public SpillingBuffer(int memoryLimit) {
+    if (memoryLimit < 0) {
+      throw new IllegalArgumentException("memoryLimit must be non-negative");
+    }
+    this.memoryLimit = memoryLimit;
+  }
+
+  public synchronized void write(byte[] b, int off, int len)
+      throws IOException {
+    if (complete || failure != null) {
+      throw new IllegalStateException("Buffer already finished");
+    }
+    if (references == 0) {
+      throw new IllegalStateException("Buffer already released");
+    }
+    int inMemory = (int) Math.min(len, Math.max(0, memoryLimit - length));
+    if (inMemory > 0) {
+      int needed = (int) length + inMemory;
+      if (needed > memory.length) {
+        byte[] newMemory = new byte[Math.min(memoryLimit,
+            Math.max(needed, memory.length * 2))];
+        System.arraycopy(memory, 0, newMemory, 0, (int) length);
+        memory = newMemory;
+      }
+      System.arraycopy(b, off, memory, (int) length, inMemory);
+      length += inMemory;
+    }
+    if (inMemory < len) {
+      if (fileOut == null) {
+        file = File.createTempFile("adaptor-spill", ".tmp");
+        fileOut = new RandomAccessFile(file, "rw");
+        log.log(Level.FINE, "Spilling buffer to {0}", file);
+      }
+      fileOut.write(b, off + inMemory, len - inMemory);
+      length += len - inMemory;
+    }
+    notifyAll();
+  }
+
+  /** Marks the contents as complete. Readers will see end-of-stream. */
+  public synchronized void complete() {
+    if (failure == null) {
+      complete = true;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Marks the contents as incomplete. Readers will receive an {@code
+   * IOException} once they have read the available bytes.
+   */
+  public synchronized void fail(IOException cause) {
+    if (!complete && failure == null) {
+      failure = cause;
+    }
+    notifyAll();
+  }
+
+  public synchronized long getLength() {
+    return length;
+  }
+
+  synchronized boolean isSpilled() {
+    return file != null;
+  }
+
+  /**
+   * Returns a new reader starting at the beginning of the buffer. The reader
+   * holds a reference until it is closed.
+   */
+  public synchronized InputStream newReader() {
+    if (references == 0) {
+      throw new IllegalStateException("Buffer already released");
+    }
+    references++;
+    return new Reader();
+  }
+
+  /** Releases the writer's reference. */
+  public void release() {
+    releaseReference();
+  }
+
+  private synchronized void releaseReference() {
+    if (references == 0) {
+      throw new IllegalStateException("Buffer already released");
+    }
+    references--;
+    if (references > 0) {
+      return;
+    }
+    memory = null;
+    if (fileOut != null) {
+      try {
+        fileOut.close();
+      } catch (IOException ex) {
+        log.log(Level.WARNING, "Failed to close spill file", ex);
+      }
+      if (!file.delete()) {
+        log.log(Level.WARNING, "Failed to delete spill file {0}", file);
+      }
+    }
+  }
+
+  private class Reader extends InputStream {
+    private final byte[] singleByte = new byte[1];
+    private long position;
+    private RandomAccessFile fileIn;
+    private boolean closed;
+
+    @Override
+    public int read() throws IOException {
+      int read = read(singleByte, 0, 1);
+      return read == -1 ? -1 : singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+      if (len == 0) {
+        return 0;
+      }
+      synchronized (SpillingBuffer.this) {
+        while (position == length && !complete && failure == null) {
+          try {
+            SpillingBuffer.this.wait();
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for "
+                + "buffer contents");
+          }
+        }
+        if (position == length) {
+          if (failure != null) {
+            throw new IOException("Buffer writer failed", failure);
+          }
+          return -1;
+        }
+        if (position < memoryLimit) {
+          int count = (int) Math.min(len, length - position);
+          count = (int) Math.min(count, memoryLimit - position);
+          System.arraycopy(memory, (int) position, b, off, count);
+          position += count;
+          return count;
+        }
+        if (fileIn == null) {
+          fileIn = new RandomAccessFile(file, "r");
+        }
+        len = (int) Math.min(len, length - position);
+      }
+      // The bytes before length are already written, so they can be read
+      // without holding the lock.
+      fileIn.seek(position - memoryLimit);
+      int count = fileIn.read(b, off, len);
+      if (count > 0) {
+        position += count;
+      }
+      return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (fileIn != null) {
+        fileIn.close();
+      }
+      releaseReference();
+    }
+  }
+}
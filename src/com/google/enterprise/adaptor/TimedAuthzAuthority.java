@@ -0,0 +1,141 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounds the time the calling thread waits for an {@link AuthzAuthority}. The
+ * delegate is called by {@code executor} with the current {@link
+ * AuthzDeadline} set; if it has not returned by the deadline, it is
+ * interrupted and every requested DocId gets {@code timeoutDecision}. The
+ * caller, typically an HTTP worker thread, is released either way, so a hung
+ * directory server ties up at most the executor's threads. If the executor
+ * rejects the call, because its threads and queue are full, the DocIds get
+ * {@code timeoutDecision} right away. This class is thread-safe.
+ */
+class TimedAuthzAuthority implements AuthzAuthority {
+  private static final Logger log
+      = Logger.getLogger(TimedAuthzAuthority.class.getName());
+
+  private final AuthzAuthority delegate;
+  private final ExecutorService executor;
+  private final long timeoutMillis;
+  private final AuthzStatus timeoutDecision;
+  private final Journal journal;
+
+  public TimedAuthzAuthority(AuthzAuthority delegate, ExecutorService executor,
+      long timeoutMillis, AuthzStatus timeoutDecision, Journal journal) {
+    if (delegate == null || executor == null || timeoutDecision == null
+        || journal == null) {
+      throw new NullPointerException();
+    }
+    if (timeoutMillis <= 0) {
+      throw new IllegalArgumentException("timeoutMillis must be positive");
+    }
+    this.delegate = delegate;
+    this.executor = executor;
+    this.timeoutMillis = timeoutMillis;
+    this.timeoutDecision = timeoutDecision;
+    this.journal = journal;
+  }
+
+  @Override
+  public Map<DocId, AuthzStatus> isUserAuthorized(final AuthnIdentity identity,
+      final Collection<DocId> ids) throws IOException {
+    final AuthzDeadline deadline = AuthzDeadline.afterMillis(timeoutMillis);
+    Future<Map<DocId, AuthzStatus>> future;
+    try {
+      future = executor.submit(new Callable<Map<DocId, AuthzStatus>>() {
+        @Override
+        public Map<DocId, AuthzStatus> call() throws IOException {
+          return callDelegate(delegate, identity, ids, deadline, journal);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      journal.recordAuthzBatchTimeout();
+      log.log(Level.WARNING, "Too many authorization calls waiting; not "
+          + "authorizing {0} documents", ids.size());
+      return timeoutDecisions(ids);
+    }
+    try {
+      return future.get(deadline.getRemainingNanos(), TimeUnit.NANOSECONDS);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      journal.recordAuthzBatchTimeout();
+      log.log(Level.WARNING, "Authorization of {0} documents did not complete "
+          + "within {1} ms", new Object[] {ids.size(), timeoutMillis});
+    } catch (InterruptedException e) {
+      // Stop waiting, but still respond.
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+    }
+    return timeoutDecisions(ids);
+  }
+
+  private Map<DocId, AuthzStatus> timeoutDecisions(Collection<DocId> ids) {
+    Map<DocId, AuthzStatus> statuses = new HashMap<DocId, AuthzStatus>();
+    for (DocId id : ids) {
+      statuses.put(id, timeoutDecision);
+    }
+    return Collections.unmodifiableMap(statuses);
+  }
+
+  /**
+   * Calls {@code authority} in the current thread with {@code deadline} set,
+   * recording in {@code journal}, if not {@code null}, how long the call
+   * took.
+   */
+  static Map<DocId, AuthzStatus> callDelegate(AuthzAuthority authority,
+      AuthnIdentity identity, Collection<DocId> ids, AuthzDeadline deadline,
+      Journal journal) throws IOException {
+    AuthzDeadline.setCurrent(deadline);
+    try {
+      long start = System.nanoTime();
+      Map<DocId, AuthzStatus> statuses
+          = authority.isUserAuthorized(identity, ids);
+      if (journal != null) {
+        journal.recordAuthzBatch(
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      }
+      return statuses;
+    } finally {
+      AuthzDeadline.setCurrent(null);
+    }
+  }
+}
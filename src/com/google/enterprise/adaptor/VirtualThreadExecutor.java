@@ -0,0 +1,135 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs each task in its own thread from a thread-per-task executor, while
+ * bounding the number of tasks running at once. Tasks beyond the bound are
+ * passed to a {@link RejectedExecutionHandler}, with a {@code null} executor,
+ * in the submitting thread.
+ *
+ * <p>{@link #create} uses virtual threads, which are only available on newer
+ * runtimes and are therefore found by reflection.
+ */
+class VirtualThreadExecutor extends AbstractExecutorService {
+  private final ExecutorService delegate;
+  private final Semaphore permits;
+  private final RejectedExecutionHandler handler;
+
+  /**
+   * @param delegate executor that runs each task in a new thread
+   * @param maxConcurrency maximum number of tasks running at once
+   * @param handler handler for tasks that exceed {@code maxConcurrency}
+   */
+  VirtualThreadExecutor(ExecutorService delegate, int maxConcurrency,
+      RejectedExecutionHandler handler) {
+    if (delegate == null || handler == null) {
+      throw new NullPointerException();
+    }
+    if (maxConcurrency < 1) {
+      throw new IllegalArgumentException("maxConcurrency must be positive");
+    }
+    this.delegate = delegate;
+    this.permits = new Semaphore(maxConcurrency);
+    this.handler = handler;
+  }
+
+  /**
+   * Returns an executor using virtual threads, or {@code null} if the runtime
+   * does not support them.
+   */
+  public static VirtualThreadExecutor create(int maxConcurrency,
+      RejectedExecutionHandler handler) {
+    Method factory;
+    try {
+      factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException ex) {
+      return null;
+    }
+    ExecutorService delegate;
+    try {
+      delegate = (ExecutorService) factory.invoke(null);
+    } catch (IllegalAccessException ex) {
+      return null;
+    } catch (InvocationTargetException ex) {
+      // Preview or otherwise disabled.
+      return null;
+    }
+    return new VirtualThreadExecutor(delegate, maxConcurrency, handler);
+  }
+
+  @Override
+  public void execute(final Runnable command) {
+    if (command == null) {
+      throw new NullPointerException();
+    }
+    if (!permits.tryAcquire()) {
+      handler.rejectedExecution(command, null);
+      return;
+    }
+    try {
+      delegate.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            command.run();
+          } finally {
+            permits.release();
+          }
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      permits.release();
+      throw ex;
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    delegate.shutdown();
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    return delegate.shutdownNow();
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return delegate.isShutdown();
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return delegate.isTerminated();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit)
+      throws InterruptedException {
+    return delegate.awaitTermination(timeout, unit);
+  }
+}
@@ -14,12 +14,19 @@
 
 package com.google.enterprise.adaptor;
 
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Calls Thread.interrupt() when a thread takes too long to complete a task.
@@ -34,20 +41,65 @@ import java.util.concurrent.atomic.AtomicBoolean;
  *     watchdog.processingCompleted();
  *   }
  * </code>
+ *
+ * <p>Timeouts are tracked with a hashed timing wheel that is advanced by a
+ * single periodic task on the provided executor, instead of scheduling a task
+ * per timeout. Starting and completing processing are constant-time and
+ * completed timeouts are removed from the wheel on the next tick, instead of
+ * remaining queued until their deadline. Interrupts may be delivered up to one
+ * tick late, but never early. The task only runs while there are timeouts, and
+ * is started again by the next {@link #processingStarting}.
  */
 class Watchdog {
+  private static final Logger log = Logger.getLogger(Watchdog.class.getName());
+
+  /** Granularity of timeouts, in milliseconds. */
+  static final long TICK_MILLIS = 10;
+  /** Number of buckets in the wheel. Must be a power of two. */
+  private static final int WHEEL_SIZE = 512;
+
   private final ScheduledExecutorService executor;
-  private final ConcurrentMap<Thread, FutureInfo> inProcess
-      = new ConcurrentHashMap<Thread, FutureInfo>();
+  private final Journal journal;
+  private final ConcurrentMap<Thread, Timeout> inProcess
+      = new ConcurrentHashMap<Thread, Timeout>();
+  /** Timeouts waiting to be placed in the wheel by the ticker. */
+  private final Queue<Timeout> pendingAdds
+      = new ConcurrentLinkedQueue<Timeout>();
+  /** Timeouts waiting to be removed from the wheel by the ticker. */
+  private final Queue<Timeout> pendingRemoves
+      = new ConcurrentLinkedQueue<Timeout>();
+  private final AtomicBoolean tickerStarted = new AtomicBoolean();
+  /** The running ticker, if {@link #tickerStarted}. */
+  private volatile ScheduledFuture<?> tickerFuture;
+  private final long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+  private final long startNanos = System.nanoTime();
+  /** Only accessed by the ticker. */
+  private final Bucket[] wheel = new Bucket[WHEEL_SIZE];
+  /** Last tick that was processed. Only accessed by the ticker. */
+  private long lastTick;
+  /** Number of timeouts in the wheel. Only accessed by the ticker. */
+  private int wheelCount;
 
   /**
    * @param executor executor to schedule tasks
    */
   public Watchdog(ScheduledExecutorService executor) {
+    this(executor, null);
+  }
+
+  /**
+   * @param executor executor to schedule tasks
+   * @param journal journal to record timeouts to, or {@code null}
+   */
+  public Watchdog(ScheduledExecutorService executor, Journal journal) {
     if (executor == null) {
       throw new NullPointerException();
     }
     this.executor = executor;
+    this.journal = journal;
+    for (int i = 0; i < wheel.length; i++) {
+      wheel[i] = new Bucket();
+    }
   }
 
   /**
@@ -62,16 +114,17 @@ class Watchdog {
       throw new IllegalStateException("Processing is already occuring on the "
           + "thread");
     }
-    AtomicBoolean interruptNeeded = new AtomicBoolean(true);
-    Runnable task = new Interrupter(thread, interruptNeeded);
-    Future<?> future = executor.schedule(task, timeout, TimeUnit.MILLISECONDS);
-    FutureInfo info = new FutureInfo(future, interruptNeeded);
+    long deadlineNanos = System.nanoTime() - startNanos
+        + TimeUnit.MILLISECONDS.toNanos(Math.max(timeout, 0));
+    // Round up, so that interrupts are never early.
+    long deadlineTick = (deadlineNanos + tickNanos - 1) / tickNanos;
+    Timeout info = new Timeout(thread, deadlineTick);
     if (inProcess.putIfAbsent(thread, info) != null) {
-      // Reset state and try again.
-      future.cancel(false);
-      processingStarting(thread, timeout);
-      return;
+      throw new IllegalStateException("Processing is already occuring on the "
+          + "thread");
     }
+    pendingAdds.add(info);
+    startTicker();
   }
 
   public void processingCompleted() {
@@ -79,22 +132,20 @@ class Watchdog {
   }
 
   public void processingCompleted(Thread thread) {
-    FutureInfo info = inProcess.remove(thread);
+    Timeout info = inProcess.remove(thread);
     if (info == null) {
       throw new IllegalStateException("No processing was started on the "
           + "thread");
     }
-    // Prevent Interrupter from running if it hasn't started already. It may
-    // still be running after this call and Future doesn't tell us if it is
-    // currently running.
-    info.future.cancel(false);
     synchronized (info.interruptNeeded) {
       if (info.interruptNeeded.get()) {
-        // Interrupter hasn't interrupted this thread.
-        // Prevent the Interrupter from interrupting this thread in the future.
+        // Ticker hasn't interrupted this thread.
+        // Prevent the ticker from interrupting this thread in the future.
         info.interruptNeeded.set(false);
+        // Have the ticker unlink it from the wheel.
+        pendingRemoves.add(info);
       } else {
-        // Interrupter has interrupted this thread.
+        // Ticker has interrupted this thread.
         // Clear the interrupt, if not already cleared, since we don't want to
         // interrupt this thread any further.
         thread.interrupted();
@@ -102,41 +153,161 @@ class Watchdog {
     }
   }
 
-  private static class Interrupter implements Runnable {
-    private final Thread thread;
-    /**
-     * Denotes the interrupter has responsibility to interrupt the thread. It
-     * must be cleared after the thread has been interrupted.
-     */
-    private AtomicBoolean interruptNeeded;
-
-    public Interrupter(Thread thread, AtomicBoolean interruptNeeded) {
-      this.thread = thread;
-      this.interruptNeeded = interruptNeeded;
+  private void startTicker() {
+    if (tickerStarted.get() || !tickerStarted.compareAndSet(false, true)) {
+      return;
     }
+    try {
+      tickerFuture = executor.scheduleAtFixedRate(new Ticker(), TICK_MILLIS,
+          TICK_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException ex) {
+      // The executor is shutting down, so timeouts are no longer enforced.
+      tickerStarted.set(false);
+      log.log(Level.FINE, "Could not start watchdog ticker", ex);
+    }
+  }
+
+  @VisibleForTesting
+  boolean isTickerRunning() {
+    return tickerStarted.get();
+  }
 
+  /**
+   * Advances the wheel, interrupting threads whose timeouts expired. Stops
+   * itself once there are no timeouts.
+   */
+  private class Ticker implements Runnable {
+    @Override
     public void run() {
+      // A periodic task that throws is never run again, so timeouts would no
+      // longer be enforced.
+      try {
+        // A replacement ticker may start before this one returns.
+        synchronized (wheel) {
+          tick();
+        }
+      } catch (RuntimeException ex) {
+        log.log(Level.WARNING, "Unexpected exception in watchdog ticker", ex);
+      }
+    }
+
+    private void tick() {
+      long currentTick = (System.nanoTime() - startNanos) / tickNanos;
+      if (wheelCount == 0) {
+        // Nothing to expire in the ticks missed while idle.
+        lastTick = Math.max(lastTick, currentTick - 1);
+      }
+      for (Timeout info; (info = pendingAdds.poll()) != null;) {
+        if (!info.interruptNeeded.get()) {
+          // Already completed.
+          continue;
+        }
+        // Timeouts whose deadline has passed are expired on the next
+        // processed tick.
+        long tick = Math.max(info.deadlineTick, lastTick + 1);
+        wheel[(int) (tick & (WHEEL_SIZE - 1))].add(info);
+        wheelCount++;
+      }
+      for (Timeout info; (info = pendingRemoves.poll()) != null;) {
+        if (info.bucket != null) {
+          info.bucket.remove(info);
+          wheelCount--;
+        }
+      }
+      // Normally one tick, but more if the executor was delayed.
+      for (; lastTick < currentTick; lastTick++) {
+        long tick = lastTick + 1;
+        expire(wheel[(int) (tick & (WHEEL_SIZE - 1))], tick);
+      }
+      ScheduledFuture<?> future = tickerFuture;
+      // The future is null if this runs before startTicker() saved it.
+      if (wheelCount == 0 && pendingAdds.isEmpty() && future != null) {
+        future.cancel(false);
+        tickerFuture = null;
+        tickerStarted.set(false);
+        // A timeout added before tickerStarted was cleared did not start a
+        // ticker.
+        if (!pendingAdds.isEmpty()) {
+          startTicker();
+        }
+      }
+    }
+
+    private void expire(Bucket bucket, long tick) {
+      Timeout info = bucket.head;
+      while (info != null) {
+        Timeout next = info.next;
+        if (info.deadlineTick <= tick) {
+          bucket.remove(info);
+          wheelCount--;
+          interrupt(info);
+        }
+        info = next;
+      }
+    }
+
+    private void interrupt(Timeout info) {
       // Must synchronize to prevent processingCompleted() from attempting to
       // clear the interrupt before interrupt() is called here.
-      synchronized (interruptNeeded) {
-        if (interruptNeeded.get()) {
-          thread.interrupt();
-          interruptNeeded.set(false);
+      synchronized (info.interruptNeeded) {
+        if (info.interruptNeeded.get()) {
+          info.thread.interrupt();
+          info.interruptNeeded.set(false);
+          if (journal != null) {
+            journal.recordWatchdogTimeout();
+          }
         }
       }
     }
   }
 
-  private static class FutureInfo {
-    public final Future<?> future;
+  /**
+   * Doubly-linked list of timeouts. Only accessed by the ticker.
+   */
+  private static class Bucket {
+    private Timeout head;
+
+    public void add(Timeout info) {
+      info.bucket = this;
+      info.next = head;
+      if (head != null) {
+        head.prev = info;
+      }
+      head = info;
+    }
+
+    public void remove(Timeout info) {
+      if (info.prev == null) {
+        head = info.next;
+      } else {
+        info.prev.next = info.next;
+      }
+      if (info.next != null) {
+        info.next.prev = info.prev;
+      }
+      info.bucket = null;
+      info.prev = null;
+      info.next = null;
+    }
+  }
+
+  private static class Timeout {
+    public final Thread thread;
+    /** Tick at or after which the thread should be interrupted. */
+    public final long deadlineTick;
     /**
-     * Denotes that the interrupter has responibility to interrupt the thread.
+     * Denotes that the ticker has responsibility to interrupt the thread. It
+     * must be cleared after the thread has been interrupted.
      */
-    public final AtomicBoolean interruptNeeded;
+    public final AtomicBoolean interruptNeeded = new AtomicBoolean(true);
+    // Wheel bookkeeping. Only accessed by the ticker.
+    public Bucket bucket;
+    public Timeout prev;
+    public Timeout next;
 
-    public FutureInfo(Future<?> future, AtomicBoolean interruptNeeded) {
-      this.future = future;
-      this.interruptNeeded = interruptNeeded;
+    public Timeout(Thread thread, long deadlineTick) {
+      this.thread = thread;
+      this.deadlineTick = deadlineTick;
     }
   }
 }
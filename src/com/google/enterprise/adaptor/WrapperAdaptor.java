@@ -100,7 +100,7 @@ abstract class WrapperAdaptor implements Adaptor {
   /**
    * Passes through all operations to wrapped {@code Response}.
    */
-  public static class WrapperResponse implements Response {
+  public static class WrapperResponse implements ContentWantedResponse {
     private Response response;
 
     public WrapperResponse(Response response) {
@@ -127,6 +127,12 @@ abstract class WrapperAdaptor implements Adaptor {
       return response.getOutputStream();
     }
 
+    @Override
+    public boolean isContentWanted() throws IOException {
+      return !(response instanceof ContentWantedResponse)
+          || ((ContentWantedResponse) response).isContentWanted();
+    }
+
     @Override
     public void setContentType(String contentType) {
       response.setContentType(contentType);
@@ -523,5 +529,20 @@ abstract class WrapperAdaptor implements Adaptor {
     public void setAuthzAuthority(AuthzAuthority authzAuthority) {
       context.setAuthzAuthority(authzAuthority);
     }
+
+    @Override
+    public void setMetadataRetriever(MetadataRetriever metadataRetriever) {
+      context.setMetadataRetriever(metadataRetriever);
+    }
+
+    @Override
+    public void setDocIdPrefetcher(DocIdPrefetcher prefetcher) {
+      context.setDocIdPrefetcher(prefetcher);
+    }
+
+    @Override
+    public GroupGraph getGroupGraph() {
+      return context.getGroupGraph();
+    }
   }
 }
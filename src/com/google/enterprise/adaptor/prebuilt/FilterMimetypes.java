@@ -18,15 +18,20 @@ import static java.util.Arrays.asList;
 import static com.google.enterprise.adaptor.MetadataTransform.TransmissionDecision;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
 import com.google.enterprise.adaptor.Metadata;
 import com.google.enterprise.adaptor.MetadataTransform;
 
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.regex.Pattern;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 /**
@@ -52,10 +57,17 @@ import java.util.logging.Logger;
  *   <li> Check if excluded by matching an excluded pattern
  *       that has a wildcard (*).
  * </ol>
+ *
+ * <p> Patterns with wildcards are compiled once, when the transform is
+ * created. Decisions are cached per content type, in a cache of at most
+ * {@code decisionCacheSize} (default 1000) content types that evicts the
+ * least recently used ones, so that unusual content types cannot make it
+ * grow without bound.
  */
 public class FilterMimetypes implements MetadataTransform {
   private static final Logger log
       = Logger.getLogger(FilterMimetypes.class.getName());
+  private static final int DEFAULT_DECISION_CACHE_SIZE = 1000;
 
   private Set<String> supportedExplicit = new TreeSet<String>();
   private Set<String> unsupportedExplicit = new TreeSet<String>();
@@ -63,17 +75,14 @@ public class FilterMimetypes implements MetadataTransform {
   private Set<String> supportedGlobs = new TreeSet<String>();
   private Set<String> unsupportedGlobs = new TreeSet<String>();
   private Set<String> excludedGlobs = new TreeSet<String>();
-  private Map<String, String> decided;
-
-  private synchronized String lookupDecision(String ct) {
-    return decided.get(ct);
-  }
-
-  private synchronized void insertDecision(String ct, String d) {
-    decided.put(ct, d);
-  }
+  private final CompiledGlobs supportedMatcher;
+  private final CompiledGlobs unsupportedMatcher;
+  private final CompiledGlobs excludedMatcher;
+  /** Decision for each content type; absent for unknown content types. */
+  private final LoadingCache<String, Optional<TransmissionDecision>> decided;
 
-  private FilterMimetypes(Set<String> s, Set<String> u, Set<String> e) {
+  private FilterMimetypes(Set<String> s, Set<String> u, Set<String> e,
+      int decisionCacheSize) {
     if (null == s || null == u || null == e) {
       throw new NullPointerException();
     }
@@ -86,7 +95,16 @@ public class FilterMimetypes implements MetadataTransform {
     supportedGlobs = Collections.unmodifiableSet(supportedGlobs);
     unsupportedGlobs = Collections.unmodifiableSet(unsupportedGlobs);
     excludedGlobs = Collections.unmodifiableSet(excludedGlobs);
-    decided = new HashMap<String, String>();
+    supportedMatcher = new CompiledGlobs(supportedGlobs);
+    unsupportedMatcher = new CompiledGlobs(unsupportedGlobs);
+    excludedMatcher = new CompiledGlobs(excludedGlobs);
+    decided = CacheBuilder.newBuilder().maximumSize(decisionCacheSize)
+        .build(new CacheLoader<String, Optional<TransmissionDecision>>() {
+          @Override
+          public Optional<TransmissionDecision> load(String ct) {
+            return Optional.fromNullable(decide(ct));
+          }
+        });
   }
 
   private void split(Set<String> globs, Set<String> explicit, Set<String> src) {
@@ -129,43 +147,47 @@ public class FilterMimetypes implements MetadataTransform {
       ct = ct.substring(0, semicolonIndex);
     }
     ct = ct.trim().toLowerCase();
-    String decision = lookupDecision(ct);
+    TransmissionDecision decision = decided.getUnchecked(ct).orNull();
     if (null != decision) {
-      params.put("Transmission-Decision", decision);
-      return;
+      params.put(MetadataTransform.KEY_TRANSMISSION_DECISION,
+          decision.toString());
     }
+  }
+
+  /**
+   * Returns the decision for the normalized content type, or {@code null} if
+   * it is unknown.
+   */
+  private TransmissionDecision decide(String ct) {
     if (supportedExplicit.contains(ct)) {
       log.log(Level.FINE, ct + "is explicitly supported");
-      insertDecision(ct, TransmissionDecision.AS_IS.toString());
-      params.put(MetadataTransform.KEY_TRANSMISSION_DECISION,
-          TransmissionDecision.AS_IS.toString());
+      return TransmissionDecision.AS_IS;
     } else if (unsupportedExplicit.contains(ct)) {
       log.log(Level.FINE, ct + "is explicitly unsupported");
-      insertDecision(ct, TransmissionDecision.DO_NOT_INDEX_CONTENT.toString());
-      params.put(MetadataTransform.KEY_TRANSMISSION_DECISION,
-          TransmissionDecision.DO_NOT_INDEX_CONTENT.toString());
+      return TransmissionDecision.DO_NOT_INDEX_CONTENT;
     } else if (excludedExplicit.contains(ct)) {
       log.log(Level.FINE, ct + "is explicitly excluded");
-      insertDecision(ct, TransmissionDecision.DO_NOT_INDEX.toString());
-      params.put(MetadataTransform.KEY_TRANSMISSION_DECISION,
-          TransmissionDecision.DO_NOT_INDEX.toString());
-    } else if (matches(supportedGlobs, ct, "supported by glob")) {
-      insertDecision(ct, TransmissionDecision.AS_IS.toString());
-      params.put(MetadataTransform.KEY_TRANSMISSION_DECISION,
-          TransmissionDecision.AS_IS.toString());
-    } else if (matches(unsupportedGlobs, ct, "unsupported by glob")) {
-      insertDecision(ct, TransmissionDecision.DO_NOT_INDEX_CONTENT.toString());
-      params.put(MetadataTransform.KEY_TRANSMISSION_DECISION,
-          TransmissionDecision.DO_NOT_INDEX_CONTENT.toString());
-    } else if (matches(excludedGlobs, ct, "excluded by glob")) {
-      insertDecision(ct, TransmissionDecision.DO_NOT_INDEX.toString());
-      params.put(MetadataTransform.KEY_TRANSMISSION_DECISION,
-          TransmissionDecision.DO_NOT_INDEX.toString());
+      return TransmissionDecision.DO_NOT_INDEX;
+    } else if (supportedMatcher.matches(ct, "supported by glob")) {
+      return TransmissionDecision.AS_IS;
+    } else if (unsupportedMatcher.matches(ct, "unsupported by glob")) {
+      return TransmissionDecision.DO_NOT_INDEX_CONTENT;
+    } else if (excludedMatcher.matches(ct, "excluded by glob")) {
+      return TransmissionDecision.DO_NOT_INDEX;
     } else {
       log.info("unknown mime-type: " + ct);
+      return null;
     }
   }
 
+  /**
+   * Statistics of the decision cache, such as its hit rate. Misses are content
+   * types that had to be matched against the configured patterns.
+   */
+  public CacheStats getDecisionCacheStats() {
+    return decided.stats();
+  }
+
   /**
    *  The glob has wildcards. No other characters are special;
    *  not periods and not question marks. Only widlcards are
@@ -173,26 +195,44 @@ public class FilterMimetypes implements MetadataTransform {
    */
   @VisibleForTesting
   static boolean wildcardmatch(String glob, String str) {
+    return compileGlob(glob).matcher(str).matches();
+  }
+
+  private static Pattern compileGlob(String glob) {
     String parts[] = glob.split("\\*", -1);
     StringBuilder regex = new StringBuilder();
     for (int i = 0; i < parts.length; i++) {
-      regex.append(java.util.regex.Pattern.quote(parts[i]));
+      regex.append(Pattern.quote(parts[i]));
       if ((i + 1) != parts.length) {
         regex.append(".*");
       }
     }
-    return str.matches(regex.toString());
+    return Pattern.compile(regex.toString());
   }
 
-  private static boolean matches(Set<String> pats, String ct, String label) {
-    for (String pat : pats) {
-      if (wildcardmatch(pat, ct)) {
-        log.log(Level.FINE, "{0} matches {1} and is {2}",
-            new Object[] {ct, pat, label});
-        return true;
+  /** Globs compiled once, for matching many content types. */
+  private static class CompiledGlobs {
+    private final String[] globs;
+    private final Pattern[] patterns;
+
+    CompiledGlobs(Set<String> globs) {
+      this.globs = globs.toArray(new String[globs.size()]);
+      this.patterns = new Pattern[this.globs.length];
+      for (int i = 0; i < this.globs.length; i++) {
+        patterns[i] = compileGlob(this.globs[i]);
       }
     }
-    return false;
+
+    boolean matches(String ct, String label) {
+      for (int i = 0; i < patterns.length; i++) {
+        if (patterns[i].matcher(ct).matches()) {
+          log.log(Level.FINE, "{0} matches {1} and is {2}",
+              new Object[] {ct, globs[i], label});
+          return true;
+        }
+      }
+      return false;
+    }
   }
 
   @Override
@@ -265,7 +305,16 @@ public class FilterMimetypes implements MetadataTransform {
     log.log(Level.INFO, "Setting supported mime types to: {0}", supported);
     log.log(Level.INFO, "Setting unsupported mime types to: {0}", unsupported);
     log.log(Level.INFO, "Setting excluded mime types to: {0}", excluded);
-    return new FilterMimetypes(supported, unsupported, excluded);
+    int decisionCacheSize = DEFAULT_DECISION_CACHE_SIZE;
+    if (cfg.containsKey("decisionCacheSize")) {
+      decisionCacheSize = Integer.parseInt(cfg.get("decisionCacheSize"));
+      if (decisionCacheSize < 0) {
+        throw new IllegalArgumentException(
+            "decisionCacheSize must not be negative: " + decisionCacheSize);
+      }
+    }
+    return new FilterMimetypes(supported, unsupported, excluded,
+        decisionCacheSize);
   }
 
   private static final String SUPPORTED
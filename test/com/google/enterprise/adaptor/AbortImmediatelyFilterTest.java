@@ -34,7 +34,8 @@ public class AbortImmediatelyFilterTest {
   @Rule
   public ExpectedException thrown = ExpectedException.none();
 
-  private Filter filter = new AbortImmediatelyFilter();
+  private Journal journal = new Journal(new MockTimeProvider());
+  private Filter filter = new AbortImmediatelyFilter(journal, 10);
   private List<Filter> filters = Arrays.asList(filter);
   private MockHttpExchange ex = new MockHttpExchange("GET", "/",
       new MockHttpContext("/"));
@@ -50,16 +51,24 @@ public class AbortImmediatelyFilterTest {
     assertEquals(200, ex.getResponseCode());
   }
 
+  @Test
+  public void testNullJournal() {
+    thrown.expect(NullPointerException.class);
+    new AbortImmediatelyFilter(null, 10);
+  }
+
   @Test
   public void testOverloaded() throws Exception {
     Filter.Chain chain = new Filter.Chain(filters, new SuccessHandler());
     HttpExchanges.abortImmediately.set(new Object());
-    thrown.expect(IOException.class);
     try {
       chain.doFilter(ex);
     } finally {
       HttpExchanges.abortImmediately.set(null);
     }
+    assertEquals(503, ex.getResponseCode());
+    assertEquals("10", ex.getResponseHeaders().getFirst("Retry-After"));
+    assertEquals(1, journal.getSnapshot().numShedRequests);
   }
 
   private static class SuccessHandler implements HttpHandler {
@@ -0,0 +1,148 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Measures checking a user against a chain of ACLs for users in increasing
+ * numbers of groups. For comparison, it also measures the local check as
+ * {@link Acl} used to do it, copying and intersecting the principal sets
+ * during every check. Not run as part of the tests; run manually with:
+ *
+ * <pre>java -cp build/src:build/test:lib/* \
+ *   com.google.enterprise.adaptor.AclBenchmark [iterations] [chain length]
+ * </pre>
+ */
+public class AclBenchmark {
+  private static final Locale CASE_LOCALE = Locale.ENGLISH;
+  private static volatile Object sink;
+
+  public static void main(String[] args) {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int depth = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    for (boolean caseSensitive : new boolean[] {true, false}) {
+      List<Acl> chain = createChain(depth, caseSensitive);
+      for (int groups : new int[] {10, 200, 2000}) {
+        AuthnIdentity identity = createIdentity(groups);
+        // Warm up, then measure.
+        double compiled = 0;
+        double copied = 0;
+        for (int round = 0; round < 2; round++) {
+          long start = System.nanoTime();
+          for (int i = 0; i < iterations; i++) {
+            sink = Acl.isAuthorized(identity, chain);
+          }
+          long middle = System.nanoTime();
+          for (int i = 0; i < iterations; i++) {
+            for (Acl acl : chain) {
+              sink = legacyIsAuthorizedLocal(acl, identity);
+            }
+          }
+          long end = System.nanoTime();
+          compiled = (double) (middle - start) / iterations;
+          copied = (double) (end - middle) / iterations;
+        }
+        System.out.println(String.format(
+            "case %-11s %4d groups: isAuthorized %10.1f ns  "
+            + "old local checks %10.1f ns",
+            caseSensitive ? "sensitive" : "insensitive", groups, compiled,
+            copied));
+      }
+    }
+  }
+
+  private static List<Acl> createChain(int depth, boolean caseSensitive) {
+    List<Acl> chain = new ArrayList<Acl>();
+    DocId parent = null;
+    for (int i = 0; i < depth; i++) {
+      Acl.Builder builder = new Acl.Builder()
+          .setPermitGroups(Collections.singleton(
+              new GroupPrincipal("Unused" + i)))
+          .setDenyGroups(Collections.singleton(
+              new GroupPrincipal("Denied" + i)))
+          .setInheritFrom(parent)
+          .setInheritanceType(Acl.InheritanceType.CHILD_OVERRIDES);
+      if (!caseSensitive) {
+        builder.setEverythingCaseInsensitive();
+      }
+      chain.add(builder.build());
+      parent = new DocId("doc" + i);
+    }
+    return chain;
+  }
+
+  private static AuthnIdentity createIdentity(int groups) {
+    Set<GroupPrincipal> set = new HashSet<GroupPrincipal>();
+    for (int i = 0; i < groups; i++) {
+      set.add(new GroupPrincipal("Group" + i));
+    }
+    return new AuthnIdentityImpl.Builder(new UserPrincipal("user"))
+        .setGroups(set).build();
+  }
+
+  /** The local check as it was before ACLs were precomputed. */
+  private static AuthzStatus legacyIsAuthorizedLocal(Acl acl,
+      AuthnIdentity identity) {
+    boolean caseSensitive = acl.isEverythingCaseSensitive();
+    Set<GroupPrincipal> commonGroups;
+    if (caseSensitive) {
+      commonGroups = new HashSet<GroupPrincipal>(acl.getDenyGroups());
+    } else {
+      commonGroups = cmpWrap(acl.getDenyGroups());
+    }
+    Set<GroupPrincipal> userGroups = identity.getGroups();
+    if (!caseSensitive) {
+      userGroups = Collections.unmodifiableSet(cmpWrap(userGroups));
+    }
+    commonGroups.retainAll(userGroups);
+    if (acl.getDenyUsers().contains(identity.getUser())
+        || !commonGroups.isEmpty()) {
+      return AuthzStatus.DENY;
+    }
+    commonGroups.clear();
+    commonGroups.addAll(acl.getPermitGroups());
+    commonGroups.retainAll(userGroups);
+    if (acl.getPermitUsers().contains(identity.getUser())
+        || !commonGroups.isEmpty()) {
+      return AuthzStatus.PERMIT;
+    }
+    return AuthzStatus.INDETERMINATE;
+  }
+
+  private static <P extends Principal> Set<P> cmpWrap(Set<P> unwrapped) {
+    Set<P> tmp = new TreeSet<P>(new Comparator<P>() {
+      @Override
+      public int compare(P p1, P p2) {
+        int nscmp = p1.getNamespace().toLowerCase(CASE_LOCALE)
+            .compareTo(p2.getNamespace().toLowerCase(CASE_LOCALE));
+        if (nscmp != 0) {
+          return nscmp;
+        }
+        return p1.getName().toLowerCase(CASE_LOCALE)
+            .compareTo(p2.getName().toLowerCase(CASE_LOCALE));
+      }
+    });
+    tmp.addAll(unwrapped);
+    return tmp;
+  }
+}
@@ -0,0 +1,157 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link AclCache}. */
+public class AclCacheTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final DocId root = new DocId("root");
+  private final DocId folder = new DocId("folder");
+  private final DocId file1 = new DocId("file1");
+  private final DocId file2 = new DocId("file2");
+  private final MockTicker ticker = new MockTicker();
+  private final AclCache cache
+      = new AclCache(100, 10, TimeUnit.SECONDS, ticker);
+  private final CountingRetriever retriever = new CountingRetriever();
+  private final AuthnIdentity user
+      = new AuthnIdentityImpl.Builder(new UserPrincipal("user"))
+          .setGroups(Collections.<GroupPrincipal>emptySet()).build();
+
+  public AclCacheTest() {
+    retriever.acls.put(root, new Acl.Builder()
+        .setPermitUsers(Collections.singleton(new UserPrincipal("user")))
+        .setInheritanceType(Acl.InheritanceType.CHILD_OVERRIDES).build());
+    retriever.acls.put(folder, new Acl.Builder().setInheritFrom(root)
+        .setInheritanceType(Acl.InheritanceType.CHILD_OVERRIDES).build());
+    retriever.acls.put(file1, new Acl.Builder().setInheritFrom(folder).build());
+    retriever.acls.put(file2, new Acl.Builder().setInheritFrom(folder).build());
+  }
+
+  @Test
+  public void testNegativeSize() {
+    thrown.expect(IllegalArgumentException.class);
+    new AclCache(-1, 10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testAncestorsRetrievedOnce() throws Exception {
+    assertEquals(AuthzStatus.PERMIT, Acl.isAuthorizedBatch(user,
+        Arrays.asList(file1), retriever, cache).get(file1));
+    assertEquals(sets(file1, folder, root),
+        retriever.requests);
+    retriever.requests.clear();
+
+    assertEquals(AuthzStatus.PERMIT, Acl.isAuthorizedBatch(user,
+        Arrays.asList(file1, file2), retriever, cache).get(file2));
+    assertEquals(sets(file2), retriever.requests);
+    // file1, folder and root were cached.
+    assertEquals(3, cache.getStats().hitCount());
+  }
+
+  @Test
+  public void testSameResultsAsUncached() throws Exception {
+    List<DocId> ids = Arrays.asList(file1, file2, folder, root,
+        new DocId("missing"));
+    Map<DocId, AuthzStatus> expected
+        = Acl.isAuthorizedBatch(user, ids, retriever);
+    assertEquals(expected, Acl.isAuthorizedBatch(user, ids, retriever, cache));
+    assertEquals(expected, Acl.isAuthorizedBatch(user, ids, retriever, cache));
+  }
+
+  @Test
+  public void testExpires() throws Exception {
+    Acl.isAuthorizedBatch(user, Arrays.asList(folder), retriever, cache);
+    ticker.advance(TimeUnit.SECONDS.toNanos(11));
+    retriever.requests.clear();
+    Acl.isAuthorizedBatch(user, Arrays.asList(folder), retriever, cache);
+    assertEquals(sets(folder, root), retriever.requests);
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    Acl.isAuthorizedBatch(user, Arrays.asList(file1), retriever, cache);
+    retriever.acls.put(folder, new Acl.Builder().setInheritFrom(root)
+        .setDenyUsers(Collections.singleton(new UserPrincipal("user")))
+        .setInheritanceType(Acl.InheritanceType.CHILD_OVERRIDES).build());
+    assertEquals(AuthzStatus.PERMIT, Acl.isAuthorizedBatch(user,
+        Arrays.asList(file1), retriever, cache).get(file1));
+
+    cache.invalidate(folder);
+    assertEquals(AuthzStatus.DENY, Acl.isAuthorizedBatch(user,
+        Arrays.asList(file1), retriever, cache).get(file1));
+
+    retriever.requests.clear();
+    cache.invalidateAll();
+    Acl.isAuthorizedBatch(user, Arrays.asList(file1), retriever, cache);
+    assertEquals(3, retriever.requests.size());
+  }
+
+  @Test
+  public void testMissingNotCached() throws Exception {
+    DocId missing = new DocId("missing");
+    Acl.isAuthorizedBatch(user, Arrays.asList(missing), retriever, cache);
+    Acl.isAuthorizedBatch(user, Arrays.asList(missing), retriever, cache);
+    assertEquals(sets(missing, missing),
+        retriever.requests);
+  }
+
+  private static Set<DocId> set(DocId... ids) {
+    return new HashSet<DocId>(Arrays.asList(ids));
+  }
+
+  /** Returns a list of single-DocId sets, as requested one at a time. */
+  private static List<Set<DocId>> sets(DocId... ids) {
+    List<Set<DocId>> sets = new ArrayList<Set<DocId>>();
+    for (DocId id : ids) {
+      sets.add(set(id));
+    }
+    return sets;
+  }
+
+  private static class CountingRetriever implements Acl.BatchRetriever {
+    final Map<DocId, Acl> acls = new HashMap<DocId, Acl>();
+    final List<Set<DocId>> requests = new ArrayList<Set<DocId>>();
+
+    @Override
+    public Map<DocId, Acl> retrieveAcls(Set<DocId> ids) {
+      requests.add(new HashSet<DocId>(ids));
+      Map<DocId, Acl> result = new HashMap<DocId, Acl>();
+      for (DocId id : ids) {
+        if (acls.containsKey(id)) {
+          result.put(id, acls.get(id));
+        }
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,199 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** Unit tests for {@link AclDeduplicator}. */
+public class AclDeduplicatorTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final Journal journal = new Journal(new MockTimeProvider());
+  private final RecordingPusher pusher = new RecordingPusher();
+  private final AclDeduplicator dedup
+      = new AclDeduplicator("shared/", 3, 10, pusher, journal);
+  private final Acl large = new Acl.Builder()
+      .setPermitUsers(Arrays.asList(new UserPrincipal("u1"),
+          new UserPrincipal("u2")))
+      .setDenyGroups(Arrays.asList(new GroupPrincipal("g1")))
+      .setInheritFrom(new DocId("parent"))
+      .setInheritanceType(Acl.InheritanceType.CHILD_OVERRIDES)
+      .build();
+
+  @Test
+  public void testInvalidMinPrincipals() {
+    thrown.expect(IllegalArgumentException.class);
+    new AclDeduplicator("shared/", 0, 10, pusher, journal);
+  }
+
+  @Test
+  public void testNullPusher() {
+    thrown.expect(NullPointerException.class);
+    new AclDeduplicator("shared/", 1, 10, null, journal);
+  }
+
+  @Test
+  public void testSmallAclUnchanged() {
+    Acl small = new Acl.Builder()
+        .setPermitUsers(Arrays.asList(new UserPrincipal("u1"),
+            new UserPrincipal("u2")))
+        .build();
+    assertSame(small, dedup.deduplicate(small));
+    assertNull(dedup.deduplicate(null));
+    assertTrue(pusher.items.isEmpty());
+    assertEquals(0, journal.getSnapshot().numSharedAcls);
+  }
+
+  @Test
+  public void testLargeAclSharedOnce() {
+    Acl first = dedup.deduplicate(large);
+    assertEquals(1, pusher.items.size());
+    DocIdSender.AclItem item = (DocIdSender.AclItem) pusher.items.get(0);
+    DocId sharedId = new DocId("shared/" + AclDeduplicator.fingerprint(large));
+    assertEquals(sharedId, item.getDocId());
+    assertEquals(AclDeduplicator.FRAGMENT, item.getDocIdFragment());
+    assertEquals(new Acl.Builder(large)
+        .setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES).build(),
+        item.getAcl());
+    assertEquals(new Acl.Builder()
+        .setInheritFrom(sharedId, AclDeduplicator.FRAGMENT)
+        .setInheritanceType(Acl.InheritanceType.CHILD_OVERRIDES).build(),
+        first);
+
+    // An equal ACL, even with a different inheritance type, shares the
+    // named resource without pushing it again.
+    Acl second = dedup.deduplicate(new Acl.Builder(large)
+        .setInheritanceType(Acl.InheritanceType.LEAF_NODE).build());
+    assertEquals(1, pusher.items.size());
+    assertEquals(new Acl.Builder(first)
+        .setInheritanceType(Acl.InheritanceType.LEAF_NODE).build(), second);
+    assertEquals(2, journal.getSnapshot().numSharedAcls);
+    assertEquals(1, journal.getSnapshot().numSharedAclsPushed);
+  }
+
+  @Test
+  public void testSharedAclAuthorizesLikeOriginal() {
+    final Acl shared = dedup.deduplicate(large);
+    final Acl namedResource
+        = ((DocIdSender.AclItem) pusher.items.get(0)).getAcl();
+    final Acl parent = new Acl.Builder()
+        .setPermitUsers(Arrays.asList(new UserPrincipal("u3")))
+        .setInheritanceType(Acl.InheritanceType.CHILD_OVERRIDES).build();
+    for (String user : new String[] {"u1", "u3", "u4"}) {
+      for (boolean inGroup : new boolean[] {false, true}) {
+        AuthnIdentity identity
+            = new AuthnIdentityImpl.Builder(new UserPrincipal(user))
+            .setGroups(inGroup
+                ? Collections.singleton(new GroupPrincipal("g1"))
+                : Collections.<GroupPrincipal>emptySet()).build();
+        assertEquals(identity.toString(),
+            Acl.isAuthorized(identity, Arrays.asList(parent, large)),
+            Acl.isAuthorized(identity,
+                Arrays.asList(parent, namedResource, shared)));
+      }
+    }
+  }
+
+  @Test
+  public void testDifferentAclsNotShared() {
+    dedup.deduplicate(large);
+    dedup.deduplicate(new Acl.Builder(large)
+        .setInheritFrom(new DocId("parent"), "fragment").build());
+    dedup.deduplicate(new Acl.Builder(large)
+        .setEverythingCaseInsensitive().build());
+    dedup.deduplicate(new Acl.Builder(large)
+        .setPermitUsers(Arrays.asList(new UserPrincipal("u1"),
+            new UserPrincipal("u3"))).build());
+    dedup.deduplicate(new Acl.Builder(large)
+        .setPermitUsers(Arrays.<UserPrincipal>asList())
+        .setPermitGroups(Arrays.asList(new GroupPrincipal("u1"),
+            new GroupPrincipal("u2"))).build());
+    assertEquals(5, pusher.items.size());
+  }
+
+  @Test
+  public void testFailedPushNotRemembered() {
+    pusher.accept = false;
+    assertSame(large, dedup.deduplicate(large));
+    assertEquals(0, journal.getSnapshot().numSharedAcls);
+    pusher.accept = true;
+    assertFalse(large.equals(dedup.deduplicate(large)));
+    assertEquals(2, pusher.items.size());
+  }
+
+  @Test
+  public void testNotSharedUntilQueued() {
+    final List<Acl> during = new ArrayList<Acl>();
+    final AclDeduplicator[] holder = new AclDeduplicator[1];
+    holder[0] = new AclDeduplicator("shared/", 3, 10,
+        new DocumentHandler.AsyncPusher() {
+          @Override
+          public boolean asyncPushItem(DocIdSender.Item item) {
+            // Another document with the same ACL, while this one queues.
+            during.add(holder[0].deduplicate(large));
+            return true;
+          }
+        }, journal);
+    assertFalse(large.equals(holder[0].deduplicate(large)));
+    assertEquals(1, during.size());
+    assertSame(large, during.get(0));
+    assertEquals(1, journal.getSnapshot().numSharedAcls);
+  }
+
+  @Test
+  public void testNotSentAclPushedAgain() {
+    dedup.deduplicate(large);
+    dedup.itemsSent(pusher.items);
+    dedup.deduplicate(large);
+    assertEquals(1, pusher.items.size());
+    dedup.itemsNotSent(new ArrayList<DocIdSender.Item>(pusher.items));
+    dedup.deduplicate(large);
+    assertEquals(2, pusher.items.size());
+  }
+
+  @Test
+  public void testForgottenAclPushedAgain() {
+    AclDeduplicator forgetful
+        = new AclDeduplicator("shared/", 1, 0, pusher, journal);
+    forgetful.deduplicate(large);
+    forgetful.deduplicate(large);
+    assertEquals(2, pusher.items.size());
+  }
+
+  private static class RecordingPusher implements DocumentHandler.AsyncPusher {
+    final List<DocIdSender.Item> items = new ArrayList<DocIdSender.Item>();
+    boolean accept = true;
+
+    @Override
+    public boolean asyncPushItem(DocIdSender.Item item) {
+      items.add(item);
+      return accept;
+    }
+  }
+}
@@ -1105,6 +1105,78 @@ public class AclTest {
         createIdentity("unknownUser")));
   }
 
+  @Test
+  public void testCaseInsensitiveGroups() {
+    Acl acl = new Acl.Builder()
+        .setPermitGroups(G("PermiTGroup"))
+        .setDenyGroups(Sets.newHashSet(new GroupPrincipal("DenYGroup", "NS")))
+        .setEverythingCaseInsensitive()
+        .build();
+    assertEquals(AuthzStatus.PERMIT, acl.isAuthorizedLocal(
+        createIdentity("user", "other", "PERMITGROUP")));
+    assertEquals(AuthzStatus.INDETERMINATE, acl.isAuthorizedLocal(
+        createIdentity("user", "DenYGroup")));
+    Set<GroupPrincipal> groups = Sets.newHashSet(
+        new GroupPrincipal("permitgroup"),
+        new GroupPrincipal("denygroup", "ns"));
+    assertEquals(AuthzStatus.DENY, acl.isAuthorizedLocal(
+        new AuthnIdentityImpl.Builder(new UserPrincipal("user"))
+        .setGroups(groups).build()));
+  }
+
+  @Test
+  public void testCaseInsensitiveKeyUnambiguous() {
+    assertFalse(Acl.caseInsensitiveKey(new GroupPrincipal("bc", "a")).equals(
+        Acl.caseInsensitiveKey(new GroupPrincipal("c", "ab"))));
+    assertEquals(Acl.caseInsensitiveKey(new GroupPrincipal("Bc", "A")),
+        Acl.caseInsensitiveKey(new GroupPrincipal("bC", "a")));
+  }
+
+  @Test
+  public void testNullGroups() {
+    Acl acl = new Acl.Builder().setPermitGroups(G("group")).build();
+    AuthnIdentity identity
+        = new AuthnIdentityImpl.Builder(new UserPrincipal("user")).build();
+    assertEquals(AuthzStatus.INDETERMINATE, acl.isAuthorizedLocal(identity));
+  }
+
+  @Test
+  public void testManyGroupsDeepChain() throws IOException {
+    List<String> groupNames = new ArrayList<String>();
+    for (int i = 0; i < 2000; i++) {
+      groupNames.add("Group" + i);
+    }
+    AuthnIdentity identity = createIdentity("user", groupNames);
+    final Map<DocId, Acl> acls = new HashMap<DocId, Acl>();
+    DocId parent = null;
+    for (int i = 0; i < 10; i++) {
+      DocId id = new DocId("doc" + i);
+      acls.put(id, new Acl.Builder()
+          .setPermitGroups(G("other" + i, "GROUP" + (i * 100)))
+          .setDenyGroups(G("denied" + i))
+          .setInheritFrom(parent)
+          .setInheritanceType(Acl.InheritanceType.CHILD_OVERRIDES)
+          .setEverythingCaseInsensitive()
+          .build());
+      parent = id;
+    }
+    Acl.BatchRetriever retriever = new Acl.BatchRetriever() {
+      @Override
+      public Map<DocId, Acl> retrieveAcls(Set<DocId> ids) {
+        Map<DocId, Acl> result = new HashMap<DocId, Acl>();
+        for (DocId id : ids) {
+          result.put(id, acls.get(id));
+        }
+        return result;
+      }
+    };
+    assertEquals(Collections.singletonMap(parent, AuthzStatus.PERMIT),
+        Acl.isAuthorizedBatch(identity, Arrays.asList(parent), retriever));
+    assertEquals(Collections.singletonMap(parent, AuthzStatus.DENY),
+        Acl.isAuthorizedBatch(createIdentity("user", "denied9", "group0"),
+          Arrays.asList(parent), retriever));
+  }
+
   private AuthnIdentity createIdentity(String username, String... groups) {
     return createIdentity(username, Arrays.asList(groups));
   }
@@ -0,0 +1,99 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import com.google.enterprise.adaptor.AclTransform.MatchData;
+import com.google.enterprise.adaptor.AclTransform.Rule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures transforming ACLs with rule sets like those of {@link
+ * AclTransformTest}: domain mappings matching literal values, followed by a
+ * few regular expression rules. ACLs draw their principals from a shared pool,
+ * as documents in a repository do. It compares remembering transformed
+ * principals with transforming every principal. Not run as part of the tests;
+ * run manually with:
+ *
+ * <pre>java -cp build/src:build/test:lib/* \
+ *   com.google.enterprise.adaptor.AclTransformBenchmark [iterations] [rules]
+ * </pre>
+ */
+public class AclTransformBenchmark {
+  /** Number of distinct users and groups ACLs are made from. */
+  private static final int POOL = 2000;
+  private static final int ACLS = 1000;
+  private static final int PRINCIPALS_PER_ACL = 20;
+  private static volatile Object sink;
+
+  public static void main(String[] args) {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+    int ruleCount = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    List<Rule> rules = new ArrayList<Rule>();
+    for (int i = 0; i < ruleCount - 2; i++) {
+      rules.add(new Rule(new MatchData(null, null, "DOMAIN" + i, null),
+          new MatchData(null, null, "domain" + i + ".example.com", null)));
+    }
+    rules.add(new Rule(new MatchData(true, "(.*)", "(.)(.*)", null),
+        new MatchData(null, "\\domain1\\name1", null, null)));
+    rules.add(new Rule(new MatchData(false, null, null, "ns[0-9]"),
+        new MatchData(null, null, null, "Default")));
+
+    Random random = new Random(0);
+    Principal[] pool = new Principal[POOL];
+    for (int i = 0; i < POOL; i++) {
+      String name = "DOMAIN" + random.nextInt(ruleCount) + "\\principal" + i;
+      String namespace = "ns" + random.nextInt(3);
+      pool[i] = i % 2 == 0 ? new UserPrincipal(name, namespace)
+          : new GroupPrincipal(name, namespace);
+    }
+    List<Acl> acls = new ArrayList<Acl>(ACLS);
+    for (int i = 0; i < ACLS; i++) {
+      List<Principal> permits = new ArrayList<Principal>();
+      for (int j = 0; j < PRINCIPALS_PER_ACL; j++) {
+        permits.add(pool[random.nextInt(POOL)]);
+      }
+      acls.add(new Acl.Builder().setPermits(permits).build());
+    }
+
+    AclTransform memoized = new AclTransform(rules);
+    AclTransform unmemoized = new AclTransform(rules, 0);
+    // Warm up, then measure.
+    for (int round = 0; round < 2; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        for (Acl acl : acls) {
+          sink = memoized.transform(acl);
+        }
+      }
+      long middle = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        for (Acl acl : acls) {
+          sink = unmemoized.transform(acl);
+        }
+      }
+      long end = System.nanoTime();
+      if (round == 1) {
+        long count = (long) iterations * ACLS;
+        System.out.println(String.format(
+            "%d rules: memoized %9.1f ns/acl   not memoized %9.1f ns/acl",
+            ruleCount, (double) (middle - start) / count,
+            (double) (end - middle) / count));
+      }
+    }
+  }
+}
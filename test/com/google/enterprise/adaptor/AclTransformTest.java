@@ -191,6 +191,110 @@ public class AclTransformTest {
           .build(),
         new AclTransform(rules).transform(baseAcl));  }
 
+  @Test
+  public void testUnchangedAclNotRebuilt() {
+    List<Rule> rules = Arrays.asList(
+        new Rule(new MatchData(null, "nonmatching", null, null),
+          new MatchData(null, "noprincipal", "nodomain", "nons")),
+        new Rule(new MatchData(true, "g1", null, "ns1"),
+          new MatchData(null, null, null, null)));
+    assertSame(baseAcl, new AclTransform(rules).transform(baseAcl));
+  }
+
+  @Test
+  public void testTransformedPrincipalRemembered() {
+    List<Rule> rules = Arrays.asList(
+        new Rule(new MatchData(null, "(.*)", null, null),
+          new MatchData(null, "x\\name1", null, null)));
+    AclTransform transform = new AclTransform(rules);
+    UserPrincipal first = transform.transform(new UserPrincipal("u1"));
+    assertEquals(new UserPrincipal("xu1"), first);
+    assertSame(first, transform.transform(new UserPrincipal("u1")));
+    // Users and groups are remembered separately.
+    assertEquals(new GroupPrincipal("xu1"),
+        transform.transform(new GroupPrincipal("u1")));
+  }
+
+  @Test
+  public void testWithoutMemo() {
+    List<Rule> rules = Arrays.asList(
+        new Rule(new MatchData(null, "(.*)", null, null),
+          new MatchData(null, "x\\name1", null, null)));
+    AclTransform transform = new AclTransform(rules, 0);
+    assertEquals(new UserPrincipal("xu1"),
+        transform.transform(new UserPrincipal("u1")));
+    assertEquals(new UserPrincipal("xu1"),
+        transform.transform(new UserPrincipal("u1")));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeMemoSize() {
+    new AclTransform(Arrays.<Rule>asList(), -1);
+  }
+
+  @Test
+  public void testRulesAppliedInOrder() {
+    // Each rule sees the output of the rules before it, whether or not the
+    // rules are indexed by a literal value.
+    Rule aToB = new Rule(new MatchData(null, "a", null, null),
+        new MatchData(null, "b", null, null));
+    Rule bToC = new Rule(new MatchData(null, "b", null, null),
+        new MatchData(null, "c", null, null));
+    Rule anyDomain = new Rule(new MatchData(null, null, ".*", null),
+        new MatchData(null, null, "d", null));
+    Rule dToNs = new Rule(new MatchData(null, null, "d", null),
+        new MatchData(null, null, null, "ns"));
+    UserPrincipal user = new UserPrincipal("a");
+    assertEquals(new UserPrincipal("d\\c", "ns"),
+        new AclTransform(Arrays.asList(aToB, bToC, anyDomain, dToNs))
+        .transform(user));
+    assertEquals(new UserPrincipal("b"),
+        new AclTransform(Arrays.asList(bToC, aToB)).transform(user));
+    assertEquals(new UserPrincipal("d\\b"),
+        new AclTransform(Arrays.asList(dToNs, anyDomain, aToB))
+        .transform(user));
+  }
+
+  @Test
+  public void testLiteralMatchIsExact() {
+    List<Rule> rules = Arrays.asList(
+        new Rule(new MatchData(false, "u-1", "", "Default"),
+          new MatchData(null, "found", null, null)));
+    AclTransform transform = new AclTransform(rules);
+    assertEquals(new UserPrincipal("found"),
+        transform.transform(new UserPrincipal("u-1")));
+    assertEquals(new UserPrincipal("U-1"),
+        transform.transform(new UserPrincipal("U-1")));
+    assertEquals(new UserPrincipal("u-1@d"),
+        transform.transform(new UserPrincipal("u-1@d")));
+    assertEquals(new GroupPrincipal("u-1"),
+        transform.transform(new GroupPrincipal("u-1")));
+  }
+
+  @Test
+  public void testEscapedLiteralMatchIsExact() {
+    List<Rule> rules = Arrays.asList(
+        new Rule(new MatchData(null, null, "example\\.com", null),
+          new MatchData(null, null, "found", null)));
+    AclTransform transform = new AclTransform(rules);
+    assertEquals(new UserPrincipal("u1@found"),
+        transform.transform(new UserPrincipal("u1@example.com")));
+    assertEquals(new UserPrincipal("u1@exampleXcom"),
+        transform.transform(new UserPrincipal("u1@exampleXcom")));
+  }
+
+  @Test
+  public void testUnescapedDotMatchesAnyCharacter() {
+    List<Rule> rules = Arrays.asList(
+        new Rule(new MatchData(null, null, "example.com", null),
+          new MatchData(null, null, "found", null)));
+    AclTransform transform = new AclTransform(rules);
+    assertEquals(new UserPrincipal("u1@found"),
+        transform.transform(new UserPrincipal("u1@example.com")));
+    assertEquals(new UserPrincipal("u1@found"),
+        transform.transform(new UserPrincipal("u1@exampleXcom")));
+  }
+
   @Test(expected = NullPointerException.class)
   public void testRuleNullMatch() {
     new Rule(null, new MatchData(null, null, null, null));
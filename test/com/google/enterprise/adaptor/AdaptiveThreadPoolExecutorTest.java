@@ -0,0 +1,110 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link AdaptiveThreadPoolExecutor}. */
+public class AdaptiveThreadPoolExecutorTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private AdaptiveThreadPoolExecutor executor;
+
+  @After
+  public void shutdown() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testInvalidThreadCounts() {
+    thrown.expect(IllegalArgumentException.class);
+    new AdaptiveThreadPoolExecutor(4, 2, 8, 0,
+        new ArrayBlockingQueue<Runnable>(1),
+        new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  @Test
+  public void testGrowsWhenBlockedAndQueued() {
+    // Tasks spend 90% of their time blocked, so up to 40 threads would keep
+    // the 4 processors busy.
+    assertEquals(15, AdaptiveThreadPoolExecutor.computeTargetSize(
+        10, 1, 100, 4, 1000, 100, 5, 10));
+    assertEquals(40, AdaptiveThreadPoolExecutor.computeTargetSize(
+        10, 1, 100, 4, 1000, 100, 500, 10));
+  }
+
+  @Test
+  public void testCpuBoundDoesNotGrow() {
+    assertEquals(4, AdaptiveThreadPoolExecutor.computeTargetSize(
+        10, 1, 100, 4, 1000, 1000, 500, 10));
+  }
+
+  @Test
+  public void testUnknownCpuTimeGrowsToMax() {
+    assertEquals(100, AdaptiveThreadPoolExecutor.computeTargetSize(
+        90, 1, 100, 4, 1000, 0, 500, 90));
+  }
+
+  @Test
+  public void testShrinksWhenIdle() {
+    assertEquals(12, AdaptiveThreadPoolExecutor.computeTargetSize(
+        20, 1, 100, 4, 1000, 100, 0, 4));
+    assertEquals(4, AdaptiveThreadPoolExecutor.computeTargetSize(
+        5, 4, 100, 4, 0, 0, 0, 0));
+    assertEquals(4, AdaptiveThreadPoolExecutor.computeTargetSize(
+        4, 4, 100, 4, 0, 0, 0, 0));
+  }
+
+  @Test
+  public void testAdjustGrowsPool() throws Exception {
+    executor = new AdaptiveThreadPoolExecutor(1, 1, 10, 60 * 1000,
+        new ArrayBlockingQueue<Runnable>(10),
+        new ThreadPoolExecutor.AbortPolicy());
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch started = new CountDownLatch(4);
+    for (int i = 0; i < 4; i++) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+    }
+    assertEquals(3, executor.getQueue().size());
+    executor.adjust();
+    assertEquals(4, executor.getCorePoolSize());
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    release.countDown();
+  }
+}
@@ -31,6 +31,8 @@ import java.io.IOException;
 import java.io.Reader;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
@@ -274,6 +276,60 @@ public class ApplicationTest {
     conn.getContent();
   }
 
+  @Test
+  public void testFixedExecutor() {
+    ExecutorService executor = Application.createServerExecutor(config);
+    try {
+      assertEquals(ThreadPoolExecutor.class, executor.getClass());
+      assertEquals(16, ((ThreadPoolExecutor) executor).getMaximumPoolSize());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testAdaptiveExecutor() {
+    config.setValue("server.executor.mode", "Adaptive");
+    config.setValue("server.executor.minThreads", "2");
+    config.setValue("server.executor.maxThreads", "100");
+    ExecutorService executor = Application.createServerExecutor(config);
+    try {
+      AdaptiveThreadPoolExecutor pool = (AdaptiveThreadPoolExecutor) executor;
+      assertEquals(16, pool.getCorePoolSize());
+      assertEquals(100, pool.getMaximumPoolSize());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testVirtualExecutor() {
+    config.setValue("server.executor.mode", "virtual");
+    ExecutorService executor = Application.createServerExecutor(config);
+    try {
+      // Falls back to the adaptive executor on older JVMs.
+      assertTrue(executor instanceof VirtualThreadExecutor
+          || executor instanceof AdaptiveThreadPoolExecutor);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testInvalidExecutorMode() {
+    config.setValue("server.executor.mode", "unknown");
+    thrown.expect(InvalidConfigurationException.class);
+    Application.createServerExecutor(config);
+  }
+
+  @Test
+  public void testInvalidExecutorThreads() {
+    config.setValue("server.executor.mode", "adaptive");
+    config.setValue("server.executor.minThreads", "0");
+    thrown.expect(InvalidConfigurationException.class);
+    Application.createServerExecutor(config);
+  }
+
   @Test
   public void testFailWithStartupException() throws Exception {
     final StartupException startupException
@@ -0,0 +1,213 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link AsyncTransformStage}. */
+public class AsyncTransformStageTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @After
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testInvalidChunkBytes() {
+    thrown.expect(IllegalArgumentException.class);
+    new AsyncTransformStage(new ByteArrayOutputStream(), executor, 0, 1, null);
+  }
+
+  @Test
+  public void testNullStage() {
+    thrown.expect(NullPointerException.class);
+    new AsyncTransformStage(null, executor, 1, 1, null);
+  }
+
+  @Test
+  public void testContentPassedThrough() throws Exception {
+    RecordingStream sink = new RecordingStream();
+    OutputStream os = new AsyncTransformStage(sink, executor, 4, 2, null);
+    byte[] content = new byte[1000];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+    os.write(content, 0, 3);
+    os.write(content[3]);
+    os.write(content, 4, content.length - 4);
+    assertFalse(sink.closed);
+    os.close();
+    assertTrue(sink.closed);
+    assertArrayEquals(content, sink.toByteArray());
+    assertNotSame(Thread.currentThread(), sink.writer);
+    // Closing again is permitted.
+    os.close();
+  }
+
+  @Test
+  public void testFlush() throws Exception {
+    RecordingStream sink = new RecordingStream();
+    OutputStream os = new AsyncTransformStage(sink, executor, 16, 2, null);
+    os.write(new byte[] {1, 2});
+    os.flush();
+    assertTrue(sink.flushed.await(10, TimeUnit.SECONDS));
+    assertArrayEquals(new byte[] {1, 2}, sink.toByteArray());
+    os.close();
+  }
+
+  @Test
+  public void testWriteAfterClose() throws Exception {
+    OutputStream os = new AsyncTransformStage(
+        new ByteArrayOutputStream(), executor, 16, 2, null);
+    os.close();
+    thrown.expect(IOException.class);
+    os.write(1);
+  }
+
+  @Test
+  public void testStageFailureReported() throws Exception {
+    OutputStream failing = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("transform failed");
+      }
+    };
+    OutputStream os = new AsyncTransformStage(failing, executor, 1, 1, null);
+    try {
+      for (int i = 0; i < 1000; i++) {
+        os.write(i);
+        Thread.sleep(1);
+      }
+      fail("Expected IOException");
+    } catch (IOException ex) {
+      assertEquals("transform failed", ex.getCause().getMessage());
+    }
+  }
+
+  @Test
+  public void testStageFailureReportedOnClose() throws Exception {
+    OutputStream failing = new ByteArrayOutputStream() {
+      @Override
+      public void close() throws IOException {
+        throw new IOException("close failed");
+      }
+    };
+    OutputStream os = new AsyncTransformStage(failing, executor, 16, 1, null);
+    os.write(1);
+    thrown.expect(IOException.class);
+    os.close();
+  }
+
+  @Test
+  public void testInterruptedWriterAbortsStage() throws Exception {
+    BlockingStream blocking = new BlockingStream();
+    RecordingStream sink = new RecordingStream();
+    AsyncTransformStage next
+        = new AsyncTransformStage(sink, executor, 1, 1, null);
+    OutputStream os
+        = new AsyncTransformStage(blocking, executor, 1, 1, next);
+    os.write(1);
+    assertTrue(blocking.started.await(10, TimeUnit.SECONDS));
+    // Stage is busy and the queue fills, so the writer blocks until
+    // interrupted, as by the Watchdog.
+    Thread.currentThread().interrupt();
+    try {
+      os.write(new byte[] {2, 3, 4});
+      fail("Expected InterruptedIOException");
+    } catch (InterruptedIOException ex) {
+      // Expected.
+    }
+    assertTrue(blocking.interrupted.await(10, TimeUnit.SECONDS));
+    thrown.expect(IOException.class);
+    next.write(1);
+  }
+
+  @Test
+  public void testPipelineAbort() throws Exception {
+    BlockingStream blocking = new BlockingStream();
+    AsyncTransformStage stage
+        = new AsyncTransformStage(blocking, executor, 1, 1, null);
+    AsyncTransformStage.Pipeline pipeline
+        = new AsyncTransformStage.Pipeline(stage, stage);
+    pipeline.write(1);
+    assertTrue(blocking.started.await(10, TimeUnit.SECONDS));
+    pipeline.abort();
+    assertTrue(blocking.interrupted.await(10, TimeUnit.SECONDS));
+    thrown.expect(IOException.class);
+    pipeline.write(2);
+  }
+
+  private static class RecordingStream extends ByteArrayOutputStream {
+    final CountDownLatch flushed = new CountDownLatch(1);
+    volatile boolean closed;
+    volatile Thread writer;
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      writer = Thread.currentThread();
+      super.write(b, off, len);
+    }
+
+    @Override
+    public void flush() {
+      flushed.countDown();
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  /** Blocks on the first write until interrupted. */
+  private static class BlockingStream extends OutputStream {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+
+    @Override
+    public void write(int b) throws IOException {
+      started.countDown();
+      try {
+        new CountDownLatch(1).await();
+      } catch (InterruptedException ex) {
+        interrupted.countDown();
+        throw new InterruptedIOException();
+      }
+    }
+  }
+}
@@ -0,0 +1,203 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link AuthzDecisionCache}. */
+public class AuthzDecisionCacheTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final DocId permitted = new DocId("permitted");
+  private final DocId denied = new DocId("denied");
+  private final DocId unknown = new DocId("unknown");
+  private final MockTicker ticker = new MockTicker();
+  private final Journal journal = new Journal(new MockTimeProvider());
+  private final RecordingAuthority authority = new RecordingAuthority();
+  private final AuthzDecisionCache cache = new AuthzDecisionCache(
+      authority, journal, 100, 30000, 5000, ticker);
+  private final AuthnIdentity alice = identity("alice", "pw", "eng");
+
+  @Test
+  public void testNegativeSize() {
+    thrown.expect(IllegalArgumentException.class);
+    new AuthzDecisionCache(authority, journal, -1, 1, 1);
+  }
+
+  @Test
+  public void testCachedDecisions() throws Exception {
+    List<DocId> ids = Arrays.asList(permitted, denied, unknown);
+    Map<DocId, AuthzStatus> expected = new HashMap<DocId, AuthzStatus>();
+    expected.put(permitted, AuthzStatus.PERMIT);
+    expected.put(denied, AuthzStatus.DENY);
+    assertEquals(expected, cache.isUserAuthorized(alice, ids));
+    assertEquals(expected, cache.isUserAuthorized(alice, ids));
+    // Only the DocId without a decision was asked for again.
+    assertEquals(2, authority.requests.size());
+    assertEquals(ids, authority.requests.get(0));
+    assertEquals(Arrays.asList(unknown), authority.requests.get(1));
+
+    authority.requests.clear();
+    assertEquals(expected, cache.isUserAuthorized(alice,
+          Arrays.asList(permitted, denied)));
+    assertEquals(0, authority.requests.size());
+
+    Journal.JournalSnapshot snapshot = journal.getSnapshot();
+    assertEquals(4, snapshot.numAuthzCacheHits);
+    assertEquals(4, snapshot.numAuthzCacheMisses);
+    assertEquals(1, snapshot.numAuthzCallsSaved);
+  }
+
+  @Test
+  public void testUsersCachedSeparately() throws Exception {
+    List<DocId> ids = Arrays.asList(permitted);
+    cache.isUserAuthorized(alice, ids);
+    cache.isUserAuthorized(identity("alice", "pw", "eng", "other"), ids);
+    cache.isUserAuthorized(identity("alice", "wrong", "eng"), ids);
+    cache.isUserAuthorized(identity("bob", "pw", "eng"), ids);
+    cache.isUserAuthorized(null, ids);
+    assertEquals(5, authority.requests.size());
+    cache.isUserAuthorized(alice, ids);
+    cache.isUserAuthorized(null, ids);
+    assertEquals(5, authority.requests.size());
+  }
+
+  @Test
+  public void testFingerprint() {
+    assertEquals(AuthzDecisionCache.fingerprint(identity("a", "p", "x", "y")),
+        AuthzDecisionCache.fingerprint(identity("a", "p", "y", "x")));
+    assertFalse(AuthzDecisionCache.fingerprint(identity("ab", "c")).equals(
+        AuthzDecisionCache.fingerprint(identity("a", "bc"))));
+    assertFalse(AuthzDecisionCache.fingerprint(identity("a", null)).equals(
+        AuthzDecisionCache.fingerprint(identity("a", ""))));
+  }
+
+  @Test
+  public void testDenialsExpireSooner() throws Exception {
+    List<DocId> ids = Arrays.asList(permitted, denied);
+    cache.isUserAuthorized(alice, ids);
+    ticker.advance(TimeUnit.SECONDS.toNanos(6));
+    cache.isUserAuthorized(alice, ids);
+    ticker.advance(TimeUnit.SECONDS.toNanos(25));
+    cache.isUserAuthorized(alice, ids);
+    assertEquals(3, authority.requests.size());
+    assertEquals(ids, authority.requests.get(0));
+    assertEquals(Arrays.asList(denied), authority.requests.get(1));
+    assertEquals(ids, authority.requests.get(2));
+  }
+
+  @Test
+  public void testSentItemsInvalidate() throws Exception {
+    List<DocId> ids = Arrays.asList(permitted, denied);
+    cache.isUserAuthorized(alice, ids);
+    cache.itemsSent(Arrays.asList(
+        new DocIdSender.AclItem(permitted, Acl.EMPTY)));
+    cache.isUserAuthorized(alice, ids);
+    cache.itemsSent(Arrays.asList(
+        new DocIdPusher.Record.Builder(denied).build()));
+    cache.isUserAuthorized(alice, ids);
+    assertEquals(3, authority.requests.size());
+    assertEquals(ids, authority.requests.get(0));
+    assertEquals(Arrays.asList(permitted), authority.requests.get(1));
+    assertEquals(Arrays.asList(denied), authority.requests.get(2));
+  }
+
+  @Test
+  public void testInvalidateDuringRequest() throws Exception {
+    final List<DocId> ids = Arrays.asList(permitted);
+    authority.duringRequest = new Runnable() {
+      @Override
+      public void run() {
+        cache.invalidate(Collections.singleton(permitted));
+      }
+    };
+    cache.isUserAuthorized(alice, ids);
+    authority.duringRequest = null;
+    cache.isUserAuthorized(alice, ids);
+    cache.isUserAuthorized(alice, ids);
+    assertEquals(2, authority.requests.size());
+  }
+
+  @Test
+  public void testEvictedInvalidationsInvalidateOlderDecisions()
+      throws Exception {
+    AuthzDecisionCache small
+        = new AuthzDecisionCache(authority, journal, 1, 30000, 5000, ticker);
+    DocId other = new DocId("other");
+    small.isUserAuthorized(alice, Arrays.asList(permitted));
+    small.invalidate(Collections.singleton(permitted));
+    // Pushes the invalidation of permitted out of the cache.
+    small.invalidate(Collections.singleton(other));
+    small.isUserAuthorized(alice, Arrays.asList(permitted));
+    assertEquals(2, authority.requests.size());
+  }
+
+  @Test
+  public void testNullFromAuthority() throws Exception {
+    authority.returnNull = true;
+    assertNull(cache.isUserAuthorized(alice, Arrays.asList(permitted)));
+  }
+
+  private static AuthnIdentity identity(String user, String password,
+      String... groups) {
+    return new AuthnIdentityImpl.Builder(new UserPrincipal(user))
+        .setPassword(password)
+        .setGroups(GroupPrincipal.makeSet(Arrays.asList(groups)))
+        .build();
+  }
+
+  private class RecordingAuthority implements AuthzAuthority {
+    final List<List<DocId>> requests = new ArrayList<List<DocId>>();
+    boolean returnNull;
+    Runnable duringRequest;
+
+    @Override
+    public Map<DocId, AuthzStatus> isUserAuthorized(AuthnIdentity identity,
+        Collection<DocId> ids) {
+      requests.add(new ArrayList<DocId>(ids));
+      if (duringRequest != null) {
+        duringRequest.run();
+      }
+      if (returnNull) {
+        return null;
+      }
+      Map<DocId, AuthzStatus> result = new HashMap<DocId, AuthzStatus>();
+      for (DocId id : ids) {
+        if (id.equals(permitted)) {
+          result.put(id, AuthzStatus.PERMIT);
+        } else if (id.equals(denied)) {
+          result.put(id, AuthzStatus.DENY);
+        }
+      }
+      return Collections.unmodifiableMap(result);
+    }
+  }
+}
@@ -0,0 +1,204 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/** Unit tests for {@link CompressionPolicy}. */
+public class CompressionPolicyTest {
+  private static final List<String> EMPTY = Collections.emptyList();
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private MockHttpExchange ex = new MockHttpExchange("GET", "/",
+      new MockHttpContext("/"));
+  private Journal journal = new Journal(new MockTimeProvider());
+
+  @Test
+  public void testNullIncludes() {
+    thrown.expect(NullPointerException.class);
+    new CompressionPolicy(null, EMPTY, 0, -1);
+  }
+
+  @Test
+  public void testNegativeMinSize() {
+    thrown.expect(IllegalArgumentException.class);
+    new CompressionPolicy(EMPTY, EMPTY, -1, -1);
+  }
+
+  @Test
+  public void testInvalidLevel() {
+    thrown.expect(IllegalArgumentException.class);
+    new CompressionPolicy(EMPTY, EMPTY, 0, 10);
+  }
+
+  @Test
+  public void testIsCompressibleEmptyIncludes() {
+    CompressionPolicy policy = new CompressionPolicy(
+        EMPTY, Arrays.asList("image/*", "application/zip"), 0, -1);
+    assertTrue(policy.isCompressible("text/html"));
+    assertTrue(policy.isCompressible(null));
+    assertFalse(policy.isCompressible("image/jpeg"));
+    assertFalse(policy.isCompressible("application/zip"));
+    assertTrue(policy.isCompressible("application/zipper"));
+  }
+
+  @Test
+  public void testIsCompressibleIncludes() {
+    CompressionPolicy policy = new CompressionPolicy(
+        Arrays.asList("text/*", "application/pdf"),
+        Arrays.asList("text/csv"), 0, -1);
+    assertTrue(policy.isCompressible("text/html"));
+    assertTrue(policy.isCompressible("TEXT/Plain; charset=UTF-8"));
+    assertTrue(policy.isCompressible("application/pdf"));
+    assertFalse(policy.isCompressible("text/csv"));
+    assertFalse(policy.isCompressible("application/msword"));
+    assertFalse(policy.isCompressible(null));
+    assertFalse(policy.isCompressible(" "));
+  }
+
+  @Test
+  public void testCompressed() throws Exception {
+    CompressionPolicy policy = new CompressionPolicy(EMPTY, EMPTY, 0, 9);
+    ex.getRequestHeaders().set("Accept-Encoding", "gzip");
+    policy.startResponse(ex, 200, "text/plain", true, journal);
+    assertEquals(200, ex.getResponseCode());
+    assertEquals("gzip", ex.getResponseHeaders().getFirst("Content-Encoding"));
+    assertEquals("text/plain",
+        ex.getResponseHeaders().getFirst("Content-Type"));
+    byte[] content = new byte[1000];
+    ex.getResponseBody().write(content);
+    ex.getResponseBody().close();
+    assertArrayEquals(content, gunzip(ex.getResponseBytes()));
+
+    Journal.JournalSnapshot snapshot = journal.getSnapshot();
+    assertEquals(1, snapshot.numCompressedResponses);
+    assertEquals(1000, snapshot.compressionInputBytes);
+    assertEquals(ex.getResponseBytes().length, snapshot.compressionOutputBytes);
+  }
+
+  @Test
+  public void testClientDoesNotAcceptGzip() throws Exception {
+    CompressionPolicy policy = new CompressionPolicy(EMPTY, EMPTY, 0, -1);
+    policy.startResponse(ex, 200, "text/plain", true, journal);
+    assertEquals(200, ex.getResponseCode());
+    assertNull(ex.getResponseHeaders().getFirst("Content-Encoding"));
+  }
+
+  @Test
+  public void testExcludedContentType() throws Exception {
+    CompressionPolicy policy = new CompressionPolicy(
+        EMPTY, Arrays.asList("image/jpeg"), 0, -1);
+    ex.getRequestHeaders().set("Accept-Encoding", "gzip");
+    policy.startResponse(ex, 200, "image/jpeg", true, journal);
+    byte[] content = new byte[] {1, 2, 3};
+    ex.getResponseBody().write(content);
+    ex.getResponseBody().close();
+    assertNull(ex.getResponseHeaders().getFirst("Content-Encoding"));
+    assertArrayEquals(content, ex.getResponseBytes());
+    assertEquals(0, journal.getSnapshot().numCompressedResponses);
+  }
+
+  @Test
+  public void testBelowMinSize() throws Exception {
+    CompressionPolicy policy = new CompressionPolicy(EMPTY, EMPTY, 10, -1);
+    ex.getRequestHeaders().set("Accept-Encoding", "gzip");
+    policy.startResponse(ex, 200, "text/plain", true, journal);
+    // Headers are delayed until the size is known.
+    assertEquals(-1, ex.getResponseCode());
+    OutputStream os = ex.getResponseBody();
+    os.write(new byte[] {1, 2, 3});
+    os.flush();
+    os.write(4);
+    assertEquals(-1, ex.getResponseCode());
+    os.close();
+    assertEquals(200, ex.getResponseCode());
+    assertNull(ex.getResponseHeaders().getFirst("Content-Encoding"));
+    assertArrayEquals(new byte[] {1, 2, 3, 4}, ex.getResponseBytes());
+    assertEquals(0, journal.getSnapshot().numCompressedResponses);
+  }
+
+  @Test
+  public void testReachesMinSize() throws Exception {
+    CompressionPolicy policy = new CompressionPolicy(EMPTY, EMPTY, 10, -1);
+    ex.getRequestHeaders().set("Accept-Encoding", "gzip");
+    policy.startResponse(ex, 200, "text/plain", true, journal);
+    OutputStream os = ex.getResponseBody();
+    byte[] content = new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    os.write(content, 0, 5);
+    assertEquals(-1, ex.getResponseCode());
+    os.write(content, 5, 7);
+    assertEquals(200, ex.getResponseCode());
+    assertEquals("gzip", ex.getResponseHeaders().getFirst("Content-Encoding"));
+    os.close();
+    // Closing again is harmless.
+    os.close();
+    assertArrayEquals(content, gunzip(ex.getResponseBytes()));
+    assertEquals(12, journal.getSnapshot().compressionInputBytes);
+  }
+
+  @Test
+  public void testWriteAfterClose() throws Exception {
+    CompressionPolicy policy = new CompressionPolicy(EMPTY, EMPTY, 10, -1);
+    ex.getRequestHeaders().set("Accept-Encoding", "gzip");
+    policy.startResponse(ex, 200, "text/plain", true, journal);
+    OutputStream os = ex.getResponseBody();
+    os.close();
+    thrown.expect(IOException.class);
+    os.write(1);
+  }
+
+  @Test
+  public void testNoBody() throws Exception {
+    CompressionPolicy policy = new CompressionPolicy(EMPTY, EMPTY, 0, -1);
+    ex = new MockHttpExchange("HEAD", "/", new MockHttpContext("/"));
+    ex.getRequestHeaders().set("Accept-Encoding", "gzip");
+    policy.startResponse(ex, 200, "text/plain", false, journal);
+    assertEquals(200, ex.getResponseCode());
+    assertEquals("gzip", ex.getResponseHeaders().getFirst("Content-Encoding"));
+  }
+
+  @Test
+  public void testNoBodyWithMinSize() throws Exception {
+    CompressionPolicy policy = new CompressionPolicy(EMPTY, EMPTY, 10, -1);
+    ex = new MockHttpExchange("HEAD", "/", new MockHttpContext("/"));
+    ex.getRequestHeaders().set("Accept-Encoding", "gzip");
+    policy.startResponse(ex, 200, "text/plain", false, journal);
+    assertEquals(200, ex.getResponseCode());
+    assertNull(ex.getResponseHeaders().getFirst("Content-Encoding"));
+  }
+
+  private static byte[] gunzip(byte[] compressed) throws IOException {
+    return IOHelper.readInputStreamToByteArray(
+        new GZIPInputStream(new ByteArrayInputStream(compressed)));
+  }
+}
@@ -0,0 +1,74 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the per-document overhead of a content transform pipeline with
+ * three pass-through transforms: calculating the resulting content type and
+ * creating the pipeline, and then writing a small document through it. Not
+ * run as part of the tests; run manually with:
+ *
+ * <pre>java -cp build/src:build/test:lib/* \
+ *   com.google.enterprise.adaptor.ContentTransformBenchmark [iterations]
+ * </pre>
+ */
+public class ContentTransformBenchmark {
+  public static void main(String[] args) throws IOException {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    List<Map<String, String>> configs = new ArrayList<Map<String, String>>();
+    for (int i = 0; i < 3; i++) {
+      Map<String, String> config = new HashMap<String, String>();
+      config.put("class", ContentTransform.class.getName());
+      config.put("option" + i, "value");
+      configs.add(config);
+    }
+    ContentTransformFactory factory = new ContentTransformFactory(configs);
+    byte[] document = new byte[512];
+    Metadata metadata = new Metadata();
+    ByteArrayOutputStream sink = new ByteArrayOutputStream();
+
+    // Warm up, then measure.
+    for (int round = 0; round < 2; round++) {
+      long setupNanos = 0;
+      long writeNanos = 0;
+      for (int i = 0; i < iterations; i++) {
+        sink.reset();
+        long start = System.nanoTime();
+        factory.calculateResultingContentType("text/html");
+        OutputStream os = factory.createPipeline(sink, "text/html", metadata);
+        long created = System.nanoTime();
+        os.write(document);
+        os.close();
+        long written = System.nanoTime();
+        setupNanos += created - start;
+        writeNanos += written - created;
+      }
+      if (round == 1) {
+        System.out.println(String.format(
+            "pipeline setup: %6.1f ns/doc   writing %d bytes: %6.1f ns/doc",
+            (double) setupNanos / iterations, document.length,
+            (double) writeNanos / iterations));
+      }
+    }
+  }
+}
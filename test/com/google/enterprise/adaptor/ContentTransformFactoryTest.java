@@ -0,0 +1,314 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Unit tests for {@link ContentTransformFactory}. */
+public class ContentTransformFactoryTest {
+  private static final AtomicInteger contentTypeCalls = new AtomicInteger();
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Before
+  public void resetCalls() {
+    contentTypeCalls.set(0);
+  }
+
+  @Test
+  public void testMissingClass() {
+    thrown.expect(InvalidConfigurationException.class);
+    new ContentTransformFactory(configs(
+        Collections.<String, String>emptyMap()));
+  }
+
+  @Test
+  public void testNoTransforms() {
+    ContentTransformFactory factory = new ContentTransformFactory(
+        new ArrayList<Map<String, String>>());
+    OutputStream os = new ByteArrayOutputStream();
+    assertSame(os, factory.createPipeline(os, "text/html", new Metadata()));
+    assertEquals("text/html",
+        factory.calculateResultingContentType("text/html"));
+  }
+
+  @Test
+  public void testContentTypesCalculatedOnce() throws Exception {
+    ContentTransformFactory factory = new ContentTransformFactory(configs(
+        config(CountingTransform.class), config(CountingTransform.class)));
+    assertEquals("text/html+1+1",
+        factory.calculateResultingContentType("text/html"));
+    assertEquals(2, contentTypeCalls.get());
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    OutputStream os = factory.createPipeline(baos, "text/html",
+        new Metadata());
+    os.write(new byte[] {1, 2}, 0, 2);
+    os.close();
+    assertEquals("text/html+1+1",
+        factory.calculateResultingContentType("text/html"));
+    assertEquals("text/html+1", factory.calculateContentType("text/html", 1));
+    assertEquals(2, contentTypeCalls.get());
+    // The second transform replaces the first's output with its own input
+    // content type.
+    assertEquals("text/html+1|", baos.toString("UTF-8"));
+
+    factory.calculateResultingContentType("text/plain");
+    assertEquals(4, contentTypeCalls.get());
+  }
+
+  @Test
+  public void testNullContentType() {
+    ContentTransformFactory factory = new ContentTransformFactory(configs(
+        config(CountingTransform.class)));
+    assertNull(factory.calculateContentType(null, 0));
+    assertEquals("null+1", factory.calculateResultingContentType(null));
+    assertEquals("null+1", factory.calculateResultingContentType(null));
+    assertEquals(1, contentTypeCalls.get());
+    // Distinct from the string "null".
+    assertEquals("null+1", factory.calculateResultingContentType("null"));
+    assertEquals(2, contentTypeCalls.get());
+  }
+
+  @Test
+  public void testConfigSharedBetweenDocuments() throws Exception {
+    Map<String, String> config = config(CountingTransform.class);
+    config.put("key", "value");
+    ContentTransformFactory factory
+        = new ContentTransformFactory(configs(config));
+    CountingTransform first = (CountingTransform) factory.createPipeline(
+        new ByteArrayOutputStream(), "text/html", new Metadata());
+    CountingTransform second = (CountingTransform) factory.createPipeline(
+        new ByteArrayOutputStream(), "text/html", new Metadata());
+    assertEquals("value", first.getConfig().get("key"));
+    assertSame(first.getConfig(), second.getConfig());
+  }
+
+  @Test
+  public void testConfigImmutable() throws Exception {
+    ContentTransformFactory factory = new ContentTransformFactory(configs(
+        config(CountingTransform.class)));
+    CountingTransform transform = (CountingTransform) factory.createPipeline(
+        new ByteArrayOutputStream(), "text/html", new Metadata());
+    thrown.expect(UnsupportedOperationException.class);
+    transform.getConfig().put("key", "value");
+  }
+
+  @Test
+  public void testConfigCopiedWhenConstructedDirectly() {
+    Map<String, String> config = new HashMap<String, String>();
+    config.put("key", "value");
+    CountingTransform transform = new CountingTransform(config,
+        new Metadata(), "text/html", new ByteArrayOutputStream());
+    config.put("key", "changed");
+    assertEquals("value", transform.getConfig().get("key"));
+  }
+
+  @Test
+  public void testManyContentTypes() {
+    ContentTransformFactory factory = new ContentTransformFactory(configs(
+        config(CountingTransform.class)));
+    for (int i = 0; i < 2000; i++) {
+      assertEquals("type" + i + "+1",
+          factory.calculateResultingContentType("type" + i));
+    }
+    assertTrue(contentTypeCalls.get() >= 2000);
+  }
+
+  @Test
+  public void testStagesRoutedByContentType() throws Exception {
+    Map<String, String> htmlOnly = config(CountingTransform.class);
+    htmlOnly.put("contentTypes", "text/html");
+    Map<String, String> notPdf = config(CountingTransform.class);
+    notPdf.put("excludeContentTypes", "application/*");
+    Journal journal = new Journal(new MockTimeProvider());
+    ContentTransformFactory factory
+        = new ContentTransformFactory(configs(htmlOnly, notPdf), journal);
+
+    assertEquals("application/pdf",
+        factory.calculateResultingContentType("application/pdf"));
+    assertEquals(0, contentTypeCalls.get());
+    OutputStream os = new ByteArrayOutputStream();
+    assertSame(os, factory.createPipeline(os, "application/pdf",
+        new Metadata()));
+
+    // The second stage sees the first stage's output type.
+    assertEquals("text/html+1+1",
+        factory.calculateResultingContentType("text/html"));
+    assertEquals("text/plain+1",
+        factory.calculateResultingContentType("text/plain"));
+    assertEquals("text/plain", factory.calculateContentType("text/plain", 1));
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    os = factory.createPipeline(baos, "text/plain", new Metadata());
+    os.write(new byte[] {1}, 0, 1);
+    os.close();
+    assertEquals("text/plain|", baos.toString("UTF-8"));
+
+    Journal.JournalSnapshot snapshot = journal.getSnapshot();
+    assertEquals(1, snapshot.numContentTransformStagesApplied);
+    assertEquals(3, snapshot.numContentTransformStagesSkipped);
+  }
+
+  @Test
+  public void testAsyncStages() throws Exception {
+    Map<String, String> async = config(CountingTransform.class);
+    async.put("async", "true");
+    async.put("asyncBufferBytes", "1");
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      ContentTransformFactory factory = new ContentTransformFactory(
+          configs(async, config(CountingTransform.class), async), null,
+          executor);
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      OutputStream os = factory.createPipeline(baos, "text/html",
+          new Metadata());
+      assertTrue(os instanceof AsyncTransformStage.Pipeline);
+      os.write(new byte[] {1, 2}, 0, 2);
+      os.close();
+      // Each write of the first two transforms is a single write to the next.
+      assertEquals("text/html+1+1|", baos.toString("UTF-8"));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testAsyncStagesRunInlineWhenSaturated() throws Exception {
+    Map<String, String> async = config(CountingTransform.class);
+    async.put("async", "true");
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    OutputStream os = new ContentTransformFactory(configs(
+        config(CountingTransform.class), config(CountingTransform.class)))
+        .createPipeline(expected, "text/html", new Metadata());
+    os.write(new byte[] {1, 2}, 0, 2);
+    os.close();
+
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(0, 1, 60,
+        TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+    try {
+      ContentTransformFactory factory = new ContentTransformFactory(
+          configs(async, async), null, executor);
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      os = factory.createPipeline(baos, "text/html", new Metadata());
+      os.write(new byte[] {1, 2}, 0, 2);
+      os.close();
+      assertEquals(expected.toString("UTF-8"), baos.toString("UTF-8"));
+      // Only one stage got a thread; the other ran in this one.
+      assertEquals(1, executor.getLargestPoolSize());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testAsyncStagesWithoutExecutor() {
+    Map<String, String> async = config(CountingTransform.class);
+    async.put("async", "true");
+    thrown.expect(InvalidConfigurationException.class);
+    new ContentTransformFactory(configs(async));
+  }
+
+  @Test
+  public void testInvalidAsyncBufferBytes() {
+    Map<String, String> async = config(CountingTransform.class);
+    async.put("async", "true");
+    async.put("asyncBufferBytes", "0");
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      thrown.expect(InvalidConfigurationException.class);
+      new ContentTransformFactory(configs(async), null, executor);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static Map<String, String> config(Class<?> clazz) {
+    Map<String, String> config = new HashMap<String, String>();
+    config.put("class", clazz.getName());
+    return config;
+  }
+
+  private static List<Map<String, String>> configs(
+      Map<String, String> config) {
+    List<Map<String, String>> list = new ArrayList<Map<String, String>>();
+    list.add(config);
+    return list;
+  }
+
+  private static List<Map<String, String>> configs(
+      Map<String, String> first, Map<String, String> second) {
+    List<Map<String, String>> list = configs(first);
+    list.add(second);
+    return list;
+  }
+
+  private static List<Map<String, String>> configs(
+      Map<String, String> first, Map<String, String> second,
+      Map<String, String> third) {
+    List<Map<String, String>> list = configs(first, second);
+    list.add(third);
+    return list;
+  }
+
+  /**
+   * Appends "+1" to the content type, and writes its input content type
+   * followed by "|" instead of the content.
+   */
+  private static class CountingTransform extends ContentTransform {
+    public CountingTransform(Map<String, String> config, Metadata metadata,
+        String contentType, OutputStream originalStream) {
+      super(config, metadata, contentType, originalStream);
+    }
+
+    public static String getContentTypeOutputForContentTypeInput(String ctIn) {
+      contentTypeCalls.incrementAndGet();
+      return ctIn + "+1";
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      byte[] marker = (contentType + "|").getBytes("UTF-8");
+      super.write(marker, 0, marker.length);
+    }
+
+    Map<String, String> getConfig() {
+      return config;
+    }
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** Unit tests for {@link ContentTypeFilter}. */
+public class ContentTypeFilterTest {
+  private static final List<String> EMPTY = Collections.emptyList();
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testNullIncludes() {
+    thrown.expect(NullPointerException.class);
+    new ContentTypeFilter(null, EMPTY);
+  }
+
+  @Test
+  public void testNullExcludes() {
+    thrown.expect(NullPointerException.class);
+    new ContentTypeFilter(EMPTY, null);
+  }
+
+  @Test
+  public void testSplitPatterns() {
+    assertEquals(Arrays.asList("text/*", "application/pdf"),
+        ContentTypeFilter.splitPatterns(" text/*, ,application/pdf,"));
+    assertEquals(EMPTY, ContentTypeFilter.splitPatterns(""));
+    assertEquals(EMPTY, ContentTypeFilter.splitPatterns(null));
+  }
+
+  @Test
+  public void testEmptyAcceptsAll() {
+    ContentTypeFilter filter = new ContentTypeFilter(EMPTY, EMPTY);
+    assertTrue(filter.accepts("application/pdf"));
+    assertTrue(filter.accepts(null));
+  }
+
+  @Test
+  public void testIncludes() {
+    ContentTypeFilter filter = new ContentTypeFilter(
+        Arrays.asList("text/*", " Application/PDF "), EMPTY);
+    assertTrue(filter.accepts("text/html"));
+    assertTrue(filter.accepts("TEXT/plain; charset=UTF-8"));
+    assertTrue(filter.accepts("application/pdf"));
+    assertFalse(filter.accepts("application/pdfx"));
+    assertFalse(filter.accepts("image/png"));
+    assertFalse(filter.accepts(null));
+    assertFalse(filter.accepts(" ; charset=UTF-8"));
+  }
+
+  @Test
+  public void testExcludesWin() {
+    ContentTypeFilter filter = new ContentTypeFilter(
+        Arrays.asList("text/*"), Arrays.asList("text/csv"));
+    assertTrue(filter.accepts("text/html"));
+    assertFalse(filter.accepts("text/csv"));
+  }
+
+  @Test
+  public void testOnlyExcludes() {
+    ContentTypeFilter filter
+        = new ContentTypeFilter(EMPTY, Arrays.asList("image/*"));
+    assertTrue(filter.accepts("text/html"));
+    assertTrue(filter.accepts(null));
+    assertFalse(filter.accepts("image/png"));
+  }
+}
@@ -16,7 +16,9 @@ package com.google.enterprise.adaptor;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -33,6 +35,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -198,6 +201,37 @@ public class DocIdSenderTest {
     assertTrue(fileArchiver.feeds.isEmpty());
   }
 
+  @Test
+  public void testListenersToldOfFailedBatch() throws Exception {
+    fileSender = new MockGsaFeedFileSender() {
+      @Override
+      public void sendMetadataAndUrl(String datasource,
+                                     String xmlString, boolean useCompression)
+          throws IOException {
+        throw new IOException();
+      }
+    };
+    docIdSender = new DocIdSender(fileMaker, fileSender, fileArchiver, journal,
+                                  config, adaptor);
+    final List<DocIdSender.Item> notSent = new ArrayList<DocIdSender.Item>();
+    docIdSender.addSentItemsListener(new DocIdSender.SentItemsListener() {
+      @Override
+      public void itemsSent(List<? extends DocIdSender.Item> items) {
+        fail("nothing was sent");
+      }
+
+      @Override
+      public void itemsNotSent(List<? extends DocIdSender.Item> items) {
+        notSent.addAll(items);
+      }
+    });
+    DocIdSender.Item item = new DocIdSender.AclItem(new DocId("test"),
+        Acl.EMPTY);
+    assertSame(item, docIdSender.pushItems(Arrays.asList(item).iterator(),
+        new NeverRetryExceptionHandler()));
+    assertEquals(Arrays.asList(item), notSent);
+  }
+
   @Test
   public void testPushInterruptedFirstBatch() throws Exception {
     fileSender = new MockGsaFeedFileSender() {
@@ -218,6 +252,29 @@ public class DocIdSenderTest {
     assertTrue(fileArchiver.feeds.isEmpty());
   }
 
+  @Test
+  public void testSentBatchesHintedForPrefetch() throws Exception {
+    final List<List<DocId>> prefetched = new ArrayList<List<DocId>>();
+    docIdSender.addSentItemsListener(new PrefetchHinter(new DocIdPrefetcher() {
+      @Override
+      public void prefetch(List<DocId> ids) {
+        prefetched.add(ids);
+      }
+    }, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    }, 10));
+    config.setValue("feed.maxUrls", "2");
+    List<DocId> ids = Arrays.asList(
+        new DocId("test"), new DocId("test2"), new DocId("test3"));
+    assertNull(docIdSender.pushDocIds(ids));
+    assertEquals(2, prefetched.size());
+    assertEquals(ids.subList(0, 2), prefetched.get(0));
+    assertEquals(ids.subList(2, 3), prefetched.get(1));
+  }
+
   @Test
   public void testPushInterruptedLaterBatch() throws Exception {
     final AtomicLong batchCount = new AtomicLong();
@@ -239,7 +296,7 @@ public class DocIdSenderTest {
 
     Thread.currentThread().interrupt();
     assertEquals(new DocId("test2"), docIdSender.pushDocIds(ids));
-    assertTrue(Thread.currentThread().isInterrupted());
+    assertTrue(Thread.interrupted());
   }
 
   @Test
@@ -288,6 +345,35 @@ public class DocIdSenderTest {
     assertTrue(fileArchiver.failedFeeds.isEmpty());
   }
 
+  @Test
+  public void testSentGroupsListener() throws Exception {
+    final List<Map<GroupPrincipal, ? extends Collection<Principal>>> sent
+        = new ArrayList<Map<GroupPrincipal, ? extends Collection<Principal>>>();
+    docIdSender.addSentGroupsListener(new DocIdSender.SentGroupsListener() {
+      @Override
+      public void groupsSent(
+          Map<GroupPrincipal, ? extends Collection<Principal>> defs,
+          boolean caseSensitive) {
+        assertTrue(caseSensitive);
+        sent.add(defs);
+      }
+    });
+    TreeMap<GroupPrincipal, Collection<Principal>> groups
+        = new TreeMap<GroupPrincipal, Collection<Principal>>();
+    groups.put(new GroupPrincipal("g1"),
+        Arrays.<Principal>asList(new UserPrincipal("u1")));
+    groups.put(new GroupPrincipal("g2"),
+        Arrays.<Principal>asList(new UserPrincipal("u2")));
+    groups.put(new GroupPrincipal("g3"),
+        Arrays.<Principal>asList(new UserPrincipal("u3")));
+
+    config.setValue("feed.maxUrls", "2");
+    assertNull(docIdSender.pushGroupDefinitions(groups, true, null));
+    assertEquals(2, sent.size());
+    assertEquals(groups.headMap(new GroupPrincipal("g3")), sent.get(0));
+    assertEquals(groups.tailMap(new GroupPrincipal("g3")), sent.get(1));
+  }
+
   @Test
   public void testPushGroupsAllDocsPublic() throws Exception {
     // Order of iteration matters
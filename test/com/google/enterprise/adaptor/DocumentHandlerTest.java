@@ -33,6 +33,7 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -49,8 +50,11 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.security.auth.kerberos.KerberosPrincipal;
@@ -315,6 +319,186 @@ public class DocumentHandlerTest {
     assertArrayEquals(new byte[] {}, ex.getResponseBytes());
   }
 
+  @Test
+  public void testHeadUsesMetadataRetriever() throws Exception {
+    MockAdaptor adaptor = new MockAdaptor() {
+      @Override
+      public void getDocContent(Request request, Response response) {
+        fail("Should not have been called");
+      }
+    };
+    String remoteIp = headEx.getRemoteAddress().getAddress().getHostAddress();
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(adaptor)
+        .setFullAccessHosts(new String[] {remoteIp})
+        .setMetadataRetriever(new MetadataRetriever() {
+          @Override
+          public void getDocMetadata(Request request, Response response) {
+            assertEquals(defaultDocId, request.getDocId());
+            response.addMetadata("test", "ing");
+          }
+        })
+        .build();
+    handler.handle(headEx);
+    assertEquals(200, headEx.getResponseCode());
+    assertArrayEquals(new byte[] {}, headEx.getResponseBytes());
+    assertEquals("test=ing",
+        headEx.getResponseHeaders().getFirst("X-Gsa-External-Metadata"));
+  }
+
+  @Test
+  public void testHeadMetadataRetrieverNotFound() throws Exception {
+    String remoteIp = headEx.getRemoteAddress().getAddress().getHostAddress();
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(mockAdaptor)
+        .setFullAccessHosts(new String[] {remoteIp})
+        .setMetadataRetriever(new MetadataRetriever() {
+          @Override
+          public void getDocMetadata(Request request, Response response)
+              throws IOException {
+            response.respondNotFound();
+          }
+        })
+        .build();
+    handler.handle(headEx);
+    assertEquals(404, headEx.getResponseCode());
+  }
+
+  @Test
+  public void testHeadMetadataRetrieverOutputStreamDiscarded()
+      throws Exception {
+    String remoteIp = headEx.getRemoteAddress().getAddress().getHostAddress();
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(mockAdaptor)
+        .setFullAccessHosts(new String[] {remoteIp})
+        .setMetadataRetriever(new MetadataRetriever() {
+          @Override
+          public void getDocMetadata(Request request, Response response)
+              throws IOException {
+            response.getOutputStream().write(new byte[] {1, 2, 3});
+          }
+        })
+        .build();
+    handler.handle(headEx);
+    assertEquals(200, headEx.getResponseCode());
+    assertArrayEquals(new byte[] {}, headEx.getResponseBytes());
+  }
+
+  @Test
+  public void testGetIgnoresMetadataRetriever() throws Exception {
+    String remoteIp = ex.getRemoteAddress().getAddress().getHostAddress();
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(mockAdaptor)
+        .setFullAccessHosts(new String[] {remoteIp})
+        .setMetadataRetriever(new MetadataRetriever() {
+          @Override
+          public void getDocMetadata(Request request, Response response) {
+            fail("Should not have been called");
+          }
+        })
+        .build();
+    handler.handle(ex);
+    assertEquals(200, ex.getResponseCode());
+    assertArrayEquals(mockAdaptor.documentBytes, ex.getResponseBytes());
+  }
+
+  @Test
+  public void testCompressionPolicy() throws Exception {
+    mockAdaptor = new MockAdaptor() {
+      @Override
+      public void getDocContent(Request request, Response response)
+          throws IOException, InterruptedException {
+        response.setContentType("text/plain");
+        OutputStream os = response.getOutputStream();
+        os.write(new byte[1000]);
+      }
+    };
+    String remoteIp = ex.getRemoteAddress().getAddress().getHostAddress();
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(mockAdaptor)
+        .setFullAccessHosts(new String[] {remoteIp})
+        .setCompressionPolicy(new CompressionPolicy(
+            Collections.<String>emptyList(), Arrays.asList("image/*"), 0, -1))
+        .build();
+    ex.getRequestHeaders().set("Accept-Encoding", "gzip");
+    handler.handle(ex);
+    assertEquals(200, ex.getResponseCode());
+    assertEquals("gzip", ex.getResponseHeaders().getFirst("Content-Encoding"));
+    assertTrue(ex.getResponseBytes().length < 1000);
+  }
+
+  @Test
+  public void testCompressionPolicyExcludedType() throws Exception {
+    mockAdaptor = new MockAdaptor() {
+      @Override
+      public void getDocContent(Request request, Response response)
+          throws IOException, InterruptedException {
+        response.setContentType("image/png");
+        OutputStream os = response.getOutputStream();
+        os.write(documentBytes);
+      }
+    };
+    String remoteIp = ex.getRemoteAddress().getAddress().getHostAddress();
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(mockAdaptor)
+        .setFullAccessHosts(new String[] {remoteIp})
+        .setCompressionPolicy(new CompressionPolicy(
+            Collections.<String>emptyList(), Arrays.asList("image/*"), 0, -1))
+        .build();
+    ex.getRequestHeaders().set("Accept-Encoding", "gzip");
+    handler.handle(ex);
+    assertEquals(200, ex.getResponseCode());
+    assertNull(ex.getResponseHeaders().getFirst("Content-Encoding"));
+    assertArrayEquals(mockAdaptor.documentBytes, ex.getResponseBytes());
+  }
+
+  @Test
+  public void testLoadShedding() throws Exception {
+    Journal journal = new Journal(new MockTimeProvider());
+    LoadShedder loadShedder = new LoadShedder(
+        Arrays.asList(new Object()), 1, 0, 0, 10, journal);
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(mockAdaptor)
+        .setLoadShedder(loadShedder)
+        .build();
+    handler.handle(ex);
+    assertEquals(503, ex.getResponseCode());
+    assertEquals("10", ex.getResponseHeaders().getFirst("Retry-After"));
+    assertEquals(1, journal.getSnapshot().numShedRequests);
+  }
+
+  @Test
+  public void testLoadSheddingTrustedClient() throws Exception {
+    Journal journal = new Journal(new MockTimeProvider());
+    LoadShedder loadShedder = new LoadShedder(
+        Arrays.asList(new Object()), 1, 0, 0, 10, journal);
+    String remoteIp = ex.getRemoteAddress().getAddress().getHostAddress();
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(mockAdaptor)
+        .setFullAccessHosts(new String[] {remoteIp})
+        .setLoadShedder(loadShedder)
+        .build();
+    handler.handle(ex);
+    assertEquals(200, ex.getResponseCode());
+    assertEquals(0, journal.getSnapshot().numShedRequests);
+  }
+
+  @Test
+  public void testSingleFlight() throws Exception {
+    SingleFlightRetriever singleFlight
+        = new SingleFlightRetriever(1024, new Journal(new MockTimeProvider()));
+    String remoteIp = ex.getRemoteAddress().getAddress().getHostAddress();
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(mockAdaptor)
+        .setFullAccessHosts(new String[] {remoteIp})
+        .setSingleFlight(singleFlight)
+        .build();
+    handler.handle(ex);
+    assertEquals(200, ex.getResponseCode());
+    assertArrayEquals(mockAdaptor.documentBytes, ex.getResponseBytes());
+    assertEquals(0, singleFlight.getFlightCount());
+  }
+
   @Test
   public void testNormalPost() throws Exception {
     MockHttpExchange ex = new MockHttpExchange("POST", defaultPath,
@@ -451,6 +635,118 @@ public class DocumentHandlerTest {
         ex.getResponseHeaders().get("X-Gsa-External-Metadata"));
   }
 
+  @Test
+  public void testContentWanted() throws Exception {
+    ContentCheckingAdaptor adaptor = new ContentCheckingAdaptor();
+    String remoteIp = ex.getRemoteAddress().getAddress().getHostAddress();
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(adaptor)
+        .setFullAccessHosts(new String[] {remoteIp})
+        .setMetadataTransform(transmissionDecisionPipeline("as-is"))
+        .build();
+    handler.handle(ex);
+    assertEquals(200, ex.getResponseCode());
+    assertEquals(Boolean.TRUE, adaptor.contentWanted);
+    assertArrayEquals(new byte[] {1, 2, 3}, ex.getResponseBytes());
+  }
+
+  @Test
+  public void testContentNotWantedDoNotIndex() throws Exception {
+    ContentCheckingAdaptor adaptor = new ContentCheckingAdaptor();
+    String remoteIp = ex.getRemoteAddress().getAddress().getHostAddress();
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(adaptor)
+        .setFullAccessHosts(new String[] {remoteIp})
+        .setMetadataTransform(transmissionDecisionPipeline("do-not-index"))
+        .build();
+    handler.handle(ex);
+    assertEquals(Boolean.FALSE, adaptor.contentWanted);
+    assertEquals(404, ex.getResponseCode());
+    assertEquals(null,
+         ex.getResponseHeaders().getFirst("X-Gsa-External-Metadata"));
+    assertArrayEquals("Error 404: Not Found".getBytes(), ex.getResponseBytes());
+  }
+
+  @Test
+  public void testContentNotWantedDoNotIndexContent() throws Exception {
+    ContentCheckingAdaptor adaptor = new ContentCheckingAdaptor();
+    String remoteIp = ex.getRemoteAddress().getAddress().getHostAddress();
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(adaptor)
+        .setFullAccessHosts(new String[] {remoteIp})
+        .setMetadataTransform(
+            transmissionDecisionPipeline("do-not-index-content"))
+        .build();
+    handler.handle(ex);
+    assertEquals(Boolean.FALSE, adaptor.contentWanted);
+    assertEquals(200, ex.getResponseCode());
+    assertEquals("test%20key=test%20value",
+        ex.getResponseHeaders().getFirst("X-Gsa-External-Metadata"));
+    assertArrayEquals(new byte[0], ex.getResponseBytes());
+  }
+
+  @Test
+  public void testContentNotWantedForHead() throws Exception {
+    ContentCheckingAdaptor adaptor = new ContentCheckingAdaptor();
+    String remoteIp = headEx.getRemoteAddress().getAddress().getHostAddress();
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(adaptor)
+        .setFullAccessHosts(new String[] {remoteIp})
+        .build();
+    handler.handle(headEx);
+    assertEquals(Boolean.FALSE, adaptor.contentWanted);
+    assertEquals(200, headEx.getResponseCode());
+    assertEquals("text/plain",
+        headEx.getResponseHeaders().getFirst("Content-Type"));
+    assertArrayEquals(new byte[0], headEx.getResponseBytes());
+  }
+
+  @Test
+  public void testSetMetadataAfterContentWanted() throws Exception {
+    mockAdaptor = new MockAdaptor() {
+      @Override
+      public void getDocContent(Request request, Response response)
+          throws IOException, InterruptedException {
+        ((ContentWantedResponse) response).isContentWanted();
+        response.addMetadata("test key", "test value");
+      }
+    };
+    DocumentHandler handler = createDefaultHandlerForAdaptor(mockAdaptor);
+    thrown.expect(RuntimeException.class);
+    handler.handle(ex);
+  }
+
+  private static MetadataTransformPipeline transmissionDecisionPipeline(
+      final String decision) {
+    List<MetadataTransform> transforms = new LinkedList<MetadataTransform>();
+    transforms.add(new MetadataTransform() {
+      @Override
+      public void transform(Metadata metadata, Map<String, String> params) {
+        params.put("Transmission-Decision", decision);
+      }
+    });
+    return new MetadataTransformPipeline(transforms, Arrays.asList("t1"));
+  }
+
+  /**
+   * Only writes content when {@link ContentWantedResponse#isContentWanted}
+   * says it is wanted.
+   */
+  private static class ContentCheckingAdaptor extends MockAdaptor {
+    Boolean contentWanted;
+
+    @Override
+    public void getDocContent(Request request, Response response)
+        throws IOException {
+      response.setContentType("text/plain");
+      response.addMetadata("test key", "test value");
+      contentWanted = ((ContentWantedResponse) response).isContentWanted();
+      if (contentWanted) {
+        response.getOutputStream().write(new byte[] {1, 2, 3});
+      }
+    }
+  }
+
   @Test
   public void testDroppingDocForGetRequest() throws Exception {
     List<MetadataTransform> transforms = new LinkedList<MetadataTransform>();
@@ -832,6 +1128,102 @@ public class DocumentHandlerTest {
     assertEquals("some changed stuff", new String(ex.getResponseBytes()));
   }
 
+  @Test
+  public void testAsyncContentTransform() throws Exception {
+    Map<String, String> config = new HashMap<String, String>();
+    config.put("class", ContentTransform.class.getName());
+    config.put("async", "true");
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      ContentTransformFactory contentTransformFactory
+          = new ContentTransformFactory(Collections.singletonList(config),
+              null, executor);
+      mockAdaptor = new MockAdaptor() {
+        @Override
+        public void getDocContent(Request request, Response response)
+            throws IOException {
+          OutputStream os = response.getOutputStream();
+          os.write("some cool stuff".getBytes(Charsets.UTF_8));
+        }
+      };
+      String remoteIp = ex.getRemoteAddress().getAddress().getHostAddress();
+      DocumentHandler handler = createHandlerBuilder()
+          .setAdaptor(mockAdaptor)
+          .setFullAccessHosts(new String[] {remoteIp})
+          .setContentTransformPipeline(contentTransformFactory)
+          .build();
+      handler.handle(ex);
+      assertEquals(200, ex.getResponseCode());
+      assertEquals("some cool stuff", new String(ex.getResponseBytes()));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testAsyncContentTransformAbortedOnFailure() throws Exception {
+    Map<String, String> config = new HashMap<String, String>();
+    config.put("class", BlockingContentTransform.class.getName());
+    config.put("async", "true");
+    ExecutorService executor = Executors.newCachedThreadPool();
+    BlockingContentTransform.started = new CountDownLatch(1);
+    BlockingContentTransform.interrupted = new CountDownLatch(1);
+    try {
+      ContentTransformFactory contentTransformFactory
+          = new ContentTransformFactory(Collections.singletonList(config),
+              null, executor);
+      mockAdaptor = new MockAdaptor() {
+        @Override
+        public void getDocContent(Request request, Response response)
+            throws IOException, InterruptedException {
+          OutputStream os = response.getOutputStream();
+          os.write(new byte[] {1}, 0, 1);
+          os.flush();
+          BlockingContentTransform.started.await();
+          throw new IOException("repository failed");
+        }
+      };
+      String remoteIp = ex.getRemoteAddress().getAddress().getHostAddress();
+      DocumentHandler handler = createHandlerBuilder()
+          .setAdaptor(mockAdaptor)
+          .setFullAccessHosts(new String[] {remoteIp})
+          .setContentTransformPipeline(contentTransformFactory)
+          .build();
+      try {
+        handler.handle(ex);
+        fail("Expected IOException");
+      } catch (IOException e) {
+        // Expected.
+      }
+      assertTrue(BlockingContentTransform.interrupted.await(
+          10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Blocks on the first write until interrupted. */
+  private static class BlockingContentTransform extends ContentTransform {
+    static volatile CountDownLatch started;
+    static volatile CountDownLatch interrupted;
+
+    public BlockingContentTransform(Map<String, String> config,
+        Metadata metadata, String contentType, OutputStream originalStream) {
+      super(config, metadata, contentType, originalStream);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      started.countDown();
+      try {
+        new CountDownLatch(1).await();
+      } catch (InterruptedException ex) {
+        interrupted.countDown();
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
   private static class SampleDocumentContentTransform
       extends ContentTransform {
     public SampleDocumentContentTransform(Map<String, String> config,
@@ -2012,6 +2404,322 @@ public class DocumentHandlerTest {
     assertEquals(golden, aclHeader);
   }
 
+  @Test
+  public void testFormEncodedNamespacedAclHeaderMatchesUnencoded() {
+    DocIdEncoder enc = new MockDocIdCodec();
+    List<Acl> acls = Arrays.asList(Acl.EMPTY,
+        new Acl.Builder().setInheritFrom(new DocId("t"), "f?=$%").build(),
+        new Acl.Builder()
+            .setInheritanceType(Acl.InheritanceType.AND_BOTH_PERMIT).build(),
+        new Acl.Builder().setDenyUsers(Arrays.asList(u("du1"))).build(),
+        new Acl.Builder()
+            .setPermitUsers(Arrays.asList(u("pu1@d.g", "ns"), u("uid=pu2")))
+            .setPermitGroups(Arrays.asList(g("pg1@d.g"), g("gid=pg2", "ns")))
+            .setDenyUsers(Arrays.asList(u("du1@d.g"), u("uid=du2", "ns")))
+            .setDenyGroups(Arrays.asList(g("dg1@d.g", "ns"), g("gid=dg2")))
+            .setInheritFrom(new DocId("some docId"))
+            .setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES)
+            .setEverythingCaseInsensitive()
+            .build());
+    assertEquals("", DocumentHandler.formEncodedNamespacedAclHeader(
+        null, enc, Integer.MAX_VALUE));
+    for (Acl acl : acls) {
+      assertEquals(DocumentHandler.percentEncode(
+            DocumentHandler.formNamespacedAclHeader(acl, enc)),
+          DocumentHandler.formEncodedNamespacedAclHeader(
+            acl, enc, Integer.MAX_VALUE));
+    }
+  }
+
+  @Test
+  public void testFormEncodedNamespacedAclHeaderTooLong() {
+    DocIdEncoder enc = new MockDocIdCodec();
+    Acl acl = new Acl.Builder()
+        .setPermitUsers(Arrays.asList(u("pu1"), u("pu2"), u("pu3")))
+        .setInheritFrom(new DocId("parent"))
+        .build();
+    String header = DocumentHandler.percentEncode(
+        DocumentHandler.formNamespacedAclHeader(acl, enc));
+    assertEquals(header, DocumentHandler.formEncodedNamespacedAclHeader(
+        acl, enc, header.length()));
+    assertNull(DocumentHandler.formEncodedNamespacedAclHeader(
+        acl, enc, header.length() - 1));
+    assertNull(DocumentHandler.formEncodedNamespacedAclHeader(acl, enc, 10));
+  }
+
+  @Test
+  public void testFormUnqualifiedAclHeaderTooLong() {
+    DocIdEncoder enc = new MockDocIdCodec();
+    Acl acl = new Acl.Builder()
+        .setPermitUsers(Arrays.asList(u("pu1"), u("pu2"), u("pu3")))
+        .setInheritFrom(new DocId("parent"))
+        .build();
+    String header = DocumentHandler.formUnqualifiedAclHeader(acl, enc);
+    assertEquals(header, DocumentHandler.formUnqualifiedAclHeader(
+        acl, enc, header.length()));
+    assertNull(DocumentHandler.formUnqualifiedAclHeader(
+        acl, enc, header.length() - 1));
+    assertNull(DocumentHandler.formUnqualifiedAclHeader(acl, enc, 10));
+  }
+
+  @Test
+  public void testLargeAclSentAsNamedResource() throws Exception {
+    final Acl acl = new Acl.Builder()
+        .setPermitUsers(Arrays.asList(u("user1"), u("user2"), u("user3")))
+        .setDenyGroups(Arrays.asList(g("group1")))
+        .setInheritFrom(new DocId("parent"))
+        .setInheritanceType(Acl.InheritanceType.CHILD_OVERRIDES)
+        .build();
+    MockAdaptor adaptor = new MockAdaptor() {
+      @Override
+      public void getDocContent(Request request, Response response)
+          throws IOException {
+        response.setAcl(acl);
+        response.getOutputStream();
+      }
+    };
+    final List<DocIdSender.Item> pushed = new ArrayList<DocIdSender.Item>();
+    String remoteIp = ex.getRemoteAddress().getAddress().getHostAddress();
+    Journal journal = new Journal(new MockTimeProvider());
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(adaptor)
+        .setJournal(journal)
+        .setFullAccessHosts(new String[] {remoteIp})
+        .setSendDocControls(true)
+        .setMaxAclHeaderBytes(100)
+        .setPusher(new DocumentHandler.AsyncPusher() {
+          @Override
+          public boolean asyncPushItem(DocIdSender.Item item) {
+            pushed.add(item);
+            return true;
+          }
+        })
+        .build();
+    handler.handle(ex);
+    assertEquals(200, ex.getResponseCode());
+    assertEquals(1, pushed.size());
+    DocIdSender.AclItem aclItem = (DocIdSender.AclItem) pushed.get(0);
+    assertEquals(defaultDocId, aclItem.getDocId());
+    assertEquals("overflow", aclItem.getDocIdFragment());
+    assertEquals(new Acl.Builder(acl)
+        .setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES).build(),
+        aclItem.getAcl());
+    assertEquals("acl=" + DocumentHandler.percentEncode(
+          DocumentHandler.formNamespacedAclHeader(new Acl.Builder()
+            .setInheritFrom(defaultDocId, "overflow")
+            .setInheritanceType(Acl.InheritanceType.CHILD_OVERRIDES)
+            .build(), new MockDocIdCodec())),
+        ex.getResponseHeaders().get("X-Gsa-Doc-Controls").get(0));
+    assertEquals(1, journal.getSnapshot().numAclHeaderOverflows);
+  }
+
+  @Test
+  public void testLargeAclSentAsNamedResourceBeforeTransform()
+      throws Exception {
+    final Acl acl = new Acl.Builder()
+        .setPermitUsers(Arrays.asList(u("user1"), u("user2"), u("user3")))
+        .build();
+    MockAdaptor adaptor = new MockAdaptor() {
+      @Override
+      public void getDocContent(Request request, Response response)
+          throws IOException {
+        response.setAcl(acl);
+        response.getOutputStream();
+      }
+    };
+    // Applying the rule twice would prefix names twice.
+    AclTransform aclTransform = new AclTransform(Arrays.asList(
+        new AclTransform.Rule(
+            new AclTransform.MatchData(null, "(.*)", null, null),
+            new AclTransform.MatchData(null, "x\\name1", null, null))));
+    final List<DocIdSender.Item> pushed = new ArrayList<DocIdSender.Item>();
+    String remoteIp = ex.getRemoteAddress().getAddress().getHostAddress();
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(adaptor)
+        .setAclTransform(aclTransform)
+        .setFullAccessHosts(new String[] {remoteIp})
+        .setSendDocControls(true)
+        .setMaxAclHeaderBytes(100)
+        .setPusher(new DocumentHandler.AsyncPusher() {
+          @Override
+          public boolean asyncPushItem(DocIdSender.Item item) {
+            pushed.add(item);
+            return true;
+          }
+        })
+        .build();
+    handler.handle(ex);
+    assertEquals(200, ex.getResponseCode());
+    assertEquals(1, pushed.size());
+    // The feed transforms it once.
+    assertEquals(new Acl.Builder(acl)
+        .setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES).build(),
+        ((DocIdSender.AclItem) pushed.get(0)).getAcl());
+  }
+
+  @Test
+  public void testLargeAclSentTransformedWhenPushFails() throws Exception {
+    final Acl acl = new Acl.Builder()
+        .setPermitUsers(Arrays.asList(u("user1"), u("user2"), u("user3")))
+        .build();
+    MockAdaptor adaptor = new MockAdaptor() {
+      @Override
+      public void getDocContent(Request request, Response response)
+          throws IOException {
+        response.setAcl(acl);
+        response.getOutputStream();
+      }
+    };
+    AclTransform aclTransform = new AclTransform(Arrays.asList(
+        new AclTransform.Rule(
+            new AclTransform.MatchData(null, "(.*)", null, null),
+            new AclTransform.MatchData(null, "x\\name1", null, null))));
+    String remoteIp = ex.getRemoteAddress().getAddress().getHostAddress();
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(adaptor)
+        .setAclTransform(aclTransform)
+        .setFullAccessHosts(new String[] {remoteIp})
+        .setSendDocControls(true)
+        .setMaxAclHeaderBytes(10)
+        .setPusher(new DocumentHandler.AsyncPusher() {
+          @Override
+          public boolean asyncPushItem(DocIdSender.Item item) {
+            return false;
+          }
+        })
+        .build();
+    handler.handle(ex);
+    assertEquals(200, ex.getResponseCode());
+    assertEquals("acl=" + DocumentHandler.percentEncode(
+          DocumentHandler.formNamespacedAclHeader(aclTransform.transform(acl),
+            new MockDocIdCodec())),
+        ex.getResponseHeaders().get("X-Gsa-Doc-Controls").get(0));
+  }
+
+  @Test
+  public void testSharedAcl() throws Exception {
+    final Acl acl = new Acl.Builder()
+        .setPermitUsers(Arrays.asList(u("user1"), u("user2"), u("user3")))
+        .setInheritanceType(Acl.InheritanceType.CHILD_OVERRIDES)
+        .build();
+    MockAdaptor adaptor = new MockAdaptor() {
+      @Override
+      public void getDocContent(Request request, Response response)
+          throws IOException {
+        response.setAcl(acl);
+        response.getOutputStream();
+      }
+    };
+    final List<DocIdSender.Item> pushed = new ArrayList<DocIdSender.Item>();
+    DocumentHandler.AsyncPusher pusher = new DocumentHandler.AsyncPusher() {
+      @Override
+      public boolean asyncPushItem(DocIdSender.Item item) {
+        pushed.add(item);
+        return true;
+      }
+    };
+    String remoteIp = ex.getRemoteAddress().getAddress().getHostAddress();
+    Journal journal = new Journal(new MockTimeProvider());
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(adaptor)
+        .setJournal(journal)
+        .setFullAccessHosts(new String[] {remoteIp})
+        .setSendDocControls(true)
+        .setPusher(pusher)
+        .setAclDeduplicator(
+            new AclDeduplicator("shared/", 3, 10, pusher, journal))
+        .build();
+    handler.handle(ex);
+    MockHttpExchange ex2 = new MockHttpExchange("GET", "/doc2",
+        new MockHttpContext(handler, "/"));
+    handler.handle(ex2);
+    assertEquals(200, ex.getResponseCode());
+    assertEquals(200, ex2.getResponseCode());
+    assertEquals(1, pushed.size());
+    DocIdSender.AclItem aclItem = (DocIdSender.AclItem) pushed.get(0);
+    assertEquals(new DocId("shared/" + AclDeduplicator.fingerprint(acl)),
+        aclItem.getDocId());
+    String header = "acl=" + DocumentHandler.percentEncode(
+          DocumentHandler.formNamespacedAclHeader(new Acl.Builder()
+            .setInheritFrom(aclItem.getDocId(), "shared")
+            .setInheritanceType(Acl.InheritanceType.CHILD_OVERRIDES)
+            .build(), new MockDocIdCodec()));
+    assertEquals(header,
+        ex.getResponseHeaders().get("X-Gsa-Doc-Controls").get(0));
+    assertEquals(header,
+        ex2.getResponseHeaders().get("X-Gsa-Doc-Controls").get(0));
+    assertEquals(2, journal.getSnapshot().numSharedAcls);
+  }
+
+  @Test
+  public void testSharedAclNotUsedForUntrustedClient() throws Exception {
+    final Acl acl = new Acl.Builder()
+        .setPermitUsers(Arrays.asList(u("user1"), u("user2"), u("user3")))
+        .build();
+    UserPrivateMockAdaptor adaptor = new UserPrivateMockAdaptor() {
+      @Override
+      public void getDocContent(Request request, Response response)
+          throws IOException {
+        response.setAcl(acl);
+        response.getOutputStream();
+      }
+    };
+    MockSamlServiceProvider samlServiceProvider = new MockSamlServiceProvider();
+    samlServiceProvider.setUserIdentity(new AuthnIdentityImpl
+        .Builder(new UserPrincipal("test")).build());
+    Journal journal = new Journal(new MockTimeProvider());
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(adaptor)
+        .setAuthzAuthority(adaptor)
+        .setJournal(journal)
+        .setFullAccessHosts(new String[] {NOT_OUR_IP_ADDRESS})
+        .setSamlServiceProvider(samlServiceProvider)
+        .setSendDocControls(true)
+        .setAlwaysGiveAclsAndMetadata(true)
+        .setAclDeduplicator(
+            new AclDeduplicator("shared/", 1, 10, new MockPusher(), journal))
+        .build();
+    handler.handle(ex);
+    assertEquals(200, ex.getResponseCode());
+    assertEquals(0, journal.getSnapshot().numSharedAcls);
+  }
+
+  @Test
+  public void testLargeAclSentInHeaderWhenPushFails() throws Exception {
+    final Acl acl = new Acl.Builder()
+        .setPermitUsers(Arrays.asList(u("user1"), u("user2"), u("user3")))
+        .build();
+    MockAdaptor adaptor = new MockAdaptor() {
+      @Override
+      public void getDocContent(Request request, Response response)
+          throws IOException {
+        response.setAcl(acl);
+        response.getOutputStream();
+      }
+    };
+    String remoteIp = ex.getRemoteAddress().getAddress().getHostAddress();
+    Journal journal = new Journal(new MockTimeProvider());
+    DocumentHandler handler = createHandlerBuilder()
+        .setAdaptor(adaptor)
+        .setJournal(journal)
+        .setFullAccessHosts(new String[] {remoteIp})
+        .setSendDocControls(true)
+        .setMaxAclHeaderBytes(10)
+        .setPusher(new DocumentHandler.AsyncPusher() {
+          @Override
+          public boolean asyncPushItem(DocIdSender.Item item) {
+            return false;
+          }
+        })
+        .build();
+    handler.handle(ex);
+    assertEquals(200, ex.getResponseCode());
+    assertEquals("acl=" + DocumentHandler.percentEncode(
+          DocumentHandler.formNamespacedAclHeader(acl, new MockDocIdCodec())),
+        ex.getResponseHeaders().get("X-Gsa-Doc-Controls").get(0));
+    assertEquals(0, journal.getSnapshot().numAclHeaderOverflows);
+  }
+
   @Test
   public void testDisplayUrlHeader() throws Exception {
     MockAdaptor adaptor = new MockAdaptor() {
@@ -2509,6 +3217,7 @@ public class DocumentHandlerTest {
     private Journal journal;
     private Adaptor adaptor;
     private AuthzAuthority authzAuthority;
+    private MetadataRetriever metadataRetriever;
     private String gsaHostname;
     private String[] fullAccessHosts = new String[0];
     private SamlServiceProvider samlServiceProvider;
@@ -2518,11 +3227,15 @@ public class DocumentHandlerTest {
         = new AclTransform(Arrays.<AclTransform.Rule>asList());
     private int transformMaxBytes;
     private boolean transformRequired;
-    private boolean useCompression;
+    private CompressionPolicy compressionPolicy;
     private Watchdog watchdog;
     private DocumentHandler.AsyncPusher pusher;
+    private LoadShedder loadShedder;
+    private SingleFlightRetriever singleFlight;
+    private AclDeduplicator aclDeduplicator;
     private boolean sendDocControls;
     private boolean markDocsPublic;
+    private int maxAclHeaderBytes;
     private long headerTimeoutMillis = 30 * 1000;
     private long contentTimeoutMillis = 180 * 1000;
     private String scoring = "content";
@@ -2555,6 +3268,12 @@ public class DocumentHandlerTest {
       return this;
     }
 
+    public DocumentHandlerBuilder setMetadataRetriever(
+        MetadataRetriever metadataRetriever) {
+      this.metadataRetriever = metadataRetriever;
+      return this;
+    }
+
     public DocumentHandlerBuilder setGsaHostname(String gsaHostname) {
       this.gsaHostname = gsaHostname;
       return this;
@@ -2588,8 +3307,9 @@ public class DocumentHandlerTest {
       return this;
     }
 
-    public DocumentHandlerBuilder setUseCompression(boolean useCompression) {
-      this.useCompression = useCompression;
+    public DocumentHandlerBuilder setCompressionPolicy(
+        CompressionPolicy compressionPolicy) {
+      this.compressionPolicy = compressionPolicy;
       return this;
     }
 
@@ -2604,6 +3324,23 @@ public class DocumentHandlerTest {
       return this;
     }
 
+    public DocumentHandlerBuilder setLoadShedder(LoadShedder loadShedder) {
+      this.loadShedder = loadShedder;
+      return this;
+    }
+
+    public DocumentHandlerBuilder setSingleFlight(
+        SingleFlightRetriever singleFlight) {
+      this.singleFlight = singleFlight;
+      return this;
+    }
+
+    public DocumentHandlerBuilder setAclDeduplicator(
+        AclDeduplicator aclDeduplicator) {
+      this.aclDeduplicator = aclDeduplicator;
+      return this;
+    }
+
     public DocumentHandlerBuilder setSendDocControls(boolean sendDocControls) {
       this.sendDocControls = sendDocControls;
       return this;
@@ -2614,6 +3351,11 @@ public class DocumentHandlerTest {
       return this;
     }
 
+    public DocumentHandlerBuilder setMaxAclHeaderBytes(int maxAclHeaderBytes) {
+      this.maxAclHeaderBytes = maxAclHeaderBytes;
+      return this;
+    }
+
     public DocumentHandlerBuilder setHeaderTimeoutMillis(
         long headerTimeoutMillis) {
       this.headerTimeoutMillis = headerTimeoutMillis;
@@ -2644,9 +3386,11 @@ public class DocumentHandlerTest {
 
     public DocumentHandler build() {
       return new DocumentHandler(docIdDecoder, docIdEncoder, journal, adaptor,
-          authzAuthority, gsaHostname, fullAccessHosts, samlServiceProvider,
-          transform, aclTransform, contentTransformPipeline, useCompression,
-          watchdog, pusher, sendDocControls, markDocsPublic,
+          authzAuthority, metadataRetriever, gsaHostname, fullAccessHosts,
+          samlServiceProvider, transform, aclTransform,
+          contentTransformPipeline,
+          compressionPolicy, watchdog, pusher, loadShedder, singleFlight,
+          aclDeduplicator, sendDocControls, markDocsPublic, maxAclHeaderBytes,
           headerTimeoutMillis, contentTimeoutMillis, scoring,
           alwaysGiveAclsAndMetadata, gsaVersion);
     }
@@ -0,0 +1,46 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+/** Unit tests for {@link Fingerprinter}. */
+public class FingerprinterTest {
+  @Test
+  public void testEmpty() {
+    assertEquals(
+        "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+        new Fingerprinter().finish());
+  }
+
+  @Test
+  public void testValuesDoNotRunTogether() {
+    assertFalse(new Fingerprinter().add("ab").add("c").finish().equals(
+        new Fingerprinter().add("a").add("bc").finish()));
+    assertFalse(new Fingerprinter().add((String) null).finish().equals(
+        new Fingerprinter().add("").finish()));
+  }
+
+  @Test
+  public void testSameValuesSameFingerprint() {
+    assertEquals(new Fingerprinter().add("a").add(true).finish(),
+        new Fingerprinter().add("a").add(true).finish());
+    assertFalse(new Fingerprinter().add(true).finish().equals(
+        new Fingerprinter().add(false).finish()));
+  }
+}
@@ -0,0 +1,265 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/** Unit tests for {@link GroupGraph}. */
+public class GroupGraphTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final GroupGraph graph = new GroupGraph();
+
+  @Test
+  public void testEmpty() {
+    assertEquals(0, graph.size());
+    assertEquals(Collections.emptySet(),
+        graph.getTransitiveGroups(new UserPrincipal("u1")));
+  }
+
+  @Test
+  public void testNestedGroups() {
+    graph.addGroupDefinitions(defs(
+        group("g1"), Arrays.<Principal>asList(user("u1"), group("g2")),
+        group("g2"), Arrays.<Principal>asList(user("u2"), group("g3")),
+        group("g3"), Arrays.<Principal>asList(user("u3")),
+        group("g4"), Arrays.<Principal>asList(user("u3"))), true);
+    assertEquals(4, graph.size());
+    assertEquals(groups("g1"), graph.getTransitiveGroups(user("u1")));
+    assertEquals(groups("g1", "g2"), graph.getTransitiveGroups(user("u2")));
+    assertEquals(groups("g1", "g2", "g3", "g4"),
+        graph.getTransitiveGroups(user("u3")));
+    assertEquals(groups("g1", "g2"), graph.getTransitiveGroups(group("g3")));
+    assertEquals(groups(), graph.getTransitiveGroups(group("g1")));
+    // Asking again uses the remembered ancestors.
+    assertEquals(groups("g1", "g2", "g3", "g4"),
+        graph.getTransitiveGroups(user("u3")));
+  }
+
+  @Test
+  public void testUserAndGroupWithSameNameDiffer() {
+    graph.addGroupDefinitions(defs(
+        group("g1"), Arrays.<Principal>asList(user("same")),
+        group("g2"), Arrays.<Principal>asList(group("same"))), true);
+    assertEquals(groups("g1"), graph.getTransitiveGroups(user("same")));
+    assertEquals(groups("g2"), graph.getTransitiveGroups(group("same")));
+  }
+
+  @Test
+  public void testNamespacesDiffer() {
+    graph.addGroupDefinitions(defs(
+        group("g1"), Arrays.<Principal>asList(new UserPrincipal("u1", "ns"))),
+        true);
+    assertEquals(groups("g1"),
+        graph.getTransitiveGroups(new UserPrincipal("u1", "ns")));
+    assertEquals(groups(), graph.getTransitiveGroups(user("u1")));
+  }
+
+  @Test
+  public void testCycle() {
+    graph.addGroupDefinitions(defs(
+        group("g1"), Arrays.<Principal>asList(group("g2")),
+        group("g2"), Arrays.<Principal>asList(group("g3")),
+        group("g3"), Arrays.<Principal>asList(group("g1"), user("u1"))),
+        true);
+    assertEquals(groups("g1", "g2", "g3"),
+        graph.getTransitiveGroups(user("u1")));
+    assertEquals(groups("g1", "g3"), graph.getTransitiveGroups(group("g2")));
+  }
+
+  @Test
+  public void testCaseInsensitive() {
+    graph.addGroupDefinitions(defs(
+        group("G1"), Arrays.<Principal>asList(user("U1"), group("G2"))),
+        false);
+    graph.addGroupDefinitions(defs(
+        group("g2"), Arrays.<Principal>asList(user("u2"))), true);
+    assertEquals(groups("G1"), graph.getTransitiveGroups(user("u1")));
+    // g2 is a member of G1 regardless of case, but U2 is only a member of g2
+    // with that case.
+    assertEquals(groups("G1", "g2"), graph.getTransitiveGroups(user("u2")));
+    assertEquals(groups(), graph.getTransitiveGroups(user("U2")));
+  }
+
+  @Test
+  public void testCaseSensitive() {
+    graph.addGroupDefinitions(defs(
+        group("g1"), Arrays.<Principal>asList(user("U1"))), true);
+    assertEquals(groups(), graph.getTransitiveGroups(user("u1")));
+    assertEquals(groups("g1"), graph.getTransitiveGroups(user("U1")));
+  }
+
+  @Test
+  public void testRedefinitionReplacesMembers() {
+    graph.addGroupDefinitions(defs(
+        group("g1"), Arrays.<Principal>asList(user("u1")),
+        group("g2"), Arrays.<Principal>asList(group("g1"))), true);
+    assertEquals(groups("g1", "g2"), graph.getTransitiveGroups(user("u1")));
+    graph.addGroupDefinitions(defs(
+        group("g1"), Arrays.<Principal>asList(user("u2"))), true);
+    assertEquals(2, graph.size());
+    assertEquals(groups(), graph.getTransitiveGroups(user("u1")));
+    assertEquals(groups("g1", "g2"), graph.getTransitiveGroups(user("u2")));
+  }
+
+  @Test
+  public void testExpand() {
+    graph.addGroupDefinitions(defs(
+        group("g1"), Arrays.<Principal>asList(group("g2")),
+        group("g2"), Arrays.<Principal>asList(user("u1")),
+        group("g3"), Arrays.<Principal>asList(group("direct"))), true);
+    AuthnIdentity identity = new AuthnIdentityImpl.Builder(user("u1"))
+        .setPassword("pw").setGroups(groups("direct")).build();
+    AuthnIdentity expanded = graph.expand(identity);
+    assertSame(identity.getUser(), expanded.getUser());
+    assertEquals("pw", expanded.getPassword());
+    assertEquals(groups("direct", "g1", "g2", "g3"), expanded.getGroups());
+  }
+
+  @Test
+  public void testExpandWithoutGroups() {
+    graph.addGroupDefinitions(defs(
+        group("g1"), Arrays.<Principal>asList(user("u1"))), true);
+    AuthnIdentity expanded
+        = graph.expand(new AuthnIdentityImpl.Builder(user("u1")).build());
+    assertNull(expanded.getPassword());
+    assertEquals(groups("g1"), expanded.getGroups());
+  }
+
+  @Test
+  public void testExpandedIdentityIsAuthorizedByNestedGroup() {
+    graph.addGroupDefinitions(defs(
+        group("g1"), Arrays.<Principal>asList(group("g2")),
+        group("g2"), Arrays.<Principal>asList(user("u1"))), true);
+    Acl acl = new Acl.Builder().setPermitGroups(groups("g1")).build();
+    AuthnIdentity identity = new AuthnIdentityImpl.Builder(user("u1")).build();
+    assertEquals(AuthzStatus.INDETERMINATE, acl.isAuthorizedLocal(identity));
+    assertEquals(AuthzStatus.PERMIT,
+        acl.isAuthorizedLocal(graph.expand(identity)));
+  }
+
+  @Test
+  public void testSaveAndLoad() throws IOException {
+    graph.addGroupDefinitions(defs(
+        group("g1"), Arrays.<Principal>asList(user("u1"), group("g2"))),
+        true);
+    graph.addGroupDefinitions(defs(
+        new GroupPrincipal("G2", "ns"),
+        Arrays.<Principal>asList(new UserPrincipal("U2", "ns"))), false);
+    File file = new File(temp.getRoot(), "groups");
+    graph.save(file);
+    // Saving again replaces the file.
+    graph.save(file);
+
+    GroupGraph loaded = new GroupGraph();
+    loaded.load(file);
+    assertEquals(2, loaded.size());
+    assertEquals(groups("g1"), loaded.getTransitiveGroups(user("u1")));
+    assertEquals(Collections.singleton(new GroupPrincipal("G2", "ns")),
+        loaded.getTransitiveGroups(new UserPrincipal("u2", "ns")));
+  }
+
+  @Test
+  public void testLoadUnknownVersion() throws IOException {
+    File file = temp.newFile("groups");
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[] {0, 0, 0, 99});
+    out.close();
+    thrown.expect(IOException.class);
+    graph.load(file);
+  }
+
+  @Test
+  public void testRecompilesAtMostOncePerInterval() {
+    MockTimeProvider time = new MockTimeProvider();
+    time.autoIncrement = false;
+    GroupGraph limited = new GroupGraph(1000, time);
+    limited.addGroupDefinitions(defs(
+        group("g1"), Arrays.<Principal>asList(user("u1"))), true);
+    assertEquals(groups("g1"), limited.getTransitiveGroups(user("u1")));
+
+    limited.addGroupDefinitions(defs(
+        group("g2"), Arrays.<Principal>asList(user("u1"))), true);
+    time.time = 999;
+    // The previous compilation is still used.
+    assertEquals(groups("g1"), limited.getTransitiveGroups(user("u1")));
+    time.time = 1000;
+    assertEquals(groups("g1", "g2"), limited.getTransitiveGroups(user("u1")));
+  }
+
+  @Test
+  public void testNegativeRecompileMillis() {
+    thrown.expect(IllegalArgumentException.class);
+    new GroupGraph(-1, new MockTimeProvider());
+  }
+
+  @Test
+  public void testNullPrincipal() {
+    thrown.expect(NullPointerException.class);
+    graph.getTransitiveGroups(null);
+  }
+
+  private static UserPrincipal user(String name) {
+    return new UserPrincipal(name);
+  }
+
+  private static GroupPrincipal group(String name) {
+    return new GroupPrincipal(name);
+  }
+
+  private static Set<GroupPrincipal> groups(String... names) {
+    Set<GroupPrincipal> groups = new HashSet<GroupPrincipal>();
+    for (String name : names) {
+      groups.add(group(name));
+    }
+    return groups;
+  }
+
+  private static Map<GroupPrincipal, Collection<Principal>> defs(
+      Object... groupsAndMembers) {
+    Map<GroupPrincipal, Collection<Principal>> defs
+        = new HashMap<GroupPrincipal, Collection<Principal>>();
+    for (int i = 0; i < groupsAndMembers.length; i += 2) {
+      @SuppressWarnings("unchecked")
+      Collection<Principal> members
+          = (Collection<Principal>) groupsAndMembers[i + 1];
+      defs.put((GroupPrincipal) groupsAndMembers[i], members);
+    }
+    return defs;
+  }
+}
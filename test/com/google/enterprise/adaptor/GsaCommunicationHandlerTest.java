@@ -29,7 +29,9 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -63,6 +65,9 @@ public class GsaCommunicationHandlerTest {
   @Rule
   public ExpectedException thrown = ExpectedException.none();
 
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
   @Before
   public void setup() {
     config = new Config();
@@ -91,6 +96,7 @@ public class GsaCommunicationHandlerTest {
     assertNotNull(context.getAsyncDocIdPusher());
     assertNotNull(context.getDocIdEncoder());
     assertNotNull(context.getSensitiveValueDecoder());
+    assertNull(context.getGroupGraph());
     ExceptionHandler originalHandler
         = context.getGetDocIdsFullErrorHandler();
     ExceptionHandler replacementHandler
@@ -111,6 +117,49 @@ public class GsaCommunicationHandlerTest {
     }));
   }
 
+  @Test
+  public void testInterningNotDisabledByOtherHandler() throws Exception {
+    config.setValue("adaptor.internPrincipals", "true");
+    gsa.setup(mockServer, mockServer, null);
+    assertTrue(PrincipalInterner.isEnabled());
+    try {
+      Config otherConfig = new Config();
+      otherConfig.setValue("gsa.hostname", "localhost");
+      otherConfig.setValue("gsa.version", "7.2.0-0");
+      GsaCommunicationHandler other
+          = new GsaCommunicationHandler(new NullAdaptor(), otherConfig);
+      other.setup(new MockHttpServer(), new MockHttpServer(), null);
+      try {
+        assertTrue(PrincipalInterner.isEnabled());
+      } finally {
+        other.stop(0, TimeUnit.SECONDS);
+        other.teardown();
+      }
+    } finally {
+      PrincipalInterner.resetForTesting();
+    }
+  }
+
+  @Test
+  public void testGroupGraphSavedAndLoaded() throws Exception {
+    File file = new File(temp.getRoot(), "groups");
+    config.setValue("adaptor.indexGroups", "true");
+    config.setValue("adaptor.groupIndexFile", file.getPath());
+    GroupGraph graph = gsa.setup(mockServer, mockServer, null).getGroupGraph();
+    assertNotNull(graph);
+    assertEquals(0, graph.size());
+    graph.addGroupDefinitions(Collections.singletonMap(new GroupPrincipal("g1"),
+        Arrays.<Principal>asList(new UserPrincipal("u1"))), true);
+    gsa.stop(0, TimeUnit.SECONDS);
+    gsa.teardown();
+    assertTrue(file.exists());
+
+    gsa = new GsaCommunicationHandler(adaptor, config);
+    graph = gsa.setup(mockServer, mockServer, null).getGroupGraph();
+    assertEquals(Collections.singleton(new GroupPrincipal("g1")),
+        graph.getTransitiveGroups(new UserPrincipal("u1")));
+  }
+
   @Test
   public void testPollingIncrementalAdaptor() throws Exception {
     config.setValue("adaptor.pushDocIdsOnStartup", "false");
@@ -342,6 +342,133 @@ public class JournalTest {
     new Journal(false);
   }
 
+  @Test
+  public void testCompression() {
+    Journal journal = new Journal(new MockTimeProvider());
+    Journal.JournalSnapshot snapshot = journal.getSnapshot();
+    assertEquals(0, snapshot.numCompressedResponses);
+    assertEquals(0, snapshot.compressionInputBytes);
+    assertEquals(0, snapshot.compressionOutputBytes);
+
+    journal.recordCompression(1000, 100);
+    journal.recordCompression(500, 400);
+    snapshot = journal.getSnapshot();
+    assertEquals(2, snapshot.numCompressedResponses);
+    assertEquals(1500, snapshot.compressionInputBytes);
+    assertEquals(500, snapshot.compressionOutputBytes);
+  }
+
+  @Test
+  public void testWatchdogTimeouts() {
+    Journal journal = new Journal(new MockTimeProvider());
+    assertEquals(0, journal.getSnapshot().numWatchdogTimeouts);
+    journal.recordWatchdogTimeout();
+    journal.recordWatchdogTimeout();
+    assertEquals(2, journal.getSnapshot().numWatchdogTimeouts);
+  }
+
+  @Test
+  public void testRequestShed() {
+    Journal journal = new Journal(new MockTimeProvider());
+    assertEquals(0, journal.getSnapshot().numShedRequests);
+    journal.recordRequestShed();
+    assertEquals(1, journal.getSnapshot().numShedRequests);
+  }
+
+  @Test
+  public void testCoalescedRetrievals() {
+    Journal journal = new Journal(new MockTimeProvider());
+    assertEquals(0, journal.getSnapshot().numCoalescedRetrievals);
+    journal.recordCoalescedRetrieval();
+    assertEquals(1, journal.getSnapshot().numCoalescedRetrievals);
+  }
+
+  @Test
+  public void testContentTransformStages() {
+    Journal journal = new Journal(new MockTimeProvider());
+    journal.recordContentTransformStages(2, 1);
+    journal.recordContentTransformStages(0, 3);
+    Journal.JournalSnapshot snapshot = journal.getSnapshot();
+    assertEquals(2, snapshot.numContentTransformStagesApplied);
+    assertEquals(4, snapshot.numContentTransformStagesSkipped);
+  }
+
+  @Test
+  public void testAclHeaderOverflows() {
+    Journal journal = new Journal(new MockTimeProvider());
+    journal.recordAclHeaderOverflow();
+    journal.recordAclHeaderOverflow();
+    assertEquals(2, journal.getSnapshot().numAclHeaderOverflows);
+  }
+
+  @Test
+  public void testSharedAcls() {
+    Journal journal = new Journal(new MockTimeProvider());
+    journal.recordSharedAcl(true);
+    journal.recordSharedAcl(false);
+    journal.recordSharedAcl(false);
+    Journal.JournalSnapshot snapshot = journal.getSnapshot();
+    assertEquals(3, snapshot.numSharedAcls);
+    assertEquals(1, snapshot.numSharedAclsPushed);
+  }
+
+  @Test
+  public void testAuthzBatches() {
+    Journal journal = new Journal(new MockTimeProvider());
+    journal.recordAuthzBatch(10);
+    journal.recordAuthzBatch(30);
+    journal.recordAuthzBatchTimeout();
+    Journal.JournalSnapshot snapshot = journal.getSnapshot();
+    assertEquals(2, snapshot.numAuthzBatches);
+    assertEquals(40, snapshot.authzBatchMillis);
+    assertEquals(30, snapshot.maxAuthzBatchMillis);
+    assertEquals(1, snapshot.numAuthzBatchTimeouts);
+  }
+
+  @Test
+  public void testAuthzLatencyPercentiles() {
+    Journal journal = new Journal(new MockTimeProvider());
+    Journal.JournalSnapshot snapshot = journal.getSnapshot();
+    assertEquals(0, snapshot.authzLatencyP50Millis);
+    assertEquals(0, snapshot.authzLatencyP99Millis);
+    for (int i = 0; i < 86; i++) {
+      journal.recordAuthzBatch(3);
+    }
+    for (int i = 0; i < 13; i++) {
+      journal.recordAuthzBatch(150);
+    }
+    journal.recordAuthzBatch(120000);
+    snapshot = journal.getSnapshot();
+    assertEquals(5, snapshot.authzLatencyP50Millis);
+    assertEquals(200, snapshot.authzLatencyP90Millis);
+    assertEquals(200, snapshot.authzLatencyP99Millis);
+    journal.recordAuthzBatch(120000);
+    snapshot = journal.getSnapshot();
+    assertEquals(120000, snapshot.authzLatencyP99Millis);
+  }
+
+  @Test
+  public void testAuthzLatencyPercentileCappedAtMax() {
+    Journal journal = new Journal(new MockTimeProvider());
+    journal.recordAuthzBatch(0);
+    journal.recordAuthzBatch(12);
+    Journal.JournalSnapshot snapshot = journal.getSnapshot();
+    assertEquals(1, snapshot.authzLatencyP50Millis);
+    assertEquals(12, snapshot.authzLatencyP99Millis);
+  }
+
+  @Test
+  public void testAuthzCacheLookups() {
+    Journal journal = new Journal(new MockTimeProvider());
+    journal.recordAuthzCacheLookups(3, 0);
+    journal.recordAuthzCacheLookups(1, 2);
+    journal.recordAuthzCacheLookups(0, 0);
+    Journal.JournalSnapshot snapshot = journal.getSnapshot();
+    assertEquals(4, snapshot.numAuthzCacheHits);
+    assertEquals(2, snapshot.numAuthzCacheMisses);
+    assertEquals(1, snapshot.numAuthzCallsSaved);
+  }
+
   @Test
   public void testLastFullPushStatus() {
     final MockTimeProvider timeProvider = new MockTimeProvider();
@@ -0,0 +1,132 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.LinkedList;
+import java.util.Queue;
+
+/** Unit tests for {@link LoadShedder}. */
+public class LoadShedderTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private MockTimeProvider timeProvider = new MockTimeProvider();
+  private Journal journal = new Journal(new MockTimeProvider());
+  private Queue<Object> queue = new LinkedList<Object>();
+
+  {
+    timeProvider.autoIncrement = false;
+  }
+
+  @Test
+  public void testReservedCapacityTooLarge() {
+    thrown.expect(IllegalArgumentException.class);
+    new LoadShedder(queue, 10, 11, 0, 10, journal);
+  }
+
+  @Test
+  public void testNullJournal() {
+    thrown.expect(NullPointerException.class);
+    new LoadShedder(queue, 10, 5, 0, 10, null);
+  }
+
+  @Test
+  public void testQueueDepth() {
+    LoadShedder shedder
+        = new LoadShedder(queue, 4, 2, 0, 10, journal, timeProvider);
+    assertFalse(shedder.shouldShed(false));
+    queue.add(new Object());
+    assertFalse(shedder.shouldShed(false));
+    queue.add(new Object());
+    assertTrue(shedder.shouldShed(false));
+    assertFalse(shedder.shouldShed(true));
+    queue.add(new Object());
+    queue.add(new Object());
+    // Full queues are handled by AbortImmediatelyFilter.
+    assertFalse(shedder.shouldShed(true));
+  }
+
+  @Test
+  public void testUnknownQueue() {
+    LoadShedder shedder
+        = new LoadShedder(null, 4, 0, 0, 10, journal, timeProvider);
+    assertFalse(shedder.shouldShed(false));
+  }
+
+  @Test
+  public void testRequestsInFlightWithoutQueue() {
+    LoadShedder shedder
+        = new LoadShedder(null, 3, 1, 0, 10, journal, timeProvider);
+    shedder.requestStarted();
+    assertFalse(shedder.shouldShed(false));
+    shedder.requestStarted();
+    assertTrue(shedder.shouldShed(false));
+    assertFalse(shedder.shouldShed(true));
+    shedder.requestFinished(5);
+    assertFalse(shedder.shouldShed(false));
+  }
+
+  @Test
+  public void testP99() {
+    LoadShedder shedder
+        = new LoadShedder(queue, 4, 2, 0, 10, journal, timeProvider);
+    assertEquals(0, shedder.getP99LatencyMillis());
+    for (int i = 1; i <= 200; i++) {
+      shedder.recordLatency(i);
+    }
+    // Cached value.
+    assertEquals(0, shedder.getP99LatencyMillis());
+    timeProvider.time += 1000;
+    assertEquals(198, shedder.getP99LatencyMillis());
+    // Samples expire.
+    timeProvider.time += 60 * 1000;
+    assertEquals(0, shedder.getP99LatencyMillis());
+  }
+
+  @Test
+  public void testLatency() {
+    LoadShedder shedder
+        = new LoadShedder(queue, 4, 2, 100, 10, journal, timeProvider);
+    shedder.recordLatency(50);
+    assertFalse(shedder.shouldShed(false));
+    timeProvider.time += 1000;
+    for (int i = 0; i < 10; i++) {
+      shedder.recordLatency(500);
+    }
+    timeProvider.time += 1000;
+    assertTrue(shedder.shouldShed(false));
+    assertFalse(shedder.shouldShed(true));
+  }
+
+  @Test
+  public void testShed() throws Exception {
+    LoadShedder shedder
+        = new LoadShedder(queue, 4, 2, 0, 15, journal, timeProvider);
+    MockHttpExchange ex
+        = new MockHttpExchange("GET", "/", new MockHttpContext("/"));
+    shedder.shed(ex);
+    assertEquals(503, ex.getResponseCode());
+    assertEquals("15", ex.getResponseHeaders().getFirst("Retry-After"));
+    assertEquals(1, journal.getSnapshot().numShedRequests);
+  }
+}
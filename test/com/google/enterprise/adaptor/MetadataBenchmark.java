@@ -0,0 +1,139 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Compares {@link Metadata} with a map from each key to a set of values, which
+ * is how {@code Metadata} used to be stored. For a typical document's worth of
+ * pairs it measures building, iterating and copying an instance, and the heap
+ * retained per instance. Not run as part of the tests; run manually with:
+ *
+ * <pre>java -cp build/src:build/test:lib/* \
+ *   com.google.enterprise.adaptor.MetadataBenchmark [iterations] [pairs]
+ * </pre>
+ */
+public class MetadataBenchmark {
+  /** Number of instances kept alive to measure retained heap. */
+  private static final int RETAINED = 20000;
+  private static volatile Object sink;
+
+  public static void main(String[] args) {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int pairs = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+    String[] keys = new String[pairs];
+    String[] values = new String[pairs];
+    for (int i = 0; i < pairs; i++) {
+      // A few keys have multiple values.
+      keys[i] = "google:key" + (i % (pairs - pairs / 5));
+      values[i] = "value " + i;
+    }
+
+    // Warm up, then measure.
+    for (int round = 0; round < 2; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        Metadata metadata = buildMetadata(keys, values);
+        int count = 0;
+        for (Map.Entry<String, String> e : metadata) {
+          count += e.getValue().length();
+        }
+        sink = new Metadata(metadata);
+        sink = count;
+      }
+      long middle = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        Map<String, Set<String>> map = buildMap(keys, values);
+        int count = 0;
+        for (Map.Entry<String, Set<String>> e : map.entrySet()) {
+          for (String value : e.getValue()) {
+            count += value.length();
+          }
+        }
+        sink = buildMap(map);
+        sink = count;
+      }
+      long end = System.nanoTime();
+      if (round == 1) {
+        System.out.println(String.format(
+            "%d pairs: build+iterate+copy  Metadata %8.1f ns  "
+            + "map of sets %8.1f ns", pairs,
+            (double) (middle - start) / iterations,
+            (double) (end - middle) / iterations));
+      }
+    }
+
+    Object[] retained = new Object[RETAINED];
+    long before = usedMemory();
+    for (int i = 0; i < RETAINED; i++) {
+      retained[i] = buildMetadata(keys, values);
+    }
+    long metadataBytes = (usedMemory() - before) / RETAINED;
+    sink = retained;
+    retained = new Object[RETAINED];
+    before = usedMemory();
+    for (int i = 0; i < RETAINED; i++) {
+      retained[i] = buildMap(keys, values);
+    }
+    long mapBytes = (usedMemory() - before) / RETAINED;
+    sink = retained;
+    System.out.println(String.format(
+        "%d pairs: retained heap  Metadata %6d bytes  map of sets %6d bytes",
+        pairs, metadataBytes, mapBytes));
+  }
+
+  private static Metadata buildMetadata(String[] keys, String[] values) {
+    Metadata metadata = new Metadata();
+    for (int i = 0; i < keys.length; i++) {
+      metadata.add(keys[i], values[i]);
+    }
+    return metadata;
+  }
+
+  private static Map<String, Set<String>> buildMap(String[] keys,
+      String[] values) {
+    Map<String, Set<String>> map = new TreeMap<String, Set<String>>();
+    for (int i = 0; i < keys.length; i++) {
+      Set<String> set = map.get(keys[i]);
+      if (set == null) {
+        set = new TreeSet<String>();
+        map.put(keys[i], set);
+      }
+      set.add(values[i]);
+    }
+    return map;
+  }
+
+  private static Map<String, Set<String>> buildMap(
+      Map<String, Set<String>> original) {
+    Map<String, Set<String>> map = new TreeMap<String, Set<String>>();
+    for (Map.Entry<String, Set<String>> e : original.entrySet()) {
+      map.put(e.getKey(), new TreeSet<String>(e.getValue()));
+    }
+    return map;
+  }
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -25,10 +25,13 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 /** Test cases for {@link Metadata}. */
@@ -457,4 +460,183 @@ public class MetadataTest {
     thrown.expect(UnsupportedOperationException.class);
     keys.remove("sna");
   }
+
+  @Test
+  public void testJournalRollback() {
+    Metadata m = new Metadata();
+    m.set("foo", makeSet("bar", "home"));
+    m.set("sna", makeSet("fu"));
+    m.set("gone", makeSet("soon"));
+    Metadata golden = new Metadata(m);
+    Set<String> fooValues = m.getAllValues("foo");
+
+    m.beginJournal();
+    m.add("foo", "more");
+    m.set("sna", "bar");
+    m.set("new", makeSet("a", "b"));
+    m.add("newer", "c");
+    m.getKeys().remove("gone");
+    assertEquals(makeSet("bar", "home", "more"), m.getAllValues("foo"));
+    // Values are copied before being changed.
+    assertEquals(makeSet("bar", "home"), fooValues);
+    m.rollbackJournal();
+
+    assertEquals(golden, m);
+  }
+
+  @Test
+  public void testJournalRollbackAfterReplacingAll() {
+    Metadata m = new Metadata();
+    m.set("foo", makeSet("bar", "home"));
+    Metadata golden = new Metadata(m);
+    m.beginJournal();
+    m.add("foo", "more");
+    m.set(new Metadata());
+    m.add("sna", "fu");
+    m.rollbackJournal();
+    assertEquals(golden, m);
+  }
+
+  @Test
+  public void testJournalRollbackKeyIteratorRemoval() {
+    Metadata m = new Metadata();
+    m.set("foo", makeSet("bar"));
+    m.set("sna", makeSet("fu"));
+    Metadata golden = new Metadata(m);
+    m.beginJournal();
+    Iterator<String> it = m.getKeys().iterator();
+    it.next();
+    it.remove();
+    m.getKeys().clear();
+    assertTrue(m.isEmpty());
+    m.rollbackJournal();
+    assertEquals(golden, m);
+  }
+
+  @Test
+  public void testJournalCommit() {
+    Metadata m = new Metadata();
+    m.set("foo", makeSet("bar"));
+    m.beginJournal();
+    m.add("foo", "more");
+    m.getKeys().remove("absent");
+    m.commitJournal();
+    Metadata golden = new Metadata();
+    golden.set("foo", makeSet("bar", "more"));
+    assertEquals(golden, m);
+    // No longer journaling, so key set is the plain one.
+    m.getKeys().remove("foo");
+    assertTrue(m.isEmpty());
+  }
+
+  @Test
+  public void testJournalAlreadyStarted() {
+    Metadata m = new Metadata();
+    m.beginJournal();
+    thrown.expect(IllegalStateException.class);
+    m.beginJournal();
+  }
+
+  @Test
+  public void testJournalNotStarted() {
+    thrown.expect(IllegalStateException.class);
+    new Metadata().rollbackJournal();
+  }
+
+  @Test
+  public void testHashCodeMatchesMapOfSets() {
+    Metadata m = new Metadata();
+    m.set("foo", makeSet("bar", "home"));
+    m.set("sna", makeSet("fu"));
+    Map<String, Set<String>> golden = new TreeMap<String, Set<String>>();
+    golden.put("foo", makeSet("bar", "home"));
+    golden.put("sna", makeSet("fu"));
+    assertEquals(golden.hashCode(), m.hashCode());
+  }
+
+  @Test
+  public void testSetWithNonNaturalOrdering() {
+    Set<String> values = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+    values.add("b");
+    values.add("A");
+    values.add("c");
+    Metadata m = new Metadata();
+    m.set("foo", values);
+    m.add("foo", "a");
+    assertEquals(Arrays.asList("A", "a", "b", "c"),
+        new ArrayList<String>(m.getAllValues("foo")));
+    assertEquals("A", m.getOneValue("foo"));
+    assertTrue(m.getAllValues("foo").contains("a"));
+    assertFalse(m.getAllValues("foo").contains("B"));
+  }
+
+  @Test
+  public void testKeyIteratorRemoval() {
+    Metadata m = new Metadata();
+    m.set("a", makeSet("1", "2"));
+    m.set("b", makeSet("3"));
+    m.set("c", makeSet("4", "5", "6"));
+    Set<String> keys = m.getKeys();
+    assertEquals(3, keys.size());
+    Iterator<String> it = keys.iterator();
+    assertEquals("a", it.next());
+    assertEquals("b", it.next());
+    it.remove();
+    assertEquals("c", it.next());
+    assertFalse(it.hasNext());
+    assertEquals(makeSet("a", "c"), keys);
+    keys.retainAll(makeSet("c"));
+    Metadata golden = new Metadata();
+    golden.set("c", makeSet("4", "5", "6"));
+    assertEquals(golden, m);
+  }
+
+  @Test
+  public void testKeysShared() {
+    Metadata m1 = new Metadata();
+    Metadata m2 = new Metadata();
+    m1.add(new String("shared-key"), "1");
+    m2.set(new String("shared-key"), "2");
+    m2.add(new String("shared-key"), "3");
+    Iterator<Entry<String, String>> it1 = m1.iterator();
+    Iterator<Entry<String, String>> it2 = m2.iterator();
+    String key = it1.next().getKey();
+    assertTrue(key == it2.next().getKey());
+    assertTrue(key == it2.next().getKey());
+  }
+
+  @Test
+  public void testUnmodifiableViewSeesChanges() {
+    Metadata m = new Metadata();
+    Metadata view = m.unmodifiableView();
+    m.add("foo", "bar");
+    assertEquals("bar", view.getOneValue("foo"));
+    assertEquals(m, view);
+    m.beginJournal();
+    m.set("foo", "changed");
+    assertEquals("changed", view.getOneValue("foo"));
+    m.rollbackJournal();
+    assertEquals("bar", view.getOneValue("foo"));
+  }
+
+  @Test
+  public void testManyValues() {
+    Metadata m = new Metadata();
+    Map<String, Set<String>> golden = new TreeMap<String, Set<String>>();
+    for (int i = 0; i < 1000; i++) {
+      String k = "key" + (i * 7 % 31);
+      String v = "value" + (i * 13 % 97);
+      m.add(k, v);
+      if (!golden.containsKey(k)) {
+        golden.put(k, new TreeSet<String>());
+      }
+      golden.get(k).add(v);
+    }
+    assertEquals(golden.keySet(), m.getKeys());
+    for (String k : golden.keySet()) {
+      assertEquals(golden.get(k), m.getAllValues(k));
+    }
+    assertEquals(new Metadata(m), m);
+    assertEquals(golden.hashCode(), m.hashCode());
+  }
 }
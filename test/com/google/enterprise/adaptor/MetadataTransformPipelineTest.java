@@ -93,6 +93,18 @@ public class MetadataTransformPipelineTest {
     assertEquals(2, params.size());
   }
 
+  /** Changes existing and new keys in every supported way. */
+  private static class ChangingTransform implements MetadataTransform {
+    @Override
+    public void transform(Metadata metadata, Map<String, String> p) {
+      metadata.add("multi", "three");
+      metadata.set("single", "changed");
+      metadata.set("empty", Collections.<String>emptySet());
+      metadata.getKeys().remove("removed");
+      metadata.add("new", "value");
+    }
+  }
+
   private static class ErroringTransform implements MetadataTransform {
     @Override
     public void transform(Metadata metadata, Map<String, String> p) {
@@ -185,4 +197,47 @@ public class MetadataTransformPipelineTest {
       assertEquals(Collections.singletonMap("int", "1"), params);
     }
   }
+
+  @Test
+  public void testTransformErrorRollsBackChangedKeys() throws IOException {
+    MetadataTransformPipeline pipeline
+        = new MetadataTransformPipeline(Arrays.asList(
+        new ChangingTransform(), new ErroringTransform()),
+        Arrays.asList("ct", "et"));
+    Metadata metadata = new Metadata();
+    metadata.add("multi", "one");
+    metadata.add("multi", "two");
+    metadata.set("single", "original");
+    metadata.set("empty", "notyet");
+    metadata.set("removed", "value");
+    Metadata goldenMetadata = new Metadata(metadata);
+
+    thrown.expect(RuntimeException.class);
+    try {
+      pipeline.transform(metadata, new HashMap<String, String>());
+    } finally {
+      assertEquals(goldenMetadata, metadata);
+    }
+  }
+
+  @Test
+  public void testTransformChangesKept() throws IOException {
+    MetadataTransformPipeline pipeline = new MetadataTransformPipeline(
+        Arrays.asList(new ChangingTransform()), Arrays.asList("ct"));
+    Metadata metadata = new Metadata();
+    metadata.add("multi", "one");
+    metadata.set("removed", "value");
+    metadata.set("untouched", "value");
+    pipeline.transform(metadata, new HashMap<String, String>());
+
+    Metadata goldenMetadata = new Metadata();
+    goldenMetadata.add("multi", "one");
+    goldenMetadata.add("multi", "three");
+    goldenMetadata.set("single", "changed");
+    goldenMetadata.set("new", "value");
+    goldenMetadata.set("untouched", "value");
+    assertEquals(goldenMetadata, metadata);
+    // A later pipeline can journal the same instance.
+    pipeline.transform(metadata, new HashMap<String, String>());
+  }
 }
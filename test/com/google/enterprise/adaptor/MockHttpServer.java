@@ -32,6 +32,7 @@ import java.util.concurrent.Executor;
  */
 public class MockHttpServer extends HttpServer {
   private final InetSocketAddress addr;
+  private Executor executor;
   final List<HttpContext> contexts = new ArrayList<HttpContext>();
 
   public MockHttpServer() {
@@ -80,8 +81,8 @@ public class MockHttpServer extends HttpServer {
   }
 
   @Override
-  public Executor getExecutor() {
-    throw new UnsupportedOperationException();
+  public synchronized Executor getExecutor() {
+    return executor;
   }
 
   @Override
@@ -111,8 +112,8 @@ public class MockHttpServer extends HttpServer {
   }
 
   @Override
-  public void setExecutor(Executor executor) {
-    throw new UnsupportedOperationException();
+  public synchronized void setExecutor(Executor executor) {
+    this.executor = executor;
   }
 
   @Override
@@ -0,0 +1,33 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Mock {@link Ticker} for caches, which only advances when told to.
+ */
+public class MockTicker extends Ticker {
+  private long nanos;
+
+  @Override
+  public synchronized long read() {
+    return nanos;
+  }
+
+  public synchronized void advance(long deltaNanos) {
+    nanos += deltaNanos;
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link PrefetchCache}. */
+public class PrefetchCacheTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final MockTicker ticker = new MockTicker();
+  private final PrefetchCache<String> cache
+      = new PrefetchCache<String>(2, 10, TimeUnit.SECONDS, ticker);
+
+  @Test
+  public void testNegativeSize() {
+    thrown.expect(IllegalArgumentException.class);
+    new PrefetchCache<String>(-1, 10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testTakeRemoves() {
+    cache.put(new DocId("1"), "one");
+    assertEquals("one", cache.take(new DocId("1")));
+    assertNull(cache.take(new DocId("1")));
+  }
+
+  @Test
+  public void testMissing() {
+    assertNull(cache.take(new DocId("1")));
+  }
+
+  @Test
+  public void testPutAll() {
+    Map<DocId, String> values = new HashMap<DocId, String>();
+    values.put(new DocId("1"), "one");
+    values.put(new DocId("2"), "two");
+    cache.putAll(values);
+    assertEquals(2, cache.size());
+    assertEquals("two", cache.take(new DocId("2")));
+    assertEquals("one", cache.take(new DocId("1")));
+  }
+
+  @Test
+  public void testExpires() {
+    cache.put(new DocId("1"), "one");
+    ticker.advance(TimeUnit.SECONDS.toNanos(9));
+    cache.put(new DocId("2"), "two");
+    ticker.advance(TimeUnit.SECONDS.toNanos(2));
+    assertNull(cache.take(new DocId("1")));
+    assertEquals("two", cache.take(new DocId("2")));
+  }
+
+  @Test
+  public void testBounded() {
+    for (int i = 0; i < 10; i++) {
+      cache.put(new DocId("" + i), "value");
+    }
+    assertTrue(cache.size() <= 2);
+  }
+
+  @Test
+  public void testInvalidate() {
+    cache.put(new DocId("1"), "one");
+    cache.invalidate(new DocId("1"));
+    assertNull(cache.take(new DocId("1")));
+  }
+}
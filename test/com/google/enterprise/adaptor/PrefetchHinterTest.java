@@ -0,0 +1,113 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/** Unit tests for {@link PrefetchHinter}. */
+public class PrefetchHinterTest {
+  private final QueuingExecutor executor = new QueuingExecutor();
+  private final RecordingPrefetcher prefetcher = new RecordingPrefetcher();
+  private final PrefetchHinter hinter
+      = new PrefetchHinter(prefetcher, executor, 2);
+
+  @Test
+  public void testRecordsHinted() {
+    hinter.itemsSent(Arrays.asList(
+        new DocIdPusher.Record.Builder(new DocId("1")).build(),
+        new DocIdPusher.Record.Builder(new DocId("2")).setDeleteFromIndex(true)
+            .build(),
+        new DocIdSender.AclItem(new DocId("3"), Acl.EMPTY),
+        new DocIdPusher.Record.Builder(new DocId("4")).build()));
+    executor.runAll();
+    assertEquals(1, prefetcher.batches.size());
+    assertEquals(Arrays.asList(new DocId("1"), new DocId("4")),
+        prefetcher.batches.get(0));
+  }
+
+  @Test
+  public void testNothingToHint() {
+    hinter.itemsSent(Collections.<DocIdSender.Item>emptyList());
+    assertTrue(executor.tasks.isEmpty());
+  }
+
+  @Test
+  public void testBatchesInOrderAndDroppedWhenBehind() {
+    for (int i = 0; i < 4; i++) {
+      hinter.itemsSent(Arrays.asList(
+          new DocIdPusher.Record.Builder(new DocId("" + i)).build()));
+    }
+    // A single task drains the batches that fit.
+    assertEquals(1, executor.tasks.size());
+    executor.runAll();
+    assertEquals(2, prefetcher.batches.size());
+    assertEquals(Arrays.asList(new DocId("0")), prefetcher.batches.get(0));
+    assertEquals(Arrays.asList(new DocId("1")), prefetcher.batches.get(1));
+
+    hinter.itemsSent(Arrays.asList(
+        new DocIdPusher.Record.Builder(new DocId("4")).build()));
+    executor.runAll();
+    assertEquals(Arrays.asList(new DocId("4")), prefetcher.batches.get(2));
+  }
+
+  @Test
+  public void testFailureDoesNotStopLaterBatches() {
+    prefetcher.fail = true;
+    hinter.itemsSent(Arrays.asList(
+        new DocIdPusher.Record.Builder(new DocId("1")).build()));
+    hinter.itemsSent(Arrays.asList(
+        new DocIdPusher.Record.Builder(new DocId("2")).build()));
+    executor.runAll();
+    assertEquals(2, prefetcher.batches.size());
+  }
+
+  private static class RecordingPrefetcher implements DocIdPrefetcher {
+    final List<List<DocId>> batches = new ArrayList<List<DocId>>();
+    boolean fail;
+
+    @Override
+    public void prefetch(List<DocId> ids) {
+      batches.add(ids);
+      if (fail) {
+        throw new RuntimeException("prefetch failed");
+      }
+    }
+  }
+
+  /** Runs tasks only when asked to. */
+  private static class QueuingExecutor implements Executor {
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    public void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.remove(0).run();
+      }
+    }
+  }
+}
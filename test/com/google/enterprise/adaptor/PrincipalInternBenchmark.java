@@ -0,0 +1,78 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the heap retained by many ACLs that repeat a small number of
+ * principals, with and without {@link PrincipalInterner}. Not run as part of
+ * the tests; run manually with:
+ *
+ * <pre>java -cp build/src:build/test:lib/* \
+ *   com.google.enterprise.adaptor.PrincipalInternBenchmark [acls] [principals]
+ * </pre>
+ */
+public class PrincipalInternBenchmark {
+  /** Number of principals of each kind in each ACL. */
+  private static final int PER_ACL = 5;
+  private static volatile Object sink;
+
+  public static void main(String[] args) {
+    int acls = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int principals = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    PrincipalInterner.resetForTesting();
+    long plainBytes = retainedBytes(acls, principals);
+    PrincipalInterner.enable();
+    long internedBytes = retainedBytes(acls, principals);
+    System.out.println(String.format(
+        "%d ACLs of %d principals: retained heap  plain %6d bytes/ACL  "
+        + "interned %6d bytes/ACL  saved %.1f%%", acls, principals,
+        plainBytes / acls, internedBytes / acls,
+        100.0 * (plainBytes - internedBytes) / plainBytes));
+  }
+
+  private static long retainedBytes(int acls, int principals) {
+    sink = null;
+    long before = usedMemory();
+    List<Acl> retained = new ArrayList<Acl>(acls);
+    for (int i = 0; i < acls; i++) {
+      List<UserPrincipal> users = new ArrayList<UserPrincipal>();
+      List<GroupPrincipal> groups = new ArrayList<GroupPrincipal>();
+      for (int j = 0; j < PER_ACL; j++) {
+        // Build new Strings, as parsing would.
+        int n = (i * 31 + j * 17) % principals;
+        users.add(new UserPrincipal(new StringBuilder("domain\\user")
+            .append(n).toString()));
+        groups.add(new GroupPrincipal(new StringBuilder("domain\\group")
+            .append(n).toString()));
+      }
+      retained.add(new Acl.Builder().setPermitUsers(users)
+          .setPermitGroups(groups).build());
+    }
+    long bytes = usedMemory() - before;
+    sink = retained;
+    return bytes;
+  }
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
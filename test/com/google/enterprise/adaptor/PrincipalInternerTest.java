@@ -0,0 +1,77 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/** Unit tests for {@link PrincipalInterner}. */
+public class PrincipalInternerTest {
+  @After
+  public void disable() {
+    PrincipalInterner.resetForTesting();
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    UserPrincipal user = new UserPrincipal("user");
+    assertSame(user, PrincipalInterner.intern(user));
+    assertNotSame(user, PrincipalInterner.intern(new UserPrincipal("user")));
+  }
+
+  @Test
+  public void testIntern() {
+    PrincipalInterner.enable();
+    UserPrincipal user = PrincipalInterner.intern(new UserPrincipal("user"));
+    assertSame(user, PrincipalInterner.intern(new UserPrincipal("user")));
+    GroupPrincipal group
+        = PrincipalInterner.intern(new GroupPrincipal("user"));
+    assertEquals(new GroupPrincipal("user"), group);
+    assertNotSame(user, PrincipalInterner.intern(
+        new UserPrincipal("user", "other")));
+    assertNull(PrincipalInterner.intern(null));
+  }
+
+  @Test
+  public void testAclsSharePrincipals() {
+    PrincipalInterner.enable();
+    Acl acl1 = new Acl.Builder().setPermitGroups(
+        Collections.singleton(new GroupPrincipal("group"))).build();
+    Acl acl2 = new Acl.Builder().setDenyGroups(
+        Collections.singleton(new GroupPrincipal("group"))).build();
+    assertSame(acl1.getPermitGroups().iterator().next(),
+        acl2.getDenyGroups().iterator().next());
+  }
+
+  @Test
+  public void testAclTransformInterns() {
+    PrincipalInterner.enable();
+    AclTransform transform = new AclTransform(Arrays.asList(
+        new AclTransform.Rule(
+          new AclTransform.MatchData(null, "user", null, null),
+          new AclTransform.MatchData(null, "renamed", null, null))));
+    UserPrincipal renamed = PrincipalInterner.intern(
+        new UserPrincipal("renamed"));
+    assertSame(renamed, transform.transform(new UserPrincipal("user")));
+  }
+}
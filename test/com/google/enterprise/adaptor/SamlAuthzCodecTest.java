@@ -0,0 +1,285 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Tests for {@link SamlAuthzCodec}. Most tests check that {@link
+ * SamlBatchAuthzHandler} responds identically with and without the codec.
+ */
+public class SamlAuthzCodecTest {
+  private static final String SOAP_HEADER
+      = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+      + "<soap11:Envelope "
+      +   "xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+      +   "<soap11:Body>";
+  private static final String SOAP_FOOTER
+      =   "</soap11:Body>"
+      + "</soap11:Envelope>";
+  private static final String CREDENTIAL
+      = "<saml2p:Extensions xmlns:goog=\"http://www.google.com/\" "
+      +   "xmlns:saml2p=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+      +   "<goog:SecmgrCredential domain=\"test\" name=\"joe\" "
+      +     "namespace=\"Default\" password=\"p@ss&amp;w0rd\">"
+      +     "<goog:Group name=\"eng\" namespace=\"ns\" domain=\"test\"/>"
+      +     "<goog:Group name=\"all\" namespace=\"Default\"/>"
+      +   "</goog:SecmgrCredential>"
+      + "</saml2p:Extensions>";
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final Charset charset = Charset.forName("UTF-8");
+  private final SamlMetadata samlMetadata = new SamlMetadata("localhost", 80,
+      "localhost", "http://google.com/enterprise/gsa/security-manager",
+      "http://google.com/enterprise/gsa/adaptor");
+
+  @BeforeClass
+  public static void initSaml() {
+    GsaCommunicationHandler.bootstrapOpenSaml();
+  }
+
+  @Test
+  public void testSingleQuery() throws Exception {
+    assertEquals(200, assertSameResponses(SOAP_HEADER
+        + query("http://localhost/doc/1234", "id1", "Polly Hedra", null)
+        + SOAP_FOOTER));
+  }
+
+  @Test
+  public void testMultipleQueries() throws Exception {
+    assertEquals(200, assertSameResponses(SOAP_HEADER
+        + query("http://localhost/doc/permit", "id1", "joe", CREDENTIAL)
+        + query("http://localhost/doc/deny", "id2", "joe", null)
+        + query("http://localhost/doc/indeterminate", "id3", "joe", null)
+        + query("http://localhost/doc/missing", "id4", "joe", null)
+        + query("http://otherhost/doc/permit", "id5", "joe", null)
+        + SOAP_FOOTER));
+  }
+
+  @Test
+  public void testEscaping() throws Exception {
+    assertEquals(200, assertSameResponses(SOAP_HEADER
+        + query("http://localhost/doc/a&amp;b'c%22d", "i&amp;d&quot;&gt;",
+            "a&lt;b&gt;c&amp;d\"e'fé中", null)
+        + SOAP_FOOTER));
+  }
+
+  @Test
+  public void testSoapHeaderIgnored() throws Exception {
+    assertEquals(200, assertSameResponses(
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<soap11:Envelope "
+        +   "xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+        + "<soap11:Header><h:info xmlns:h=\"urn:test\">x</h:info>"
+        + "</soap11:Header><soap11:Body>"
+        + query("http://localhost/doc/permit", "id1", "joe", null)
+        + SOAP_FOOTER));
+  }
+
+  @Test
+  public void testSoapHeaderMustUnderstand() throws Exception {
+    assertEquals(400, assertSameResponses(
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<soap11:Envelope "
+        +   "xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+        + "<soap11:Header><h:info xmlns:h=\"urn:test\" "
+        + "soap11:mustUnderstand=\"1\">x</h:info>"
+        + "</soap11:Header><soap11:Body>"
+        + query("http://localhost/doc/permit", "id1", "joe", null)
+        + SOAP_FOOTER));
+  }
+
+  @Test
+  public void testNoQueries() throws Exception {
+    assertEquals(400, assertSameResponses(SOAP_HEADER + SOAP_FOOTER));
+  }
+
+  @Test
+  public void testMalformed() throws Exception {
+    assertEquals(400, assertSameResponses(SOAP_HEADER
+        + query("http://localhost/doc/permit", "id1", "joe", null)));
+  }
+
+  @Test
+  public void testDifferentSubjects() throws Exception {
+    assertEquals(400, assertSameResponses(SOAP_HEADER
+        + query("http://localhost/doc/permit", "id1", "joe", null)
+        + query("http://localhost/doc/permit", "id2", "bob", null)
+        + SOAP_FOOTER));
+  }
+
+  @Test
+  public void testNoSubject() throws Exception {
+    assertEquals(400, assertSameResponses(SOAP_HEADER
+        + query("http://localhost/doc/permit", "id1", null, null)
+        + SOAP_FOOTER));
+  }
+
+  @Test
+  public void testCredentialMissingName() throws Exception {
+    assertEquals(400, assertSameResponses(SOAP_HEADER
+        + query("http://localhost/doc/permit", "id1", "joe",
+            "<saml2p:Extensions xmlns:goog=\"http://www.google.com/\" "
+            + "xmlns:saml2p=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+            + "<goog:SecmgrCredential namespace=\"Default\"/>"
+            + "</saml2p:Extensions>")
+        + SOAP_FOOTER));
+  }
+
+  @Test
+  public void testDecode() throws Exception {
+    List<SamlAuthzCodec.Query> queries = SamlAuthzCodec.decode(
+        new ByteArrayInputStream((SOAP_HEADER
+          + query("http://localhost/doc/1", "id1", "joe", CREDENTIAL)
+          + query("http://localhost/doc/2", "id2", "joe", null)
+          + SOAP_FOOTER).getBytes(charset)));
+    assertEquals(2, queries.size());
+    SamlAuthzCodec.Query query = queries.get(0);
+    assertEquals("id1", query.id);
+    assertEquals("http://localhost/doc/1", query.resource);
+    assertEquals("joe", query.subject);
+    assertEquals("joe", query.credential.name);
+    assertEquals("test", query.credential.domain);
+    assertEquals("p@ss&w0rd", query.credential.password);
+    assertEquals(2, query.credential.groups.size());
+    assertEquals("ns", query.credential.groups.get(0).namespace);
+    assertNull(query.credential.groups.get(1).domain);
+    assertNull(queries.get(1).credential);
+  }
+
+  @Test
+  public void testDecodeRejectsDoctype() throws Exception {
+    String request = "<?xml version=\"1.0\"?>\n"
+        + "<!DOCTYPE foo [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]>"
+        + "<soap11:Envelope "
+        +   "xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+        +   "<soap11:Body>"
+        + query("http://localhost/doc/1", "id1", "&xxe;", null)
+        + SOAP_FOOTER;
+    thrown.expect(XMLStreamException.class);
+    SamlAuthzCodec.decode(new ByteArrayInputStream(request.getBytes(charset)));
+  }
+
+  @Test
+  public void testEncodeSizeMismatch() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    SamlAuthzCodec.encode(new StringWriter(), "issuer",
+        new org.joda.time.DateTime(),
+        Arrays.asList(new SamlAuthzCodec.Query("id", "r", "s", null)),
+        new ArrayList<AuthzStatus>());
+  }
+
+  /**
+   * Checks that the responses, and the identities given to the adaptor, are
+   * the same with and without the codec.
+   */
+  private int assertSameResponses(String request) throws Exception {
+    RecordingAuthority withOpenSaml = new RecordingAuthority();
+    MockHttpExchange openSamlEx = handle(withOpenSaml, false, request);
+    RecordingAuthority withCodec = new RecordingAuthority();
+    MockHttpExchange codecEx = handle(withCodec, true, request);
+
+    assertEquals(openSamlEx.getResponseCode(), codecEx.getResponseCode());
+    assertEquals(massageResponse(openSamlEx), massageResponse(codecEx));
+    for (String header : Arrays.asList(
+        "Content-Type", "Cache-control", "Pragma", "SOAPAction")) {
+      assertEquals(openSamlEx.getResponseHeaders().get(header),
+          codecEx.getResponseHeaders().get(header));
+    }
+    assertEquals(withOpenSaml.identities, withCodec.identities);
+    return codecEx.getResponseCode();
+  }
+
+  private MockHttpExchange handle(AuthzAuthority authority,
+      boolean streamingCodec, String request) throws Exception {
+    SamlBatchAuthzHandler handler = new SamlBatchAuthzHandler(authority,
+        new MockDocIdCodec(), samlMetadata, Principal.DomainFormat.DNS, null,
+        0, 0, AuthzStatus.INDETERMINATE, null, streamingCodec);
+    MockHttpExchange ex = new MockHttpExchange("POST", "/",
+        new MockHttpContext(handler, "/"));
+    ex.setRequestBody(new ByteArrayInputStream(request.getBytes(charset)));
+    handler.handle(ex);
+    return ex;
+  }
+
+  private String massageResponse(MockHttpExchange ex) {
+    return new String(ex.getResponseBytes(), charset)
+        .replaceAll("ID=\"[^\"]+\"", "ID=\"someid\"")
+        .replaceAll("IssueInstant=\"\\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:"
+            + "\\d\\d\\.\\d{3}Z\"", "IssueInstant=\"sometime\"");
+  }
+
+  private static String query(String resource, String id, String subject,
+      String extensions) {
+    return "<samlp:AuthzDecisionQuery "
+        +     "ID=\"" + id + "\" "
+        +     "IssueInstant=\"2009-10-20T17:52:29Z\" "
+        +     "Version=\"2.0\" "
+        +     "Resource=\"" + resource + "\" "
+        +     "xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" "
+        +     "xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+        +     (subject == null ? ""
+            : "<saml:Subject><saml:NameID>" + subject + "</saml:NameID>"
+            + "</saml:Subject>")
+        +     "<saml:Action "
+        +       "Namespace=\"urn:oasis:names:tc:SAML:1.0:action:ghpp\">"
+        +       "GET"
+        +     "</saml:Action>"
+        +     (extensions == null ? "" : extensions)
+        +   "</samlp:AuthzDecisionQuery>";
+  }
+
+  /** Decides based on the DocId, and records the identities it is given. */
+  private static class RecordingAuthority implements AuthzAuthority {
+    final List<String> identities = new ArrayList<String>();
+
+    @Override
+    public Map<DocId, AuthzStatus> isUserAuthorized(AuthnIdentity identity,
+        Collection<DocId> ids) {
+      identities.add(identity.toString());
+      Map<DocId, AuthzStatus> result = new HashMap<DocId, AuthzStatus>();
+      for (DocId id : ids) {
+        if (id.getUniqueId().endsWith("permit")) {
+          result.put(id, AuthzStatus.PERMIT);
+        } else if (id.getUniqueId().endsWith("deny")) {
+          result.put(id, AuthzStatus.DENY);
+        } else if (id.getUniqueId().endsWith("indeterminate")) {
+          result.put(id, AuthzStatus.INDETERMINATE);
+        }
+      }
+      return result;
+    }
+  }
+}
@@ -15,20 +15,32 @@
 package com.google.enterprise.adaptor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import com.google.common.collect.ImmutableMap;
 
+import org.junit.After;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Test cases for {@link SamlBatchAuthzHandler}.
@@ -53,12 +65,19 @@ public class SamlBatchAuthzHandlerTest {
   private MockHttpExchange ex = new MockHttpExchange("POST", "/",
       new MockHttpContext(handler, "/"));
   private Charset charset = Charset.forName("UTF-8");
+  private ExecutorService executor = Executors.newCachedThreadPool();
+  private Journal journal = new Journal(new MockTimeProvider());
 
   @BeforeClass
   public static void initSaml() {
     GsaCommunicationHandler.bootstrapOpenSaml();
   }
 
+  @After
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
   @Test
   public void testGet() throws Exception {
     MockHttpExchange ex = new MockHttpExchange("GET", "/",
@@ -503,6 +522,232 @@ public class SamlBatchAuthzHandlerTest {
     assertEquals(goldenResponse, response);
   }
 
+  @Test
+  public void testParallelBatches() throws Exception {
+    final Map<DocId, Thread> threads = new HashMap<DocId, Thread>();
+    AuthzAuthority adaptor = new AuthzAuthority() {
+      @Override
+      public Map<DocId, AuthzStatus> isUserAuthorized(AuthnIdentity identity,
+          Collection<DocId> ids) {
+        assertEquals(1, ids.size());
+        DocId docId = ids.iterator().next();
+        synchronized (threads) {
+          threads.put(docId, Thread.currentThread());
+        }
+        return Collections.singletonMap(docId, AuthzStatus.PERMIT);
+      }
+    };
+    SamlBatchAuthzHandler handler = new SamlBatchAuthzHandler(
+        adaptor, new MockDocIdCodec(), samlMetadata,
+        Principal.DomainFormat.DNS, executor, 1, 0,
+        AuthzStatus.INDETERMINATE, journal, false);
+    MockHttpExchange ex = new MockHttpExchange("POST", "/",
+        new MockHttpContext(handler, "/"));
+    String request
+        = SOAP_HEADER
+        + generateAuthzDecisionQuery("http://localhost/doc/1234",
+                                     "aoeuaoeu1", DEFAULT_SUBJECT, null)
+        + generateAuthzDecisionQuery("http://localhost/doc/1235",
+                                     "aoeuaoeu2", DEFAULT_SUBJECT, null)
+        + generateAuthzDecisionQuery("http://localhost/doc/1234",
+                                     "aoeuaoeu3", DEFAULT_SUBJECT, null)
+        + SOAP_FOOTER;
+    String goldenResponse
+        = SOAP_HEADER
+        + generateGoldenResponse("http://localhost/doc/1234",
+                                 "aoeuaoeu1", DEFAULT_SUBJECT, "Permit")
+        + generateGoldenResponse("http://localhost/doc/1235",
+                                 "aoeuaoeu2", DEFAULT_SUBJECT, "Permit")
+        + generateGoldenResponse("http://localhost/doc/1234",
+                                 "aoeuaoeu3", DEFAULT_SUBJECT, "Permit")
+        + SOAP_FOOTER;
+    ex.setRequestBody(stringToStream(request));
+    handler.handle(ex);
+    assertEquals(200, ex.getResponseCode());
+    String response = new String(ex.getResponseBytes(), charset);
+    response = massageResponse(response);
+    assertEquals(goldenResponse, response);
+    // Duplicate DocIds are only asked about once.
+    assertEquals(2, threads.size());
+    assertFalse(threads.containsValue(Thread.currentThread()));
+    assertEquals(2, journal.getSnapshot().numAuthzBatches);
+  }
+
+  @Test
+  public void testDeadlineGivesPartialResults() throws Exception {
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    AuthzAuthority adaptor = new AuthzAuthority() {
+      @Override
+      public Map<DocId, AuthzStatus> isUserAuthorized(AuthnIdentity identity,
+          Collection<DocId> ids) {
+        DocId docId = ids.iterator().next();
+        if (docId.equals(new DocId("doc/slow"))) {
+          try {
+            new CountDownLatch(1).await();
+          } catch (InterruptedException e) {
+            interrupted.countDown();
+          }
+          throw new IllegalStateException("interrupted");
+        } else if (docId.equals(new DocId("doc/broken"))) {
+          throw new RuntimeException("something happened");
+        }
+        return Collections.singletonMap(docId, AuthzStatus.PERMIT);
+      }
+    };
+    SamlBatchAuthzHandler handler = new SamlBatchAuthzHandler(
+        adaptor, new MockDocIdCodec(), samlMetadata,
+        Principal.DomainFormat.DNS, executor, 1, 100,
+        AuthzStatus.INDETERMINATE, journal, false);
+    MockHttpExchange ex = new MockHttpExchange("POST", "/",
+        new MockHttpContext(handler, "/"));
+    String request
+        = SOAP_HEADER
+        + generateAuthzDecisionQuery("http://localhost/doc/slow",
+                                     "aoeuaoeu1", DEFAULT_SUBJECT, null)
+        + generateAuthzDecisionQuery("http://localhost/doc/fast",
+                                     "aoeuaoeu2", DEFAULT_SUBJECT, null)
+        + generateAuthzDecisionQuery("http://localhost/doc/broken",
+                                     "aoeuaoeu3", DEFAULT_SUBJECT, null)
+        + SOAP_FOOTER;
+    String goldenResponse
+        = SOAP_HEADER
+        + generateGoldenResponse("http://localhost/doc/slow",
+                                 "aoeuaoeu1", DEFAULT_SUBJECT, "Indeterminate")
+        + generateGoldenResponse("http://localhost/doc/fast",
+                                 "aoeuaoeu2", DEFAULT_SUBJECT, "Permit")
+        + generateGoldenResponse("http://localhost/doc/broken",
+                                 "aoeuaoeu3", DEFAULT_SUBJECT, "Deny")
+        + SOAP_FOOTER;
+    ex.setRequestBody(stringToStream(request));
+    handler.handle(ex);
+    assertEquals(200, ex.getResponseCode());
+    String response = new String(ex.getResponseBytes(), charset);
+    response = massageResponse(response);
+    assertEquals(goldenResponse, response);
+    assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+    Journal.JournalSnapshot snapshot = journal.getSnapshot();
+    assertEquals(1, snapshot.numAuthzBatchTimeouts);
+    assertEquals(1, snapshot.numAuthzBatches);
+  }
+
+  @Test
+  public void testTimeoutDecisionAndDeadline() throws Exception {
+    final List<AuthzDeadline> deadlines
+        = Collections.synchronizedList(new ArrayList<AuthzDeadline>());
+    AuthzAuthority adaptor = new AuthzAuthority() {
+      @Override
+      public Map<DocId, AuthzStatus> isUserAuthorized(AuthnIdentity identity,
+          Collection<DocId> ids) {
+        deadlines.add(AuthzDeadline.current());
+        DocId docId = ids.iterator().next();
+        if (docId.equals(new DocId("doc/slow"))) {
+          try {
+            new CountDownLatch(1).await();
+          } catch (InterruptedException e) {
+            // Give up.
+          }
+        }
+        return Collections.singletonMap(docId, AuthzStatus.PERMIT);
+      }
+    };
+    SamlBatchAuthzHandler handler = new SamlBatchAuthzHandler(
+        adaptor, new MockDocIdCodec(), samlMetadata,
+        Principal.DomainFormat.DNS, executor, 1, 100, AuthzStatus.DENY,
+        journal, false);
+    MockHttpExchange ex = new MockHttpExchange("POST", "/",
+        new MockHttpContext(handler, "/"));
+    String request
+        = SOAP_HEADER
+        + generateAuthzDecisionQuery("http://localhost/doc/slow",
+                                     "aoeuaoeu1", DEFAULT_SUBJECT, null)
+        + generateAuthzDecisionQuery("http://localhost/doc/fast",
+                                     "aoeuaoeu2", DEFAULT_SUBJECT, null)
+        + SOAP_FOOTER;
+    String goldenResponse
+        = SOAP_HEADER
+        + generateGoldenResponse("http://localhost/doc/slow",
+                                 "aoeuaoeu1", DEFAULT_SUBJECT, "Deny")
+        + generateGoldenResponse("http://localhost/doc/fast",
+                                 "aoeuaoeu2", DEFAULT_SUBJECT, "Permit")
+        + SOAP_FOOTER;
+    ex.setRequestBody(stringToStream(request));
+    handler.handle(ex);
+    assertEquals(200, ex.getResponseCode());
+    String response = new String(ex.getResponseBytes(), charset);
+    response = massageResponse(response);
+    assertEquals(goldenResponse, response);
+    assertEquals(2, deadlines.size());
+    for (AuthzDeadline deadline : deadlines) {
+      assertTrue(deadline.isLimited());
+      assertTrue(deadline.getRemainingMillis() <= 100);
+    }
+  }
+
+  @Test
+  public void testRejectedPartsGetTimeoutDecision() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    AuthzAuthority adaptor = new AuthzAuthority() {
+      @Override
+      public Map<DocId, AuthzStatus> isUserAuthorized(AuthnIdentity identity,
+          Collection<DocId> ids) {
+        // Never returns while the test runs, even when interrupted.
+        while (true) {
+          try {
+            release.await();
+            return Collections.emptyMap();
+          } catch (InterruptedException ex) {
+            // Ignore.
+          }
+        }
+      }
+    };
+    ThreadPoolExecutor bounded = new ThreadPoolExecutor(1, 1, 60,
+        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1));
+    try {
+      SamlBatchAuthzHandler handler = new SamlBatchAuthzHandler(
+          adaptor, new MockDocIdCodec(), samlMetadata,
+          Principal.DomainFormat.DNS, bounded, 1, 100, AuthzStatus.DENY,
+          journal, false);
+      MockHttpExchange ex = new MockHttpExchange("POST", "/",
+          new MockHttpContext(handler, "/"));
+      String request
+          = SOAP_HEADER
+          + generateAuthzDecisionQuery("http://localhost/doc/1",
+                                       "aoeuaoeu1", DEFAULT_SUBJECT, null)
+          + generateAuthzDecisionQuery("http://localhost/doc/2",
+                                       "aoeuaoeu2", DEFAULT_SUBJECT, null)
+          + generateAuthzDecisionQuery("http://localhost/doc/3",
+                                       "aoeuaoeu3", DEFAULT_SUBJECT, null)
+          + SOAP_FOOTER;
+      String goldenResponse
+          = SOAP_HEADER
+          + generateGoldenResponse("http://localhost/doc/1",
+                                   "aoeuaoeu1", DEFAULT_SUBJECT, "Deny")
+          + generateGoldenResponse("http://localhost/doc/2",
+                                   "aoeuaoeu2", DEFAULT_SUBJECT, "Deny")
+          + generateGoldenResponse("http://localhost/doc/3",
+                                   "aoeuaoeu3", DEFAULT_SUBJECT, "Deny")
+          + SOAP_FOOTER;
+      ex.setRequestBody(stringToStream(request));
+      handler.handle(ex);
+      assertEquals(200, ex.getResponseCode());
+      String response = new String(ex.getResponseBytes(), charset);
+      response = massageResponse(response);
+      assertEquals(goldenResponse, response);
+      assertEquals(3, journal.getSnapshot().numAuthzBatchTimeouts);
+    } finally {
+      release.countDown();
+      bounded.shutdownNow();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPermitTimeoutDecision() {
+    new SamlBatchAuthzHandler(new PrivateMockAdaptor(), new MockDocIdCodec(),
+        samlMetadata, Principal.DomainFormat.DNS, executor, 1, 100,
+        AuthzStatus.PERMIT, journal, false);
+  }
+
   @Test
   public void testMultiRequestWithDifferentSubjects() throws Exception {
     String request
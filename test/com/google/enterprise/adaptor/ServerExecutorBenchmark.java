@@ -0,0 +1,122 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the throughput of the {@code server.executor.mode} settings for
+ * retrievals that mostly block on repository I/O. Not run as part of the
+ * tests; run manually with:
+ *
+ * <pre>java -cp build/src:build/test:lib/* \
+ *   com.google.enterprise.adaptor.ServerExecutorBenchmark [tasks] [blockMillis]
+ * </pre>
+ *
+ * <p>Each task blocks for {@code blockMillis} and then spins briefly. Tasks
+ * are submitted at the rate a fixed pool of the default size could sustain
+ * three times over, so the fixed pool overflows its queue; overflowing tasks
+ * are counted as shed.
+ */
+public class ServerExecutorBenchmark {
+  public static void main(String[] args) throws Exception {
+    int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+    long blockMillis = args.length > 1 ? Long.parseLong(args[1]) : 50;
+    for (String mode : new String[] {"fixed", "adaptive", "virtual"}) {
+      Config config = new Config();
+      config.setValue("server.executor.mode", mode);
+      // Warm up once, then measure.
+      run(config, tasks / 10, blockMillis);
+      Result result = run(config, tasks, blockMillis);
+      System.out.println(String.format(
+          "%-9s %-26s %8.1f tasks/s  %5d shed  %4d threads peak",
+          mode, result.executorName, result.throughput, result.shed,
+          result.peakThreads));
+    }
+  }
+
+  private static Result run(Config config, int tasks, final long blockMillis)
+      throws InterruptedException {
+    final ExecutorService executor = Application.createServerExecutor(config);
+    final CountDownLatch done = new CountDownLatch(tasks);
+    final AtomicInteger shed = new AtomicInteger();
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger peak = new AtomicInteger();
+    long intervalNanos = TimeUnit.MILLISECONDS.toNanos(blockMillis)
+        / (3 * config.getServerMaxWorkerThreads());
+    long start = System.nanoTime();
+    for (int i = 0; i < tasks; i++) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (HttpExchanges.abortImmediately.get() != null) {
+              shed.incrementAndGet();
+              return;
+            }
+            int now = running.incrementAndGet();
+            int prev;
+            while (now > (prev = peak.get())
+                && !peak.compareAndSet(prev, now)) {
+            }
+            try {
+              Thread.sleep(blockMillis);
+            } catch (InterruptedException ex) {
+              Thread.currentThread().interrupt();
+            }
+            spin();
+            running.decrementAndGet();
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+      long deadline = start + (i + 1) * intervalNanos;
+      while (System.nanoTime() < deadline) {
+        Thread.yield();
+      }
+    }
+    done.await();
+    long elapsed = System.nanoTime() - start;
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.MINUTES);
+    Result result = new Result();
+    result.executorName = executor.getClass().getSimpleName();
+    result.throughput = (tasks - shed.get()) * 1e9 / elapsed;
+    result.shed = shed.get();
+    result.peakThreads = peak.get();
+    return result;
+  }
+
+  private static volatile long sink;
+
+  private static void spin() {
+    long x = 0;
+    for (int i = 0; i < 10000; i++) {
+      x += i * 31 ^ x;
+    }
+    sink = x;
+  }
+
+  private static class Result {
+    String executorName;
+    double throughput;
+    int shed;
+    int peakThreads;
+  }
+}
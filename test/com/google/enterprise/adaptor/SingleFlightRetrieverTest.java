@@ -0,0 +1,275 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Unit tests for {@link SingleFlightRetriever}. */
+public class SingleFlightRetrieverTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final DocId docId = new DocId("doc");
+  private final Journal journal = new Journal(new MockTimeProvider());
+  /** Holds the part written before the leader is released, then spills. */
+  private final SingleFlightRetriever retriever
+      = new SingleFlightRetriever(8, journal);
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final CountDownLatch leaderRelease = new CountDownLatch(1);
+  private final AtomicInteger calls = new AtomicInteger();
+
+  @After
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testNullJournal() {
+    thrown.expect(NullPointerException.class);
+    new SingleFlightRetriever(10, null);
+  }
+
+  @Test
+  public void testSingleRequest() throws Exception {
+    Adaptor adaptor = new SlowAdaptor(false);
+    leaderRelease.countDown();
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    WrapperAdaptor.GetContentsResponse response
+        = new WrapperAdaptor.GetContentsResponse(baos);
+    retriever.getDocContent("key", adaptor,
+        new WrapperAdaptor.GetContentsRequest(docId), response);
+    assertEquals("text/plain", response.getContentType());
+    assertEquals("hello world!", baos.toString("UTF-8"));
+    assertEquals(0, retriever.getFlightCount());
+    assertEquals(0, journal.getSnapshot().numCoalescedRetrievals);
+  }
+
+  @Test
+  public void testConcurrentRequestsShare() throws Exception {
+    Adaptor adaptor = new SlowAdaptor(false);
+    ResponseCapture leader = retrieveAsync("key", adaptor);
+    waitForCalls(1);
+    ResponseCapture follower = retrieveAsync("key", adaptor);
+    waitForCoalesced(1);
+    leaderRelease.countDown();
+    leader.future.get();
+    follower.future.get();
+
+    assertEquals(1, calls.get());
+    assertEquals("hello world!", leader.baos.toString("UTF-8"));
+    assertEquals("hello world!", follower.baos.toString("UTF-8"));
+    assertEquals("text/plain", follower.response.getContentType());
+    assertEquals("value", follower.response.getMetadata().getOneValue("key"));
+    assertTrue(follower.response.isNoIndex());
+    assertEquals(0, retriever.getFlightCount());
+  }
+
+  @Test
+  public void testLateFollowerRetrievesItself() throws Exception {
+    SingleFlightRetriever retriever = new SingleFlightRetriever(4, journal);
+    Adaptor adaptor = new SlowAdaptor(false);
+    ResponseCapture leader = retrieveAsync(retriever, "key", adaptor);
+    waitForCalls(1);
+    // The leader has already written more than it keeps.
+    ResponseCapture follower = retrieveAsync(retriever, "key", adaptor);
+    waitForCalls(2);
+    leaderRelease.countDown();
+    leader.future.get();
+    follower.future.get();
+    assertEquals("hello world!", leader.baos.toString("UTF-8"));
+    assertEquals("hello world!", follower.baos.toString("UTF-8"));
+    assertEquals(0, journal.getSnapshot().numCoalescedRetrievals);
+    assertEquals(0, retriever.getFlightCount());
+  }
+
+  @Test
+  public void testDifferentKeysDoNotShare() throws Exception {
+    Adaptor adaptor = new SlowAdaptor(false);
+    ResponseCapture first = retrieveAsync("key1", adaptor);
+    waitForCalls(1);
+    ResponseCapture second = retrieveAsync("key2", adaptor);
+    waitForCalls(2);
+    leaderRelease.countDown();
+    first.future.get();
+    second.future.get();
+    assertEquals(0, journal.getSnapshot().numCoalescedRetrievals);
+  }
+
+  @Test
+  public void testLeaderFailsBeforeResponding() throws Exception {
+    Adaptor adaptor = new SlowAdaptor(true);
+    ResponseCapture leader = retrieveAsync("key", adaptor);
+    waitForCalls(1);
+    ResponseCapture follower = retrieveAsync("key", adaptor);
+    waitForCoalesced(1);
+    leaderRelease.countDown();
+    try {
+      leader.future.get();
+      throw new AssertionError("Expected failure");
+    } catch (ExecutionException ex) {
+      assertTrue(ex.getCause() instanceof IOException);
+    }
+    follower.future.get();
+    // Follower retrieved the document itself.
+    assertEquals(2, calls.get());
+    assertEquals("hello world!", follower.baos.toString("UTF-8"));
+  }
+
+  @Test
+  public void testSharedNotFound() throws Exception {
+    Adaptor adaptor = new MockAdaptor() {
+      @Override
+      public void getDocContent(Request request, Response response)
+          throws IOException, InterruptedException {
+        calls.incrementAndGet();
+        leaderRelease.await();
+        response.respondNotFound();
+      }
+    };
+    ResponseCapture leader = retrieveAsync("key", adaptor);
+    waitForCalls(1);
+    ResponseCapture follower = retrieveAsync("key", adaptor);
+    waitForCoalesced(1);
+    leaderRelease.countDown();
+    leader.future.get();
+    follower.future.get();
+    assertEquals(1, calls.get());
+    assertTrue(follower.response.isNotFound());
+  }
+
+  @Test
+  public void testSharedContentNotWanted() throws Exception {
+    final Adaptor adaptor = new MockAdaptor() {
+      @Override
+      public void getDocContent(Request request, Response response)
+          throws IOException, InterruptedException {
+        calls.incrementAndGet();
+        response.setContentType("video/mp4");
+        leaderRelease.await();
+        if (((ContentWantedResponse) response).isContentWanted()) {
+          response.getOutputStream().write(1);
+        }
+      }
+    };
+    final ResponseCapture leader = new ResponseCapture();
+    leader.future = executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        retriever.getDocContent("key", adaptor,
+            new WrapperAdaptor.GetContentsRequest(docId),
+            new WrapperAdaptor.WrapperResponse(leader.response) {
+              @Override
+              public boolean isContentWanted() {
+                return false;
+              }
+            });
+        return null;
+      }
+    });
+    waitForCalls(1);
+    ResponseCapture follower = retrieveAsync("key", adaptor);
+    waitForCoalesced(1);
+    leaderRelease.countDown();
+    leader.future.get();
+    follower.future.get();
+    assertEquals(1, calls.get());
+    assertEquals("video/mp4", follower.response.getContentType());
+    assertEquals(0, follower.baos.size());
+  }
+
+  private void waitForCalls(int count) throws InterruptedException {
+    while (calls.get() < count) {
+      Thread.sleep(1);
+    }
+  }
+
+  private void waitForCoalesced(long count) throws InterruptedException {
+    while (journal.getSnapshot().numCoalescedRetrievals < count) {
+      Thread.sleep(1);
+    }
+  }
+
+  private ResponseCapture retrieveAsync(Object key, Adaptor adaptor) {
+    return retrieveAsync(retriever, key, adaptor);
+  }
+
+  private ResponseCapture retrieveAsync(final SingleFlightRetriever retriever,
+      final Object key, final Adaptor adaptor) {
+    final ResponseCapture capture = new ResponseCapture();
+    capture.future = executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        retriever.getDocContent(key, adaptor,
+            new WrapperAdaptor.GetContentsRequest(docId), capture.response);
+        return null;
+      }
+    });
+    return capture;
+  }
+
+  private static class ResponseCapture {
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    final WrapperAdaptor.GetContentsResponse response
+        = new WrapperAdaptor.GetContentsResponse(baos);
+    Future<Void> future;
+  }
+
+  /**
+   * Writes part of the document, waits for {@link #leaderRelease}, and then
+   * writes the rest. The first call may be made to fail before responding.
+   */
+  private class SlowAdaptor extends MockAdaptor {
+    private final boolean failFirst;
+
+    public SlowAdaptor(boolean failFirst) {
+      this.failFirst = failFirst;
+    }
+
+    @Override
+    public void getDocContent(Request request, Response response)
+        throws IOException, InterruptedException {
+      int call = calls.incrementAndGet();
+      if (failFirst && call == 1) {
+        leaderRelease.await();
+        throw new IOException("injected failure");
+      }
+      response.setContentType("text/plain");
+      response.addMetadata("key", "value");
+      response.setNoIndex(true);
+      OutputStream os = response.getOutputStream();
+      os.write("hello ".getBytes("UTF-8"));
+      leaderRelease.await();
+      os.write("world!".getBytes("UTF-8"));
+    }
+  }
+}
@@ -0,0 +1,161 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Unit tests for {@link SpillingBuffer}. */
+public class SpillingBufferTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testNegativeMemoryLimit() {
+    thrown.expect(IllegalArgumentException.class);
+    new SpillingBuffer(-1);
+  }
+
+  @Test
+  public void testInMemory() throws Exception {
+    SpillingBuffer buffer = new SpillingBuffer(10);
+    InputStream in = buffer.newReader();
+    buffer.write(new byte[] {1, 2, 3}, 0, 3);
+    buffer.write(new byte[] {9, 4, 5, 9}, 1, 2);
+    buffer.complete();
+    buffer.release();
+    assertFalse(buffer.isSpilled());
+    assertEquals(5, buffer.getLength());
+    assertArrayEquals(new byte[] {1, 2, 3, 4, 5},
+        IOHelper.readInputStreamToByteArray(in));
+    in.close();
+  }
+
+  @Test
+  public void testSpilled() throws Exception {
+    SpillingBuffer buffer = new SpillingBuffer(4);
+    byte[] content = new byte[1000];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+    InputStream first = buffer.newReader();
+    buffer.write(content, 0, 3);
+    buffer.write(content, 3, 500);
+    buffer.write(content, 503, 497);
+    buffer.complete();
+    InputStream second = buffer.newReader();
+    buffer.release();
+    assertTrue(buffer.isSpilled());
+    assertArrayEquals(content, IOHelper.readInputStreamToByteArray(first));
+    assertArrayEquals(content, IOHelper.readInputStreamToByteArray(second));
+    first.close();
+    second.close();
+  }
+
+  @Test
+  public void testZeroMemory() throws Exception {
+    SpillingBuffer buffer = new SpillingBuffer(0);
+    InputStream in = buffer.newReader();
+    buffer.write(new byte[] {1, 2}, 0, 2);
+    buffer.complete();
+    buffer.release();
+    assertTrue(buffer.isSpilled());
+    assertEquals(1, in.read());
+    assertEquals(2, in.read());
+    assertEquals(-1, in.read());
+    in.close();
+  }
+
+  @Test
+  public void testReaderWaitsForWriter() throws Exception {
+    final SpillingBuffer buffer = new SpillingBuffer(2);
+    final InputStream in = buffer.newReader();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<byte[]> future = executor.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws IOException {
+          return IOHelper.readInputStreamToByteArray(in);
+        }
+      });
+      buffer.write(new byte[] {1, 2, 3}, 0, 3);
+      Thread.sleep(10);
+      assertFalse(future.isDone());
+      buffer.write(new byte[] {4}, 0, 1);
+      buffer.complete();
+      assertArrayEquals(new byte[] {1, 2, 3, 4}, future.get());
+    } finally {
+      executor.shutdownNow();
+    }
+    in.close();
+    buffer.release();
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    SpillingBuffer buffer = new SpillingBuffer(10);
+    InputStream in = buffer.newReader();
+    buffer.write(new byte[] {1}, 0, 1);
+    buffer.fail(new IOException("broken"));
+    buffer.release();
+    assertEquals(1, in.read());
+    thrown.expect(IOException.class);
+    in.read();
+  }
+
+  @Test
+  public void testInterrupted() throws Exception {
+    SpillingBuffer buffer = new SpillingBuffer(10);
+    InputStream in = buffer.newReader();
+    Thread.currentThread().interrupt();
+    try {
+      thrown.expect(InterruptedIOException.class);
+      in.read();
+    } finally {
+      assertTrue(Thread.interrupted());
+    }
+  }
+
+  @Test
+  public void testWriteAfterComplete() throws Exception {
+    SpillingBuffer buffer = new SpillingBuffer(10);
+    buffer.complete();
+    thrown.expect(IllegalStateException.class);
+    buffer.write(new byte[] {1}, 0, 1);
+  }
+
+  @Test
+  public void testNewReaderAfterRelease() {
+    SpillingBuffer buffer = new SpillingBuffer(10);
+    buffer.complete();
+    buffer.release();
+    thrown.expect(IllegalStateException.class);
+    buffer.newReader();
+  }
+}
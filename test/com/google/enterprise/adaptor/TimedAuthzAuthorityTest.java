@@ -0,0 +1,214 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link TimedAuthzAuthority} and {@link AuthzDeadline}. */
+public class TimedAuthzAuthorityTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final Journal journal = new Journal(new MockTimeProvider());
+  private final DocId fast = new DocId("fast");
+  private final DocId slow = new DocId("slow");
+
+  @After
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testNonPositiveTimeout() {
+    thrown.expect(IllegalArgumentException.class);
+    new TimedAuthzAuthority(new SlowAuthority(), executor, 0,
+        AuthzStatus.INDETERMINATE, journal);
+  }
+
+  @Test
+  public void testNullTimeoutDecision() {
+    thrown.expect(NullPointerException.class);
+    new TimedAuthzAuthority(new SlowAuthority(), executor, 1000, null,
+        journal);
+  }
+
+  @Test
+  public void testDecisionsWithinDeadline() throws Exception {
+    SlowAuthority slowAuthority = new SlowAuthority();
+    AuthzAuthority authority = new TimedAuthzAuthority(slowAuthority,
+        executor, 10000, AuthzStatus.INDETERMINATE, journal);
+    assertEquals(Collections.singletonMap(fast, AuthzStatus.PERMIT),
+        authority.isUserAuthorized(null, Arrays.asList(fast)));
+    assertNotSame(Thread.currentThread(), slowAuthority.thread);
+    assertTrue(slowAuthority.deadline.isLimited());
+    assertTrue(slowAuthority.deadline.getRemainingMillis() <= 10000);
+    // The deadline is only set during the call.
+    assertFalse(AuthzDeadline.current().isLimited());
+    Journal.JournalSnapshot snapshot = journal.getSnapshot();
+    assertEquals(1, snapshot.numAuthzBatches);
+    assertEquals(0, snapshot.numAuthzBatchTimeouts);
+  }
+
+  @Test
+  public void testTimeoutGivesFallbackDecision() throws Exception {
+    SlowAuthority slowAuthority = new SlowAuthority();
+    AuthzAuthority authority = new TimedAuthzAuthority(slowAuthority,
+        executor, 50, AuthzStatus.DENY, journal);
+    Map<DocId, AuthzStatus> expected = new HashMap<DocId, AuthzStatus>();
+    expected.put(fast, AuthzStatus.DENY);
+    expected.put(slow, AuthzStatus.DENY);
+    assertEquals(expected,
+        authority.isUserAuthorized(null, Arrays.asList(fast, slow)));
+    // The adaptor is interrupted so the thread can be reused.
+    assertTrue(slowAuthority.interrupted.await(10, TimeUnit.SECONDS));
+    assertTrue(slowAuthority.deadline.isExpired());
+    assertEquals(0, slowAuthority.deadline.getRemainingMillis());
+    Journal.JournalSnapshot snapshot = journal.getSnapshot();
+    assertEquals(0, snapshot.numAuthzBatches);
+    assertEquals(1, snapshot.numAuthzBatchTimeouts);
+  }
+
+  @Test
+  public void testHungAdaptorRejectsOnceQueueFull() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    AuthzAuthority hung = new AuthzAuthority() {
+      @Override
+      public Map<DocId, AuthzStatus> isUserAuthorized(AuthnIdentity identity,
+          Collection<DocId> ids) {
+        // Never returns while the test runs, even when interrupted.
+        while (true) {
+          try {
+            release.await();
+            return Collections.emptyMap();
+          } catch (InterruptedException ex) {
+            // Ignore.
+          }
+        }
+      }
+    };
+    ThreadPoolExecutor bounded = new ThreadPoolExecutor(1, 1, 60,
+        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1));
+    try {
+      AuthzAuthority authority = new TimedAuthzAuthority(hung, bounded, 20,
+          AuthzStatus.DENY, journal);
+      // Hangs the thread, then waits in the queue after being cancelled.
+      authority.isUserAuthorized(null, Arrays.asList(slow));
+      authority.isUserAuthorized(null, Arrays.asList(slow));
+      assertEquals(1, bounded.getQueue().size());
+      // Rejected without waiting for the timeout.
+      assertEquals(Collections.singletonMap(fast, AuthzStatus.DENY),
+          authority.isUserAuthorized(null, Arrays.asList(fast)));
+      assertEquals(1, bounded.getQueue().size());
+      assertEquals(3, journal.getSnapshot().numAuthzBatchTimeouts);
+    } finally {
+      release.countDown();
+      bounded.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testIOExceptionPropagated() throws Exception {
+    AuthzAuthority authority = new TimedAuthzAuthority(new AuthzAuthority() {
+      @Override
+      public Map<DocId, AuthzStatus> isUserAuthorized(AuthnIdentity identity,
+          Collection<DocId> ids) throws IOException {
+        throw new IOException("directory unavailable");
+      }
+    }, executor, 10000, AuthzStatus.INDETERMINATE, journal);
+    thrown.expect(IOException.class);
+    thrown.expectMessage("directory unavailable");
+    authority.isUserAuthorized(null, Arrays.asList(fast));
+  }
+
+  @Test
+  public void testRuntimeExceptionPropagated() throws Exception {
+    AuthzAuthority authority = new TimedAuthzAuthority(new AuthzAuthority() {
+      @Override
+      public Map<DocId, AuthzStatus> isUserAuthorized(AuthnIdentity identity,
+          Collection<DocId> ids) {
+        throw new IllegalStateException("bug");
+      }
+    }, executor, 10000, AuthzStatus.INDETERMINATE, journal);
+    thrown.expect(IllegalStateException.class);
+    authority.isUserAuthorized(null, Arrays.asList(fast));
+  }
+
+  @Test
+  public void testNoDeadline() {
+    AuthzDeadline deadline = AuthzDeadline.current();
+    assertFalse(deadline.isLimited());
+    assertFalse(deadline.isExpired());
+    assertEquals(Long.MAX_VALUE, deadline.getRemainingMillis());
+    assertFalse(AuthzDeadline.afterMillis(0).isLimited());
+  }
+
+  @Test
+  public void testNegativeDeadline() {
+    thrown.expect(IllegalArgumentException.class);
+    AuthzDeadline.afterMillis(-1);
+  }
+
+  /**
+   * Permits all DocIds, except that it blocks until interrupted if asked about
+   * {@code slow}.
+   */
+  private class SlowAuthority implements AuthzAuthority {
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    volatile Thread thread;
+    volatile AuthzDeadline deadline;
+
+    @Override
+    public Map<DocId, AuthzStatus> isUserAuthorized(AuthnIdentity identity,
+        Collection<DocId> ids) throws IOException {
+      thread = Thread.currentThread();
+      deadline = AuthzDeadline.current();
+      if (ids.contains(slow)) {
+        try {
+          new CountDownLatch(1).await();
+        } catch (InterruptedException ex) {
+          interrupted.countDown();
+          throw new IOException(ex);
+        }
+      }
+      Map<DocId, AuthzStatus> statuses = new HashMap<DocId, AuthzStatus>();
+      for (DocId id : ids) {
+        statuses.put(id, AuthzStatus.PERMIT);
+      }
+      return statuses;
+    }
+  }
+}
@@ -0,0 +1,135 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link VirtualThreadExecutor}. */
+public class VirtualThreadExecutorTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final ExecutorService delegate = Executors.newCachedThreadPool();
+  private final RecordingHandler handler = new RecordingHandler();
+
+  @After
+  public void shutdown() {
+    delegate.shutdownNow();
+  }
+
+  @Test
+  public void testInvalidConcurrency() {
+    thrown.expect(IllegalArgumentException.class);
+    new VirtualThreadExecutor(delegate, 0, handler);
+  }
+
+  @Test
+  public void testCreate() {
+    VirtualThreadExecutor executor = VirtualThreadExecutor.create(1, handler);
+    boolean supported;
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      supported = true;
+    } catch (NoSuchMethodException ex) {
+      supported = false;
+    }
+    if (supported) {
+      executor.shutdownNow();
+    } else {
+      assertNull(executor);
+    }
+  }
+
+  @Test
+  public void testExcessRunsHandlerInCallingThread() throws Exception {
+    VirtualThreadExecutor executor
+        = new VirtualThreadExecutor(delegate, 1, handler);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        done.countDown();
+      }
+    });
+    Runnable excess = new Runnable() {
+      @Override
+      public void run() {}
+    };
+    executor.execute(excess);
+    assertEquals(1, handler.rejected.size());
+    assertSame(excess, handler.rejected.get(0));
+    assertSame(Thread.currentThread(), handler.threads.get(0));
+
+    // Once the first task completes its permit is available again.
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    final CountDownLatch ran = new CountDownLatch(1);
+    for (int i = 0; i < 1000 && ran.getCount() > 0; i++) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          ran.countDown();
+        }
+      });
+      Thread.sleep(1);
+    }
+    assertTrue(ran.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testShutdown() throws Exception {
+    VirtualThreadExecutor executor
+        = new VirtualThreadExecutor(delegate, 1, handler);
+    executor.shutdown();
+    assertTrue(executor.isShutdown());
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    assertTrue(executor.isTerminated());
+  }
+
+  private static class RecordingHandler implements RejectedExecutionHandler {
+    final List<Runnable> rejected = new ArrayList<Runnable>();
+    final List<Thread> threads = new ArrayList<Thread>();
+
+    @Override
+    public synchronized void rejectedExecution(Runnable r,
+        ThreadPoolExecutor executor) {
+      rejected.add(r);
+      threads.add(Thread.currentThread());
+    }
+  }
+}
@@ -14,6 +14,8 @@
 
 package com.google.enterprise.adaptor;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.After;
@@ -119,4 +121,85 @@ public class WatchdogTest {
     thrown.expect(IllegalStateException.class);
     watchdog.processingCompleted();
   }
+
+  @Test
+  public void testInterruptionRecordedInJournal() throws InterruptedException {
+    Journal journal = new Journal(new MockTimeProvider());
+    watchdog = new Watchdog(executor, journal);
+    watchdog.processingStarting(1);
+    try {
+      Thread.sleep(1000);
+      throw new AssertionError("Expected interruption");
+    } catch (InterruptedException ex) {
+      // Expected.
+    } finally {
+      watchdog.processingCompleted();
+    }
+    assertEquals(1, journal.getSnapshot().numWatchdogTimeouts);
+  }
+
+  @Test
+  public void testManyCompletedBeforeDeadline() throws InterruptedException {
+    Journal journal = new Journal(new MockTimeProvider());
+    watchdog = new Watchdog(executor, journal);
+    for (int i = 0; i < 10000; i++) {
+      watchdog.processingStarting(20);
+      watchdog.processingCompleted();
+    }
+    Thread.sleep(100);
+    assertFalse(Thread.interrupted());
+    assertEquals(0, journal.getSnapshot().numWatchdogTimeouts);
+  }
+
+  @Test
+  public void testTimeoutAlreadyPassed() throws InterruptedException {
+    watchdog = new Watchdog(executor);
+    watchdog.processingStarting(-5);
+    try {
+      thrown.expect(InterruptedException.class);
+      Thread.sleep(1000);
+    } finally {
+      watchdog.processingCompleted();
+    }
+  }
+
+  @Test
+  public void testTickerStopsWhenIdleAndRestarts() throws InterruptedException {
+    watchdog = new Watchdog(executor);
+    watchdog.processingStarting(1000);
+    watchdog.processingCompleted();
+    for (int i = 0; i < 100 && watchdog.isTickerRunning(); i++) {
+      Thread.sleep(Watchdog.TICK_MILLIS);
+    }
+    assertFalse(watchdog.isTickerRunning());
+    watchdog.processingStarting(1);
+    try {
+      thrown.expect(InterruptedException.class);
+      Thread.sleep(1000);
+    } finally {
+      watchdog.processingCompleted();
+    }
+  }
+
+  @Test
+  public void testTickerSurvivesException() throws InterruptedException {
+    Journal journal = new Journal(new MockTimeProvider()) {
+      @Override
+      synchronized void recordWatchdogTimeout() {
+        throw new RuntimeException("injected");
+      }
+    };
+    watchdog = new Watchdog(executor, journal);
+    for (int i = 0; i < 2; i++) {
+      watchdog.processingStarting(1);
+      try {
+        Thread.sleep(1000);
+        throw new AssertionError("Expected interruption");
+      } catch (InterruptedException ex) {
+        // Expected.
+      } finally {
+        watchdog.processingCompleted();
+      }
+    }
+  }
 }
@@ -15,22 +15,29 @@
 package com.google.enterprise.adaptor.prebuilt;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import com.google.enterprise.adaptor.Metadata;
 import com.google.enterprise.adaptor.MetadataTransform;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
 
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** Unit tests for {@link FilterMimetypes}. */
 public class FilterMimetypesTest {
   private static Random rander = new Random();
 
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
   private static FilterMimetypes defaultFilter() {
     return FilterMimetypes.create(new HashMap<String, String>());
   }
@@ -251,4 +258,89 @@ public class FilterMimetypesTest {
     transform.transform(new Metadata(), params);
     assertEquals("do-not-index", params.get("Transmission-Decision"));
   }
+
+  @Test
+  public void testDecisionsCached() {
+    FilterMimetypes transform = defaultFilter();
+    for (int i = 0; i < 3; i++) {
+      Map<String, String> params = new HashMap<String, String>();
+      params.put("Content-Type", "text/rtf; charset=UTF-8");
+      transform.transform(new Metadata(), params);
+      assertEquals("as-is", params.get("Transmission-Decision"));
+    }
+    assertEquals(1, transform.getDecisionCacheStats().missCount());
+    assertEquals(2, transform.getDecisionCacheStats().hitCount());
+  }
+
+  @Test
+  public void testUnknownDecisionCached() {
+    FilterMimetypes transform = defaultFilter();
+    for (int i = 0; i < 2; i++) {
+      Map<String, String> params = new HashMap<String, String>();
+      params.put("Content-Type", "unknown/type");
+      transform.transform(new Metadata(), params);
+      assertNull(params.get("Transmission-Decision"));
+    }
+    assertEquals(1, transform.getDecisionCacheStats().hitCount());
+  }
+
+  @Test
+  public void testDecisionCacheBounded() {
+    Map<String, String> config = new HashMap<String, String>();
+    config.put("decisionCacheSize", "10");
+    FilterMimetypes transform = FilterMimetypes.create(config);
+    for (int i = 0; i < 100; i++) {
+      Map<String, String> params = new HashMap<String, String>();
+      params.put("Content-Type", "junk/type" + i);
+      transform.transform(new Metadata(), params);
+    }
+    assertTrue(transform.getDecisionCacheStats().evictionCount() >= 90);
+    // Decisions are still correct after evictions.
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("Content-Type", "application/pgp-signature");
+    transform.transform(new Metadata(), params);
+    assertEquals("do-not-index", params.get("Transmission-Decision"));
+  }
+
+  @Test
+  public void testNegativeDecisionCacheSize() {
+    Map<String, String> config = new HashMap<String, String>();
+    config.put("decisionCacheSize", "-1");
+    thrown.expect(IllegalArgumentException.class);
+    FilterMimetypes.create(config);
+  }
+
+  @Test
+  public void testConcurrentDecisions() throws Exception {
+    final FilterMimetypes transform = defaultFilter();
+    final String[] types = {"text/rtf", "application/pgp-signature",
+        "application/macbinary", "text/x-anything", "unknown/type"};
+    final String[] expected
+        = {"as-is", "do-not-index", "do-not-index-content", "as-is", null};
+    final AtomicInteger failures = new AtomicInteger();
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 1000; i++) {
+            int which = i % types.length;
+            Map<String, String> params = new HashMap<String, String>();
+            params.put("Content-Type", types[which]);
+            transform.transform(new Metadata(), params);
+            String decision = params.get("Transmission-Decision");
+            if (expected[which] == null ? decision != null
+                : !expected[which].equals(decision)) {
+              failures.incrementAndGet();
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(0, failures.get());
+  }
 }